@@ -2,7 +2,11 @@ package com.ibm.cdslabs.watson.recipe.bot.graph;
 
 import com.ibm.graph.client.IBMGraphClient;
 
+import java.io.File;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 public class App {
 
@@ -17,19 +21,141 @@ public class App {
                 env.get("SNS_API_URL").toString(),
                 env.get("SNS_API_KEY").toString()
         );
+        GraphRecipeStore recipeStore = new GraphRecipeStore(
+                graphClient,
+                env.get("GRAPH_ID").toString(),
+                new RecipeSimilarityIndex("true".equalsIgnoreCase((String)env.get("SIMILARITY_OFF_HEAP")))
+        );
+        RecipeClient recipeClient = new RecipeClient(
+                env.get("SPOONACULAR_KEY").toString(),
+                "true".equalsIgnoreCase((String)env.get("SPOONACULAR_HEDGING")),
+                new QuotaScheduler(
+                        env.containsKey("SPOONACULAR_REQUESTS_PER_SECOND") ? Double.parseDouble(env.get("SPOONACULAR_REQUESTS_PER_SECOND").toString()) : 5,
+                        10,
+                        0.1
+                )
+        );
+        if (env.containsKey("SPOONACULAR_RESULT_COUNT")) {
+            recipeClient.setResultCount(Integer.parseInt(env.get("SPOONACULAR_RESULT_COUNT").toString()));
+        }
         SousChef sousChef = new SousChef(
-                new GraphRecipeStore(graphClient, env.get("GRAPH_ID").toString()),
+                recipeStore,
                 env.get("SLACK_BOT_TOKEN").toString(),
                 env.get("SLACK_BOT_ID").toString(),
-                env.get("SPOONACULAR_KEY").toString(),
+                recipeClient,
                 env.get("CONVERSATION_USERNAME").toString(),
                 env.get("CONVERSATION_PASSWORD").toString(),
                 env.get("CONVERSATION_WORKSPACE_ID").toString(),
                 snsClient
         );
+        // VIRTUAL (default) or PLATFORM
+        sousChef.setExecutionModel(ExecutionModel.fromName((String)env.get("EXECUTION_MODEL")));
+        if (env.containsKey("MESSAGE_PIPELINE_PARTITIONS")) {
+            sousChef.setPipelinePartitions(Integer.parseInt(env.get("MESSAGE_PIPELINE_PARTITIONS").toString()));
+        }
+        if (env.containsKey("SLACK_WORKSPACES")) {
+            // additional workspaces as comma-separated name:token:botId entries
+            int dispatcherThreads = env.containsKey("SLACK_DISPATCHER_THREADS") ? Integer.parseInt(env.get("SLACK_DISPATCHER_THREADS").toString()) : 4;
+            double messagesPerSecond = env.containsKey("SLACK_MESSAGES_PER_SECOND") ? Double.parseDouble(env.get("SLACK_MESSAGES_PER_SECOND").toString()) : 10;
+            for (String workspace : env.get("SLACK_WORKSPACES").toString().split(",")) {
+                String[] fields = workspace.trim().split(":");
+                sousChef.addSlackWorkspace(new SlackWorkspace(fields[0], fields[1], fields[2], dispatcherThreads, messagesPerSecond));
+            }
+        }
+        if (env.containsKey("GRAPH_JOURNAL_DIR")) {
+            sousChef.setGraphWriteJournal(new GraphWriteJournal(recipeStore, new File(env.get("GRAPH_JOURNAL_DIR").toString())));
+        }
+        if (env.containsKey("RECIPE_CACHE_BYTES")) {
+            sousChef.setRecipeDetailCache(new RecipeDetailCache(
+                    env.containsKey("RECIPE_CACHE_HEAP_CHARS") ? Long.parseLong(env.get("RECIPE_CACHE_HEAP_CHARS").toString()) : 1024 * 1024,
+                    env.containsKey("RECIPE_CACHE_FILE") ? new File(env.get("RECIPE_CACHE_FILE").toString()) : null,
+                    Integer.parseInt(env.get("RECIPE_CACHE_BYTES").toString())
+            ));
+        }
+        if (env.containsKey("TRACE_SLOW_MILLIS")) {
+            // keep the traces of messages slower than this for diagnosis
+            sousChef.setTraceRecorder(new TraceRecorder(
+                    Long.parseLong(env.get("TRACE_SLOW_MILLIS").toString()),
+                    env.containsKey("TRACE_CAPACITY") ? Integer.parseInt(env.get("TRACE_CAPACITY").toString()) : 100
+            ));
+        }
+        if (env.containsKey("ARCHIVE_DIR")) {
+            // old user selections and recipe details are moved from Graph to a local archive
+            RecipeArchive archive = new RecipeArchive(new File(env.get("ARCHIVE_DIR").toString()));
+            archive.start();
+            recipeStore.setArchive(archive);
+            if (env.containsKey("ARCHIVE_AFTER_DAYS")) {
+                sousChef.setArchiveAfterDays(Integer.parseInt(env.get("ARCHIVE_AFTER_DAYS").toString()));
+            }
+        }
+        if (env.containsKey("INTERACTION_LOG_DIR")) {
+            sousChef.setInteractionLog(new InteractionLog(
+                    new File(env.get("INTERACTION_LOG_DIR").toString()),
+                    env.containsKey("INTERACTION_LOG_FILE_BYTES") ? Long.parseLong(env.get("INTERACTION_LOG_FILE_BYTES").toString()) : 64 * 1024 * 1024
+            ));
+        }
+        if (env.containsKey("USER_STATE_SPILL_BYTES")) {
+            sousChef.setUserStateSpillStore(new UserStateSpillStore(
+                    env.containsKey("USER_STATE_SPILL_FILE") ? new File(env.get("USER_STATE_SPILL_FILE").toString()) : null,
+                    Integer.parseInt(env.get("USER_STATE_SPILL_BYTES").toString())
+            ));
+        }
+        int partitionCount = env.containsKey("USER_STATE_PARTITIONS") ? Integer.parseInt(env.get("USER_STATE_PARTITIONS").toString()) : 16;
+        if (env.containsKey("SHARD_DIR")) {
+            // partitions are opened as the coordinator assigns them to this instance
+            String instanceId = env.containsKey("SHARD_INSTANCE_ID") ? env.get("SHARD_INSTANCE_ID").toString() : UUID.randomUUID().toString();
+            sousChef.setShardCoordinator(new ShardCoordinator(new File(env.get("SHARD_DIR").toString()), instanceId, partitionCount));
+        }
+        if (env.containsKey("USER_STATE_DIR")) {
+            Set<Integer> ownedPartitions = null;
+            if (env.containsKey("SHARD_DIR")) {
+                ownedPartitions = new HashSet<>();
+            }
+            else if (env.containsKey("USER_STATE_OWNED_PARTITIONS")) {
+                ownedPartitions = parsePartitions(env.get("USER_STATE_OWNED_PARTITIONS").toString());
+            }
+            sousChef.setUserStateStore(new UserStateStore(new File(env.get("USER_STATE_DIR").toString()), partitionCount, ownedPartitions));
+        }
         sousChef.run();
+        HttpIngress httpIngress = null;
+        if (env.containsKey("HTTP_INGRESS_PORT")) {
+            httpIngress = new HttpIngress(
+                    sousChef,
+                    Integer.parseInt(env.get("HTTP_INGRESS_PORT").toString()),
+                    env.containsKey("SLACK_SIGNING_SECRET") ? env.get("SLACK_SIGNING_SECRET").toString() : null,
+                    env.containsKey("HTTP_INGRESS_THREADS") ? Integer.parseInt(env.get("HTTP_INGRESS_THREADS").toString()) : 2
+            );
+            if (env.containsKey("CHAT_API_TOKEN")) {
+                httpIngress.enableChat(env.get("CHAT_API_TOKEN").toString());
+            }
+            if (env.containsKey("TRACE_DUMP_TOKEN")) {
+                httpIngress.enableTraceDump(env.get("TRACE_DUMP_TOKEN").toString());
+            }
+            httpIngress.start();
+        }
         System.in.read();
+        if (httpIngress != null) {
+            httpIngress.stop();
+        }
         sousChef.stop();
     }
 
+    /**
+     * Parses a list of partitions such as "0-3,8,10-11".
+     * @param partitions - The comma-separated partitions and partition ranges
+     * @return - The set of partitions
+     */
+    private static Set<Integer> parsePartitions(String partitions) {
+        Set<Integer> set = new HashSet<>();
+        for (String range : partitions.split(",")) {
+            String[] bounds = range.trim().split("-");
+            int first = Integer.parseInt(bounds[0].trim());
+            int last = (bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first);
+            for (int i = first; i <= last; i++) {
+                set.add(i);
+            }
+        }
+        return set;
+    }
+
 }
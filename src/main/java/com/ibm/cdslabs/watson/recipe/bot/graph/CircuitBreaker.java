@@ -0,0 +1,81 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+/**
+ * Simple consecutive-failure circuit breaker.
+ * After failureThreshold consecutive failures the breaker opens and rejects requests for openMillis,
+ * then lets a single trial request through (half-open). A successful trial closes the breaker;
+ * a failed trial opens it again.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long openCount;
+
+    /**
+     * Creates a new instance of CircuitBreaker.
+     * @param failureThreshold - The number of consecutive failures that opens the breaker
+     * @param openMillis - How long the breaker stays open before allowing a trial request
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Returns true if a request may be made. Moves an expired open breaker to half-open
+     * and allows exactly one trial request while half-open.
+     * @return - true if the request is allowed
+     */
+    public synchronized boolean allowRequest() {
+        if (this.state == State.CLOSED) {
+            return true;
+        }
+        if (this.state == State.OPEN && System.currentTimeMillis() - this.openedAt >= this.openMillis) {
+            this.state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        this.consecutiveFailures = 0;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Called instead of recordSuccess or recordFailure when an allowed request was not made after all (for example
+     * because it was refused by the rate limiter). A half-open breaker goes back to open, and the next request
+     * becomes the trial, so the breaker is never left waiting on a trial that will not report back.
+     */
+    public synchronized void abandonTrial() {
+        if (this.state == State.HALF_OPEN) {
+            // openedAt is already past openMillis, so the next allowRequest starts a new trial
+            this.state = State.OPEN;
+        }
+    }
+
+    public synchronized void recordFailure() {
+        this.consecutiveFailures++;
+        if (this.state == State.HALF_OPEN || this.consecutiveFailures >= this.failureThreshold) {
+            if (this.state != State.OPEN) {
+                this.openCount++;
+            }
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    public synchronized long getOpenCount() {
+        return this.openCount;
+    }
+}
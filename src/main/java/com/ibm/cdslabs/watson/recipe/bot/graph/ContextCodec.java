@@ -0,0 +1,148 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Encodes Conversation context maps to a compact tagged binary form and back.
+ * Supports the value types found in Conversation contexts: null, String, Boolean, integral and
+ * floating point numbers, Lists and Maps with String keys. Any other value is encoded as its String form.
+ */
+public class ContextCodec {
+
+    private final static byte NULL = 0;
+    private final static byte STRING = 1;
+    private final static byte TRUE = 2;
+    private final static byte FALSE = 3;
+    private final static byte LONG = 4;
+    private final static byte DOUBLE = 5;
+    private final static byte LIST = 6;
+    private final static byte MAP = 7;
+
+    /**
+     * Encodes the specified context.
+     * @param context - The Conversation context, or null
+     * @return - The encoded context, or null if context is null
+     */
+    public static byte[] encode(Map<String,Object> context) {
+        if (context == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeValue(out, context);
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Decodes a context encoded with encode.
+     * @param encoded - The encoded context, or null
+     * @return - A new mutable context map, or null if encoded is null
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String,Object> decode(byte[] encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            return (Map<String,Object>)readValue(new DataInputStream(new ByteArrayInputStream(encoded)));
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte((Boolean)value ? TRUE : FALSE);
+        }
+        else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(LONG);
+            out.writeLong(((Number)value).longValue());
+        }
+        else if (value instanceof Number) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number)value).doubleValue());
+        }
+        else if (value instanceof Map) {
+            Map<?,?> map = (Map<?,?>)value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?,?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        }
+        else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>)value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        }
+        else {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case MAP: {
+                int size = in.readInt();
+                Map<String,Object> map = new LinkedHashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    String key = readString(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            default:
+                throw new IOException(String.format("Invalid context tag %d", tag));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,70 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+/**
+ * Exponentially time-decayed popularity scores, stored in log space with forward decay.
+ * Each selection at time t adds weight e^(lambda * (t - LANDMARK)) to a score, and the score is stored as the log
+ * of the total weight. Because every score is relative to the same fixed landmark, scores written at different times
+ * compare correctly without decaying them on read: ordering by the stored score orders by decayed popularity.
+ * Working in log space keeps the values small (they grow linearly with time) so they never need rescaling.
+ * The decayed value at time now is e^(score - lambda * (now - LANDMARK)).
+ */
+public class DecayedScore {
+
+    public final static long HALF_LIFE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+    private final static long LANDMARK = 1451606400000L; // 2016-01-01T00:00:00Z
+    private final static double LAMBDA = Math.log(2) / HALF_LIFE_MILLIS;
+
+    /**
+     * Gets the score of a single selection at the specified time.
+     * @param time - The time of the selection in milliseconds since the epoch
+     * @return - The log-space score
+     */
+    public static double forSelection(long time) {
+        return LAMBDA * (time - LANDMARK);
+    }
+
+    /**
+     * Adds a selection at the specified time to a score.
+     * @param score - The existing log-space score
+     * @param time - The time of the selection in milliseconds since the epoch
+     * @return - The updated log-space score
+     */
+    public static double add(double score, long time) {
+        return logAddExp(score, forSelection(time));
+    }
+
+    /**
+     * Gets the score for a count of selections that were not timestamped, treating them as made at the specified time.
+     * @param count - The number of selections
+     * @param time - The time to attribute the selections to
+     * @return - The log-space score
+     */
+    public static double forCount(int count, long time) {
+        return Math.log(Math.max(count, 1)) + forSelection(time);
+    }
+
+    /**
+     * Combines two scores, such as the scores of duplicate edges, into the score of all their selections.
+     * @param a - A log-space score
+     * @param b - Another log-space score
+     * @return - The combined log-space score
+     */
+    public static double merge(double a, double b) {
+        return logAddExp(a, b);
+    }
+
+    /**
+     * Gets the decayed number of selections represented by a score.
+     * @param score - The log-space score
+     * @param now - The current time in milliseconds since the epoch
+     * @return - The decayed selection count
+     */
+    public static double decayedCount(double score, long now) {
+        return Math.exp(score - forSelection(now));
+    }
+
+    private static double logAddExp(double a, double b) {
+        double max = Math.max(a, b);
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+    }
+}
@@ -0,0 +1,109 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ibm.graph.client.Edge;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the read-modify-write increments of edges with the same out vertex and in vertex within the process,
+ * so concurrent selections are not lost, and coalesces increments that arrive while an earlier write for the
+ * same edge is in flight into a single write.
+ * The first thread to increment an edge opens a batch for it and becomes its writer; threads incrementing the
+ * same edge before the batch is written join the batch and wait for its result. Writers of the same edge are
+ * serialized on a lock stripe, so there is no global lock and edges on different stripes are written in parallel.
+ */
+public class EdgeIncrementCoordinator {
+
+    private final static int STRIPES = 64;
+
+    private final ConcurrentHashMap<String, Batch> openBatches = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final AtomicLong increments = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    public EdgeIncrementCoordinator() {
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Writes an edge with the increments made by this and any concurrent callers.
+     * @param edge - The edge to increment
+     * @param writer - Writes the edge with the total number of increments
+     * @return - The edge that was added or updated
+     * @throws Exception
+     */
+    public Edge increment(Edge edge, IncrementWriter writer) throws Exception {
+        this.increments.incrementAndGet();
+        String key = edge.getOutV() + ":" + edge.getInV();
+        Batch created = new Batch();
+        Batch batch = this.openBatches.compute(key, (k, open) -> {
+            if (open == null) {
+                return created;
+            }
+            open.increments.incrementAndGet();
+            return open;
+        });
+        if (batch != created) {
+            return batch.await();
+        }
+        ReentrantLock stripe = this.stripes[Math.floorMod(key.hashCode(), this.stripes.length)];
+        stripe.lock();
+        try {
+            // close the batch; later callers open a new one and wait for this write to finish
+            this.openBatches.remove(key, batch);
+            this.writes.incrementAndGet();
+            Edge result = writer.write(edge, batch.increments.get());
+            batch.result.complete(result);
+            return result;
+        }
+        catch (Exception ex) {
+            batch.result.completeExceptionally(ex);
+            throw ex;
+        }
+        finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Gets the increment metrics.
+     * @return - The number of increments and the number of writes they were coalesced into
+     */
+    public Map<String,Object> getMetrics() {
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("increments", this.increments.get());
+        metrics.put("writes", this.writes.get());
+        return metrics;
+    }
+
+    /**
+     * Writes an edge incremented the specified number of times.
+     */
+    public interface IncrementWriter {
+        Edge write(Edge edge, int increments) throws Exception;
+    }
+
+    private static class Batch {
+
+        private final AtomicInteger increments = new AtomicInteger(1);
+        private final CompletableFuture<Edge> result = new CompletableFuture<>();
+
+        Edge await() throws Exception {
+            try {
+                return this.result.get();
+            }
+            catch (ExecutionException ex) {
+                throw (ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The threads that messages, and the blocking Conversation, Spoonacular, Graph and SNS calls made while
+ * handling them, run on.
+ * VIRTUAL - Each message runs on its own virtual thread, so a blocked call only parks the virtual thread and
+ * thousands of conversations can wait on I/O at once without a platform thread each.
+ * PLATFORM - Messages run on fixed pools of platform threads, so at most that many messages are handled at once.
+ */
+public enum ExecutionModel {
+
+    VIRTUAL,
+    PLATFORM;
+
+    /**
+     * Gets the execution model with the specified name, ignoring case.
+     * @param name - The name of the execution model, or null for the default (VIRTUAL)
+     * @return - The execution model
+     */
+    public static ExecutionModel fromName(String name) {
+        return (name == null ? VIRTUAL : ExecutionModel.valueOf(name.trim().toUpperCase()));
+    }
+
+    /**
+     * Creates an executor that runs tasks on threads of this model.
+     * @param name - The name of the threads
+     * @param threads - The number of platform threads; virtual executors start a thread per task
+     * @return - The executor
+     */
+    public ExecutorService newExecutor(String name, int threads) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        return Executors.newFixedThreadPool(threads, Thread.ofPlatform().name(name + "-", 0).daemon(true).factory());
+    }
+}
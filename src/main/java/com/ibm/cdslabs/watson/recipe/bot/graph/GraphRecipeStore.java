@@ -3,7 +3,6 @@ package com.ibm.cdslabs.watson.recipe.bot.graph;
 import com.ibm.graph.client.*;
 import com.ibm.graph.client.response.ResultSet;
 import com.ibm.graph.client.schema.*;
-import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +17,17 @@ public class GraphRecipeStore {
 
     private IBMGraphClient graphClient;
     private String graphId;
+    private RecipeSimilarityIndex similarityIndex;
+    private IngredientNormalizer ingredientNormalizer = new IngredientNormalizer();
+    private IngredientSetIndex ingredientSetIndex = new IngredientSetIndex(ingredientNormalizer);
+    private RecipeTitleIndex titleIndex = new RecipeTitleIndex();
+    private EdgeIncrementCoordinator edgeIncrements = new EdgeIncrementCoordinator();
+    private RecipeArchive archive;
+
+    private final static int PAGE_SIZE = 100;
+
+    // edges selected before scores were added have no score until backfilled, so they are ordered after scored edges
+    private final static String SCORE_ORDER = "coalesce(values(\"score\"), constant(0d))";
 
     private static Logger logger = LoggerFactory.getLogger(GraphRecipeStore.class);
 
@@ -27,15 +37,47 @@ public class GraphRecipeStore {
      * @param graphId - The id of the graph to use
      */
     public GraphRecipeStore(IBMGraphClient graphClient, String graphId) {
+        this(graphClient, graphId, new RecipeSimilarityIndex(false));
+    }
+
+    /**
+     * Creates a new instance of GraphRecipeStore.
+     * @param graphClient - The instance of the IBM Graph Client to use
+     * @param graphId - The id of the graph to use
+     * @param similarityIndex - The recipe similarity index to maintain from user selections
+     */
+    public GraphRecipeStore(IBMGraphClient graphClient, String graphId, RecipeSimilarityIndex similarityIndex) {
         this.graphClient = graphClient;
         this.graphId = graphId;
+        this.similarityIndex = similarityIndex;
     }
 
     /**
-     * Creates and initializes the Graph and Graph schema.
+     * Sets the archive that old user selections and recipe details are moved to (see archiveActivity).
+     * Reads fall back to the archive for data no longer in Graph. Must be called before init.
+     * @param archive - The archive, or null to keep everything in Graph
+     */
+    public void setArchive(RecipeArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Creates and initializes the Graph and Graph schema, and loads the in-memory indexes used to answer users.
      * @throws Exception
      */
     public void init() throws Exception {
+        this.initGraph();
+        this.loadSimilarityIndex();
+        this.loadIngredientSetIndex();
+        this.loadTitleIndex();
+    }
+
+    /**
+     * Creates and initializes the Graph and Graph schema without loading the in-memory indexes, for tools
+     * that read or write the graph directly (see util.ExportRecipeGraph, ImportRecipeGraph and CompactRecipeGraph).
+     * @throws Exception
+     */
+    public void initGraph() throws Exception {
         logger.debug("Getting graphs...");
         String[] graphIds = this.graphClient.getGraphs();
         boolean graphExists = Arrays.asList(graphIds).contains(this.graphId);
@@ -74,6 +116,96 @@ public class GraphRecipeStore {
         }
     }
 
+    /**
+     * Loads the names of the ingredient vertices in Graph into the ingredient set index.
+     * @throws Exception
+     */
+    private void loadIngredientSetIndex() throws Exception {
+        logger.debug("Loading ingredient set index...");
+        int offset = 0;
+        List<Vertex> ingredients;
+        do {
+            ingredients = this.getVertices("ingredient", offset, PAGE_SIZE);
+            offset += ingredients.size();
+            for (Vertex ingredient : ingredients) {
+                this.ingredientSetIndex.add(ingredient.getPropertyValue("name").toString());
+            }
+        } while (ingredients.size() == PAGE_SIZE);
+        logger.debug(String.format("Ingredient set index loaded with %d ingredient sets.", this.ingredientSetIndex.size()));
+    }
+
+    /**
+     * Loads the titles of the recipe vertices in Graph, and of the recipes stored on the ingredient and
+     * cuisine vertices, into the recipe title index.
+     * @throws Exception
+     */
+    private void loadTitleIndex() throws Exception {
+        logger.debug("Loading recipe title index...");
+        for (String label : new String[]{"recipe", "ingredient", "cuisine"}) {
+            int offset = 0;
+            List<Vertex> vertices;
+            do {
+                vertices = this.getVertices(label, offset, PAGE_SIZE);
+                offset += vertices.size();
+                for (Vertex vertex : vertices) {
+                    if (label.equals("recipe")) {
+                        this.addTitle(vertex.getPropertyValue("name").toString(), (String)vertex.getPropertyValue("title"));
+                    }
+                    else if (vertex.getPropertyValue("detail") != null) {
+                        this.titleIndex.addAll(RecipeJson.readSummaries(vertex.getPropertyValue("detail").toString()));
+                    }
+                }
+            } while (vertices.size() == PAGE_SIZE);
+        }
+        logger.debug(String.format("Recipe title index loaded with %d recipes.", this.titleIndex.size()));
+    }
+
+    private void addTitle(String recipeName, String recipeTitle) {
+        try {
+            this.titleIndex.add(Integer.parseInt(recipeName), recipeTitle);
+        }
+        catch (NumberFormatException ex) {
+            // not a Spoonacular recipe ID, so it cannot be listed
+        }
+    }
+
+    /**
+     * Loads the recipe similarity index from the user-to-recipe edges in Graph, one page of users at a time.
+     * @throws Exception
+     */
+    private void loadSimilarityIndex() throws Exception {
+        logger.debug("Loading recipe similarity index...");
+        int offset = 0;
+        List<Vertex> users;
+        do {
+            users = this.getVertices("person", offset, PAGE_SIZE);
+            offset += users.size();
+            if (users.size() > 0) {
+                String query = "g.V(" + joinIds(users) + ").outE(\"selects\").inV().hasLabel(\"recipe\").path()";
+                ResultSet resultSet = this.executeGremlin(query);
+                Iterator<JSONObject> iterator = resultSet.getJSONObjectResultIterator();
+                while (iterator.hasNext()) {
+                    Path path = Path.fromJSONObject(iterator.next());
+                    Vertex userVertex = (Vertex)path.getObjects()[0];
+                    Vertex recipeVertex = (Vertex)path.getObjects()[2];
+                    this.similarityIndex.recordSelection(
+                            userVertex.getId().toString(),
+                            recipeVertex.getPropertyValue("name").toString(),
+                            (String)recipeVertex.getPropertyValue("title")
+                    );
+                }
+            }
+        } while (users.size() == PAGE_SIZE);
+        if (this.archive != null) {
+            this.archive.forEachEdge(edge -> {
+                if ("recipe".equals(edge.getInLabel())) {
+                    this.similarityIndex.recordSelection(edge.getUserVertexId(), edge.getInName(), edge.getInTitle());
+                }
+            });
+        }
+        logger.debug(String.format("Recipe similarity index loaded with %d recipe pairs.", this.similarityIndex.getPairCount()));
+    }
+
     // User
 
     /**
@@ -96,7 +228,7 @@ public class GraphRecipeStore {
      */
     public void deleteUsers(String[] userIds) throws Exception {
         for (String userId : userIds) {
-            ResultSet resultSet = this.graphClient.executeGremlin("g.V().hasLabel(\"person\").has(\"name\", \"" + userId + "\")");
+            ResultSet resultSet = this.executeGremlin("g.V().hasLabel(\"person\").has(\"name\", " + gremlinString(userId) + ")");
             Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
             while(iterator.hasNext()) {
                 Vertex vertex = iterator.next();
@@ -110,16 +242,16 @@ public class GraphRecipeStore {
 
     /**
      * Gets the unique name for the ingredient to be stored in Graph.
+     * Ingredients are folded to canonical singular names and sorted, so equivalent lists share a vertex.
+     * If an ingredient vertex added before ingredients were canonicalized has an equivalent name, its stored
+     * name is returned, so existing vertices keep being found and no duplicate is added.
      * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
      * @return - the unique name based on ingredientsStr
      */
-    private String getUniqueIngredientsName(final String ingredientsStr) {
-        String[] ingredients = ingredientsStr.trim().toLowerCase().split(",");
-        for (int i = 0; i < ingredients.length; i++) {
-            ingredients[i] = ingredients[i].trim();
-        }
-        Arrays.sort(ingredients);
-        return String.join(",", ingredients);
+    public String getUniqueIngredientsName(final String ingredientsStr) {
+        String canonicalName = this.ingredientNormalizer.getCanonicalName(ingredientsStr);
+        String storedName = this.ingredientSetIndex.getStoredName(canonicalName);
+        return (storedName == null ? canonicalName : storedName);
     }
 
     /**
@@ -132,36 +264,83 @@ public class GraphRecipeStore {
         return findVertex("ingredient", "name", this.getUniqueIngredientsName(ingredientsStr));
     }
 
+    /**
+     * Finds the ingredient with the specified stored name in Graph, without canonicalizing the name.
+     * @param name - The unique name of the ingredient vertex, as returned from getUniqueIngredientsName
+     * @return - The ingredient vertex
+     * @throws Exception
+     */
+    public Vertex findIngredientByName(final String name) throws Exception {
+        return findVertex("ingredient", "name", name);
+    }
+
+    /**
+     * Finds the cached ingredient in Graph whose ingredients most closely match the specified ingredientsStr.
+     * Used when there is no exact match to serve recipes from a similar subset or superset of ingredients.
+     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
+     * @return - The closest ingredient vertex, or null if no cached ingredient is similar enough
+     * @throws Exception
+     */
+    public Vertex findClosestIngredient(final String ingredientsStr) throws Exception {
+        return this.findClosestIngredient(ingredientsStr, IngredientSetIndex.MIN_SIMILARITY);
+    }
+
+    /**
+     * Finds the cached ingredient in Graph whose ingredients most closely match the specified ingredientsStr.
+     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
+     * @param minSimilarity - The minimum Jaccard similarity; 0 accepts any ingredient sharing an ingredient
+     * @return - The closest ingredient vertex, or null if no cached ingredient is similar enough
+     * @throws Exception
+     */
+    public Vertex findClosestIngredient(final String ingredientsStr, double minSimilarity) throws Exception {
+        String name = this.ingredientSetIndex.findClosest(ingredientsStr, minSimilarity);
+        return (name == null ? null : findVertex("ingredient", "name", name));
+    }
+
     /**
      * Adds a new ingredient to Graph if an ingredient based on the specified ingredientsStr does not already exist.
      * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
      * @param matchingRecipes - The recipes that match the specified ingredientsStr
-     * @param userVertex - The existing Graph vertex for the user
+     * @param userVertexId - The ID of the existing Graph vertex for the user
      * @return - The ingredient vertex
      * @throws Exception
      */
-    public Vertex addIngredient(final String ingredientsStr, final JSONArray matchingRecipes, Vertex userVertex) throws Exception {
+    public Vertex addIngredient(final String ingredientsStr, final List<RecipeSummary> matchingRecipes, Object userVertexId) throws Exception {
+        final String detail = RecipeJson.writeSummaries(matchingRecipes);
         Vertex ingredientVertex = new Vertex("ingredient", new HashMap() {{
             put("name", getUniqueIngredientsName(ingredientsStr));
-            put("detail", matchingRecipes.toString());
+            put("detail", detail);
         }});
         ingredientVertex = this.addVertexIfNotExists(ingredientVertex, "name");
-        this.recordIngredientRequestForUser(ingredientVertex, userVertex);
+        this.ingredientSetIndex.add(ingredientVertex.getPropertyValue("name").toString());
+        this.titleIndex.addAll(matchingRecipes);
+        this.recordIngredientRequestForUser(ingredientVertex.getId(), userVertexId);
         return ingredientVertex;
     }
 
     /**
      * Creates or updates an edge between the specified user and ingredient.
      * Stores the number of times the ingredient has been accessed by the user in the edge.
-     * @param ingredientVertex - The existing Graph vertex for the ingredient
-     * @param userVertex - The existing Graph vertex for the user
+     * @param ingredientVertexId - The ID of the existing Graph vertex for the ingredient
+     * @param userVertexId - The ID of the existing Graph vertex for the user
      * @throws Exception
      */
-    public void recordIngredientRequestForUser(Vertex ingredientVertex, Vertex userVertex) throws Exception {
-        Edge ingredientEdge = new Edge("selects", userVertex.getId(), ingredientVertex.getId(), new HashMap() {{
-            put("count", new Integer(1));
+    public void recordIngredientRequestForUser(Object ingredientVertexId, Object userVertexId) throws Exception {
+        this.recordIngredientRequestForUser(ingredientVertexId, userVertexId, null);
+    }
+
+    /**
+     * Creates or updates an edge between the specified user and ingredient (see recordIngredientRequestForUser(Object, Object)).
+     * @param ingredientVertexId - The ID of the existing Graph vertex for the ingredient
+     * @param userVertexId - The ID of the existing Graph vertex for the user
+     * @param batch - The batch the edge is written with, or null to write it now
+     * @throws Exception
+     */
+    public void recordIngredientRequestForUser(Object ingredientVertexId, Object userVertexId, WriteBatch batch) throws Exception {
+        Edge ingredientEdge = new Edge("selects", userVertexId, ingredientVertexId, new HashMap() {{
+            put("count", 1);
         }});
-        this.addUpdateEdge(ingredientEdge);
+        this.addUpdateEdge(ingredientEdge, batch);
     }
 
     /**
@@ -171,7 +350,7 @@ public class GraphRecipeStore {
      */
     public void deleteIngredients(String[] ingredients) throws Exception {
         for (String ingredient : ingredients) {
-            ResultSet resultSet = this.graphClient.executeGremlin("g.V().hasLabel(\"ingredient\").has(\"name\", \"" + ingredient + "\")");
+            ResultSet resultSet = this.executeGremlin("g.V().hasLabel(\"ingredient\").has(\"name\", " + gremlinString(ingredient) + ")");
             Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
             while(iterator.hasNext()) {
                 Vertex vertex = iterator.next();
@@ -188,7 +367,7 @@ public class GraphRecipeStore {
      * @param cuisine - The cuisine specified by the user
      * @return - The unique cuisine name
      */
-    private String getUniqueCuisineName(final String cuisine) {
+    public String getUniqueCuisineName(final String cuisine) {
         return cuisine.trim().toLowerCase();
     }
 
@@ -206,17 +385,19 @@ public class GraphRecipeStore {
      * Adds a new cuisine to Graph if a cuisine with the specified name does not already exist.
      * @param cuisine - The cuisine specified by the user
      * @param matchingRecipes - The recipes that match the specified cuisine
-     * @param userVertex - The existing Graph vertex for the user
+     * @param userVertexId - The ID of the existing Graph vertex for the user
      * @return - The cuisine vertex
      * @throws Exception
      */
-    public Vertex addCuisine(final String cuisine, final JSONArray matchingRecipes, Vertex userVertex) throws Exception {
+    public Vertex addCuisine(final String cuisine, final List<RecipeSummary> matchingRecipes, Object userVertexId) throws Exception {
+        final String detail = RecipeJson.writeSummaries(matchingRecipes);
         Vertex cuisineVertex = new Vertex("cuisine", new HashMap() {{
             put("name", getUniqueCuisineName(cuisine));
-            put("detail", matchingRecipes.toString());
+            put("detail", detail);
         }});
         cuisineVertex = this.addVertexIfNotExists(cuisineVertex, "name");
-        this.recordCuisineRequestForUser(cuisineVertex, userVertex);
+        this.titleIndex.addAll(matchingRecipes);
+        this.recordCuisineRequestForUser(cuisineVertex.getId(), userVertexId);
         return cuisineVertex;
     }
 
@@ -227,7 +408,7 @@ public class GraphRecipeStore {
      */
     public void deleteCuisines(String[] cuisines) throws Exception {
         for (String cuisine : cuisines) {
-            ResultSet resultSet = this.graphClient.executeGremlin("g.V().hasLabel(\"cuisine\").has(\"name\", \"" + cuisine + "\")");
+            ResultSet resultSet = this.executeGremlin("g.V().hasLabel(\"cuisine\").has(\"name\", " + gremlinString(cuisine) + ")");
             Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
             while(iterator.hasNext()) {
                 Vertex vertex = iterator.next();
@@ -240,15 +421,26 @@ public class GraphRecipeStore {
     /**
      * Creates or updates an edge between the specified user and cuisine.
      * Stores the number of times the cuisine has been accessed by the user in the edge.
-     * @param cuisineVertex - The existing Graph vertex for the cuisine
-     * @param userVertex - The existing Graph vertex for the user
+     * @param cuisineVertexId - The ID of the existing Graph vertex for the cuisine
+     * @param userVertexId - The ID of the existing Graph vertex for the user
      * @throws Exception
      */
-    public void recordCuisineRequestForUser(Vertex cuisineVertex, Vertex userVertex) throws Exception {
-        Edge cuisineEdge = new Edge("selects", userVertex.getId(), cuisineVertex.getId(), new HashMap() {{
-            put("count", new Integer(1));
+    public void recordCuisineRequestForUser(Object cuisineVertexId, Object userVertexId) throws Exception {
+        this.recordCuisineRequestForUser(cuisineVertexId, userVertexId, null);
+    }
+
+    /**
+     * Creates or updates an edge between the specified user and cuisine (see recordCuisineRequestForUser(Object, Object)).
+     * @param cuisineVertexId - The ID of the existing Graph vertex for the cuisine
+     * @param userVertexId - The ID of the existing Graph vertex for the user
+     * @param batch - The batch the edge is written with, or null to write it now
+     * @throws Exception
+     */
+    public void recordCuisineRequestForUser(Object cuisineVertexId, Object userVertexId, WriteBatch batch) throws Exception {
+        Edge cuisineEdge = new Edge("selects", userVertexId, cuisineVertexId, new HashMap() {{
+            put("count", 1);
         }});
-        this.addUpdateEdge(cuisineEdge);
+        this.addUpdateEdge(cuisineEdge, batch);
     }
 
     // Recipe
@@ -258,7 +450,7 @@ public class GraphRecipeStore {
      * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
      * @return - The unique recipe name
      */
-    private String getUniqueRecipeName(final String recipeId) {
+    public String getUniqueRecipeName(final String recipeId) {
         return recipeId.trim().toLowerCase();
     }
 
@@ -277,58 +469,84 @@ public class GraphRecipeStore {
      * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
      * @param recipeTitle - The title of the recipe
      * @param recipeDetail - The detailed instructions for making the recipe
-     * @param ingredientCuisineVertex - The existing Graph vertex for either the ingredient or cuisine selected before the recipe
-     * @param userVertex - The existing Graph vertex for the user
+     * @param ingredientCuisineVertexId - The ID of the existing Graph vertex for either the ingredient or cuisine selected before the recipe (or null)
+     * @param userVertexId - The ID of the existing Graph vertex for the user
      * @return - The recipe vertex
      * @throws Exception
      */
-    public Vertex addRecipe(final String recipeId, final String recipeTitle, final String recipeDetail, Vertex ingredientCuisineVertex, Vertex userVertex) throws Exception {
+    public Vertex addRecipe(final String recipeId, final String recipeTitle, final String recipeDetail, Object ingredientCuisineVertexId, Object userVertexId) throws Exception {
         Vertex recipeVertex = new Vertex("recipe", new HashMap() {{
             put("name", getUniqueRecipeName(recipeId));
             put("title", recipeTitle.trim());
             put("detail", recipeDetail);
         }});
         recipeVertex = this.addVertexIfNotExists(recipeVertex, "name");
-        this.recordRecipeRequestForUser(recipeVertex, ingredientCuisineVertex, userVertex);
+        this.addTitle(getUniqueRecipeName(recipeId), recipeTitle);
+        this.recordRecipeRequestForUser(recipeVertex, ingredientCuisineVertexId, userVertexId);
         return recipeVertex;
     }
 
     /**
-     * Finds the user's favorite recipes in Graph.
-     * @param userVertex - The existing Graph vertex for the user
+     * Finds the recipes in Graph, or stored on an ingredient or cuisine, whose titles best match the specified
+     * query, allowing for partial words and small typos (see RecipeTitleIndex).
+     * @param query - The title, or part of the title, specified by the user
+     * @param count - The max number of recipes to return
+     * @return - The recipes, best match first
+     */
+    public List<RecipeSummary> searchRecipes(String query, int count) {
+        return this.titleIndex.search(query, count);
+    }
+
+    /**
+     * Finds the user's favorite recipes in Graph, ordered by time-decayed selection count.
+     * If there are fewer than count, they are followed by the user's favorites in the archive.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
      * @param count - The max number of recipes to return
-     * @return - A JSONArray of recipes
+     * @return - The recipes
      * @throws Exception
      */
-    public JSONArray findFavoriteRecipesForUser(Vertex userVertex, int count) throws Exception {
-        String query = String.format("g.V().hasLabel(\"person\").has(\"name\", \"%s\").outE().order().by(\"count\", decr).inV().hasLabel(\"recipe\").limit(%d)", userVertex.getPropertyValue("name"), count);
-        ResultSet resultSet = this.graphClient.executeGremlin(query);
+    public List<RecipeSummary> findFavoriteRecipesForUser(String userId, int count) throws Exception {
+        String query = String.format("g.V().hasLabel(\"person\").has(\"name\", %s).outE().order().by(%s, decr).by(coalesce(values(\"count\"), constant(0)), decr).inV().hasLabel(\"recipe\").limit(%d)", gremlinString(userId), SCORE_ORDER, count);
+        ResultSet resultSet = this.executeGremlin(query);
         Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
-        JSONArray recipes = new JSONArray();
+        List<RecipeSummary> recipes = new ArrayList<>();
         while(iterator.hasNext()) {
             Vertex recipeVertex = iterator.next();
-            JSONObject recipe = new JSONObject();
-            recipe.put("id", recipeVertex.getPropertyValue("name"));
-            recipe.put("title", recipeVertex.getPropertyValue("title"));
-            recipes.add(recipe);
+            recipes.add(new RecipeSummary(parseRecipeId(recipeVertex), String.valueOf(recipeVertex.getPropertyValue("title"))));
+        }
+        if (this.archive != null && recipes.size() < count) {
+            Set<Integer> recipeIds = new HashSet<>();
+            for (RecipeSummary recipe : recipes) {
+                recipeIds.add(recipe.getId());
+            }
+            List<RecipeArchive.ArchivedEdge> archived = this.archive.getEdges(userId);
+            archived.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+            for (RecipeArchive.ArchivedEdge edge : archived) {
+                if (recipes.size() >= count) {
+                    break;
+                }
+                int recipeId = (int)Double.parseDouble(edge.getInName());
+                if ("recipe".equals(edge.getInLabel()) && recipeIds.add(recipeId)) {
+                    recipes.add(new RecipeSummary(recipeId, edge.getInTitle()));
+                }
+            }
         }
         return recipes;
     }
 
     /**
      * Finds popular recipes using the specified ingredient.
-     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
-     * @param userVertex - The Graph vertex for the user requesting recommended recipes
+     * @param ingredientVertex - The existing Graph vertex for the ingredient
+     * @param userId - The ID of the user requesting recommended recipes
      * @param count - The max number of recipes to return
-     * @return - A JSONArray of recipes
+     * @return - The recipes, with the number of other users that selected each (including archived selections)
      * @throws Exception
      */
-    public JSONArray findRecommendedRecipesForIngredient(String ingredientsStr, Vertex userVertex, int count) throws Exception {
-        ingredientsStr = this.getUniqueIngredientsName(ingredientsStr);
-        String query = "g.V().hasLabel(\"ingredient\").has(\"name\",\"" + ingredientsStr + "\")";
+    public List<RecipeSummary> findRecommendedRecipesForIngredient(Vertex ingredientVertex, String userId, int count) throws Exception {
+        String query = "g.V(" + ingredientVertex.getId() + ")";
         query += ".in(\"has\")";
-        query += ".inE().has(\"count\",gt(1)).order().by(\"count\", decr)";
-        query += ".outV().hasLabel(\"person\").has(\"name\",neq(\"" + userVertex.getPropertyValue("name") + "\"))";
+        query += ".inE().has(\"count\",gt(1)).order().by(" + SCORE_ORDER + ", decr).by(\"count\", decr)";
+        query += ".outV().hasLabel(\"person\").has(\"name\",neq(" + gremlinString(userId) + "))";
         query += ".path()";
         return getRecommendedRecipes(query, count);
     }
@@ -336,77 +554,157 @@ public class GraphRecipeStore {
     /**
      * Finds popular recipes using the specified cuisine.
      * @param cuisine - The cuisine specified by the user
-     * @param userVertex - The Graph vertex for the user requesting recommended recipes
+     * @param userId - The ID of the user requesting recommended recipes
      * @param count - The max number of recipes to return
-     * @return - A JSONArray of recipes
+     * @return - The recipes, with the number of other users that selected each (including archived selections)
      * @throws Exception
      */
-    public JSONArray findRecommendedRecipesForCuisine(String cuisine, Vertex userVertex, int count) throws Exception {
+    public List<RecipeSummary> findRecommendedRecipesForCuisine(String cuisine, String userId, int count) throws Exception {
         cuisine = this. getUniqueCuisineName(cuisine);
-        String query = "g.V().hasLabel(\"cuisine\").has(\"name\",\"" + cuisine + "\")";
+        String query = "g.V().hasLabel(\"cuisine\").has(\"name\"," + gremlinString(cuisine) + ")";
         query += ".in(\"has\")";
-        query += ".inE().has(\"count\",gt(1)).order().by(\"count\", decr)";
-        query += ".outV().hasLabel(\"person\").has(\"name\",neq(\"" + userVertex.getPropertyValue("name") + "\"))";
+        query += ".inE().has(\"count\",gt(1)).order().by(" + SCORE_ORDER + ", decr).by(\"count\", decr)";
+        query += ".outV().hasLabel(\"person\").has(\"name\",neq(" + gremlinString(userId) + "))";
         query += ".path()";
         return getRecommendedRecipes(query, count);
     }
 
-    private JSONArray getRecommendedRecipes(String query, int count) throws Exception {
-        ResultSet resultSet = this.graphClient.executeGremlin(query);
+    /**
+     * Finds the recipes most often selected by the users that also selected the specified recipe.
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @param count - The max number of recipes to return
+     * @return - The recipes, most similar first
+     * @throws Exception
+     */
+    public List<RecipeSummary> findSimilarRecipes(String recipeId, int count) throws Exception {
+        return toRecipeSummaries(this.similarityIndex.findSimilarRecipes(getUniqueRecipeName(recipeId), count));
+    }
+
+    /**
+     * Finds the recipes most often selected by users that selected the same recipes as the specified user.
+     * @param userVertexId - The ID of the Graph vertex for the user requesting similar recipes
+     * @param count - The max number of recipes to return
+     * @return - The recipes, most similar first
+     * @throws Exception
+     */
+    public List<RecipeSummary> findSimilarRecipesForUser(Object userVertexId, int count) throws Exception {
+        return toRecipeSummaries(this.similarityIndex.findSimilarRecipesForUser(userVertexId.toString(), count));
+    }
+
+    private static List<RecipeSummary> toRecipeSummaries(RecipeSimilarityIndex.SimilarRecipe[] similarRecipes) {
+        List<RecipeSummary> recipes = new ArrayList<>(similarRecipes.length);
+        for (RecipeSimilarityIndex.SimilarRecipe similarRecipe : similarRecipes) {
+            recipes.add(new RecipeSummary(Integer.parseInt(similarRecipe.getId()), similarRecipe.getTitle()));
+        }
+        return recipes;
+    }
+
+    private List<RecipeSummary> getRecommendedRecipes(String query, int count) throws Exception {
+        ResultSet resultSet = this.executeGremlin(query);
         Iterator<JSONObject> iterator = resultSet.getJSONObjectResultIterator();
-        HashMap<String,JSONObject> recipeHash = new HashMap<>();
-        JSONArray recipes = new JSONArray();
+        // count the users per recipe, keeping the recipes in the order they were first seen (highest score first)
+        LinkedHashMap<Integer,Integer> userCounts = new LinkedHashMap<>();
+        HashMap<Integer,String> titles = new HashMap<>();
         while(iterator.hasNext()) {
             Path path = Path.fromJSONObject(iterator.next());
             Vertex recipeVertex = (Vertex)path.getObjects()[1];
-            String recipeId = recipeVertex.getPropertyValue("name").toString();
-            JSONObject recipe = recipeHash.get(recipeId);
-            if (recipe == null) {
-                if (recipes.length() >= count) {
+            int recipeId = parseRecipeId(recipeVertex);
+            Integer userCount = userCounts.get(recipeId);
+            if (userCount == null) {
+                if (userCounts.size() >= count) {
                     continue;
                 }
-                recipe = new JSONObject();
-                recipe.put("id", recipeId);
-                recipe.put("title", recipeVertex.getPropertyValue("title"));
-                recipe.put("recommendedUserCount", 1);
-                recipes.add(recipe);
-                recipeHash.put(recipeId, recipe);
-            }
-            else {
-                recipe.put("recommendedUserCount",recipe.getInt("recommendedUserCount") + 1);
+                titles.put(recipeId, String.valueOf(recipeVertex.getPropertyValue("title")));
+                // users whose selections of the recipe were archived (see archiveActivity)
+                Object archivedUsers = recipeVertex.getPropertyValue("archivedUsers");
+                userCount = (archivedUsers instanceof Number ? ((Number)archivedUsers).intValue() : 0);
             }
+            userCounts.put(recipeId, userCount + 1);
+        }
+        List<RecipeSummary> recipes = new ArrayList<>(userCounts.size());
+        for (Map.Entry<Integer,Integer> entry : userCounts.entrySet()) {
+            recipes.add(new RecipeSummary(entry.getKey(), titles.get(entry.getKey()), entry.getValue()));
         }
         return recipes;
     }
 
+    private static int parseRecipeId(Vertex recipeVertex) {
+        return (int)Double.parseDouble(recipeVertex.getPropertyValue("name").toString());
+    }
+
     /**
      * Creates or updates an edge between the specified user and recipe.
      * Stores the number of times the recipe has been accessed by the user in the edge.
      * Creates or updates an edge between the specified ingredient/cuisine (if not None) and recipe.
      * Stores the number of times the recipe has been accessed by the ingredient/cuisine in the edge.
      * @param recipeVertex - The existing Graph vertex for the recipe
-     * @param ingredientCuisineVertex - The existing Graph vertex for either the ingredient or cuisine selected before the recipe
-     * @param userVertex - The existing Graph vertex for the user
+     * @param ingredientCuisineVertexId - The ID of the existing Graph vertex for either the ingredient or cuisine selected before the recipe (or null)
+     * @param userVertexId - The ID of the existing Graph vertex for the user
+     * @throws Exception
+     */
+    public void recordRecipeRequestForUser(Vertex recipeVertex, Object ingredientCuisineVertexId, Object userVertexId) throws Exception {
+        this.recordRecipeRequestForUser(recipeVertex, ingredientCuisineVertexId, userVertexId, null);
+    }
+
+    /**
+     * Creates or updates the edges between the specified user, ingredient/cuisine and recipe
+     * (see recordRecipeRequestForUser(Vertex, Object, Object)).
+     * @param recipeVertex - The existing Graph vertex for the recipe
+     * @param ingredientCuisineVertexId - The ID of the existing Graph vertex for either the ingredient or cuisine selected before the recipe (or null)
+     * @param userVertexId - The ID of the existing Graph vertex for the user
+     * @param batch - The batch the edges are written with, or null to write them now
+     * @throws Exception
+     */
+    public void recordRecipeRequestForUser(Vertex recipeVertex, Object ingredientCuisineVertexId, Object userVertexId, WriteBatch batch) throws Exception {
+        this.recordRecipeRequestForUser(
+                recipeVertex.getId(),
+                recipeVertex.getPropertyValue("name").toString(),
+                (String)recipeVertex.getPropertyValue("title"),
+                ingredientCuisineVertexId,
+                userVertexId,
+                batch
+        );
+    }
+
+    /**
+     * Creates or updates the edges between the specified user, ingredient/cuisine and recipe
+     * (see recordRecipeRequestForUser(Vertex, Object, Object)) without fetching the recipe vertex.
+     * @param recipeVertexId - The ID of the existing Graph vertex for the recipe
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @param recipeTitle - The title of the recipe
+     * @param ingredientCuisineVertexId - The ID of the existing Graph vertex for either the ingredient or cuisine selected before the recipe (or null)
+     * @param userVertexId - The ID of the existing Graph vertex for the user
      * @throws Exception
      */
-    public void recordRecipeRequestForUser(Vertex recipeVertex, Vertex ingredientCuisineVertex, Vertex userVertex) throws Exception {
+    public void recordRecipeRequestForUser(Object recipeVertexId, String recipeId, String recipeTitle, Object ingredientCuisineVertexId, Object userVertexId) throws Exception {
+        this.recordRecipeRequestForUser(recipeVertexId, recipeId, recipeTitle, ingredientCuisineVertexId, userVertexId, null);
+    }
+
+    private void recordRecipeRequestForUser(Object recipeVertexId, String recipeId, String recipeTitle, Object ingredientCuisineVertexId, Object userVertexId, WriteBatch batch) throws Exception {
         // add one edge from the user to the recipe (this will let us find a user's favorite recipes, etc)
-        Edge userRecipeEdge = new Edge("selects", userVertex.getId(), recipeVertex.getId(), new HashMap() {{
-            put("count", new Integer(1));
+        Edge userRecipeEdge = new Edge("selects", userVertexId, recipeVertexId, new HashMap() {{
+            put("count", 1);
         }});
-        this.addUpdateEdge(userRecipeEdge);
+        this.addUpdateEdge(userRecipeEdge, batch);
         // add "selects" edge from the ingredient/cuisine to the recipe
-        if (ingredientCuisineVertex != null) {
-            Edge ingredientCusisineRecipeEdge = new Edge("selects", ingredientCuisineVertex.getId(), recipeVertex.getId(), new HashMap() {{
-                put("count", new Integer(1));
+        if (ingredientCuisineVertexId != null) {
+            Edge ingredientCusisineRecipeEdge = new Edge("selects", ingredientCuisineVertexId, recipeVertexId, new HashMap() {{
+                put("count", 1);
             }});
-            this.addUpdateEdge(ingredientCusisineRecipeEdge);
+            this.addUpdateEdge(ingredientCusisineRecipeEdge, batch);
         }
         // add "has" edge from the recipe to the ingredient/cuisine
-        if (ingredientCuisineVertex != null) {
-            Edge recipeIngredientCuisineEdge = new Edge("has", recipeVertex.getId(), ingredientCuisineVertex.getId());
-            this.addEdgeIfNotExists(recipeIngredientCuisineEdge);
+        if (ingredientCuisineVertexId != null) {
+            Edge recipeIngredientCuisineEdge = new Edge("has", recipeVertexId, ingredientCuisineVertexId);
+            if (batch == null) {
+                this.addEdgeIfNotExists(recipeIngredientCuisineEdge);
+            }
+            else {
+                batch.addEdgeIfNotExists(recipeIngredientCuisineEdge);
+            }
         }
+        // update the recipe co-occurrence matrix
+        this.similarityIndex.recordSelection(userVertexId.toString(), getUniqueRecipeName(recipeId), recipeTitle);
     }
 
     /**
@@ -416,7 +714,7 @@ public class GraphRecipeStore {
      */
     public void deleteRecipes(String[] recipes) throws Exception {
         for (String recipe : recipes) {
-            ResultSet resultSet = this.graphClient.executeGremlin("g.V().hasLabel(\"recipe\").has(\"name\", \"" + recipe + "\")");
+            ResultSet resultSet = this.executeGremlin("g.V().hasLabel(\"recipe\").has(\"name\", " + gremlinString(recipe) + ")");
             Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
             while(iterator.hasNext()) {
                 Vertex vertex = iterator.next();
@@ -426,8 +724,279 @@ public class GraphRecipeStore {
         }
     }
 
+    // Bulk Export/Import
+
+    /**
+     * Gets a page of vertices with the specified label.
+     * @param label - The label value of the vertices stored in Graph
+     * @param offset - The index of the first vertex to return
+     * @param limit - The max number of vertices to return
+     * @return - The vertices in the page
+     * @throws Exception
+     */
+    public List<Vertex> getVertices(String label, int offset, int limit) throws Exception {
+        String query = String.format("g.V().hasLabel(\"%s\").order().by(id).range(%d, %d)", label, offset, offset + limit);
+        ResultSet resultSet = this.executeGremlin(query);
+        Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
+        List<Vertex> vertices = new ArrayList<>();
+        while(iterator.hasNext()) {
+            vertices.add(iterator.next());
+        }
+        return vertices;
+    }
+
+    /**
+     * Gets the outgoing edges of the specified vertices.
+     * @param vertices - The existing Graph vertices
+     * @return - The outgoing edges
+     * @throws Exception
+     */
+    public List<Edge> getOutEdges(List<Vertex> vertices) throws Exception {
+        List<Edge> edges = new ArrayList<>();
+        if (vertices.isEmpty()) {
+            return edges;
+        }
+        ResultSet resultSet = this.executeGremlin("g.V(" + joinIds(vertices) + ").outE().inV().path()");
+        Iterator<JSONObject> iterator = resultSet.getJSONObjectResultIterator();
+        while(iterator.hasNext()) {
+            Path path = Path.fromJSONObject(iterator.next());
+            edges.add((Edge)path.getObjects()[1]);
+        }
+        return edges;
+    }
+
+    /**
+     * Gets the edges into and out of the vertices with the specified IDs.
+     * @param vertexIds - The IDs of the existing Graph vertices
+     * @return - The edges, each returned once
+     * @throws Exception
+     */
+    public List<Edge> getEdges(Collection<?> vertexIds) throws Exception {
+        Map<String,Edge> edges = new LinkedHashMap<>();
+        if (vertexIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        StringBuilder ids = new StringBuilder();
+        for (Object vertexId : vertexIds) {
+            if (ids.length() > 0) {
+                ids.append(",");
+            }
+            ids.append(vertexId);
+        }
+        for (String direction : new String[]{"outE().inV()", "inE().outV()"}) {
+            ResultSet resultSet = this.executeGremlin("g.V(" + ids + ")." + direction + ".path()");
+            Iterator<JSONObject> iterator = resultSet.getJSONObjectResultIterator();
+            while(iterator.hasNext()) {
+                Edge edge = (Edge)Path.fromJSONObject(iterator.next()).getObjects()[1];
+                edges.put(edge.getId().toString(), edge);
+            }
+        }
+        return new ArrayList<>(edges.values());
+    }
+
+    /**
+     * Applies a batch of changes in a single Gremlin request: adds edges, sets the properties of existing edges,
+     * and removes edges and vertices (removing a vertex also removes its edges).
+     * @param addedEdges - The edges to add
+     * @param updatedEdges - The existing edges whose properties are to be set
+     * @param removedEdgeIds - The IDs of the edges to remove
+     * @param removedVertexIds - The IDs of the vertices to remove
+     * @throws Exception
+     */
+    public void applyBatch(List<Edge> addedEdges, List<Edge> updatedEdges, List<Object> removedEdgeIds, List<Object> removedVertexIds) throws Exception {
+        this.applyBatch(addedEdges, updatedEdges, removedEdgeIds, removedVertexIds, Collections.emptyMap());
+    }
+
+    /**
+     * Applies a batch of changes in a single Gremlin request, first adding amounts to numeric properties of
+     * existing vertices, such as the archived counts of duplicates merged into a vertex.
+     * @param addedEdges - The edges to add
+     * @param updatedEdges - The existing edges whose properties are to be set
+     * @param removedEdgeIds - The IDs of the edges to remove
+     * @param removedVertexIds - The IDs of the vertices to remove
+     * @param vertexIncrements - The amounts to add to the properties of vertices, by vertex ID and property name
+     * @throws Exception
+     */
+    public void applyBatch(List<Edge> addedEdges, List<Edge> updatedEdges, List<Object> removedEdgeIds, List<Object> removedVertexIds, Map<Object, Map<String,Integer>> vertexIncrements) throws Exception {
+        StringBuilder script = new StringBuilder();
+        for (Map.Entry<Object, Map<String,Integer>> increments : vertexIncrements.entrySet()) {
+            script.append("g.V(").append(gremlinValue(increments.getKey())).append(")");
+            for (Map.Entry<String,Integer> increment : increments.getValue().entrySet()) {
+                appendIncrement(script, increment.getKey(), increment.getValue());
+            }
+            script.append(".iterate();");
+        }
+        for (Edge edge : addedEdges) {
+            appendAddEdge(script, edge);
+        }
+        for (Edge edge : updatedEdges) {
+            script.append("g.E(").append(gremlinValue(edge.getId())).append(")");
+            for (Map.Entry<String,Object> property : edge.getProperties().entrySet()) {
+                if (property.getValue() != null) {
+                    script.append(".property(").append(gremlinString(property.getKey())).append(", ").append(gremlinValue(property.getValue())).append(")");
+                }
+            }
+            script.append(".iterate();");
+        }
+        if (! removedEdgeIds.isEmpty()) {
+            script.append("g.E(");
+            for (int i = 0; i < removedEdgeIds.size(); i++) {
+                script.append(i > 0 ? ", " : "").append(gremlinValue(removedEdgeIds.get(i)));
+            }
+            script.append(").drop().iterate();");
+        }
+        if (! removedVertexIds.isEmpty()) {
+            script.append("g.V(");
+            for (int i = 0; i < removedVertexIds.size(); i++) {
+                script.append(i > 0 ? ", " : "").append(removedVertexIds.get(i));
+            }
+            script.append(").drop().iterate();");
+        }
+        script.append("null");
+        this.executeGremlin(script.toString());
+        logger.debug(String.format("Added %d, updated %d and removed %d edges and removed %d vertices", addedEdges.size(), updatedEdges.size(), removedEdgeIds.size(), removedVertexIds.size()));
+    }
+
+    /**
+     * Adds the specified vertices to Graph in a single Gremlin request.
+     * Does not check for existing vertices.
+     * @param vertices - The vertices to add
+     * @return - The vertices that were added, in the same order
+     * @throws Exception
+     */
+    public List<Vertex> addVertices(List<Vertex> vertices) throws Exception {
+        StringBuilder script = new StringBuilder("def v = [];");
+        for (Vertex vertex : vertices) {
+            script.append("v << graph.addVertex(T.label, ").append(gremlinString(vertex.getLabel()));
+            for (Map.Entry<String,Object> property : vertex.getProperties().entrySet()) {
+                if (property.getValue() != null) {
+                    script.append(", ").append(gremlinString(property.getKey())).append(", ").append(gremlinValue(property.getValue()));
+                }
+            }
+            script.append(");");
+        }
+        script.append("v");
+        ResultSet resultSet = this.executeGremlin(script.toString());
+        Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
+        List<Vertex> added = new ArrayList<>();
+        while(iterator.hasNext()) {
+            added.add(iterator.next());
+        }
+        logger.debug(String.format("Added %d vertices", added.size()));
+        return added;
+    }
+
+    /**
+     * Adds the specified edges to Graph in a single Gremlin request.
+     * Does not check for existing edges.
+     * @param edges - The edges to add
+     * @throws Exception
+     */
+    public void addEdges(List<Edge> edges) throws Exception {
+        StringBuilder script = new StringBuilder();
+        for (Edge edge : edges) {
+            appendAddEdge(script, edge);
+        }
+        script.append("null");
+        this.executeGremlin(script.toString());
+        logger.debug(String.format("Added %d edges", edges.size()));
+    }
+
     // Graph Helper Methods
 
+    /**
+     * Appends a Gremlin statement that adds the specified edge to a script.
+     * @param script - The script
+     * @param edge - The edge to add
+     */
+    private static void appendAddEdge(StringBuilder script, Edge edge) {
+        script.append("g.V(").append(edge.getOutV()).append(").next().addEdge(").append(gremlinString(edge.getLabel()));
+        script.append(", g.V(").append(edge.getInV()).append(").next()");
+        if (edge.getProperties() != null) {
+            for (Map.Entry<String,Object> property : edge.getProperties().entrySet()) {
+                if (property.getValue() != null) {
+                    script.append(", ").append(gremlinString(property.getKey())).append(", ").append(gremlinValue(property.getValue()));
+                }
+            }
+        }
+        script.append(");");
+    }
+
+    // Graph calls, timed as spans of the current request trace (see RequestTrace)
+
+    private ResultSet executeGremlin(String query) throws Exception {
+        return RequestTrace.span("graph.gremlin", () -> this.graphClient.executeGremlin(query));
+    }
+
+    private Vertex addVertex(Vertex vertex) throws Exception {
+        return RequestTrace.span("graph.addVertex", () -> this.graphClient.addVertex(vertex));
+    }
+
+    private Edge addEdge(Edge edge) throws Exception {
+        return RequestTrace.span("graph.addEdge", () -> this.graphClient.addEdge(edge));
+    }
+
+    private Edge updateEdge(Edge edge) throws Exception {
+        return RequestTrace.span("graph.updateEdge", () -> this.graphClient.updateEdge(edge));
+    }
+
+    /**
+     * Formats the specified value as a Gremlin (Groovy) literal.
+     * @param value - A String, Number, or Boolean value
+     * @return - The Gremlin literal
+     */
+    private static String gremlinValue(Object value) {
+        if (value instanceof Integer || value instanceof Boolean) {
+            return value.toString();
+        }
+        else if (value instanceof Long) {
+            return value.toString() + "L";
+        }
+        else if (value instanceof Number) {
+            return value.toString() + "d";
+        }
+        else {
+            return gremlinString(value.toString());
+        }
+    }
+
+    /**
+     * Formats the specified string as a single-quoted Gremlin (Groovy) string literal.
+     * Single-quoted strings are not interpolated, so only quotes, backslashes and line breaks need escaping.
+     * @param value - The string value
+     * @return - The Gremlin string literal
+     */
+    private static String gremlinString(String value) {
+        StringBuilder literal = new StringBuilder(value.length() + 2).append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\'': literal.append("\\'"); break;
+                case '\\': literal.append("\\\\"); break;
+                case '\n': literal.append("\\n"); break;
+                case '\r': literal.append("\\r"); break;
+                default: literal.append(c);
+            }
+        }
+        return literal.append('\'').toString();
+    }
+
+    /**
+     * Joins the IDs of the specified vertices into a comma-separated list for use in a Gremlin query.
+     * @param vertices - The vertices
+     * @return - The comma-separated vertex IDs
+     */
+    private static String joinIds(List<Vertex> vertices) {
+        StringBuilder ids = new StringBuilder();
+        for (Vertex vertex : vertices) {
+            if (ids.length() > 0) {
+                ids.append(",");
+            }
+            ids.append(vertex.getId());
+        }
+        return ids.toString();
+    }
+
     /**
      * Finds a vertex based on the specified label, propertyName, and propertyValue.
      * @param label - The label value of the vertex stored in Graph
@@ -437,8 +1006,8 @@ public class GraphRecipeStore {
      * @throws Exception
      */
     private Vertex findVertex(String label, String propertyName, String propertyValue) throws Exception {
-        String query = "g.V().hasLabel(\"" + label + "\").has(\"" + propertyName + "\", \"" + propertyValue + "\")";
-        ResultSet resultSet = this.graphClient.executeGremlin(query);
+        String query = "g.V().hasLabel(" + gremlinString(label) + ").has(" + gremlinString(propertyName) + ", " + gremlinString(propertyValue) + ")";
+        ResultSet resultSet = this.executeGremlin(query);
         Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
         if (iterator.hasNext()) {
             return iterator.next();
@@ -457,12 +1026,12 @@ public class GraphRecipeStore {
      */
     private Vertex addVertexIfNotExists(Vertex vertex, String uniquePropertyName) throws Exception {
         String propertyValue = vertex.getProperties().get(uniquePropertyName).toString();
-        String query = "g.V().hasLabel(\"" + vertex.getLabel() + "\").has(\"" + uniquePropertyName + "\", \"" + propertyValue + "\")";
-        ResultSet resultSet = this.graphClient.executeGremlin(query);
+        String query = "g.V().hasLabel(" + gremlinString(vertex.getLabel()) + ").has(" + gremlinString(uniquePropertyName) + ", " + gremlinString(propertyValue) + ")";
+        ResultSet resultSet = this.executeGremlin(query);
         Iterator<Vertex> iterator = resultSet.getVertexResultIterator();
         if (! iterator.hasNext()) {
             logger.debug(String.format("Adding %s vertex where %s=%s", vertex.getLabel(), uniquePropertyName, propertyValue));
-            return this.graphClient.addVertex(vertex);
+            return this.addVertex(vertex);
         }
         else {
             logger.debug(String.format("Returning %s vertex where %s=%s", vertex.getLabel(), uniquePropertyName, propertyValue));
@@ -479,11 +1048,11 @@ public class GraphRecipeStore {
      */
     private Edge addEdgeIfNotExists(Edge edge) throws Exception {
         String query = "g.V(" + edge.getOutV() + ").outE().inV().hasId(" + edge.getInV() + ").path()";
-        ResultSet resultSet = this.graphClient.executeGremlin(query);
+        ResultSet resultSet = this.executeGremlin(query);
         Iterator<JSONObject> iterator = resultSet.getJSONObjectResultIterator();
         if (! iterator.hasNext()) {
             logger.debug((String.format("Creating edge from %s to %s",edge.getOutV(),edge.getInV())));
-            return this.graphClient.addEdge(edge);
+            return this.addEdge(edge);
         }
         else {
             logger.debug(String.format("Edge from %s to %s exists.",edge.getOutV(),edge.getInV()));
@@ -492,30 +1061,282 @@ public class GraphRecipeStore {
         }
     }
 
+    /**
+     * Gets the detail of a vertex (the rendered instructions of a recipe, or the matching recipes of an
+     * ingredient or cuisine), reading it from the archive if it has been archived.
+     * @param vertex - The vertex
+     * @return - The detail, or null if the vertex has none
+     * @throws Exception
+     */
+    public String getDetail(Vertex vertex) throws Exception {
+        Object detail = vertex.getPropertyValue("detail");
+        if (detail == null && this.archive != null) {
+            return this.archive.getDetail(vertex.getPropertyValue("name").toString());
+        }
+        return (detail == null ? null : detail.toString());
+    }
+
+    /**
+     * Moves a batch of old activity from Graph to the archive: "selects" edges from users that have not been
+     * updated since olderThan, and the details of recipes that have not been selected since olderThan.
+     * The selection counts of the archived edges are added to the archivedCount and archivedUsers properties
+     * of the vertices they pointed to, so recommendations still count them. The batch is written to the archive
+     * before it is removed from Graph, so an interrupted batch is archived again rather than lost. Each edge is
+     * only removed, and its counts only added, if it has still not been updated, in the same Gremlin step, so a
+     * selection made while the batch is archived keeps the edge in Graph (its archived copy is superseded
+     * when it is archived again).
+     * @param olderThan - The time before which activity is archived, in milliseconds since the epoch
+     * @param limit - The max number of edges, and of recipe details, to archive
+     * @return - The number of edges and details archived (less than limit once everything old is archived)
+     * @throws Exception
+     */
+    public int archiveActivity(long olderThan, int limit) throws Exception {
+        if (this.archive == null) {
+            throw new IllegalStateException("No archive is set.");
+        }
+        String query = String.format("g.V().hasLabel(\"person\").outE(\"selects\").has(\"updated\", lt(%d)).limit(%d).inV().path()", olderThan, limit);
+        ResultSet resultSet = this.executeGremlin(query);
+        Iterator<JSONObject> iterator = resultSet.getJSONObjectResultIterator();
+        List<RecipeArchive.ArchivedEdge> edges = new ArrayList<>();
+        while(iterator.hasNext()) {
+            Path path = Path.fromJSONObject(iterator.next());
+            Vertex userVertex = (Vertex)path.getObjects()[0];
+            Edge edge = (Edge)path.getObjects()[1];
+            Vertex target = (Vertex)path.getObjects()[2];
+            Object score = edge.getPropertyValue("score");
+            Object updated = edge.getPropertyValue("updated");
+            edges.add(new RecipeArchive.ArchivedEdge(
+                    edge.getId().toString(),
+                    edge.getLabel(),
+                    userVertex.getId().toString(),
+                    userVertex.getPropertyValue("name").toString(),
+                    target.getLabel(),
+                    target.getPropertyValue("name").toString(),
+                    (String)target.getPropertyValue("title"),
+                    getCount(edge),
+                    (score instanceof Number ? ((Number)score).doubleValue() : DecayedScore.forCount(getCount(edge), olderThan)),
+                    (updated instanceof Number ? ((Number)updated).longValue() : olderThan)
+            ));
+        }
+        query = String.format("g.V().hasLabel(\"recipe\").has(\"detail\").not(inE(\"selects\").has(\"updated\", gte(%d))).limit(%d)", olderThan, limit);
+        Iterator<Vertex> recipeIterator = this.executeGremlin(query).getVertexResultIterator();
+        Map<String, String> details = new LinkedHashMap<>();
+        List<Object> recipeIds = new ArrayList<>();
+        while(recipeIterator.hasNext()) {
+            Vertex recipe = recipeIterator.next();
+            details.put(recipe.getPropertyValue("name").toString(), recipe.getPropertyValue("detail").toString());
+            recipeIds.add(recipe.getId());
+        }
+        if (edges.isEmpty() && details.isEmpty()) {
+            return 0;
+        }
+        this.archive.write(edges, details);
+        StringBuilder script = new StringBuilder();
+        for (RecipeArchive.ArchivedEdge edge : edges) {
+            // the count read above is current while the edge has not been updated since
+            script.append("g.E(").append(gremlinString(edge.getEdgeId())).append(").has(\"updated\", lt(").append(olderThan).append("))")
+                    .append(".sideEffect(inV()");
+            appendIncrement(script, "archivedCount", edge.getCount());
+            // recommendations only count users that selected a recipe more than once
+            if (edge.getCount() > 1) {
+                appendIncrement(script, "archivedUsers", 1);
+            }
+            script.append(").drop().iterate();");
+        }
+        if (! recipeIds.isEmpty()) {
+            script.append("g.V(");
+            for (int i = 0; i < recipeIds.size(); i++) {
+                script.append(i > 0 ? ", " : "").append(recipeIds.get(i));
+            }
+            script.append(").not(inE(\"selects\").has(\"updated\", gte(").append(olderThan).append("))).properties(\"detail\").drop().iterate();");
+        }
+        script.append("null");
+        this.executeGremlin(script.toString());
+        logger.debug(String.format("Archived %d edges and %d recipe details", edges.size(), details.size()));
+        return Math.max(edges.size(), details.size());
+    }
+
+    /**
+     * Appends a step that adds an amount to a numeric property of the current element, read and written
+     * by Graph in the same traversal, so concurrent increments are not lost.
+     */
+    private static void appendIncrement(StringBuilder script, String property, int amount) {
+        script.append(".property(").append(gremlinString(property))
+                .append(", union(coalesce(values(").append(gremlinString(property)).append("), constant(0)), constant(").append(amount).append(")).sum())");
+    }
+
+    /**
+     * @return - The number of edge increments and the number of Graph writes they were coalesced into
+     */
+    public Map<String,Object> getEdgeIncrementMetrics() {
+        return this.edgeIncrements.getMetrics();
+    }
+
+    /**
+     * Gives "selects" edges written before popularity scores were introduced a time-decayed score.
+     * Their selections are treated as made now, so existing favorites fade out from now on.
+     * The batch is written in a single Gremlin request, and only to edges that still have no score, so an edge
+     * selected in the meantime (or backfilled by another instance) keeps the score it was given.
+     * @param limit - The max number of edges to update
+     * @return - The number of edges updated (less than limit once all edges have a score)
+     * @throws Exception
+     */
+    public int backfillDecayScores(int limit) throws Exception {
+        String query = String.format("g.V().outE(\"selects\").hasNot(\"score\").limit(%d).inV().path()", limit);
+        ResultSet resultSet = this.executeGremlin(query);
+        Iterator<JSONObject> iterator = resultSet.getJSONObjectResultIterator();
+        long now = System.currentTimeMillis();
+        StringBuilder script = new StringBuilder();
+        int updated = 0;
+        while(iterator.hasNext()) {
+            Path path = Path.fromJSONObject(iterator.next());
+            Edge edge = (Edge)path.getObjects()[1];
+            script.append("g.E(").append(gremlinValue(edge.getId())).append(").hasNot(\"score\")")
+                    .append(".property(\"score\", ").append(gremlinValue(DecayedScore.forCount(getCount(edge), now))).append(")")
+                    .append(".property(\"updated\", ").append(gremlinValue(now)).append(").iterate();");
+            updated++;
+        }
+        if (updated == 0) {
+            return 0;
+        }
+        script.append("null");
+        this.executeGremlin(script.toString());
+        logger.debug(String.format("Backfilled decayed scores on %d edges", updated));
+        return updated;
+    }
+
+    private static int getCount(Edge edge) {
+        Object count = edge.getPropertyValue("count");
+        return (count instanceof Number ? ((Number)count).intValue() : 0);
+    }
+
     /**
      * Adds a new edge to Graph if an edge with the same out_v and in_v does not exist.
-     * Increments the count property on the edge.
+     * Increments the count property on the edge and adds the selection to its time-decayed score
+     * (see DecayedScore), recording the time of the update.
+     * Increments of the same edge are serialized, and concurrent increments are written together
+     * (see EdgeIncrementCoordinator), so no selections are lost.
      * @param edge - The edge to add
      * @return - The edge that was added or updated
      * @throws Exception
      */
     private Edge addUpdateEdge(Edge edge) throws Exception {
+        return this.edgeIncrements.increment(edge, this::writeIncrements);
+    }
+
+    private void addUpdateEdge(Edge edge, WriteBatch batch) throws Exception {
+        if (batch == null) {
+            this.addUpdateEdge(edge);
+        }
+        else {
+            batch.increment(edge);
+        }
+    }
+
+    private Edge writeIncrements(Edge edge, int increments) throws Exception {
         String query = "g.V(" + edge.getOutV() + ").outE().inV().hasId(" + edge.getInV() + ").path()";
-        ResultSet resultSet = this.graphClient.executeGremlin(query);
+        ResultSet resultSet = this.executeGremlin(query);
         Iterator<JSONObject> iterator = resultSet.getJSONObjectResultIterator();
+        long now = System.currentTimeMillis();
         if (! iterator.hasNext()) {
-            return this.graphClient.addEdge(edge);
+            edge.setPropertyValue("count", increments);
+            edge.setPropertyValue("score", DecayedScore.forCount(increments, now));
+            edge.setPropertyValue("updated", now);
+            return this.addEdge(edge);
         }
         else {
             Path path = Path.fromJSONObject(iterator.next());
             edge = (Edge)path.getObjects()[1];
-            int count = 0;
-            try {
-                count = (Integer)edge.getPropertyValue("count");
+            int count = getCount(edge);
+            Object score = edge.getPropertyValue("score");
+            double previousScore = (score instanceof Number ? ((Number)score).doubleValue() : DecayedScore.forCount(count, now));
+            edge.setPropertyValue("count", count+increments);
+            edge.setPropertyValue("score", DecayedScore.merge(previousScore, DecayedScore.forCount(increments, now)));
+            edge.setPropertyValue("updated", now);
+            return this.updateEdge(edge);
+        }
+    }
+
+    /**
+     * Creates a batch that collects edge writes, such as the selections replayed from a GraphWriteJournal,
+     * so they are written to Graph in a single request.
+     * @return - The batch
+     */
+    public WriteBatch newWriteBatch() {
+        return new WriteBatch();
+    }
+
+    /**
+     * Edge writes written to Graph in a single Gremlin request (see newWriteBatch). Increments of the same edge
+     * are coalesced, and each edge is read and written by the same Groovy script on the Graph server, so
+     * increments from other instances are not lost.
+     */
+    public class WriteBatch {
+
+        private final Map<String, Edge> edges = new LinkedHashMap<>();
+        private final Map<String, Integer> increments = new HashMap<>();
+
+        private WriteBatch() {
+        }
+
+        /**
+         * Adds an increment of the count property on the edge, adding the edge if it does not exist.
+         * @param edge - The edge
+         */
+        public void increment(Edge edge) {
+            String key = edge.getLabel() + ":" + edge.getOutV() + ":" + edge.getInV();
+            this.edges.putIfAbsent(key, edge);
+            this.increments.merge(key, 1, Integer::sum);
+        }
+
+        /**
+         * Adds the edge if an edge with the same label, out_v and in_v does not exist.
+         * @param edge - The edge
+         */
+        public void addEdgeIfNotExists(Edge edge) {
+            this.edges.putIfAbsent(edge.getLabel() + ":" + edge.getOutV() + ":" + edge.getInV(), edge);
+        }
+
+        public boolean isEmpty() {
+            return this.edges.isEmpty();
+        }
+
+        /**
+         * Writes the batch to Graph and empties it.
+         * @throws Exception
+         */
+        public void apply() throws Exception {
+            if (this.edges.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            // count, score and updated are set as in writeIncrements, with the decayed score merged as in DecayedScore.merge
+            StringBuilder script = new StringBuilder()
+                    .append("def find = { o, i, label -> g.V(o).outE(label).where(inV().hasId(i)).tryNext().orElse(null) };")
+                    .append("def add = { o, i, label -> find(o, i, label) ?: g.V(o).next().addEdge(label, g.V(i).next()) };")
+                    .append("def inc = { o, i, label, n, sel, at -> def e = find(o, i, label);")
+                    .append(" if (e == null) { g.V(o).next().addEdge(label, g.V(i).next(), 'count', n, 'score', sel, 'updated', ").append(gremlinValue(now)).append("); return };")
+                    .append(" def c = e.property('count').orElse(0); def s = e.property('score').orElse(Math.log(Math.max(c, 1)) + at);")
+                    .append(" def m = Math.max(s, sel);")
+                    .append(" e.property('count', c + n); e.property('score', m + Math.log1p(Math.exp(Math.min(s, sel) - m))); e.property('updated', ").append(gremlinValue(now)).append(") };");
+            double at = DecayedScore.forSelection(now);
+            for (Map.Entry<String, Edge> entry : this.edges.entrySet()) {
+                Edge edge = entry.getValue();
+                Integer increments = this.increments.get(entry.getKey());
+                if (increments == null) {
+                    script.append("add(").append(edge.getOutV()).append(", ").append(edge.getInV()).append(", ").append(gremlinString(edge.getLabel())).append(");");
+                }
+                else {
+                    script.append("inc(").append(edge.getOutV()).append(", ").append(edge.getInV()).append(", ").append(gremlinString(edge.getLabel()))
+                            .append(", ").append(increments).append(", ").append(gremlinValue(DecayedScore.forCount(increments, now)))
+                            .append(", ").append(gremlinValue(at)).append(");");
+                }
             }
-            catch(Exception ex) {}
-            edge.setPropertyValue("count", count+1);
-            return this.graphClient.updateEdge(edge);
+            script.append("null");
+            executeGremlin(script.toString());
+            logger.debug(String.format("Wrote a batch of %d edges", this.edges.size()));
+            this.edges.clear();
+            this.increments.clear();
         }
     }
 }
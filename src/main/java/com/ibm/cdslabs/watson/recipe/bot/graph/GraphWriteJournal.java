@@ -0,0 +1,633 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ibm.graph.client.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Local append-only journal of GraphRecipeStore writes.
+ * Writes are appended to the journal and acknowledged immediately; a background thread applies them to Graph
+ * in order, and records the offset of the last applied write in a checkpoint file after every Graph request.
+ * Consecutive selections are written in a single request (see GraphRecipeStore.WriteBatch). Unapplied writes
+ * are replayed on restart, and while Graph is unavailable writes are retried with backoff, so reply latency
+ * does not depend on Graph write latency. A write that still fails after MAX_ATTEMPTS attempts is moved to a
+ * dead-letter file in the journal's format, so it does not hold up the writes behind it; dead letters are
+ * appended to the journal again on the next start.
+ * Writes refer to users, ingredients, cuisines and recipes by name rather than by vertex ID, since the vertices
+ * may not exist in Graph yet when the write is journaled. Names are resolved to vertices when writes are applied.
+ * Record layout: length (int), operation (byte), arguments (int length + UTF-8 each, -1 for null), CRC32 (int).
+ */
+public class GraphWriteJournal {
+
+    private final static byte ADD_USER = 1;
+    private final static byte ADD_INGREDIENT = 2;
+    private final static byte RECORD_INGREDIENT_REQUEST = 3;
+    private final static byte ADD_CUISINE = 4;
+    private final static byte RECORD_CUISINE_REQUEST = 5;
+    private final static byte ADD_RECIPE = 6;
+    private final static byte RECORD_RECIPE_REQUEST = 7;
+
+    private final static int BATCH_SIZE = 50;
+    private final static int MAX_ATTEMPTS = 10;
+    private final static int MAX_RESOLVED_VERTICES = 1000;
+    private final static long MIN_RETRY_MILLIS = 1000;
+    private final static long MAX_RETRY_MILLIS = 60000;
+    private final static long MAX_APPLY_MILLIS = 10000;
+
+    private final GraphRecipeStore recipeStore;
+    private final File journalFile;
+    private final File checkpointFile;
+    private final File deadLetterFile;
+    private FileChannel channel;
+    private long size;
+    private long appliedOffset;
+    private boolean running;
+    private Thread applier;
+    private long deadLetters;
+    private final LinkedHashMap<String, Vertex> resolvedVertices = new LinkedHashMap<String, Vertex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Vertex> eldest) {
+            return size() > MAX_RESOLVED_VERTICES;
+        }
+    };
+    private final Set<String> journaledUsers = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_RESOLVED_VERTICES;
+        }
+    });
+
+    private static Logger logger = LoggerFactory.getLogger(GraphWriteJournal.class);
+
+    /**
+     * Creates a new instance of GraphWriteJournal.
+     * @param recipeStore - The store the journaled writes are applied to
+     * @param directory - The directory holding the journal and checkpoint files
+     * @throws IOException
+     */
+    public GraphWriteJournal(GraphRecipeStore recipeStore, File directory) throws IOException {
+        this.recipeStore = recipeStore;
+        directory.mkdirs();
+        this.journalFile = new File(directory, "graph-journal.log");
+        this.checkpointFile = new File(directory, "graph-journal.checkpoint");
+        this.deadLetterFile = new File(directory, "graph-journal.dead");
+    }
+
+    /**
+     * Opens the journal and starts applying unapplied writes, including writes journaled before a restart.
+     * @throws Exception
+     */
+    public synchronized void start() throws Exception {
+        this.channel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = this.findEnd();
+        this.appliedOffset = Math.min(this.readCheckpoint(), this.size);
+        // the checkpoint is past the end if the process stopped while the journal was being emptied
+        this.writeCheckpoint(this.appliedOffset);
+        this.requeueDeadLetters();
+        if (this.appliedOffset < this.size) {
+            logger.info(String.format("Replaying %d bytes of unapplied graph writes", this.size - this.appliedOffset));
+        }
+        this.running = true;
+        this.applier = new Thread(this::applyWrites, "graph-journal");
+        this.applier.setDaemon(true);
+        this.applier.start();
+    }
+
+    /**
+     * Stops applying writes. Unapplied writes stay in the journal and are applied on the next start.
+     * @param waitMillis - The max time to wait for unapplied writes to be applied before stopping
+     * @throws Exception
+     */
+    public void stop(long waitMillis) throws Exception {
+        if (this.channel == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + waitMillis;
+        synchronized (this) {
+            while (this.running && this.appliedOffset < this.size && System.currentTimeMillis() < deadline) {
+                this.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            this.running = false;
+            this.notifyAll();
+        }
+        if (this.applier != null) {
+            // let a write being applied finish so it is not applied again on the next start
+            this.applier.join(MAX_APPLY_MILLIS);
+        }
+        synchronized (this) {
+            this.channel.force(true);
+            this.channel.close();
+        }
+    }
+
+    /**
+     * @return - The number of journaled bytes not yet applied to Graph
+     */
+    public synchronized long getUnappliedBytes() {
+        return this.size - this.appliedOffset;
+    }
+
+    /**
+     * @return - The number of writes moved to the dead-letter file since the journal was started
+     */
+    public synchronized long getDeadLetters() {
+        return this.deadLetters;
+    }
+
+    // Writes
+
+    /**
+     * Journals adding a user to Graph, unless the user has been added or journaled already.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - The user vertex, with its ID once the user has been added to Graph
+     * @throws IOException
+     */
+    public Vertex addUser(String userId) throws IOException {
+        synchronized (this.resolvedVertices) {
+            Vertex user = this.resolvedVertices.get("person:" + userId);
+            if (user != null) {
+                return user;
+            }
+        }
+        synchronized (this) {
+            if (! this.journaledUsers.contains(userId)) {
+                this.append(ADD_USER, userId);
+                this.journaledUsers.add(userId);
+            }
+        }
+        return pendingVertex("person", userId, null, null);
+    }
+
+    /**
+     * Journals adding an ingredient to Graph and recording the ingredient request for the user.
+     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
+     * @param matchingRecipes - The recipes that match the specified ingredientsStr
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - The ingredient vertex to be added (without an ID)
+     * @throws IOException
+     */
+    public Vertex addIngredient(String ingredientsStr, List<RecipeSummary> matchingRecipes, String userId) throws IOException {
+        String detail = RecipeJson.writeSummaries(matchingRecipes);
+        this.append(ADD_INGREDIENT, ingredientsStr, detail, userId);
+        return pendingVertex("ingredient", this.recipeStore.getUniqueIngredientsName(ingredientsStr), detail, null);
+    }
+
+    /**
+     * Journals incrementing the count on the edge between the user and ingredient.
+     * @param ingredientName - The unique name of the ingredient
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @throws IOException
+     */
+    public void recordIngredientRequestForUser(String ingredientName, String userId) throws IOException {
+        this.append(RECORD_INGREDIENT_REQUEST, ingredientName, userId);
+    }
+
+    /**
+     * Journals adding a cuisine to Graph and recording the cuisine request for the user.
+     * @param cuisine - The cuisine specified by the user
+     * @param matchingRecipes - The recipes that match the specified cuisine
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - The cuisine vertex to be added (without an ID)
+     * @throws IOException
+     */
+    public Vertex addCuisine(String cuisine, List<RecipeSummary> matchingRecipes, String userId) throws IOException {
+        String detail = RecipeJson.writeSummaries(matchingRecipes);
+        this.append(ADD_CUISINE, cuisine, detail, userId);
+        return pendingVertex("cuisine", this.recipeStore.getUniqueCuisineName(cuisine), detail, null);
+    }
+
+    /**
+     * Journals incrementing the count on the edge between the user and cuisine.
+     * @param cuisineName - The unique name of the cuisine
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @throws IOException
+     */
+    public void recordCuisineRequestForUser(String cuisineName, String userId) throws IOException {
+        this.append(RECORD_CUISINE_REQUEST, cuisineName, userId);
+    }
+
+    /**
+     * Journals adding a recipe to Graph and recording the recipe request for the user.
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @param recipeTitle - The title of the recipe
+     * @param recipeDetail - The detailed instructions for making the recipe
+     * @param ingredientCuisineLabel - "ingredient" or "cuisine" if selected before the recipe (or null)
+     * @param ingredientCuisineName - The unique name of the ingredient or cuisine selected before the recipe (or null)
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - The recipe vertex to be added (without an ID)
+     * @throws IOException
+     */
+    public Vertex addRecipe(String recipeId, String recipeTitle, String recipeDetail, String ingredientCuisineLabel, String ingredientCuisineName, String userId) throws IOException {
+        this.append(ADD_RECIPE, recipeId, recipeTitle, recipeDetail, ingredientCuisineLabel, ingredientCuisineName, userId);
+        return pendingVertex("recipe", this.recipeStore.getUniqueRecipeName(recipeId), recipeDetail, recipeTitle.trim());
+    }
+
+    /**
+     * Journals incrementing the counts on the edges between the user, the ingredient or cuisine, and the recipe.
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @param ingredientCuisineLabel - "ingredient" or "cuisine" if selected before the recipe (or null)
+     * @param ingredientCuisineName - The unique name of the ingredient or cuisine selected before the recipe (or null)
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @throws IOException
+     */
+    public void recordRecipeRequestForUser(String recipeId, String ingredientCuisineLabel, String ingredientCuisineName, String userId) throws IOException {
+        this.append(RECORD_RECIPE_REQUEST, recipeId, ingredientCuisineLabel, ingredientCuisineName, userId);
+    }
+
+    // Journal
+
+    private synchronized void append(byte operation, String... arguments) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(operation);
+        for (String argument : arguments) {
+            if (argument == null) {
+                out.writeInt(-1);
+            }
+            else {
+                byte[] utf8 = argument.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+        }
+        out.writeInt(0);
+        out.flush();
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int length = record.limit();
+        record.putInt(0, length);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length - 4);
+        record.putInt(length - 4, (int)crc.getValue());
+        while (record.hasRemaining()) {
+            this.size += this.channel.write(record, this.size);
+        }
+        this.notifyAll();
+    }
+
+    private void applyWrites() {
+        long retryMillis = MIN_RETRY_MILLIS;
+        long failedOffset = -1;
+        int attempts = 0;
+        while (true) {
+            long offset;
+            long end;
+            synchronized (this) {
+                while (this.running && this.appliedOffset == this.size) {
+                    this.compactIfApplied();
+                    try {
+                        this.wait();
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (! this.running) {
+                    return;
+                }
+                offset = this.appliedOffset;
+                end = this.size;
+            }
+            try {
+                this.channel.force(false);
+                // a write that failed is retried on its own, so the write that keeps failing is the one set aside
+                this.applyBatch(offset, end, (offset == failedOffset ? 1 : BATCH_SIZE));
+                retryMillis = MIN_RETRY_MILLIS;
+                failedOffset = -1;
+                attempts = 0;
+                synchronized (this) {
+                    this.notifyAll();
+                }
+            }
+            catch (Exception ex) {
+                synchronized (this) {
+                    offset = this.appliedOffset;
+                }
+                attempts = (offset == failedOffset ? attempts + 1 : 1);
+                failedOffset = offset;
+                if (attempts >= MAX_ATTEMPTS) {
+                    logger.error(String.format("Moving graph write at %d to %s after %d attempts", offset, this.deadLetterFile, attempts), ex);
+                    try {
+                        this.deadLetter(offset, end);
+                        failedOffset = -1;
+                        attempts = 0;
+                        continue;
+                    }
+                    catch (IOException deadLetterEx) {
+                        logger.error("Error writing graph write dead letter", deadLetterEx);
+                    }
+                }
+                logger.warn(String.format("Error applying graph write; retrying in %d ms", retryMillis), ex);
+                synchronized (this) {
+                    try {
+                        if (this.running) {
+                            this.wait(retryMillis);
+                        }
+                    }
+                    catch (Exception waitEx) {
+                        return;
+                    }
+                }
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Applies up to count writes from offset, checkpointing after every Graph request. Consecutive selections
+     * are collected in a batch written in one request; other writes are applied one at a time, in order.
+     * A crash between a Graph request and its checkpoint applies the writes of that request again on restart,
+     * so at most one batch of selections is counted twice.
+     */
+    private void applyBatch(long offset, long end, int count) throws Exception {
+        GraphRecipeStore.WriteBatch batch = this.recipeStore.newWriteBatch();
+        for (int i = 0; i < count && offset < end; i++) {
+            ByteBuffer record = this.readRecord(offset, end);
+            if (! isSelection(record) && ! batch.isEmpty()) {
+                batch.apply();
+                this.checkpoint(offset);
+            }
+            this.apply(record, batch);
+            offset += record.limit();
+            if (batch.isEmpty()) {
+                this.checkpoint(offset);
+            }
+        }
+        if (! batch.isEmpty()) {
+            batch.apply();
+            this.checkpoint(offset);
+        }
+    }
+
+    private void checkpoint(long offset) throws IOException {
+        synchronized (this) {
+            this.appliedOffset = offset;
+        }
+        this.writeCheckpoint(offset);
+    }
+
+    private static boolean isSelection(ByteBuffer record) {
+        byte operation = record.get(4);
+        return (operation == RECORD_INGREDIENT_REQUEST || operation == RECORD_CUISINE_REQUEST || operation == RECORD_RECIPE_REQUEST);
+    }
+
+    /**
+     * Appends the write at offset to the dead-letter file and skips it.
+     */
+    private void deadLetter(long offset, long end) throws IOException {
+        ByteBuffer record = this.readRecord(offset, end);
+        try (FileChannel deadLetters = FileChannel.open(this.deadLetterFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                deadLetters.write(record);
+            }
+            deadLetters.force(false);
+        }
+        synchronized (this) {
+            this.deadLetters++;
+        }
+        this.checkpoint(offset + record.limit());
+    }
+
+    /**
+     * Appends the writes in the dead-letter file to the journal, so they are attempted again, and removes the file.
+     */
+    private void requeueDeadLetters() throws IOException {
+        if (! this.deadLetterFile.exists()) {
+            return;
+        }
+        byte[] records = Files.readAllBytes(this.deadLetterFile.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        long position = this.size;
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+        // drops a record left incomplete if the process stopped while writing the dead-letter file
+        this.size = this.findEnd();
+        this.channel.force(false);
+        Files.delete(this.deadLetterFile.toPath());
+        logger.info(String.format("Requeued %d bytes of graph writes from %s", records.length, this.deadLetterFile));
+    }
+
+    private void apply(ByteBuffer record, GraphRecipeStore.WriteBatch batch) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), 4, record.limit() - 8));
+        byte operation = in.readByte();
+        switch (operation) {
+            case ADD_USER:
+                this.resolveUser(readString(in));
+                break;
+            case ADD_INGREDIENT: {
+                String ingredientsStr = readString(in);
+                List<RecipeSummary> matchingRecipes = RecipeJson.readSummaries(readString(in));
+                Vertex user = this.resolveUser(readString(in));
+                Vertex ingredient = this.recipeStore.addIngredient(ingredientsStr, matchingRecipes, user.getId());
+                this.putResolved("ingredient:" + ingredient.getPropertyValue("name"), ingredient);
+                break;
+            }
+            case RECORD_INGREDIENT_REQUEST: {
+                Vertex ingredient = this.resolve("ingredient", readString(in));
+                Vertex user = this.resolveUser(readString(in));
+                if (ingredient != null) {
+                    this.recipeStore.recordIngredientRequestForUser(ingredient.getId(), user.getId(), batch);
+                }
+                break;
+            }
+            case ADD_CUISINE: {
+                String cuisine = readString(in);
+                List<RecipeSummary> matchingRecipes = RecipeJson.readSummaries(readString(in));
+                Vertex user = this.resolveUser(readString(in));
+                Vertex cuisineVertex = this.recipeStore.addCuisine(cuisine, matchingRecipes, user.getId());
+                this.putResolved("cuisine:" + cuisineVertex.getPropertyValue("name"), cuisineVertex);
+                break;
+            }
+            case RECORD_CUISINE_REQUEST: {
+                Vertex cuisine = this.resolve("cuisine", readString(in));
+                Vertex user = this.resolveUser(readString(in));
+                if (cuisine != null) {
+                    this.recipeStore.recordCuisineRequestForUser(cuisine.getId(), user.getId(), batch);
+                }
+                break;
+            }
+            case ADD_RECIPE: {
+                String recipeId = readString(in);
+                String recipeTitle = readString(in);
+                String recipeDetail = readString(in);
+                Vertex ingredientCuisine = this.resolve(readString(in), readString(in));
+                Vertex user = this.resolveUser(readString(in));
+                Vertex recipe = this.recipeStore.addRecipe(recipeId, recipeTitle, recipeDetail, (ingredientCuisine == null ? null : ingredientCuisine.getId()), user.getId());
+                this.putResolved("recipe:" + recipe.getPropertyValue("name"), recipe);
+                break;
+            }
+            case RECORD_RECIPE_REQUEST: {
+                Vertex recipe = this.resolve("recipe", readString(in));
+                Vertex ingredientCuisine = this.resolve(readString(in), readString(in));
+                Vertex user = this.resolveUser(readString(in));
+                if (recipe != null) {
+                    this.recipeStore.recordRecipeRequestForUser(recipe, (ingredientCuisine == null ? null : ingredientCuisine.getId()), user.getId(), batch);
+                }
+                break;
+            }
+            default:
+                logger.error(String.format("Skipping graph write with unknown operation %d", operation));
+        }
+    }
+
+    private Vertex getResolved(String key) {
+        synchronized (this.resolvedVertices) {
+            return this.resolvedVertices.get(key);
+        }
+    }
+
+    private void putResolved(String key, Vertex vertex) {
+        synchronized (this.resolvedVertices) {
+            this.resolvedVertices.put(key, vertex);
+        }
+    }
+
+    /**
+     * Resolves the user vertex, adding the user to Graph if it does not exist.
+     */
+    private Vertex resolveUser(String userId) throws Exception {
+        Vertex user = this.getResolved("person:" + userId);
+        if (user == null) {
+            user = this.recipeStore.addUser(userId);
+            this.putResolved("person:" + userId, user);
+        }
+        return user;
+    }
+
+    /**
+     * Resolves the ingredient, cuisine or recipe vertex with the specified name, or returns null if it does not exist.
+     */
+    private Vertex resolve(String label, String name) throws Exception {
+        if (label == null || name == null) {
+            return null;
+        }
+        Vertex vertex = this.getResolved(label + ":" + name);
+        if (vertex == null) {
+            if (label.equals("ingredient")) {
+                vertex = this.recipeStore.findIngredientByName(name);
+            }
+            else if (label.equals("cuisine")) {
+                vertex = this.recipeStore.findCuisine(name);
+            }
+            else if (label.equals("recipe")) {
+                vertex = this.recipeStore.findRecipe(name);
+            }
+            if (vertex == null) {
+                logger.warn(String.format("Skipping graph write for missing %s %s", label, name));
+                return null;
+            }
+            this.putResolved(label + ":" + name, vertex);
+        }
+        return vertex;
+    }
+
+    private ByteBuffer readRecord(long offset, long end) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        this.channel.read(header, offset);
+        int length = header.getInt(0);
+        if (length < 9 || offset + length > end) {
+            throw new IOException(String.format("Invalid graph journal record at %d", offset));
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        while (record.hasRemaining()) {
+            this.channel.read(record, offset + record.position());
+        }
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Finds the end of the last complete record, truncating a partially written record left by a crash.
+     */
+    private long findEnd() throws IOException {
+        long fileSize = this.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        while (position + 4 <= fileSize) {
+            header.clear();
+            this.channel.read(header, position);
+            int length = header.getInt(0);
+            if (length < 9 || position + length > fileSize) {
+                break;
+            }
+            ByteBuffer record = this.readRecord(position, fileSize);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, length - 4);
+            if ((int)crc.getValue() != record.getInt(length - 4)) {
+                break;
+            }
+            position += length;
+        }
+        if (position < fileSize) {
+            logger.warn(String.format("Truncating %d bytes of incomplete records from %s", fileSize - position, this.journalFile));
+            this.channel.truncate(position);
+        }
+        return position;
+    }
+
+    /**
+     * Empties the journal once every write has been applied, so it does not grow without bound.
+     */
+    private void compactIfApplied() {
+        if (this.size == 0) {
+            return;
+        }
+        try {
+            this.channel.truncate(0);
+            this.size = 0;
+            this.appliedOffset = 0;
+            this.writeCheckpoint(0);
+        }
+        catch (IOException ex) {
+            logger.error("Error truncating graph journal", ex);
+        }
+    }
+
+    private long readCheckpoint() {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(this.checkpointFile.toPath()), StandardCharsets.UTF_8).trim());
+        }
+        catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(long offset) throws IOException {
+        File tempFile = new File(this.checkpointFile.getPath() + ".tmp");
+        Files.write(tempFile.toPath(), String.valueOf(offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile.toPath(), this.checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Vertex pendingVertex(String label, String name, String detail, String title) {
+        HashMap<String, Object> properties = new HashMap<>();
+        properties.put("name", name);
+        if (detail != null) {
+            properties.put("detail", detail);
+        }
+        if (title != null) {
+            properties.put("title", title);
+        }
+        return new Vertex(label, properties);
+    }
+}
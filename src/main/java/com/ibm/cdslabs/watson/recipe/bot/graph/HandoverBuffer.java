@@ -0,0 +1,126 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Holds messages for users in partitions this instance does not own, so the messages received while a partition
+ * moves between instances are handled by the new owner instead of being lost: after the previous owner released
+ * the partition and before this instance acquires it (up to a heartbeat), or after the previous owner exited and
+ * before its lease expires. When this instance acquires a partition, the messages it holds for the partition
+ * that were received after the previous owner stopped handling it are replayed (see ShardCoordinator.PartitionListener).
+ * Messages are held for a limited time, and at most a fixed number per partition, oldest dropped first.
+ */
+public class HandoverBuffer {
+
+    private final long retentionMillis;
+    private final int capacity;
+    private final List<ArrayDeque<HeldMessage>> partitions;
+    private long held;
+    private long replayed;
+    private long dropped;
+
+    private static Logger logger = LoggerFactory.getLogger(HandoverBuffer.class);
+
+    /**
+     * Creates a new instance of HandoverBuffer.
+     * @param partitionCount - The total number of partitions
+     * @param retentionMillis - How long a message is held
+     * @param capacity - The max number of messages held per partition
+     */
+    public HandoverBuffer(int partitionCount, long retentionMillis, int capacity) {
+        this.retentionMillis = retentionMillis;
+        this.capacity = capacity;
+        this.partitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            this.partitions.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Holds a message unless its partition is owned by this instance. Ownership is checked while holding the buffer,
+     * so a message can't be held after its partition has been acquired and replayed.
+     * @param partition - The partition of the user that sent the message
+     * @param owned - Returns true if this instance owns the partition
+     * @param replay - Dispatches the message again when the partition is acquired
+     * @return - true if the message was held, false if the partition is owned and the message should be dispatched
+     */
+    public synchronized boolean hold(int partition, BooleanSupplier owned, Runnable replay) {
+        if (owned.getAsBoolean()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        ArrayDeque<HeldMessage> messages = this.partitions.get(partition);
+        this.expire(messages, now);
+        if (messages.size() == this.capacity) {
+            messages.removeFirst();
+            this.dropped++;
+        }
+        messages.addLast(new HeldMessage(now, replay));
+        this.held++;
+        return true;
+    }
+
+    /**
+     * Removes the messages held for a partition that has been acquired.
+     * @param partition - The partition number
+     * @param handledUntil - The time until which the previous owner handled the partition's messages
+     * @return - The replays of the messages received since, oldest first
+     */
+    public synchronized List<Runnable> acquired(int partition, long handledUntil) {
+        ArrayDeque<HeldMessage> messages = this.partitions.get(partition);
+        this.expire(messages, System.currentTimeMillis());
+        List<Runnable> replays = new ArrayList<>();
+        for (HeldMessage message : messages) {
+            if (message.receivedAt >= handledUntil) {
+                replays.add(message.replay);
+            }
+        }
+        messages.clear();
+        this.replayed += replays.size();
+        if (! replays.isEmpty()) {
+            logger.info(String.format("Replaying %d messages received while partition %d was handed over", replays.size(), partition));
+        }
+        return replays;
+    }
+
+    /**
+     * Gets the handover metrics.
+     * @return - The number of messages held, replayed and dropped (expired or over capacity), and held now
+     */
+    public synchronized Map<String,Object> getMetrics() {
+        long now = System.currentTimeMillis();
+        int holding = 0;
+        for (ArrayDeque<HeldMessage> messages : this.partitions) {
+            this.expire(messages, now);
+            holding += messages.size();
+        }
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("held", this.held);
+        metrics.put("replayed", this.replayed);
+        metrics.put("dropped", this.dropped);
+        metrics.put("holding", holding);
+        return metrics;
+    }
+
+    private void expire(ArrayDeque<HeldMessage> messages, long now) {
+        while (! messages.isEmpty() && now - messages.peekFirst().receivedAt > this.retentionMillis) {
+            messages.removeFirst();
+            this.dropped++;
+        }
+    }
+
+    private static class HeldMessage {
+
+        final long receivedAt;
+        final Runnable replay;
+
+        HeldMessage(long receivedAt, Runnable replay) {
+            this.receivedAt = receivedAt;
+            this.replay = replay;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.ullink.slack.simpleslackapi.SlackChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP ingress for the bot, alongside the Slack websocket, so instances can run behind a load balancer.
+ * Runs on the JDK's embedded HTTP server, which multiplexes connections on a selector thread. Handlers only
+ * parse the request and queue the message on the workspace's dispatcher (see SousChef.dispatchMessage),
+ * and the response is completed from the dispatcher once the reply is ready, so no HTTP thread waits on
+ * Conversation, Graph or Spoonacular.
+ * Endpoints:
+ * POST /slack/events - Slack Events API callbacks, only served with a signing secret to verify them. Direct
+ * messages are acknowledged once they are queued and the reply is queued on the workspace's SlackSender.
+ * Messages for users handled by another instance are refused with 503, so Slack retries them, and retries
+ * of a message already queued are acknowledged without queuing it again. The workspace is found by the
+ * callback's team_id, and callbacks for teams no workspace is connected to are refused with 403.
+ * POST /chat - A JSON chat API: {"user": "...", "text": "...", "workspace": "..." (optional)} is answered
+ * with {"reply": "..."}. Intended for integrations and load generators. Only served when enabled with
+ * enableChat, to requests with the chat token.
+ * GET /traces - The trace metrics and the traces of the most recent slow messages (see TraceRecorder), for
+ * tail latency diagnosis. Only served when enabled with enableTraceDump, to requests with the dump token.
+ */
+public class HttpIngress {
+
+    private final static int MAX_BODY_BYTES = 64 * 1024;
+    private final static long MAX_SIGNATURE_AGE_SECONDS = 5 * 60;
+    private final static int MAX_RECENT_EVENTS = 4096;
+
+    private final SousChef sousChef;
+    private final String slackSigningSecret;
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final Map<String,Boolean> recentEventIds = new LinkedHashMap<String,Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return size() > MAX_RECENT_EVENTS;
+        }
+    };
+
+    private static Logger logger = LoggerFactory.getLogger(HttpIngress.class);
+
+    /**
+     * Creates a new instance of HttpIngress.
+     * @param sousChef - The bot the messages are dispatched to
+     * @param port - The port to listen on
+     * @param slackSigningSecret - The signing secret used to verify Slack Events API requests, or null to not serve them
+     * @param threads - The number of threads parsing requests (with the PLATFORM execution model)
+     * @throws IOException
+     */
+    public HttpIngress(SousChef sousChef, int port, String slackSigningSecret, int threads) throws IOException {
+        this.sousChef = sousChef;
+        this.slackSigningSecret = slackSigningSecret;
+        this.httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = sousChef.getExecutionModel().newExecutor("http-ingress", threads);
+        this.httpServer.setExecutor(this.executor);
+        if (slackSigningSecret != null) {
+            this.httpServer.createContext("/slack/events", this::handleSlackEvent);
+        }
+        else {
+            logger.warn("No Slack signing secret; not serving Slack Events API callbacks");
+        }
+    }
+
+    /**
+     * Serves POST /chat to requests with an "Authorization: Bearer token" header. Must be called before start.
+     * @param token - The token required to chat, which lets the caller send messages as any user
+     */
+    public void enableChat(String token) {
+        this.httpServer.createContext("/chat", exchange -> this.handleChat(exchange, token));
+    }
+
+    /**
+     * Serves GET /traces to requests with an "Authorization: Bearer token" header. Must be called before start.
+     * @param token - The token required to dump traces, which include user IDs
+     */
+    public void enableTraceDump(String token) {
+        this.httpServer.createContext("/traces", exchange -> this.handleTraces(exchange, token));
+    }
+
+    public void start() {
+        this.httpServer.start();
+        logger.info(String.format("HTTP ingress listening on %s", this.httpServer.getAddress()));
+    }
+
+    public void stop() {
+        this.httpServer.stop(1);
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleSlackEvent(HttpExchange exchange) throws IOException {
+        try {
+            String body = this.readBody(exchange);
+            if (body == null) {
+                return;
+            }
+            if (! this.isSlackSignatureValid(exchange, body)) {
+                respond(exchange, 401, null);
+                return;
+            }
+            JsonObject payload = new JsonParser().parse(body).getAsJsonObject();
+            String type = getString(payload, "type");
+            if ("url_verification".equals(type)) {
+                respond(exchange, 200, writeField("challenge", getString(payload, "challenge")));
+                return;
+            }
+            JsonObject event = ("event_callback".equals(type) ? payload.getAsJsonObject("event") : null);
+            if (event == null || ! "message".equals(getString(event, "type")) || ! "im".equals(getString(event, "channel_type"))
+                    || event.has("subtype") || event.has("bot_id")) {
+                respond(exchange, 200, null);
+                return;
+            }
+            String teamId = getString(payload, "team_id");
+            SlackWorkspace slackWorkspace = this.sousChef.findSlackWorkspaceByTeamId(teamId);
+            if (slackWorkspace == null) {
+                logger.warn(String.format("Refusing Slack event for unknown team %s", teamId));
+                respond(exchange, 403, null);
+                return;
+            }
+            String userId = getString(event, "user");
+            String channelId = getString(event, "channel");
+            if (userId == null || channelId == null || userId.equals(slackWorkspace.getSlackBotId())) {
+                respond(exchange, 200, null);
+                return;
+            }
+            // Slack retries callbacks that are not acknowledged within 3 seconds, so a retry may be for a message
+            // that was queued, but whose acknowledgement was late or lost
+            String eventId = getString(payload, "event_id");
+            if (eventId != null && ! this.addRecentEvent(eventId)) {
+                respond(exchange, 200, null);
+                return;
+            }
+            SlackWorkspace workspace = slackWorkspace;
+            boolean dispatched = this.sousChef.dispatchMessage(slackWorkspace, userId, getString(event, "text"),
+                    reply -> sendSlackMessage(workspace, channelId, reply),
+                    () -> sendSlackMessage(workspace, channelId, SousChef.BUSY_REPLY));
+            if (! dispatched) {
+                // not acknowledged, so Slack retries it, possibly on the instance handling the user
+                if (eventId != null) {
+                    this.removeRecentEvent(eventId);
+                }
+                respond(exchange, 503, null);
+                return;
+            }
+            respond(exchange, 200, null);
+        }
+        catch (RuntimeException ex) {
+            logger.warn(String.format("Invalid Slack event: %s", ex.getMessage()));
+            respond(exchange, 400, null);
+        }
+    }
+
+    private void handleChat(HttpExchange exchange, String token) throws IOException {
+        try {
+            if (! isAuthorized(exchange, token)) {
+                respond(exchange, 401, null);
+                return;
+            }
+            String body = this.readBody(exchange);
+            if (body == null) {
+                return;
+            }
+            JsonObject payload = new JsonParser().parse(body).getAsJsonObject();
+            String userId = getString(payload, "user");
+            String text = getString(payload, "text");
+            SlackWorkspace slackWorkspace = this.sousChef.findSlackWorkspace(getString(payload, "workspace"));
+            if (userId == null || text == null || slackWorkspace == null) {
+                respond(exchange, 400, writeField("error", "user, text and a known workspace are required"));
+                return;
+            }
+            boolean dispatched = this.sousChef.dispatchMessage(slackWorkspace, userId, text,
+                    reply -> respond(exchange, 200, writeField("reply", reply)),
+                    () -> respond(exchange, 503, writeField("error", "busy")));
+            if (! dispatched) {
+                respond(exchange, 421, writeField("error", "user is handled by another instance"));
+            }
+        }
+        catch (RuntimeException ex) {
+            logger.warn(String.format("Invalid chat request: %s", ex.getMessage()));
+            respond(exchange, 400, null);
+        }
+    }
+
+    private void handleTraces(HttpExchange exchange, String token) {
+        if (! "GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            respond(exchange, 405, null);
+            return;
+        }
+        if (! isAuthorized(exchange, token)) {
+            respond(exchange, 401, null);
+            return;
+        }
+        Map<String,Object> dump = new LinkedHashMap<>();
+        dump.put("metrics", this.sousChef.getTraceMetrics());
+        dump.put("traces", this.sousChef.getSlowTraces());
+        respond(exchange, 200, new GsonBuilder().setPrettyPrinting().create().toJson(dump));
+    }
+
+    /**
+     * Adds the ID of a Slack event being dispatched, returning false if it was already added.
+     */
+    private boolean addRecentEvent(String eventId) {
+        synchronized (this.recentEventIds) {
+            return (this.recentEventIds.put(eventId, Boolean.TRUE) == null);
+        }
+    }
+
+    private void removeRecentEvent(String eventId) {
+        synchronized (this.recentEventIds) {
+            this.recentEventIds.remove(eventId);
+        }
+    }
+
+    /**
+     * Checks the "Authorization: Bearer token" header of a request.
+     */
+    private static boolean isAuthorized(HttpExchange exchange, String token) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        return (authorization != null && MessageDigest.isEqual(("Bearer " + token).getBytes(StandardCharsets.UTF_8), authorization.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Reads the request body, responding with an error and returning null if the request is not a POST or is too large.
+     */
+    private String readBody(HttpExchange exchange) throws IOException {
+        if (! "POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            respond(exchange, 405, null);
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_BODY_BYTES) {
+                    respond(exchange, 413, null);
+                    return null;
+                }
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Verifies the X-Slack-Signature header, an HMAC-SHA256 of the timestamp and body keyed with the signing secret.
+     */
+    private boolean isSlackSignatureValid(HttpExchange exchange, String body) {
+        String timestamp = exchange.getRequestHeaders().getFirst("X-Slack-Request-Timestamp");
+        String signature = exchange.getRequestHeaders().getFirst("X-Slack-Signature");
+        if (timestamp == null || signature == null) {
+            return false;
+        }
+        try {
+            if (Math.abs(System.currentTimeMillis() / 1000 - Long.parseLong(timestamp)) > MAX_SIGNATURE_AGE_SECONDS) {
+                return false;
+            }
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(this.slackSigningSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] digest = mac.doFinal(("v0:" + timestamp + ":" + body).getBytes(StandardCharsets.UTF_8));
+            StringBuilder expected = new StringBuilder("v0=");
+            for (byte b : digest) {
+                expected.append(String.format("%02x", b));
+            }
+            return MessageDigest.isEqual(expected.toString().getBytes(StandardCharsets.UTF_8), signature.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (Exception ex) {
+            logger.warn("Error verifying Slack signature", ex);
+            return false;
+        }
+    }
+
+    private static void sendSlackMessage(SlackWorkspace slackWorkspace, String channelId, String reply) {
+        SlackChannel channel = slackWorkspace.getSlackSession().findChannelById(channelId);
+        if (channel == null) {
+            logger.warn(String.format("Unknown Slack channel %s", channelId));
+            return;
+        }
+        slackWorkspace.getSlackSender().send(channel, reply);
+    }
+
+    /**
+     * Sends the response and closes the exchange. May be called from any thread.
+     */
+    private static void respond(HttpExchange exchange, int status, String json) {
+        try {
+            byte[] bytes = (json == null ? new byte[0] : json.getBytes(StandardCharsets.UTF_8));
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, (bytes.length == 0 ? -1 : bytes.length));
+            if (bytes.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        }
+        catch (IOException ex) {
+            logger.debug(String.format("Error sending HTTP response: %s", ex.getMessage()));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private static String getString(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return (element == null || element.isJsonNull() ? null : element.getAsString());
+    }
+
+    private static String writeField(String name, String value) {
+        try {
+            StringWriter json = new StringWriter();
+            JsonWriter writer = new JsonWriter(json);
+            writer.beginObject().name(name).value(value).endObject();
+            writer.flush();
+            return json.toString();
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonicalizes ingredient lists entered by users.
+ * Each ingredient is lowercased, stripped of punctuation, folded to its singular form and mapped
+ * through a synonym table, then interned to a small integer token ID so ingredient sets can be
+ * represented as bitsets.
+ */
+public class IngredientNormalizer {
+
+    private static final Map<String,String> SYNONYMS = new HashMap<>();
+    private static final Set<String> INVARIANTS = new HashSet<>(Arrays.asList(
+            "asparagus", "couscous", "hummus", "molasses", "swiss", "watercress", "lemongrass", "grits", "oats", "greens"
+    ));
+
+    static {
+        SYNONYMS.put("scallion", "green onion");
+        SYNONYMS.put("spring onion", "green onion");
+        SYNONYMS.put("courgette", "zucchini");
+        SYNONYMS.put("aubergine", "eggplant");
+        SYNONYMS.put("coriander", "cilantro");
+        SYNONYMS.put("garbanzo bean", "chickpea");
+        SYNONYMS.put("capsicum", "bell pepper");
+        SYNONYMS.put("ground beef", "beef");
+        SYNONYMS.put("minced beef", "beef");
+        SYNONYMS.put("chicken breast", "chicken");
+        SYNONYMS.put("prawn", "shrimp");
+        SYNONYMS.put("rocket", "arugula");
+    }
+
+    private final ConcurrentHashMap<String,Integer> tokenIds = new ConcurrentHashMap<>();
+    private final List<String> tokens = new ArrayList<>();
+
+    /**
+     * Splits the specified ingredients into sorted, unique canonical ingredient names.
+     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
+     * @return - The canonical ingredient names
+     */
+    public String[] normalize(final String ingredientsStr) {
+        TreeSet<String> ingredients = new TreeSet<>();
+        for (String ingredient : ingredientsStr.toLowerCase().split(",")) {
+            String canonical = this.canonicalize(ingredient);
+            if (canonical.length() > 0) {
+                ingredients.add(canonical);
+            }
+        }
+        return ingredients.toArray(new String[ingredients.size()]);
+    }
+
+    /**
+     * Gets the unique, canonical name for the specified ingredients.
+     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
+     * @return - The canonical ingredient names joined with commas
+     */
+    public String getCanonicalName(final String ingredientsStr) {
+        return String.join(",", this.normalize(ingredientsStr));
+    }
+
+    /**
+     * Gets the bitset of interned token IDs for the specified ingredients.
+     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
+     * @return - A bitset with one bit set per canonical ingredient
+     */
+    public BitSet toBitSet(final String ingredientsStr) {
+        BitSet bits = new BitSet();
+        for (String ingredient : this.normalize(ingredientsStr)) {
+            bits.set(this.getTokenId(ingredient));
+        }
+        return bits;
+    }
+
+    /**
+     * Gets the interned ID for the specified canonical ingredient without interning it.
+     * Used for queries, so ingredients that are only ever searched for do not grow the token table.
+     * @param ingredient - The canonical ingredient name
+     * @return - The token ID, or -1 if the ingredient has not been interned
+     */
+    public int findTokenId(String ingredient) {
+        Integer id = this.tokenIds.get(ingredient);
+        return (id == null ? -1 : id);
+    }
+
+    /**
+     * Gets the interned ID for the specified canonical ingredient, assigning a new ID if needed.
+     * @param ingredient - The canonical ingredient name
+     * @return - The token ID
+     */
+    public int getTokenId(String ingredient) {
+        Integer id = this.tokenIds.get(ingredient);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this.tokens) {
+            return this.tokenIds.computeIfAbsent(ingredient, key -> {
+                this.tokens.add(key);
+                return this.tokens.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * Gets the canonical ingredient for the specified token ID.
+     * @param tokenId - The token ID
+     * @return - The canonical ingredient name
+     */
+    public String getToken(int tokenId) {
+        synchronized (this.tokens) {
+            return this.tokens.get(tokenId);
+        }
+    }
+
+    private String canonicalize(String ingredient) {
+        StringBuilder words = new StringBuilder();
+        for (String word : ingredient.replaceAll("[^a-z\\s-]", " ").trim().split("\\s+")) {
+            if (word.length() > 0) {
+                if (words.length() > 0) {
+                    words.append(' ');
+                }
+                words.append(singular(word));
+            }
+        }
+        String canonical = words.toString();
+        String synonym = SYNONYMS.get(canonical);
+        return (synonym == null ? canonical : synonym);
+    }
+
+    private static String singular(String word) {
+        if (word.length() <= 3 || INVARIANTS.contains(word)) {
+            return word;
+        }
+        if (word.endsWith("ies")) {
+            return word.substring(0, word.length() - 3) + "y";
+        }
+        if (word.endsWith("oes") || word.endsWith("ches") || word.endsWith("shes") || word.endsWith("xes") || word.endsWith("sses")) {
+            return word.substring(0, word.length() - 2);
+        }
+        if (word.endsWith("s") && !word.endsWith("ss") && !word.endsWith("us") && !word.endsWith("is")) {
+            return word.substring(0, word.length() - 1);
+        }
+        return word;
+    }
+}
@@ -0,0 +1,136 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.util.*;
+
+/**
+ * Inverted index over the ingredient sets cached in Graph, used to find the closest cached set
+ * when there is no exact match for the ingredients requested by a user.
+ * Each cached set is stored as a bitset of ingredient token IDs, and each token ID maps to a
+ * posting list of the sets that contain it.
+ * Ingredient vertices added before ingredients were canonicalized keep their stored names (for example
+ * "tomatoes" rather than "tomato"), so the index also maps each canonical name to the stored name.
+ */
+public class IngredientSetIndex {
+
+    public final static double MIN_SIMILARITY = 0.5;
+
+    private final IngredientNormalizer normalizer;
+    private final List<String> names = new ArrayList<>();
+    private final List<BitSet> sets = new ArrayList<>();
+    private final HashMap<String,Integer> setIds = new HashMap<>();
+    private final HashMap<String,String> storedNames = new HashMap<>();
+    private int[][] postings = new int[64][];
+
+    /**
+     * Creates a new instance of IngredientSetIndex.
+     * @param normalizer - The normalizer used to tokenize ingredient sets
+     */
+    public IngredientSetIndex(IngredientNormalizer normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * Adds a cached ingredient set to the index.
+     * @param name - The unique name of the ingredient vertex in Graph
+     */
+    public synchronized void add(String name) {
+        if (this.setIds.containsKey(name)) {
+            return;
+        }
+        String canonicalName = this.normalizer.getCanonicalName(name);
+        if (canonicalName.equals(name)) {
+            this.storedNames.put(canonicalName, name);
+        }
+        else {
+            this.storedNames.putIfAbsent(canonicalName, name);
+        }
+        BitSet set = this.normalizer.toBitSet(name);
+        int setId = this.sets.size();
+        this.names.add(name);
+        this.sets.add(set);
+        this.setIds.put(name, setId);
+        for (int token = set.nextSetBit(0); token >= 0; token = set.nextSetBit(token + 1)) {
+            if (token >= this.postings.length) {
+                this.postings = Arrays.copyOf(this.postings, Math.max(token + 1, this.postings.length * 2));
+            }
+            int[] posting = this.postings[token];
+            if (posting == null) {
+                posting = new int[]{0, 0, 0, 0};
+            }
+            else if (posting[0] + 1 >= posting.length) {
+                posting = Arrays.copyOf(posting, posting.length * 2);
+            }
+            // posting[0] holds the length of the list
+            posting[++posting[0]] = setId;
+            this.postings[token] = posting;
+        }
+    }
+
+    /**
+     * Gets the name of the ingredient vertex stored for the specified canonical name.
+     * @param canonicalName - The canonical name of the ingredients (see IngredientNormalizer.getCanonicalName)
+     * @return - The stored name, or null if no ingredient vertex has the canonical name
+     */
+    public synchronized String getStoredName(String canonicalName) {
+        return this.storedNames.get(canonicalName);
+    }
+
+    /**
+     * Finds the cached ingredient set closest to the specified ingredients.
+     * Sets are scored by Jaccard similarity; on a tie a subset of the requested ingredients
+     * (recipes the user can make with what they have) wins over a superset.
+     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
+     * @return - The unique name of the closest ingredient vertex, or null if none is similar enough
+     */
+    public String findClosest(final String ingredientsStr) {
+        return this.findClosest(ingredientsStr, MIN_SIMILARITY);
+    }
+
+    /**
+     * Finds the cached ingredient set closest to the specified ingredients.
+     * @param ingredientsStr - The ingredient or comma-separated list of ingredients specified by the user
+     * @param minSimilarity - The minimum Jaccard similarity; 0 accepts any set sharing an ingredient
+     * @return - The unique name of the closest ingredient vertex, or null if none is similar enough
+     */
+    public synchronized String findClosest(final String ingredientsStr, double minSimilarity) {
+        // query ingredients are looked up rather than interned; an ingredient no cached set has counts but overlaps nothing
+        String[] query = this.normalizer.normalize(ingredientsStr);
+        int queryCardinality = query.length;
+        if (queryCardinality == 0) {
+            return null;
+        }
+        HashMap<Integer,Integer> overlaps = new HashMap<>();
+        for (String ingredient : query) {
+            int token = this.normalizer.findTokenId(ingredient);
+            int[] posting = (token >= 0 && token < this.postings.length ? this.postings[token] : null);
+            if (posting != null) {
+                for (int i = 1; i <= posting[0]; i++) {
+                    overlaps.merge(posting[i], 1, Integer::sum);
+                }
+            }
+        }
+        int bestSetId = -1;
+        double bestScore = 0;
+        for (Map.Entry<Integer,Integer> overlap : overlaps.entrySet()) {
+            int setCardinality = this.sets.get(overlap.getKey()).cardinality();
+            int intersection = overlap.getValue();
+            double score = intersection / (double)(queryCardinality + setCardinality - intersection);
+            if (intersection == setCardinality) {
+                // subset of the requested ingredients
+                score += 0.001;
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                bestSetId = overlap.getKey();
+            }
+        }
+        return (bestSetId >= 0 && bestScore >= minSimilarity ? this.names.get(bestSetId) : null);
+    }
+
+    /**
+     * @return - The number of ingredient sets in the index
+     */
+    public synchronized int size() {
+        return this.sets.size();
+    }
+}
@@ -0,0 +1,302 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Binary log of user interactions for offline analytics (see util.AggregateInteractions).
+ * Events are encoded into an in-memory buffer. When the buffer fills up, or on a periodic flush, it is swapped
+ * with a second buffer and appended to the current log file on the flusher thread, so logging never waits for the
+ * disk. If both buffers are full, because the disk is slower than the events are logged, events are dropped.
+ * Log files are rotated once they reach a maximum size and are named by the time they were created.
+ * Record layout: length (short), type (byte), time (long), latency in ms (int), user ID (short length + UTF-8),
+ * subject (short length + UTF-8; the ingredients, cuisine or recipe ID).
+ */
+public class InteractionLog {
+
+    public final static byte START = 1;
+    public final static byte FAVORITES = 2;
+    public final static byte INGREDIENT = 3;
+    public final static byte CUISINE = 4;
+    public final static byte SELECTION = 5;
+    public final static byte MORE = 6;
+    public final static byte SEARCH = 7;
+    public final static String[] TYPE_NAMES = new String[]{null, "start", "favorites", "ingredient", "cuisine", "selection", "more", "search"};
+
+    private final static int BUFFER_BYTES = 64 * 1024;
+    private final static int MAX_STRING_BYTES = 1024;
+    private final static long FLUSH_MILLIS = 1000;
+    private final static String FILE_PREFIX = "interactions-";
+    private final static String FILE_SUFFIX = ".log";
+
+    private final File directory;
+    private final long maxFileBytes;
+    // events are logged to buffer under this object's monitor; fullBuffer is written to the file under writeLock
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private ByteBuffer fullBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private boolean writing;
+    private long dropped;
+    private final Object writeLock = new Object();
+    private FileChannel channel;
+    private long fileBytes;
+    private int fileSequence;
+    private final ScheduledExecutorService flusher;
+
+    private static Logger logger = LoggerFactory.getLogger(InteractionLog.class);
+
+    /**
+     * Creates a new instance of InteractionLog. Events are logged to the buffer until start is called.
+     * @param directory - The directory the log files are written to
+     * @param maxFileBytes - The size at which a log file is rotated
+     */
+    public InteractionLog(File directory, long maxFileBytes) {
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+        directory.mkdirs();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "interaction-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts flushing events periodically.
+     */
+    public void start() {
+        this.flusher.scheduleWithFixedDelay(() -> {
+            try {
+                this.flush();
+            }
+            catch (Exception ex) {
+                logger.error("Error flushing interaction log", ex);
+            }
+        }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Logs an interaction. The event is dropped if the buffer is full while the previous buffer is being written.
+     * @param type - The type of interaction (START, FAVORITES, INGREDIENT, CUISINE, SELECTION, MORE or SEARCH)
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @param subject - The ingredients, cuisine or recipe ID the interaction is about (or null)
+     * @param latencyMillis - The time taken to reply to the user
+     */
+    public synchronized void log(byte type, String userId, String subject, long latencyMillis) {
+        byte[] userIdBytes = truncate(userId);
+        byte[] subjectBytes = truncate(subject);
+        int length = 2 + 1 + 8 + 4 + 2 + userIdBytes.length + 2 + subjectBytes.length;
+        if (this.buffer.remaining() < length) {
+            if (this.writing) {
+                this.dropped++;
+                return;
+            }
+            this.swapBuffers();
+            try {
+                this.flusher.execute(() -> {
+                    try {
+                        this.write();
+                    }
+                    catch (Exception ex) {
+                        logger.error("Error writing interaction log", ex);
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex) {
+                // closing, so the swapped events are written by close
+            }
+        }
+        this.buffer.putShort((short)length);
+        this.buffer.put(type);
+        this.buffer.putLong(System.currentTimeMillis());
+        this.buffer.putInt((int)Math.min(latencyMillis, Integer.MAX_VALUE));
+        this.buffer.putShort((short)userIdBytes.length);
+        this.buffer.put(userIdBytes);
+        this.buffer.putShort((short)subjectBytes.length);
+        this.buffer.put(subjectBytes);
+    }
+
+    /**
+     * @return - The number of events dropped because both buffers were full
+     */
+    public synchronized long getDroppedCount() {
+        return this.dropped;
+    }
+
+    /**
+     * Appends the buffered events to the current log file, rotating it if it is full.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        synchronized (this.writeLock) {
+            // events swapped out by log first, so they are written in order
+            this.write();
+            synchronized (this) {
+                if (this.buffer.position() == 0) {
+                    return;
+                }
+                this.swapBuffers();
+            }
+            this.write();
+        }
+    }
+
+    /**
+     * Flushes the buffered events and closes the current log file.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.flusher.shutdown();
+        try {
+            this.flusher.awaitTermination(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this.writeLock) {
+            this.flush();
+            if (this.channel != null) {
+                this.channel.close();
+                this.channel = null;
+            }
+        }
+    }
+
+    /**
+     * Moves the logged events to fullBuffer, to be written. Must be called holding this object's monitor, and only
+     * when fullBuffer is not being written.
+     */
+    private void swapBuffers() {
+        ByteBuffer full = this.buffer;
+        this.buffer = this.fullBuffer;
+        this.fullBuffer = full;
+        this.writing = true;
+    }
+
+    /**
+     * Writes fullBuffer to the current log file, if it holds events, without holding this object's monitor.
+     */
+    private void write() throws IOException {
+        synchronized (this.writeLock) {
+            ByteBuffer full;
+            synchronized (this) {
+                if (! this.writing) {
+                    return;
+                }
+                full = this.fullBuffer;
+            }
+            try {
+                if (this.channel == null || this.fileBytes + full.position() > this.maxFileBytes) {
+                    this.rotate();
+                }
+                full.flip();
+                while (full.hasRemaining()) {
+                    this.fileBytes += this.channel.write(full);
+                }
+            }
+            finally {
+                // on failure the events are lost, as analytics must never fail a reply
+                full.clear();
+                synchronized (this) {
+                    this.writing = false;
+                }
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+        }
+        // the sequence number keeps names unique when files are rotated within the same millisecond
+        File file = new File(this.directory, String.format("%s%013d-%06d%s", FILE_PREFIX, System.currentTimeMillis(), this.fileSequence++ % 1000000, FILE_SUFFIX));
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.fileBytes = this.channel.size();
+        logger.debug(String.format("Logging interactions to %s", file));
+    }
+
+    private static byte[] truncate(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return (bytes.length > MAX_STRING_BYTES ? Arrays.copyOf(bytes, MAX_STRING_BYTES) : bytes);
+    }
+
+    /**
+     * Lists the log files in the specified directory, oldest first.
+     * @param directory - The directory the log files were written to
+     * @return - The log files
+     */
+    public static File[] listFiles(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        return files;
+    }
+
+    /**
+     * Reads the events in a log file. A partially written event at the end of the file is ignored.
+     * @param file - The log file
+     * @param consumer - Called with each event
+     * @throws IOException
+     */
+    public static void read(File file, Consumer<Event> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (bytes.remaining() >= 2) {
+                int start = bytes.position();
+                int length = bytes.getShort(start) & 0xFFFF;
+                if (length < 19 || bytes.remaining() < length) {
+                    break;
+                }
+                try {
+                    bytes.getShort();
+                    Event event = new Event();
+                    event.type = bytes.get();
+                    event.time = bytes.getLong();
+                    event.latencyMillis = bytes.getInt();
+                    event.userId = readString(bytes);
+                    event.subject = readString(bytes);
+                    consumer.accept(event);
+                }
+                catch (BufferUnderflowException ex) {
+                    break;
+                }
+                bytes.position(start + length);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer bytes) {
+        byte[] value = new byte[bytes.getShort() & 0xFFFF];
+        bytes.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An event read from a log file.
+     */
+    public static class Event {
+        public byte type;
+        public long time;
+        public int latencyMillis;
+        public String userId;
+        public String subject;
+    }
+}
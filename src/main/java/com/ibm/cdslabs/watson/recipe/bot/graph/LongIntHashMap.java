@@ -0,0 +1,153 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Open-addressing hash map from primitive long keys to primitive int values.
+ * Keys and values are held in NIO buffers so the table can live either on the heap
+ * or off-heap (direct buffers) without boxing. Not thread-safe.
+ */
+public class LongIntHashMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final boolean offHeap;
+    private LongBuffer keys;
+    private IntBuffer values;
+    private int capacity;
+    private int size;
+
+    /**
+     * Creates a new instance of LongIntHashMap.
+     * @param initialCapacity - The expected number of entries
+     * @param offHeap - true to allocate the table in direct (off-heap) memory
+     */
+    public LongIntHashMap(int initialCapacity, boolean offHeap) {
+        this.offHeap = offHeap;
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < initialCapacity) {
+            capacity <<= 1;
+        }
+        this.allocate(capacity);
+    }
+
+    /**
+     * Gets the value for the specified key.
+     * @param key - The key (must not be Long.MIN_VALUE)
+     * @param defaultValue - The value to return if the key is not present
+     * @return - The value for the key, or defaultValue
+     */
+    public int get(long key, int defaultValue) {
+        int slot = this.findSlot(key);
+        return (this.keys.get(slot) == key ? this.values.get(slot) : defaultValue);
+    }
+
+    /**
+     * Returns true if the map contains the specified key.
+     * @param key - The key (must not be Long.MIN_VALUE)
+     * @return - true if the key is present
+     */
+    public boolean containsKey(long key) {
+        return this.keys.get(this.findSlot(key)) == key;
+    }
+
+    /**
+     * Sets the value for the specified key.
+     * @param key - The key (must not be Long.MIN_VALUE)
+     * @param value - The value
+     */
+    public void put(long key, int value) {
+        int slot = this.findSlot(key);
+        if (this.keys.get(slot) != key) {
+            this.keys.put(slot, key);
+            this.size++;
+        }
+        this.values.put(slot, value);
+        this.ensureCapacity();
+    }
+
+    /**
+     * Adds delta to the value for the specified key (treating a missing key as 0).
+     * @param key - The key (must not be Long.MIN_VALUE)
+     * @param delta - The amount to add
+     * @return - The updated value
+     */
+    public int addTo(long key, int delta) {
+        int slot = this.findSlot(key);
+        int value = delta;
+        if (this.keys.get(slot) != key) {
+            this.keys.put(slot, key);
+            this.size++;
+        }
+        else {
+            value += this.values.get(slot);
+        }
+        this.values.put(slot, value);
+        this.ensureCapacity();
+        return value;
+    }
+
+    /**
+     * @return - The number of entries in the map
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Removes all entries from the map.
+     */
+    public void clear() {
+        for (int i = 0; i < this.capacity; i++) {
+            this.keys.put(i, EMPTY);
+        }
+        this.size = 0;
+    }
+
+    private int findSlot(long key) {
+        int mask = this.capacity - 1;
+        int slot = mix(key) & mask;
+        long existing;
+        while ((existing = this.keys.get(slot)) != EMPTY && existing != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void ensureCapacity() {
+        if (this.size <= this.capacity * LOAD_FACTOR) {
+            return;
+        }
+        LongBuffer oldKeys = this.keys;
+        IntBuffer oldValues = this.values;
+        int oldCapacity = this.capacity;
+        this.allocate(oldCapacity << 1);
+        for (int i = 0; i < oldCapacity; i++) {
+            long key = oldKeys.get(i);
+            if (key != EMPTY) {
+                int slot = this.findSlot(key);
+                this.keys.put(slot, key);
+                this.values.put(slot, oldValues.get(i));
+                this.size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        this.size = 0;
+        this.keys = (this.offHeap ? ByteBuffer.allocateDirect(capacity * 8) : ByteBuffer.allocate(capacity * 8)).asLongBuffer();
+        this.values = (this.offHeap ? ByteBuffer.allocateDirect(capacity * 4) : ByteBuffer.allocate(capacity * 4)).asIntBuffer();
+        for (int i = 0; i < capacity; i++) {
+            this.keys.put(i, EMPTY);
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,120 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs messages off the thread that received them, keeping the messages of each user in order.
+ * With the PLATFORM execution model, each user is always dispatched to the same single-threaded lane,
+ * so at most one message per lane is handled at a time. With the VIRTUAL execution model, each message
+ * runs on its own virtual thread after the user's previous message, so messages of different users never
+ * wait for each other. Either way, at most maxQueuedMessages messages wait per lane, and the rest are rejected.
+ */
+public class MessageDispatcher {
+
+    private final String name;
+    private final ExecutionModel executionModel;
+    private final int lanes;
+    private final int maxQueuedMessages;
+    private ExecutorService[] dispatchers;
+    private ExecutorService virtualExecutor;
+    private Semaphore queuedMessages;
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> userTails = new ConcurrentHashMap<>();
+
+    private static Logger logger = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    /**
+     * Creates a new instance of MessageDispatcher.
+     * @param name - The name of the dispatcher threads
+     * @param executionModel - The threads messages are handled on
+     * @param lanes - The number of messages from different users handled at the same time (PLATFORM only)
+     * @param maxQueuedMessages - The max number of messages waiting per lane
+     */
+    public MessageDispatcher(String name, ExecutionModel executionModel, int lanes, int maxQueuedMessages) {
+        this.name = name;
+        this.executionModel = executionModel;
+        this.lanes = lanes;
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    public ExecutionModel getExecutionModel() {
+        return executionModel;
+    }
+
+    public void start() {
+        if (this.executionModel == ExecutionModel.VIRTUAL) {
+            this.virtualExecutor = this.executionModel.newExecutor(this.name, 0);
+            this.queuedMessages = new Semaphore(this.lanes * this.maxQueuedMessages);
+            return;
+        }
+        this.dispatchers = new ExecutorService[this.lanes];
+        for (int i = 0; i < this.dispatchers.length; i++) {
+            String threadName = String.format("%s-%d", this.name, i);
+            this.dispatchers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(this.maxQueuedMessages), runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public void stop() {
+        if (this.virtualExecutor != null) {
+            this.virtualExecutor.shutdownNow();
+        }
+        if (this.dispatchers != null) {
+            for (ExecutorService dispatcher : this.dispatchers) {
+                dispatcher.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Queues a message for the specified user, to be handled after the user's earlier messages.
+     * @param userId - The ID of the user the message is from
+     * @param handler - Handles the message
+     * @return - false if the message was rejected because too many messages are waiting
+     */
+    public boolean dispatch(String userId, Runnable handler) {
+        if (this.executionModel == ExecutionModel.VIRTUAL) {
+            return this.dispatchVirtual(userId, handler);
+        }
+        try {
+            this.dispatchers[Math.floorMod(userId.hashCode(), this.dispatchers.length)].execute(handler);
+            return true;
+        }
+        catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    private boolean dispatchVirtual(String userId, Runnable handler) {
+        if (! this.queuedMessages.tryAcquire()) {
+            return false;
+        }
+        Runnable task = () -> {
+            try {
+                handler.run();
+            }
+            catch (RuntimeException ex) {
+                logger.warn(String.format("Error handling message from %s", userId), ex);
+            }
+            finally {
+                this.queuedMessages.release();
+            }
+        };
+        try {
+            // chain the message after the user's previous message; the chain is dropped once it has run
+            CompletableFuture<Void> tail = this.userTails.compute(userId, (key, previous) ->
+                    (previous == null ? CompletableFuture.runAsync(task, this.virtualExecutor) : previous.thenRunAsync(task, this.virtualExecutor)));
+            tail.whenComplete((result, ex) -> this.userTails.remove(userId, tail));
+            return true;
+        }
+        catch (RejectedExecutionException ex) {
+            this.queuedMessages.release();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A staged, reactive alternative to handling each message start to finish on a dispatcher thread.
+ * Each stage is a Flow subscriber with a bounded buffer that requests one item at a time, and hands the item
+ * to the next stage's buffer when done. When a stage falls behind, its buffer fills, the stage before it
+ * stops requesting, and new messages are refused at the front of the pipeline instead of tying up threads,
+ * so load spikes show up as queue lengths and refused messages in the metrics.
+ * The pipeline is split into partitions by key. The items of a partition go through each stage in order, and
+ * each key has at most one item in the pipeline at a time, so the items of a key are handled one after another.
+ */
+public class MessagePipeline<T> {
+
+    private final static long HANDOFF_WAIT_MILLIS = 1000;
+
+    private final String name;
+    private final ExecutionModel executionModel;
+    private final int partitions;
+    private final int bufferSize;
+    private final Function<T, String> keyFunction;
+    private final BiConsumer<T, Exception> failureHandler;
+    private final List<Stage<T>> stages = new ArrayList<>();
+    private final Map<String, Deque<T>> pendingItems = new HashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private ExecutorService executor;
+    private List<List<SubmissionPublisher<T>>> publishers;
+
+    private static Logger logger = LoggerFactory.getLogger(MessagePipeline.class);
+
+    /**
+     * Creates a new instance of MessagePipeline. Stages are added with addStage before the pipeline is started.
+     * @param name - The name of the pipeline threads
+     * @param executionModel - The threads stages run on
+     * @param partitions - The number of items handled by each stage at the same time
+     * @param bufferSize - The max number of items waiting for each stage in each partition
+     * @param keyFunction - Gets the key of an item (such as the user ID); items with the same key are handled in order
+     * @param failureHandler - Called with an item that failed in a stage or was refused because the pipeline is full
+     */
+    public MessagePipeline(String name, ExecutionModel executionModel, int partitions, int bufferSize, Function<T, String> keyFunction, BiConsumer<T, Exception> failureHandler) {
+        this.name = name;
+        this.executionModel = executionModel;
+        this.partitions = partitions;
+        this.bufferSize = bufferSize;
+        this.keyFunction = keyFunction;
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Adds a stage to the end of the pipeline.
+     * @param stageName - The name of the stage, used in the metrics
+     * @param handler - Handles an item; the item moves to the next stage when it returns
+     * @return - This pipeline
+     */
+    public MessagePipeline<T> addStage(String stageName, StageHandler<T> handler) {
+        this.stages.add(new Stage<>(stageName, handler));
+        return this;
+    }
+
+    public void start() {
+        this.executor = this.executionModel.newExecutor(this.name, this.partitions * this.stages.size());
+        this.publishers = new ArrayList<>();
+        for (int p = 0; p < this.partitions; p++) {
+            List<SubmissionPublisher<T>> partition = new ArrayList<>();
+            for (int s = 0; s < this.stages.size(); s++) {
+                partition.add(new SubmissionPublisher<>(this.executor, this.bufferSize));
+            }
+            for (int s = 0; s < this.stages.size(); s++) {
+                SubmissionPublisher<T> next = (s + 1 < partition.size() ? partition.get(s + 1) : null);
+                partition.get(s).subscribe(new StageSubscriber(this.stages.get(s), next));
+            }
+            this.publishers.add(partition);
+        }
+    }
+
+    public void stop() {
+        if (this.publishers != null) {
+            for (List<SubmissionPublisher<T>> partition : this.publishers) {
+                for (SubmissionPublisher<T> publisher : partition) {
+                    publisher.close();
+                }
+            }
+        }
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Submits an item to the pipeline without waiting. If an item with the same key is in the pipeline,
+     * the item waits until it is done.
+     * @param item - The item
+     * @return - false if the item was refused because the pipeline or the key's queue is full
+     */
+    public boolean submit(T item) {
+        String key = this.keyFunction.apply(item);
+        synchronized (this.pendingItems) {
+            Deque<T> pending = this.pendingItems.get(key);
+            if (pending != null) {
+                if (pending.size() >= this.bufferSize) {
+                    this.refused.incrementAndGet();
+                    return false;
+                }
+                pending.add(item);
+                this.submitted.incrementAndGet();
+                return true;
+            }
+            this.pendingItems.put(key, new ArrayDeque<>());
+        }
+        if (! this.offer(key, item)) {
+            this.refused.incrementAndGet();
+            this.complete(key);
+            return false;
+        }
+        this.submitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets the pipeline metrics.
+     * @return - The number of items submitted and refused, and for each stage the number of items waiting,
+     * handled and failed, and the mean time taken to handle an item
+     */
+    public Map<String,Object> getMetrics() {
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("submitted", this.submitted.get());
+        metrics.put("refused", this.refused.get());
+        for (int s = 0; s < this.stages.size(); s++) {
+            Stage<T> stage = this.stages.get(s);
+            long queued = 0;
+            if (this.publishers != null) {
+                for (List<SubmissionPublisher<T>> partition : this.publishers) {
+                    queued += partition.get(s).estimateMaximumLag();
+                }
+            }
+            long handled = stage.handled.get();
+            Map<String,Object> stageMetrics = new LinkedHashMap<>();
+            stageMetrics.put("queued", queued);
+            stageMetrics.put("handled", handled);
+            stageMetrics.put("failed", stage.failed.get());
+            stageMetrics.put("meanMillis", (handled == 0 ? 0 : stage.totalMillis.get() / handled));
+            metrics.put(stage.name, stageMetrics);
+        }
+        return metrics;
+    }
+
+    private boolean offer(String key, T item) {
+        SubmissionPublisher<T> first = this.publishers.get(Math.floorMod(key.hashCode(), this.partitions)).get(0);
+        return (first.offer(item, (subscriber, dropped) -> false) >= 0);
+    }
+
+    /**
+     * Called when an item leaves the pipeline; moves the next item with the same key into the pipeline.
+     */
+    private void complete(String key) {
+        while (true) {
+            T next;
+            synchronized (this.pendingItems) {
+                Deque<T> pending = this.pendingItems.get(key);
+                next = (pending == null ? null : pending.poll());
+                if (next == null) {
+                    this.pendingItems.remove(key);
+                    return;
+                }
+            }
+            if (this.offer(key, next)) {
+                return;
+            }
+            this.refused.incrementAndGet();
+            this.notifyFailure(next, null);
+        }
+    }
+
+    private void notifyFailure(T item, Exception ex) {
+        try {
+            this.failureHandler.accept(item, ex);
+        }
+        catch (RuntimeException failure) {
+            // an exception must not escape a subscriber, or the stage stops
+            logger.warn("Error handling failed message", failure);
+        }
+    }
+
+    /**
+     * Handles an item in a stage.
+     */
+    public interface StageHandler<T> {
+        void handle(T item) throws Exception;
+    }
+
+    private static class Stage<T> {
+
+        private final String name;
+        private final StageHandler<T> handler;
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+
+        Stage(String name, StageHandler<T> handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+
+    private class StageSubscriber implements Flow.Subscriber<T> {
+
+        private final Stage<T> stage;
+        private final SubmissionPublisher<T> next;
+        private Flow.Subscription subscription;
+
+        StageSubscriber(Stage<T> stage, SubmissionPublisher<T> next) {
+            this.stage = stage;
+            this.next = next;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(T item) {
+            String key = keyFunction.apply(item);
+            long start = System.currentTimeMillis();
+            try {
+                this.stage.handler.handle(item);
+                this.stage.handled.incrementAndGet();
+                this.stage.totalMillis.addAndGet(System.currentTimeMillis() - start);
+                if (this.next == null) {
+                    complete(key);
+                }
+                // waits for room in the next stage, which holds back this stage's requests
+                else if (this.next.offer(item, HANDOFF_WAIT_MILLIS, TimeUnit.MILLISECONDS, (subscriber, dropped) -> false) < 0) {
+                    logger.warn(String.format("Stage after %s is full; dropping message", this.stage.name));
+                    this.fail(key, item, null);
+                }
+            }
+            catch (Exception ex) {
+                this.stage.failed.incrementAndGet();
+                logger.error(String.format("Error in stage %s", this.stage.name), ex);
+                this.fail(key, item, ex);
+            }
+            this.subscription.request(1);
+        }
+
+        private void fail(String key, T item, Exception ex) {
+            notifyFailure(item, ex);
+            complete(key);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            logger.error(String.format("Stage %s stopped", this.stage.name), throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client-side rate limiter and quota scheduler for Spoonacular calls.
+ * Requests take tokens from a token bucket; when no token is available they wait in a priority queue,
+ * so interactive requests are always granted before prefetch traffic. The remaining daily quota
+ * reported in response headers is tracked, and prefetch requests are refused once the remaining
+ * quota falls to the reserve kept for interactive requests.
+ * Waiting requests park on a lock condition rather than a monitor, so virtual threads waiting for a token
+ * release their carrier threads.
+ */
+public class QuotaScheduler {
+
+    public enum Priority { INTERACTIVE, PREFETCH }
+
+    private final double capacity;
+    private final double tokensPerMilli;
+    private final double interactiveReserve;
+    private double tokens;
+    private long lastRefill;
+    private long sequence;
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private long quotaLimit = -1;
+    private long quotaRemaining = -1;
+    private long quotaResetAt;
+    private long granted;
+    private long timedOut;
+    private long refused;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = this.lock.newCondition();
+
+    private static Logger logger = LoggerFactory.getLogger(QuotaScheduler.class);
+
+    /**
+     * Creates a new instance of QuotaScheduler.
+     * @param requestsPerSecond - The sustained request rate
+     * @param burst - The max number of requests that can be made at once
+     * @param interactiveReserve - The fraction of the daily quota reserved for interactive requests
+     */
+    public QuotaScheduler(double requestsPerSecond, int burst, double interactiveReserve) {
+        this.capacity = burst;
+        this.tokensPerMilli = requestsPerSecond / 1000.0;
+        this.interactiveReserve = interactiveReserve;
+        this.tokens = burst;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Waits for permission to make a request.
+     * @param priority - The priority of the request
+     * @param timeoutMillis - The max time to wait
+     * @return - true if the request may be made, false if the quota is exhausted or the wait timed out
+     */
+    public boolean acquire(Priority priority, long timeoutMillis) {
+        this.lock.lock();
+        try {
+            return this.acquireLocked(priority, timeoutMillis);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean acquireLocked(Priority priority, long timeoutMillis) {
+        if (! this.isWithinQuota(priority)) {
+            this.refused++;
+            return false;
+        }
+        Waiter waiter = new Waiter(priority, this.sequence++);
+        this.waiters.add(waiter);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (true) {
+                this.refill();
+                if (this.waiters.peek() == waiter && this.tokens >= 1) {
+                    this.waiters.poll();
+                    this.tokens -= 1;
+                    this.granted++;
+                    this.changed.signalAll();
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    this.waiters.remove(waiter);
+                    this.timedOut++;
+                    this.changed.signalAll();
+                    return false;
+                }
+                long wait = remaining;
+                if (this.waiters.peek() == waiter) {
+                    wait = Math.min(remaining, (long)Math.ceil((1 - this.tokens) / this.tokensPerMilli));
+                }
+                this.changed.await(Math.max(1, wait), TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException ex) {
+            this.waiters.remove(waiter);
+            this.changed.signalAll();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Takes a token only if one is available immediately and no request is waiting.
+     * @param priority - The priority of the request
+     * @return - true if the request may be made
+     */
+    public boolean tryAcquire(Priority priority) {
+        this.lock.lock();
+        try {
+            this.refill();
+            if (this.waiters.isEmpty() && this.tokens >= 1 && this.isWithinQuota(priority)) {
+                this.tokens -= 1;
+                this.granted++;
+                return true;
+            }
+            return false;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Records the quota reported by Spoonacular/Mashape response headers.
+     * @param limit - The value of the quota limit header, or null if not present
+     * @param remaining - The value of the quota remaining header, or null if not present
+     */
+    public void recordQuota(String limit, String remaining) {
+        this.lock.lock();
+        try {
+            if (limit != null) {
+                this.quotaLimit = Long.parseLong(limit.trim());
+            }
+            if (remaining != null) {
+                this.quotaRemaining = Long.parseLong(remaining.trim());
+                this.quotaResetAt = nextUtcMidnight();
+                if (this.quotaRemaining <= 0) {
+                    logger.warn("Spoonacular quota exhausted.");
+                }
+            }
+        }
+        catch (NumberFormatException ex) {
+            logger.debug(String.format("Ignoring invalid quota headers %s/%s", limit, remaining));
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the daily quota is exhausted for the specified priority.
+     * @param priority - The priority of the request
+     * @return - true if requests of this priority are currently refused
+     */
+    public boolean isExhausted(Priority priority) {
+        this.lock.lock();
+        try {
+            return ! this.isWithinQuota(priority);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    public Map<String,Object> getMetrics() {
+        this.lock.lock();
+        try {
+            this.refill();
+            Map<String,Object> metrics = new LinkedHashMap<>();
+            metrics.put("tokens", this.tokens);
+            metrics.put("waiting", this.waiters.size());
+            metrics.put("granted", this.granted);
+            metrics.put("timedOut", this.timedOut);
+            metrics.put("refused", this.refused);
+            metrics.put("quotaLimit", this.quotaLimit);
+            metrics.put("quotaRemaining", this.quotaRemaining);
+            return metrics;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean isWithinQuota(Priority priority) {
+        if (this.quotaRemaining < 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() >= this.quotaResetAt) {
+            // the daily quota has been reset; wait for the next response to report it again
+            this.quotaRemaining = -1;
+            return true;
+        }
+        if (priority == Priority.PREFETCH && this.quotaLimit > 0) {
+            return this.quotaRemaining > this.quotaLimit * this.interactiveReserve;
+        }
+        return this.quotaRemaining > 0;
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerMilli);
+        this.lastRefill = now;
+    }
+
+    static long nextUtcMidnight() {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+
+        private final Priority priority;
+        private final long sequence;
+
+        Waiter(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int compare = this.priority.compareTo(other.priority);
+            return (compare != 0 ? compare : Long.compare(this.sequence, other.sequence));
+        }
+    }
+}
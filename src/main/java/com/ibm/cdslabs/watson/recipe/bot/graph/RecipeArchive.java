@@ -0,0 +1,522 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The cold tier of the recipe graph: a local archive of old user selections and recipe details that have been
+ * moved out of Graph (see GraphRecipeStore.archiveActivity).
+ * The archive is a directory of immutable segments, one per archiving batch. Each segment is a columnar file of
+ * edges, sorted by user (a string dictionary, then one array per column, then the run of edges of each user),
+ * plus a file of individually deflated recipe details. The edge files are memory-mapped, and only the run of
+ * each user and the location of each detail are held on the heap; edges are decoded from the mapped columns
+ * when they are read. Segments written by other processes sharing the directory are picked up periodically
+ * by a background rescan once the archive is started.
+ * Edges file layout: magic, version, dictionary size n, n + 1 string offsets, the UTF-8 strings, edge count,
+ * the 7 string columns (dictionary indexes, -1 for null), the count, score and updated columns, the user runs
+ * (user, first edge, edge count) and the details (name, offset and length in the details file).
+ */
+public class RecipeArchive {
+
+    private final static int MAGIC = 0x52415243; // RARC
+    private final static int VERSION = 2;
+    private final static int STRING_COLUMNS = 7;
+    private final static long RESCAN_MILLIS = 60 * 1000;
+    private final static String EDGES_SUFFIX = ".edges";
+    private final static String DETAILS_SUFFIX = ".details";
+
+    private final File directory;
+    private final Set<String> scannedSegments = new HashSet<>();
+    // oldest first; the runs of each user are (segment index, first edge, edge count) triples, oldest first
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, int[]> userRuns = new HashMap<>();
+    private final Map<String, DetailRef> details = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService rescanner;
+    private long lastSegmentMillis;
+
+    private static Logger logger = LoggerFactory.getLogger(RecipeArchive.class);
+
+    /**
+     * Opens the archive in the specified directory, loading its segments.
+     * @param directory - The directory of the archive, created if it does not exist
+     * @throws IOException
+     */
+    public RecipeArchive(File directory) throws IOException {
+        this.directory = directory;
+        if (! directory.isDirectory() && ! directory.mkdirs()) {
+            throw new IOException(String.format("Could not create archive directory %s", directory));
+        }
+        this.rescanner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "archive-rescan");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scan();
+    }
+
+    /**
+     * Starts picking up segments written by other processes sharing the directory.
+     */
+    public void start() {
+        this.rescanner.scheduleWithFixedDelay(() -> {
+            try {
+                this.scan();
+            }
+            catch (Exception ex) {
+                logger.warn("Error scanning the archive", ex);
+            }
+        }, RESCAN_MILLIS, RESCAN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        this.rescanner.shutdownNow();
+    }
+
+    /**
+     * Writes a segment with the specified edges and recipe details.
+     * @param edges - The edges to archive
+     * @param details - The details to archive, keyed by vertex name
+     * @throws IOException
+     */
+    public void write(List<ArchivedEdge> edges, Map<String, String> details) throws IOException {
+        String segment;
+        synchronized (this) {
+            // segments are named in the order they are written, so later copies of an edge are loaded last
+            this.lastSegmentMillis = Math.max(System.currentTimeMillis(), this.lastSegmentMillis + 1);
+            segment = String.format("segment-%013d-%s", this.lastSegmentMillis, UUID.randomUUID().toString().substring(0, 8));
+        }
+        File detailsFile = new File(this.directory, segment + DETAILS_SUFFIX);
+        File edgesFile = new File(this.directory, segment + EDGES_SUFFIX);
+        List<String> detailNames = new ArrayList<>(details.keySet());
+        long[] offsets = new long[detailNames.size()];
+        int[] lengths = new int[detailNames.size()];
+        File tmp = new File(this.directory, segment + DETAILS_SUFFIX + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            long offset = 0;
+            for (int i = 0; i < detailNames.size(); i++) {
+                byte[] compressed = deflate(details.get(detailNames.get(i)).getBytes(StandardCharsets.UTF_8));
+                out.write(compressed);
+                offsets[i] = offset;
+                lengths[i] = compressed.length;
+                offset += compressed.length;
+            }
+        }
+        Files.move(tmp.toPath(), detailsFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        // the edges file is written last; a segment without one is incomplete and ignored
+        List<ArchivedEdge> sorted = new ArrayList<>(edges);
+        sorted.sort(Comparator.comparing(ArchivedEdge::getUserId, Comparator.nullsFirst(Comparator.naturalOrder())));
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        int[][] stringColumns = new int[STRING_COLUMNS][sorted.size()];
+        List<int[]> runs = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            ArchivedEdge edge = sorted.get(i);
+            String[] values = {edge.edgeId, edge.label, edge.userVertexId, edge.userId, edge.inLabel, edge.inName, edge.inTitle};
+            for (int c = 0; c < values.length; c++) {
+                stringColumns[c][i] = (values[c] == null ? -1 : dictionary.computeIfAbsent(values[c], key -> dictionary.size()));
+            }
+            int user = stringColumns[3][i];
+            if (user >= 0 && (runs.isEmpty() || runs.get(runs.size() - 1)[0] != user)) {
+                runs.add(new int[]{user, i, 0});
+            }
+            if (user >= 0) {
+                runs.get(runs.size() - 1)[2]++;
+            }
+        }
+        int[] detailColumn = new int[detailNames.size()];
+        for (int i = 0; i < detailNames.size(); i++) {
+            detailColumn[i] = dictionary.computeIfAbsent(detailNames.get(i), key -> dictionary.size());
+        }
+        tmp = new File(this.directory, segment + EDGES_SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            List<byte[]> strings = new ArrayList<>(dictionary.size());
+            for (String value : dictionary.keySet()) {
+                strings.add(value.getBytes(StandardCharsets.UTF_8));
+            }
+            out.writeInt(strings.size());
+            int stringOffset = 0;
+            out.writeInt(stringOffset);
+            for (byte[] string : strings) {
+                stringOffset += string.length;
+                out.writeInt(stringOffset);
+            }
+            for (byte[] string : strings) {
+                out.write(string);
+            }
+            out.writeInt(sorted.size());
+            for (int[] column : stringColumns) {
+                for (int value : column) {
+                    out.writeInt(value);
+                }
+            }
+            for (ArchivedEdge edge : sorted) {
+                out.writeInt(edge.count);
+            }
+            for (ArchivedEdge edge : sorted) {
+                out.writeDouble(edge.score);
+            }
+            for (ArchivedEdge edge : sorted) {
+                out.writeLong(edge.updated);
+            }
+            out.writeInt(runs.size());
+            for (int[] run : runs) {
+                out.writeInt(run[0]);
+                out.writeInt(run[1]);
+                out.writeInt(run[2]);
+            }
+            out.writeInt(detailNames.size());
+            for (int value : detailColumn) {
+                out.writeInt(value);
+            }
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            for (int length : lengths) {
+                out.writeInt(length);
+            }
+        }
+        Files.move(tmp.toPath(), edgesFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        this.scan();
+        logger.debug(String.format("Archived %d edges and %d details in %s", edges.size(), details.size(), segment));
+    }
+
+    /**
+     * Gets the archived edges out of the specified user.
+     * @param userId - The ID of the user (the name of the user vertex)
+     * @return - The edges
+     */
+    public List<ArchivedEdge> getEdges(String userId) {
+        this.lock.readLock().lock();
+        try {
+            return this.readEdges(this.userRuns.get(userId));
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Calls the consumer with every archived edge, one user at a time, without holding them all on the heap.
+     * @param consumer - Called with each edge
+     */
+    public void forEachEdge(Consumer<ArchivedEdge> consumer) {
+        List<String> userIds;
+        this.lock.readLock().lock();
+        try {
+            userIds = new ArrayList<>(this.userRuns.keySet());
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+        for (String userId : userIds) {
+            this.getEdges(userId).forEach(consumer);
+        }
+    }
+
+    /**
+     * Gets the archived detail of the specified vertex.
+     * @param name - The name of the vertex
+     * @return - The detail, or null if it is not archived
+     * @throws IOException
+     */
+    public String getDetail(String name) throws IOException {
+        DetailRef ref;
+        this.lock.readLock().lock();
+        try {
+            ref = this.details.get(name);
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+        if (ref == null) {
+            return null;
+        }
+        byte[] compressed = new byte[ref.length];
+        try (RandomAccessFile file = new RandomAccessFile(ref.file, "r")) {
+            file.seek(ref.offset);
+            file.readFully(compressed);
+        }
+        return new String(inflate(compressed), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the edges of the specified runs. An edge is archived again after an interrupted batch, or after
+     * it was selected while it was archived, so only the copy in the latest segment is returned.
+     * Must be called holding the read lock.
+     */
+    private List<ArchivedEdge> readEdges(int[] runs) {
+        List<ArchivedEdge> userEdges = new ArrayList<>();
+        if (runs == null) {
+            return userEdges;
+        }
+        Set<String> edgeIds = new HashSet<>();
+        for (int r = runs.length - 3; r >= 0; r -= 3) {
+            Segment segment = this.segments.get(runs[r]);
+            for (int i = runs[r + 1]; i < runs[r + 1] + runs[r + 2]; i++) {
+                ArchivedEdge edge = segment.readEdge(i);
+                if (edgeIds.add(edge.edgeId)) {
+                    userEdges.add(edge);
+                }
+            }
+        }
+        return userEdges;
+    }
+
+    /**
+     * Loads the segments that have not been loaded yet. Segments are mapped and parsed before the lock is taken,
+     * and only added to the index under it. Called when the archive is opened, after a write, and by the rescanner.
+     */
+    private synchronized void scan() throws IOException {
+        String[] names = this.directory.list((dir, name) -> name.endsWith(EDGES_SUFFIX));
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            String segmentName = name.substring(0, name.length() - EDGES_SUFFIX.length());
+            if (this.scannedSegments.add(segmentName)) {
+                Segment segment;
+                try {
+                    segment = new Segment(new File(this.directory, name), new File(this.directory, segmentName + DETAILS_SUFFIX));
+                }
+                catch (IOException | RuntimeException ex) {
+                    // not retried on the next scan, as segments are immutable
+                    logger.warn(String.format("Skipping invalid archive segment %s", segmentName), ex);
+                    continue;
+                }
+                this.add(segment);
+            }
+        }
+    }
+
+    private void add(Segment segment) {
+        this.lock.writeLock().lock();
+        try {
+            int index = this.segments.size();
+            this.segments.add(segment);
+            for (int r = 0; r < segment.runCount; r++) {
+                String userId = segment.getRunUserId(r);
+                int[] runs = this.userRuns.get(userId);
+                int length = (runs == null ? 0 : runs.length);
+                runs = (runs == null ? new int[3] : Arrays.copyOf(runs, length + 3));
+                runs[length] = index;
+                runs[length + 1] = segment.getRunStart(r);
+                runs[length + 2] = segment.getRunCount(r);
+                this.userRuns.put(userId, runs);
+            }
+            for (int d = 0; d < segment.detailCount; d++) {
+                this.details.put(segment.getDetailName(d), new DetailRef(segment.detailsFile, segment.getDetailOffset(d), segment.getDetailLength(d)));
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+            out.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A memory-mapped edges file; see the class comment for its layout.
+     */
+    private static class Segment {
+
+        private final File detailsFile;
+        private final ByteBuffer buffer;
+        private final int dictionarySize;
+        private final int stringsStart;
+        private final int edgeCount;
+        private final int columnsStart;
+        private final int runCount;
+        private final int runsStart;
+        private final int detailCount;
+        private final int detailsStart;
+
+        Segment(File edgesFile, File detailsFile) throws IOException {
+            this.detailsFile = detailsFile;
+            try (FileChannel channel = FileChannel.open(edgesFile.toPath(), StandardOpenOption.READ)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+                throw new IOException(String.format("Invalid archive segment %s", edgesFile));
+            }
+            this.dictionarySize = this.buffer.getInt(8);
+            this.stringsStart = 12 + 4 * (this.dictionarySize + 1);
+            int edgeCountStart = this.stringsStart + this.buffer.getInt(12 + 4 * this.dictionarySize);
+            this.edgeCount = this.buffer.getInt(edgeCountStart);
+            this.columnsStart = edgeCountStart + 4;
+            int runCountStart = this.columnsStart + this.edgeCount * (4 * STRING_COLUMNS + 4 + 8 + 8);
+            this.runCount = this.buffer.getInt(runCountStart);
+            this.runsStart = runCountStart + 4;
+            int detailCountStart = this.runsStart + 12 * this.runCount;
+            this.detailCount = this.buffer.getInt(detailCountStart);
+            this.detailsStart = detailCountStart + 4;
+        }
+
+        ArchivedEdge readEdge(int i) {
+            String[] values = new String[STRING_COLUMNS];
+            for (int c = 0; c < STRING_COLUMNS; c++) {
+                values[c] = this.getString(this.buffer.getInt(this.columnsStart + 4 * (c * this.edgeCount + i)));
+            }
+            int countsStart = this.columnsStart + 4 * STRING_COLUMNS * this.edgeCount;
+            int scoresStart = countsStart + 4 * this.edgeCount;
+            int updatedStart = scoresStart + 8 * this.edgeCount;
+            return new ArchivedEdge(values[0], values[1], values[2], values[3], values[4], values[5], values[6],
+                    this.buffer.getInt(countsStart + 4 * i), this.buffer.getDouble(scoresStart + 8 * i), this.buffer.getLong(updatedStart + 8 * i));
+        }
+
+        String getRunUserId(int r) {
+            return this.getString(this.buffer.getInt(this.runsStart + 12 * r));
+        }
+
+        int getRunStart(int r) {
+            return this.buffer.getInt(this.runsStart + 12 * r + 4);
+        }
+
+        int getRunCount(int r) {
+            return this.buffer.getInt(this.runsStart + 12 * r + 8);
+        }
+
+        String getDetailName(int d) {
+            return this.getString(this.buffer.getInt(this.detailsStart + 4 * d));
+        }
+
+        long getDetailOffset(int d) {
+            return this.buffer.getLong(this.detailsStart + 4 * this.detailCount + 8 * d);
+        }
+
+        int getDetailLength(int d) {
+            return this.buffer.getInt(this.detailsStart + 12 * this.detailCount + 4 * d);
+        }
+
+        private String getString(int index) {
+            if (index < 0) {
+                return null;
+            }
+            int start = this.buffer.getInt(12 + 4 * index);
+            byte[] bytes = new byte[this.buffer.getInt(12 + 4 * (index + 1)) - start];
+            ByteBuffer source = this.buffer.duplicate();
+            source.position(this.stringsStart + start);
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class DetailRef {
+
+        private final File file;
+        private final long offset;
+        private final int length;
+
+        DetailRef(File file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A "selects" edge from a user that was moved to the archive.
+     */
+    public static class ArchivedEdge {
+
+        private final String edgeId;
+        private final String label;
+        private final String userVertexId;
+        private final String userId;
+        private final String inLabel;
+        private final String inName;
+        private final String inTitle;
+        private final int count;
+        private final double score;
+        private final long updated;
+
+        public ArchivedEdge(String edgeId, String label, String userVertexId, String userId, String inLabel, String inName, String inTitle, int count, double score, long updated) {
+            this.edgeId = edgeId;
+            this.label = label;
+            this.userVertexId = userVertexId;
+            this.userId = userId;
+            this.inLabel = inLabel;
+            this.inName = inName;
+            this.inTitle = inTitle;
+            this.count = count;
+            this.score = score;
+            this.updated = updated;
+        }
+
+        public String getEdgeId() {
+            return edgeId;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getUserVertexId() {
+            return userVertexId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getInLabel() {
+            return inLabel;
+        }
+
+        public String getInName() {
+            return inName;
+        }
+
+        public String getInTitle() {
+            return inTitle;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+    }
+}
@@ -1,33 +1,100 @@
 package com.ibm.cdslabs.watson.recipe.bot.graph;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
-import org.apache.wink.json4j.JSONArray;
-import org.apache.wink.json4j.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by markwatson on 11/11/16.
+ *
+ * Each Spoonacular endpoint has its own deadline, circuit breaker and cache of the last good result
+ * per request. When the breaker is open or the deadline is missed the cached (stale) result is served.
+ * With hedging enabled a second request is sent if the first has not completed within the endpoint's
+ * observed p95 latency, and whichever completes first wins.
+ * All requests, including hedged requests, are admitted by a QuotaScheduler that rate limits calls,
+ * schedules interactive requests ahead of prefetch requests and tracks the remaining Mashape quota.
+ * Responses are parsed straight into typed recipe records (see RecipeJson).
  */
 public class RecipeClient {
 
     private String apiKey;
+    private boolean hedgingEnabled;
+    private int resultCount = DEFAULT_RESULT_COUNT;
+    private QuotaScheduler quotaScheduler;
+    private CloseableHttpClient httpClient;
+    private ExecutorService executor;
+    private Endpoint findByIngredientsEndpoint = new Endpoint("findByIngredients", 5000);
+    private Endpoint findByCuisineEndpoint = new Endpoint("findByCuisine", 5000);
+    private Endpoint getInfoByIdEndpoint = new Endpoint("getInfoById", 4000);
+    private Endpoint getStepsByIdEndpoint = new Endpoint("getStepsById", 4000);
 
+    private final static int DEFAULT_RESULT_COUNT = 20;
+    private final static int MAX_CONNECTIONS = 50;
     private final static String SCHEME = "https";
     private final static String HOST = "spoonacular-recipe-food-nutrition-v1.p.mashape.com";
+    private final static String QUOTA_LIMIT_HEADER = "X-RateLimit-requests-Limit";
+    private final static String QUOTA_REMAINING_HEADER = "X-RateLimit-requests-Remaining";
+
+    private static Logger logger = LoggerFactory.getLogger(RecipeClient.class);
 
     public RecipeClient(String apiKey) {
+        this(apiKey, false);
+    }
+
+    public RecipeClient(String apiKey, boolean hedgingEnabled) {
+        this(apiKey, hedgingEnabled, new QuotaScheduler(5, 10, 0.1));
+    }
+
+    public RecipeClient(String apiKey, boolean hedgingEnabled, QuotaScheduler quotaScheduler) {
         this.apiKey = apiKey;
+        this.hedgingEnabled = hedgingEnabled;
+        this.quotaScheduler = quotaScheduler;
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        this.httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+        this.executor = ExecutionModel.VIRTUAL.newExecutor("recipe-client", MAX_CONNECTIONS);
+    }
+
+    /**
+     * Sets the threads that Spoonacular requests, including hedged requests, run on. Must be called before
+     * any requests are made.
+     * @param executionModel - The execution model (VIRTUAL by default)
+     */
+    public void setExecutionModel(ExecutionModel executionModel) {
+        ExecutorService previous = this.executor;
+        this.executor = executionModel.newExecutor("recipe-client", MAX_CONNECTIONS);
+        previous.shutdown();
     }
 
-    public JSONArray findByIngredients(String ingredients) throws Exception {
+    /**
+     * Sets the number of recipes requested per search. The results are stored in Graph and paged through
+     * locally, so a larger count saves Spoonacular calls when users ask for more recipes.
+     * @param resultCount - The number of recipes requested by findByIngredients and findByCuisine
+     */
+    public void setResultCount(int resultCount) {
+        this.resultCount = resultCount;
+    }
+
+    public List<RecipeSummary> findByIngredients(String ingredients) throws Exception {
+        return this.findByIngredients(ingredients, QuotaScheduler.Priority.INTERACTIVE);
+    }
+
+    public List<RecipeSummary> findByIngredients(String ingredients, QuotaScheduler.Priority priority) throws Exception {
         URI uri = new URIBuilder()
                 .setScheme(SCHEME)
                 .setHost(HOST)
@@ -35,113 +102,286 @@ public class RecipeClient {
                 .addParameter("fillIngredients","false")
                 .addParameter("ingredients",ingredients)
                 .addParameter("limitLicense","false")
-                .addParameter("number","5")
+                .addParameter("number",String.valueOf(this.resultCount))
                 .addParameter("ranking","1")
                 .build();
-        HttpGet httpGet = new HttpGet(uri);
-        httpGet.setHeader("X-Mashape-Key", this.apiKey);
-        httpGet.setHeader("Accept", "application/json");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse httpResponse = null;
-        try {
-            httpResponse = httpclient.execute(httpGet);
-            HttpEntity httpEntity = httpResponse.getEntity();
-            String content = EntityUtils.toString(httpEntity);
-            EntityUtils.consume(httpEntity);
-            return new JSONArray(content);
-        }
-        finally {
-            try {
-                httpResponse.close();
-            }
-            catch (IOException ioe) {
-            }
-        }
+        return this.execute(this.findByIngredientsEndpoint, ingredients, priority, () -> RecipeJson.readSummaries(this.doHttpGet(uri, this.findByIngredientsEndpoint)));
+    }
+
+    public List<RecipeSummary> findByCuisine(String cuisine) throws Exception {
+        return this.findByCuisine(cuisine, QuotaScheduler.Priority.INTERACTIVE);
     }
 
-    public JSONArray findByCuisine(String cuisine) throws Exception {
+    public List<RecipeSummary> findByCuisine(String cuisine, QuotaScheduler.Priority priority) throws Exception {
         URI uri = new URIBuilder()
                 .setScheme(SCHEME)
                 .setHost(HOST)
                 .setPath("/recipes/search")
-                .addParameter("number","5")
+                .addParameter("number",String.valueOf(this.resultCount))
                 .addParameter("query"," ")
                 .addParameter("cuisine",cuisine)
                 .build();
-        HttpGet httpGet = new HttpGet(uri);
-        httpGet.setHeader("X-Mashape-Key", this.apiKey);
-        httpGet.setHeader("Accept", "application/json");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse httpResponse = null;
-        try {
-            httpResponse = httpclient.execute(httpGet);
-            HttpEntity httpEntity = httpResponse.getEntity();
-            String content = EntityUtils.toString(httpEntity);
-            EntityUtils.consume(httpEntity);
-            return new JSONObject(content).getJSONArray("results");
-        }
-        finally {
-            try {
-                httpResponse.close();
-            }
-            catch (IOException ioe) {
-            }
-        }
+        return this.execute(this.findByCuisineEndpoint, cuisine, priority, () -> RecipeJson.readSearchResults(this.doHttpGet(uri, this.findByCuisineEndpoint)));
+    }
+
+    public RecipeDetail getInfoById(String id) throws Exception {
+        return this.getInfoById(id, QuotaScheduler.Priority.INTERACTIVE);
     }
 
-    public JSONObject getInfoById(String id) throws Exception {
+    public RecipeDetail getInfoById(String id, QuotaScheduler.Priority priority) throws Exception {
         URI uri = new URIBuilder()
                 .setScheme(SCHEME)
                 .setHost(HOST)
                 .setPath("/recipes/" + id + "/information")
                 .addParameter("includeNutrition","false")
                 .build();
-        HttpGet httpGet = new HttpGet(uri);
-        httpGet.setHeader("X-Mashape-Key", this.apiKey);
-        httpGet.setHeader("Accept", "application/json");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        CloseableHttpResponse httpResponse = null;
-        try {
-            httpResponse = httpclient.execute(httpGet);
-            HttpEntity httpEntity = httpResponse.getEntity();
-            String content = EntityUtils.toString(httpEntity);
-            EntityUtils.consume(httpEntity);
-            return new JSONObject(content);
-        }
-        finally {
-            try {
-                httpResponse.close();
-            }
-            catch (IOException ioe) {
-            }
-        }
+        return this.execute(this.getInfoByIdEndpoint, id, priority, () -> RecipeJson.readDetail(this.doHttpGet(uri, this.getInfoByIdEndpoint)));
     }
 
-    public JSONArray getStepsById(String id) throws Exception {
+    public List<RecipeStep> getStepsById(String id) throws Exception {
+        return this.getStepsById(id, QuotaScheduler.Priority.INTERACTIVE);
+    }
+
+    public List<RecipeStep> getStepsById(String id, QuotaScheduler.Priority priority) throws Exception {
         URI uri = new URIBuilder()
                 .setScheme(SCHEME)
                 .setHost(HOST)
                 .setPath("/recipes/" + id + "/analyzedInstructions")
                 .addParameter("stepBreakdown","true")
                 .build();
+        return this.execute(this.getStepsByIdEndpoint, id, priority, () -> RecipeJson.readSteps(this.doHttpGet(uri, this.getStepsByIdEndpoint)));
+    }
+
+    /**
+     * Returns true if the Spoonacular quota is exhausted for requests of the specified priority,
+     * in which case callers should serve results from Graph instead.
+     * @param priority - The priority of the request
+     * @return - true if requests of this priority are currently refused
+     */
+    public boolean isQuotaExhausted(QuotaScheduler.Priority priority) {
+        return this.quotaScheduler.isExhausted(priority);
+    }
+
+    /**
+     * Gets the rate limiter and quota metrics.
+     * @return - The quota scheduler metrics
+     */
+    public Map<String,Object> getQuotaMetrics() {
+        return this.quotaScheduler.getMetrics();
+    }
+
+    /**
+     * Gets the resilience metrics for each endpoint.
+     * @return - A map of endpoint name to metrics (state, calls, failures, timeouts, hedged, staleServed, rejected, p95Millis)
+     */
+    public Map<String,Map<String,Object>> getMetrics() {
+        Map<String,Map<String,Object>> metrics = new LinkedHashMap<>();
+        for (Endpoint endpoint : new Endpoint[]{this.findByIngredientsEndpoint, this.findByCuisineEndpoint, this.getInfoByIdEndpoint, this.getStepsByIdEndpoint}) {
+            metrics.put(endpoint.name, endpoint.getMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * Calls the specified endpoint with a deadline, circuit breaker, stale-result fallback and optional hedging.
+     * @param endpoint - The endpoint being called
+     * @param key - The cache key for the request (the ingredients, cuisine or recipe ID)
+     * @param priority - The priority used to schedule the request against the rate limit and quota
+     * @param request - The request to make
+     * @return - The fresh result, or the last good result for the key if the request could not be made
+     * @throws Exception
+     */
+    private <T> T execute(Endpoint endpoint, String key, QuotaScheduler.Priority priority, Callable<T> request) throws Exception {
+        // timed as a span of the current request trace, including waits for the rate limit and hedged requests
+        return RequestTrace.span(endpoint.spanName, () -> this.executeResiliently(endpoint, key, priority, request));
+    }
+
+    private <T> T executeResiliently(Endpoint endpoint, String key, QuotaScheduler.Priority priority, Callable<T> request) throws Exception {
+        endpoint.calls.incrementAndGet();
+        if (! endpoint.circuitBreaker.allowRequest()) {
+            endpoint.rejected.incrementAndGet();
+            return this.serveStale(endpoint, key, new RecipeClientException(String.format("Circuit open for %s", endpoint.name)));
+        }
+        // set once the outcome of the request is recorded; otherwise (the quota is refused, or the calling thread
+        // is interrupted while waiting) a half-open trial is abandoned in finally, so the breaker can't stay half-open
+        boolean recorded = false;
+        List<Future<T>> futures = new ArrayList<>(2);
+        try {
+            if (! this.quotaScheduler.acquire(priority, endpoint.deadlineMillis)) {
+                endpoint.rejected.incrementAndGet();
+                return this.serveStale(endpoint, key, new RecipeClientException(String.format("Rate limit or quota exceeded for %s", endpoint.name)));
+            }
+            long start = System.currentTimeMillis();
+            CompletionService<T> completionService = new ExecutorCompletionService<>(this.executor);
+            futures.add(completionService.submit(request));
+            Future<T> completed = null;
+            long hedgeDelay = endpoint.getP95Millis();
+            if (this.hedgingEnabled && hedgeDelay > 0 && hedgeDelay < endpoint.deadlineMillis) {
+                completed = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                if (completed == null && this.quotaScheduler.tryAcquire(priority)) {
+                    logger.debug(String.format("Hedging %s request for %s after %d ms", endpoint.name, key, hedgeDelay));
+                    endpoint.hedged.incrementAndGet();
+                    futures.add(completionService.submit(request));
+                }
+            }
+            int pending = futures.size();
+            Exception failure = null;
+            while (pending > 0) {
+                if (completed == null) {
+                    long remaining = endpoint.deadlineMillis - (System.currentTimeMillis() - start);
+                    completed = (remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null);
+                    if (completed == null) {
+                        endpoint.timeouts.incrementAndGet();
+                        endpoint.circuitBreaker.recordFailure();
+                        recorded = true;
+                        return this.serveStale(endpoint, key, new RecipeClientException(String.format("%s timed out after %d ms", endpoint.name, endpoint.deadlineMillis)));
+                    }
+                }
+                pending--;
+                try {
+                    T result = completed.get();
+                    endpoint.recordLatency(System.currentTimeMillis() - start);
+                    endpoint.circuitBreaker.recordSuccess();
+                    recorded = true;
+                    endpoint.putStale(key, result);
+                    return result;
+                }
+                catch (ExecutionException ex) {
+                    // wait for the hedged request, if any, before giving up
+                    failure = (ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex);
+                    completed = null;
+                }
+            }
+            endpoint.failures.incrementAndGet();
+            endpoint.circuitBreaker.recordFailure();
+            recorded = true;
+            return this.serveStale(endpoint, key, failure);
+        }
+        finally {
+            if (! recorded) {
+                endpoint.circuitBreaker.abandonTrial();
+            }
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private <T> T serveStale(Endpoint endpoint, String key, Exception cause) throws Exception {
+        T stale = endpoint.getStale(key);
+        if (stale != null) {
+            logger.warn(String.format("Serving stale %s result for %s: %s", endpoint.name, key, cause.getMessage()));
+            endpoint.staleServed.incrementAndGet();
+            return stale;
+        }
+        if (cause instanceof RecipeClientException) {
+            throw cause;
+        }
+        throw new RecipeClientException(String.format("%s failed for %s", endpoint.name, key), cause);
+    }
+
+    private String doHttpGet(URI uri, Endpoint endpoint) throws Exception {
         HttpGet httpGet = new HttpGet(uri);
         httpGet.setHeader("X-Mashape-Key", this.apiKey);
         httpGet.setHeader("Accept", "application/json");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
+        httpGet.setConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout((int)endpoint.deadlineMillis)
+                .setConnectTimeout((int)endpoint.deadlineMillis)
+                .setSocketTimeout((int)endpoint.deadlineMillis)
+                .build());
         CloseableHttpResponse httpResponse = null;
         try {
-            httpResponse = httpclient.execute(httpGet);
+            httpResponse = this.httpClient.execute(httpGet);
+            this.quotaScheduler.recordQuota(
+                    httpResponse.containsHeader(QUOTA_LIMIT_HEADER) ? httpResponse.getFirstHeader(QUOTA_LIMIT_HEADER).getValue() : null,
+                    httpResponse.containsHeader(QUOTA_REMAINING_HEADER) ? httpResponse.getFirstHeader(QUOTA_REMAINING_HEADER).getValue() : null
+            );
             HttpEntity httpEntity = httpResponse.getEntity();
             String content = EntityUtils.toString(httpEntity);
             EntityUtils.consume(httpEntity);
-            return new JSONArray(content).getJSONObject(0).getJSONArray("steps");
+            return content;
         }
         finally {
-            try {
-                httpResponse.close();
+            if (httpResponse != null) {
+                try {
+                    httpResponse.close();
+                }
+                catch (IOException ioe) {
+                }
             }
-            catch (IOException ioe) {
+        }
+    }
+
+    /**
+     * Per-endpoint deadline, circuit breaker, latency window, stale-result cache and counters.
+     */
+    private static class Endpoint {
+
+        private final static int LATENCY_WINDOW = 128;
+        private final static int STALE_CACHE_SIZE = 500;
+
+        private final String name;
+        private final String spanName;
+        private final long deadlineMillis;
+        private final CircuitBreaker circuitBreaker = new CircuitBreaker(5, 30000);
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        private int latencyCount;
+        private volatile long p95Millis;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong hedged = new AtomicLong();
+        private final AtomicLong staleServed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final Map<String,Object> staleResults = new LinkedHashMap<String,Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Object> eldest) {
+                return size() > STALE_CACHE_SIZE;
             }
+        };
+
+        Endpoint(String name, long deadlineMillis) {
+            this.name = name;
+            this.spanName = "spoonacular." + name;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        long getP95Millis() {
+            return this.p95Millis;
+        }
+
+        synchronized void recordLatency(long millis) {
+            this.latencies[this.latencyCount % LATENCY_WINDOW] = millis;
+            this.latencyCount++;
+            // recompute the p95 every 16 samples once the window has enough data
+            if (this.latencyCount >= 20 && this.latencyCount % 16 == 0) {
+                long[] window = Arrays.copyOf(this.latencies, Math.min(this.latencyCount, LATENCY_WINDOW));
+                Arrays.sort(window);
+                this.p95Millis = window[(int)Math.ceil(window.length * 0.95) - 1];
+            }
+        }
+
+        synchronized void putStale(String key, Object result) {
+            this.staleResults.put(key, result);
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized <T> T getStale(String key) {
+            return (T)this.staleResults.get(key);
+        }
+
+        Map<String,Object> getMetrics() {
+            Map<String,Object> metrics = new LinkedHashMap<>();
+            metrics.put("state", this.circuitBreaker.getState().toString());
+            metrics.put("opened", this.circuitBreaker.getOpenCount());
+            metrics.put("calls", this.calls.get());
+            metrics.put("failures", this.failures.get());
+            metrics.put("timeouts", this.timeouts.get());
+            metrics.put("hedged", this.hedged.get());
+            metrics.put("staleServed", this.staleServed.get());
+            metrics.put("rejected", this.rejected.get());
+            metrics.put("p95Millis", this.p95Millis);
+            return metrics;
         }
     }
 }
@@ -0,0 +1,18 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+/**
+ * Thrown by RecipeClient when Spoonacular cannot be called (open circuit, missed deadline)
+ * and no stale result is available to serve instead.
+ */
+public class RecipeClientException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public RecipeClientException(String message) {
+        super(message);
+    }
+
+    public RecipeClientException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,57 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The information and steps for a recipe, as returned from Spoonacular.
+ */
+public final class RecipeDetail {
+
+    private final int id;
+    private final String title;
+    private final int readyInMinutes;
+    private final int servings;
+    private final List<RecipeStep> steps;
+
+    public RecipeDetail(int id, String title, int readyInMinutes, int servings) {
+        this(id, title, readyInMinutes, servings, Collections.<RecipeStep>emptyList());
+    }
+
+    public RecipeDetail(int id, String title, int readyInMinutes, int servings, List<RecipeStep> steps) {
+        this.id = id;
+        this.title = title;
+        this.readyInMinutes = readyInMinutes;
+        this.servings = servings;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Returns a copy of this recipe with the specified steps.
+     * @param steps - The steps of the recipe
+     * @return - The recipe with steps
+     */
+    public RecipeDetail withSteps(List<RecipeStep> steps) {
+        return new RecipeDetail(this.id, this.title, this.readyInMinutes, this.servings, steps);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public int getReadyInMinutes() {
+        return readyInMinutes;
+    }
+
+    public int getServings() {
+        return servings;
+    }
+
+    public List<RecipeStep> getSteps() {
+        return steps;
+    }
+}
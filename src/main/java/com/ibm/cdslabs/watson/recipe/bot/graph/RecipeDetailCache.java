@@ -0,0 +1,270 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Two-tier cache of rendered recipe details, keyed by recipe ID.
+ * Hot recipes are kept in a small on-heap LRU. Every cached recipe is also written to a memory-mapped
+ * ring buffer (or a direct buffer when no file is given) that holds the long tail outside the heap;
+ * when the ring wraps, the oldest recipes are overwritten. Details are stored as UTF-8 and decoded
+ * straight from the mapped region when read, without an intermediate byte array.
+ * Record layout: recipe ID (int), vertex ID (long), title length (int), title, detail length (int), detail.
+ */
+public class RecipeDetailCache {
+
+    private final static int RECORD_HEADER_BYTES = 4 + 8 + 4 + 4;
+
+    private final long maxHeapChars;
+    private final ByteBuffer arena;
+    private final LinkedHashMap<Integer, CachedRecipe> heap = new LinkedHashMap<>(64, 0.75f, true);
+    private long heapChars;
+    private final HashMap<Integer, Integer> mappedOffsets = new HashMap<>();
+    private final TreeMap<Integer, Integer> mappedRecipes = new TreeMap<>();
+    private int position;
+    private long heapHits;
+    private long mappedHits;
+    private long misses;
+
+    private static Logger logger = LoggerFactory.getLogger(RecipeDetailCache.class);
+
+    /**
+     * Creates a new instance of RecipeDetailCache.
+     * @param maxHeapChars - The max number of title and detail characters kept in the on-heap tier
+     * @param file - The file to map for the off-heap tier, or null to use a direct (off-heap) buffer
+     * @param capacity - The size of the off-heap tier in bytes
+     * @throws IOException
+     */
+    public RecipeDetailCache(long maxHeapChars, File file, int capacity) throws IOException {
+        this.maxHeapChars = maxHeapChars;
+        if (file == null) {
+            this.arena = ByteBuffer.allocateDirect(capacity);
+        }
+        else {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                this.arena = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+    }
+
+    /**
+     * Gets the cached recipe with the specified ID, promoting it to the on-heap tier.
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @return - The cached recipe, or null if it is not cached
+     */
+    public synchronized CachedRecipe get(String recipeId) {
+        int id = parseRecipeId(recipeId);
+        CachedRecipe recipe = this.heap.get(id);
+        if (recipe != null) {
+            this.heapHits++;
+            return recipe;
+        }
+        Integer offset = this.mappedOffsets.get(id);
+        if (offset == null) {
+            this.misses++;
+            return null;
+        }
+        this.mappedHits++;
+        ByteBuffer record = this.arena.duplicate();
+        record.position(offset + 4);
+        long vertexId = record.getLong();
+        String title = readString(record);
+        String detail = readString(record);
+        recipe = new CachedRecipe(recipeId, vertexId, title, detail);
+        this.putHeap(id, recipe);
+        return recipe;
+    }
+
+    /**
+     * Returns true if the recipe with the specified ID is cached in either tier, without counting a hit or promoting it.
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @return - true if the recipe is cached
+     */
+    public synchronized boolean contains(String recipeId) {
+        int id = parseRecipeId(recipeId);
+        return (this.heap.containsKey(id) || this.mappedOffsets.containsKey(id));
+    }
+
+    /**
+     * Caches the specified recipe in both tiers.
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @param vertexId - The ID of the recipe vertex in Graph, or null if it has not been added to Graph yet
+     * @param recipeTitle - The title of the recipe
+     * @param recipeDetail - The rendered instructions for the recipe
+     */
+    public synchronized void put(String recipeId, Object vertexId, String recipeTitle, String recipeDetail) {
+        int id = parseRecipeId(recipeId);
+        if (id < 0 || recipeDetail == null) {
+            return;
+        }
+        CachedRecipe recipe = new CachedRecipe(recipeId, (vertexId == null ? 0 : Long.parseLong(vertexId.toString())), (recipeTitle == null ? "" : recipeTitle), recipeDetail);
+        this.putHeap(id, recipe);
+        this.putMapped(id, recipe);
+    }
+
+    /**
+     * Gets the size and hit metrics for each tier.
+     * @return - A map of tier name ("heap", "mapped") to metrics (entries, bytes or chars, hits), plus total misses
+     */
+    public synchronized Map<String,Object> getMetrics() {
+        Map<String,Object> heapMetrics = new LinkedHashMap<>();
+        heapMetrics.put("entries", this.heap.size());
+        heapMetrics.put("chars", this.heapChars);
+        heapMetrics.put("hits", this.heapHits);
+        Map<String,Object> mappedMetrics = new LinkedHashMap<>();
+        mappedMetrics.put("entries", this.mappedOffsets.size());
+        mappedMetrics.put("bytes", this.arena.capacity());
+        mappedMetrics.put("hits", this.mappedHits);
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("heap", heapMetrics);
+        metrics.put("mapped", mappedMetrics);
+        metrics.put("misses", this.misses);
+        return metrics;
+    }
+
+    private void putHeap(int id, CachedRecipe recipe) {
+        CachedRecipe previous = this.heap.put(id, recipe);
+        if (previous != null) {
+            this.heapChars -= previous.getChars();
+        }
+        this.heapChars += recipe.getChars();
+        Iterator<CachedRecipe> eldest = this.heap.values().iterator();
+        while (this.heapChars > this.maxHeapChars && eldest.hasNext()) {
+            CachedRecipe evicted = eldest.next();
+            if (evicted == recipe) {
+                break;
+            }
+            this.heapChars -= evicted.getChars();
+            eldest.remove();
+        }
+    }
+
+    private void putMapped(int id, CachedRecipe recipe) {
+        byte[] title = recipe.getTitle().getBytes(StandardCharsets.UTF_8);
+        byte[] detail = recipe.getDetail().getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER_BYTES + title.length + detail.length;
+        if (length > this.arena.capacity()) {
+            return;
+        }
+        this.removeMapped(id);
+        if (this.position + length > this.arena.capacity()) {
+            // wrap around and overwrite the oldest recipes
+            logger.debug(String.format("Recipe detail cache wrapped with %d recipes cached", this.mappedOffsets.size()));
+            this.position = 0;
+        }
+        this.evictMapped(this.position, this.position + length);
+        ByteBuffer record = this.arena.duplicate();
+        record.position(this.position);
+        record.putInt(id);
+        record.putLong(recipe.vertexId);
+        record.putInt(title.length);
+        record.put(title);
+        record.putInt(detail.length);
+        record.put(detail);
+        this.mappedOffsets.put(id, this.position);
+        this.mappedRecipes.put(this.position, id);
+        this.position += length;
+    }
+
+    /**
+     * Removes the recipes stored in the specified byte range of the ring from the index.
+     */
+    private void evictMapped(int start, int end) {
+        Map.Entry<Integer, Integer> entry = this.mappedRecipes.ceilingEntry(start);
+        while (entry != null && entry.getKey() < end) {
+            this.mappedOffsets.remove(entry.getValue());
+            this.mappedRecipes.remove(entry.getKey());
+            entry = this.mappedRecipes.ceilingEntry(start);
+        }
+        // a record starting before the range may run into it
+        entry = this.mappedRecipes.lowerEntry(start);
+        if (entry != null && this.recordEnd(entry.getKey()) > start) {
+            this.mappedOffsets.remove(entry.getValue());
+            this.mappedRecipes.remove(entry.getKey());
+        }
+    }
+
+    private void removeMapped(int id) {
+        Integer offset = this.mappedOffsets.remove(id);
+        if (offset != null) {
+            this.mappedRecipes.remove(offset);
+        }
+    }
+
+    private int recordEnd(int offset) {
+        int titleLength = this.arena.getInt(offset + 12);
+        int detailLength = this.arena.getInt(offset + 16 + titleLength);
+        return offset + RECORD_HEADER_BYTES + titleLength + detailLength;
+    }
+
+    /**
+     * Decodes a length-prefixed UTF-8 string directly from the mapped region.
+     */
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        ByteBuffer slice = record.slice();
+        slice.limit(length);
+        CharBuffer chars = StandardCharsets.UTF_8.decode(slice);
+        record.position(record.position() + length);
+        return chars.toString();
+    }
+
+    private static int parseRecipeId(String recipeId) {
+        try {
+            return Integer.parseInt(recipeId.trim());
+        }
+        catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * A recipe returned from the cache.
+     */
+    public static class CachedRecipe {
+
+        private final String id;
+        private final long vertexId;
+        private final String title;
+        private final String detail;
+
+        public CachedRecipe(String id, long vertexId, String title, String detail) {
+            this.id = id;
+            this.vertexId = vertexId;
+            this.title = title;
+            this.detail = detail;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return - The ID of the recipe vertex in Graph, or null if it was not known when the recipe was cached
+         */
+        public Object getVertexId() {
+            return (vertexId == 0 ? null : vertexId);
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        long getChars() {
+            return title.length() + detail.length();
+        }
+    }
+}
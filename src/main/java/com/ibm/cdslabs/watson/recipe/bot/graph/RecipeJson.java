@@ -0,0 +1,244 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads Spoonacular responses and stored recipe lists straight into RecipeSummary, RecipeDetail and RecipeStep
+ * with a streaming parser, skipping the fields the bot does not use instead of building a JSON object tree.
+ * A missing list (null, blank or JSON null) reads as an empty list, since recipes stored on a vertex may be missing.
+ */
+public class RecipeJson {
+
+    /**
+     * Reads an array of recipes, such as the findByIngredients response or the recipes stored on an ingredient or cuisine vertex.
+     * @param json - The JSON array of recipe objects with "id" and "title" fields
+     * @return - The recipes
+     * @throws IOException
+     */
+    public static List<RecipeSummary> readSummaries(String json) throws IOException {
+        if (isMissing(json)) {
+            return new ArrayList<>();
+        }
+        JsonReader reader = new JsonReader(new StringReader(json));
+        return readSummaries(reader);
+    }
+
+    /**
+     * Reads the recipes in a search response.
+     * @param json - The JSON object with a "results" array of recipe objects
+     * @return - The recipes
+     * @throws IOException
+     */
+    public static List<RecipeSummary> readSearchResults(String json) throws IOException {
+        List<RecipeSummary> recipes = new ArrayList<>();
+        if (isMissing(json)) {
+            return recipes;
+        }
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("results")) {
+                recipes = readSummaries(reader);
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return recipes;
+    }
+
+    /**
+     * Reads a recipe information response.
+     * @param json - The JSON object with "id", "title", "readyInMinutes" and "servings" fields
+     * @return - The recipe, without steps
+     * @throws IOException - If the response is missing or malformed
+     */
+    public static RecipeDetail readDetail(String json) throws IOException {
+        if (isMissing(json)) {
+            throw new IOException("Empty recipe information response");
+        }
+        JsonReader reader = new JsonReader(new StringReader(json));
+        int id = 0;
+        String title = "";
+        int readyInMinutes = 0;
+        int servings = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = readInt(reader);
+                    break;
+                case "title":
+                    title = readString(reader);
+                    break;
+                case "readyInMinutes":
+                    readyInMinutes = readInt(reader);
+                    break;
+                case "servings":
+                    servings = readInt(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new RecipeDetail(id, title, readyInMinutes, servings);
+    }
+
+    /**
+     * Reads the steps of the first set of instructions in an analyzed instructions response.
+     * @param json - The JSON array of instruction objects, each with a "steps" array
+     * @return - The steps, or an empty list if the recipe has no instructions
+     * @throws IOException
+     */
+    public static List<RecipeStep> readSteps(String json) throws IOException {
+        List<RecipeStep> steps = new ArrayList<>();
+        if (isMissing(json)) {
+            return steps;
+        }
+        JsonReader reader = new JsonReader(new StringReader(json));
+        boolean first = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (! first) {
+                reader.skipValue();
+                continue;
+            }
+            first = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("steps")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        steps.add(readStep(reader));
+                    }
+                    reader.endArray();
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return steps;
+    }
+
+    /**
+     * Writes recipes as a JSON array of objects with "id" and "title" fields, to be stored on an ingredient or cuisine vertex.
+     * @param recipes - The recipes, or null for none
+     * @return - The JSON array
+     * @throws IOException
+     */
+    public static String writeSummaries(List<RecipeSummary> recipes) throws IOException {
+        StringWriter json = new StringWriter();
+        JsonWriter writer = new JsonWriter(json);
+        writer.beginArray();
+        for (RecipeSummary recipe : (recipes == null ? new ArrayList<RecipeSummary>() : recipes)) {
+            writer.beginObject();
+            writer.name("id").value(recipe.getId());
+            writer.name("title").value(recipe.getTitle());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+        return json.toString();
+    }
+
+    private static List<RecipeSummary> readSummaries(JsonReader reader) throws IOException {
+        List<RecipeSummary> recipes = new ArrayList<>();
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return recipes;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int id = 0;
+            String title = "";
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        id = readInt(reader);
+                        break;
+                    case "title":
+                        title = readString(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            recipes.add(new RecipeSummary(id, title));
+        }
+        reader.endArray();
+        return recipes;
+    }
+
+    private static RecipeStep readStep(JsonReader reader) throws IOException {
+        int number = 0;
+        String step = "";
+        List<String> equipment = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "number":
+                    number = readInt(reader);
+                    break;
+                case "step":
+                    step = readString(reader);
+                    break;
+                case "equipment":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.nextName().equals("name")) {
+                                equipment.add(readString(reader));
+                            }
+                            else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new RecipeStep(number, step, equipment);
+    }
+
+    private static boolean isMissing(String json) {
+        return (json == null || json.trim().isEmpty() || json.trim().equals("null"));
+    }
+
+    private static int readInt(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return 0;
+        }
+        // ids stored by older versions may have been written as floating point numbers or strings
+        return (int)Double.parseDouble(reader.nextString());
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return "";
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,166 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ibm.graph.client.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Speculatively resolves the recipes in a list shown to a user, so the user's selection
+ * can be served from memory. Each listed recipe is looked up in Graph and, if it is not there,
+ * its information and steps are fetched from Spoonacular at prefetch priority.
+ * Prefetches run on a bounded pool and are cancelled when the user's state is cleared.
+ */
+public class RecipePrefetcher {
+
+    private final static long EXPIRY_MILLIS = 10 * 60 * 1000;
+
+    private GraphRecipeStore recipeStore;
+    private RecipeClient recipeClient;
+    private ExecutorService executor;
+    private long expiryMillis;
+    private ConcurrentHashMap<String, UserPrefetch> userPrefetches = new ConcurrentHashMap<>();
+
+    private static Logger logger = LoggerFactory.getLogger(RecipePrefetcher.class);
+
+    /**
+     * Creates a new instance of RecipePrefetcher.
+     * @param recipeStore - The store used to look up recipes in Graph
+     * @param recipeClient - The client used to fetch recipes missing from Graph
+     * @param maxConcurrency - The max number of recipes resolved at the same time
+     */
+    public RecipePrefetcher(GraphRecipeStore recipeStore, RecipeClient recipeClient, int maxConcurrency) {
+        this(recipeStore, recipeClient, maxConcurrency, EXPIRY_MILLIS);
+    }
+
+    /**
+     * @param expiryMillis - The time after which the prefetched recipes of a user are discarded by the next prefetch
+     */
+    RecipePrefetcher(GraphRecipeStore recipeStore, RecipeClient recipeClient, int maxConcurrency, long expiryMillis) {
+        this.recipeStore = recipeStore;
+        this.recipeClient = recipeClient;
+        this.expiryMillis = expiryMillis;
+        this.executor = Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "recipe-prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts resolving the specified recipes for the specified user, replacing any earlier prefetch for the user.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @param recipeIds - The IDs of the recipes shown to the user
+     */
+    public void prefetch(String userId, List<String> recipeIds) {
+        this.expire();
+        UserPrefetch userPrefetch = new UserPrefetch();
+        for (String recipeId : recipeIds) {
+            userPrefetch.recipes.put(recipeId, this.executor.submit(() -> this.resolve(recipeId)));
+        }
+        UserPrefetch previous = this.userPrefetches.put(userId, userPrefetch);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    /**
+     * Gets a prefetched recipe, waiting up to waitMillis if it is still being resolved.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @param recipeId - The ID of the selected recipe
+     * @param waitMillis - The max time to wait for an in-flight prefetch
+     * @return - The prefetched recipe, or null if it was not prefetched or could not be resolved
+     */
+    public PrefetchedRecipe get(String userId, String recipeId, long waitMillis) {
+        UserPrefetch userPrefetch = this.userPrefetches.get(userId);
+        Future<PrefetchedRecipe> future = (userPrefetch == null ? null : userPrefetch.recipes.get(recipeId));
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get(waitMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+            logger.debug(String.format("Prefetch of recipe %s still in flight.", recipeId));
+            return null;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (Exception ex) {
+            logger.debug(String.format("Prefetch of recipe %s failed: %s", recipeId, ex.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Cancels and discards the prefetched recipes for the specified user.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     */
+    public void cancel(String userId) {
+        UserPrefetch userPrefetch = this.userPrefetches.remove(userId);
+        if (userPrefetch != null) {
+            userPrefetch.cancel();
+        }
+    }
+
+    public void stop() {
+        this.executor.shutdownNow();
+    }
+
+    private PrefetchedRecipe resolve(String recipeId) throws Exception {
+        Vertex recipe = this.recipeStore.findRecipe(recipeId);
+        if (recipe != null) {
+            return new PrefetchedRecipe(recipe, null);
+        }
+        RecipeDetail recipeDetail = this.recipeClient.getInfoById(recipeId, QuotaScheduler.Priority.PREFETCH);
+        List<RecipeStep> recipeSteps = this.recipeClient.getStepsById(recipeId, QuotaScheduler.Priority.PREFETCH);
+        return new PrefetchedRecipe(null, recipeDetail.withSteps(recipeSteps));
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, UserPrefetch> entry : this.userPrefetches.entrySet()) {
+            if (now - entry.getValue().createdAt > this.expiryMillis && this.userPrefetches.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().cancel();
+            }
+        }
+    }
+
+    private static class UserPrefetch {
+
+        private final long createdAt = System.currentTimeMillis();
+        private final Map<String, Future<PrefetchedRecipe>> recipes = new HashMap<>();
+
+        void cancel() {
+            for (Future<PrefetchedRecipe> future : this.recipes.values()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * A recipe resolved by the prefetcher: either its Graph vertex, or its Spoonacular information and steps.
+     */
+    public static class PrefetchedRecipe {
+
+        private final Vertex vertex;
+        private final RecipeDetail detail;
+
+        public PrefetchedRecipe(Vertex vertex, RecipeDetail detail) {
+            this.vertex = vertex;
+            this.detail = detail;
+        }
+
+        public Vertex getVertex() {
+            return vertex;
+        }
+
+        public RecipeDetail getDetail() {
+            return detail;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Sparse item-item co-occurrence matrix for recipes, built from user-to-recipe "selects" edges.
+ * Two recipes co-occur when the same user has selected both. Similarity is the cosine of the
+ * co-occurrence count over the number of users that selected each recipe.
+ * Each recipe keeps at most MAX_NEIGHBORS neighbors and each user contributes at most
+ * MAX_USER_HISTORY recipes, so updates and queries run in bounded time regardless of graph size.
+ * Neighbor lists are symmetric: a recipe lists another recipe only if that recipe lists it back, and a
+ * pair replaces the weakest neighbor of a full list once it co-occurs at least as often.
+ * Recipes are keyed by primitive IDs, mapped to dense indexes into the neighbor lists and titles.
+ * Which recipes each user has selected is tracked apart from the bounded history (up to
+ * MAX_USER_SELECTIONS recipes), so a recipe that has dropped out of a user's history is not counted
+ * again when the user selects it again. Only the most recently active users are tracked; the counts of
+ * an evicted user stay in the matrix, but the user's selections are counted again if the user returns.
+ */
+public class RecipeSimilarityIndex {
+
+    public final static int MAX_NEIGHBORS = 100;
+    public final static int MAX_USER_HISTORY = 50;
+    public final static int MAX_USER_SELECTIONS = 1000;
+    public final static int DEFAULT_MAX_USERS = 100000;
+
+    private final LongIntHashMap pairCounts;
+    private final LongIntHashMap recipeUserCounts;
+    private final LongIntHashMap recipeIndexes;
+    private final ArrayList<int[]> recipeNeighbors = new ArrayList<>();
+    private final ArrayList<String> recipeTitles = new ArrayList<>();
+    private final LinkedHashMap<String, UserSelections> users;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Creates a new instance of RecipeSimilarityIndex that tracks up to DEFAULT_MAX_USERS users.
+     * @param offHeap - true to store the co-occurrence counts in direct (off-heap) memory
+     */
+    public RecipeSimilarityIndex(boolean offHeap) {
+        this(offHeap, DEFAULT_MAX_USERS);
+    }
+
+    /**
+     * Creates a new instance of RecipeSimilarityIndex.
+     * @param offHeap - true to store the co-occurrence counts in direct (off-heap) memory
+     * @param maxUsers - The max number of users whose selections are tracked, least recently active evicted first
+     */
+    public RecipeSimilarityIndex(boolean offHeap, int maxUsers) {
+        this.pairCounts = new LongIntHashMap(1024, offHeap);
+        this.recipeUserCounts = new LongIntHashMap(256, offHeap);
+        this.recipeIndexes = new LongIntHashMap(256, offHeap);
+        this.users = new LinkedHashMap<String, UserSelections>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, UserSelections> eldest) {
+                return size() > maxUsers;
+            }
+        };
+    }
+
+    /**
+     * Records that the specified user selected the specified recipe.
+     * Only the first selection of a recipe by a user changes the matrix.
+     * @param userId - The ID of the user (typically the ID of the user vertex in Graph)
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @param recipeTitle - The title of the recipe
+     */
+    public void recordSelection(String userId, String recipeId, String recipeTitle) {
+        int recipe = parseRecipeId(recipeId);
+        if (recipe < 0) {
+            return;
+        }
+        this.lock.writeLock().lock();
+        try {
+            int recipeIndex = this.getRecipeIndex(recipe);
+            if (recipeTitle != null) {
+                this.recipeTitles.set(recipeIndex, recipeTitle);
+            }
+            UserSelections user = this.users.get(userId);
+            if (user == null) {
+                user = new UserSelections();
+                this.users.put(userId, user);
+            }
+            if (! user.addSelected(recipe)) {
+                return;
+            }
+            this.recipeUserCounts.addTo(recipe, 1);
+            for (int i = 0; i < user.historyLength; i++) {
+                int other = user.history[i];
+                int pairCount = this.pairCounts.addTo(pairKey(recipe, other), 1);
+                if (! this.isNeighbor(recipeIndex, other)) {
+                    this.linkNeighbors(recipe, other, pairCount);
+                }
+            }
+            user.addHistory(recipe);
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the recipes most similar to the specified recipe.
+     * @param recipeId - The ID of the recipe
+     * @param count - The max number of recipes to return
+     * @return - The similar recipes, most similar first
+     */
+    public SimilarRecipe[] findSimilarRecipes(String recipeId, int count) {
+        int recipe = parseRecipeId(recipeId);
+        if (recipe < 0) {
+            return new SimilarRecipe[0];
+        }
+        this.lock.readLock().lock();
+        try {
+            return this.topNeighbors(new int[]{recipe}, 1, count);
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the recipes most similar to the recipes the specified user has selected,
+     * excluding recipes the user has already selected.
+     * @param userId - The ID of the user (typically the ID of the user vertex in Graph)
+     * @param count - The max number of recipes to return
+     * @return - The similar recipes, most similar first
+     */
+    public SimilarRecipe[] findSimilarRecipesForUser(String userId, int count) {
+        // a write lock, as reading the access-ordered user map moves the user to the end
+        this.lock.writeLock().lock();
+        try {
+            UserSelections user = this.users.get(userId);
+            if (user == null) {
+                return new SimilarRecipe[0];
+            }
+            return this.topNeighbors(user.history, user.historyLength, count);
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return - The number of non-zero recipe pairs in the matrix
+     */
+    public int getPairCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.pairCounts.size();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return - The number of users whose selections are tracked
+     */
+    public int getUserCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.users.size();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private SimilarRecipe[] topNeighbors(int[] sources, int sourceCount, int count) {
+        // candidate recipes and their summed similarity, with each candidate's slot keyed by recipe ID
+        LongIntHashMap slots = new LongIntHashMap(MAX_NEIGHBORS * sourceCount, false);
+        int[] candidates = new int[MAX_NEIGHBORS * sourceCount];
+        double[] scores = new double[candidates.length];
+        int candidateCount = 0;
+        for (int s = 0; s < sourceCount; s++) {
+            slots.put(sources[s], -1);
+        }
+        for (int s = 0; s < sourceCount; s++) {
+            int source = sources[s];
+            int[] neighbors = this.getNeighbors(source);
+            if (neighbors == null) {
+                continue;
+            }
+            double sourceUsers = this.recipeUserCounts.get(source, 1);
+            for (int i = 1; i <= neighbors[0]; i++) {
+                int neighbor = neighbors[i];
+                int slot = slots.get(neighbor, -2);
+                if (slot == -1) {
+                    // one of the sources
+                    continue;
+                }
+                if (slot == -2) {
+                    slot = candidateCount++;
+                    candidates[slot] = neighbor;
+                    slots.put(neighbor, slot);
+                }
+                scores[slot] += this.pairCounts.get(pairKey(source, neighbor), 0) / Math.sqrt(sourceUsers * this.recipeUserCounts.get(neighbor, 1));
+            }
+        }
+        SimilarRecipe[] results = new SimilarRecipe[candidateCount];
+        for (int i = 0; i < candidateCount; i++) {
+            int id = candidates[i];
+            results[i] = new SimilarRecipe(String.valueOf(id), this.recipeTitles.get(this.recipeIndexes.get(id, -1)), scores[i]);
+        }
+        Arrays.sort(results, (a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()));
+        return (results.length > count ? Arrays.copyOf(results, count) : results);
+    }
+
+    /**
+     * Gets the dense index of the specified recipe, adding the recipe if it is not indexed yet.
+     */
+    private int getRecipeIndex(int recipe) {
+        int index = this.recipeIndexes.get(recipe, -1);
+        if (index < 0) {
+            index = this.recipeNeighbors.size();
+            this.recipeIndexes.put(recipe, index);
+            this.recipeNeighbors.add(null);
+            this.recipeTitles.add(null);
+        }
+        return index;
+    }
+
+    private int[] getNeighbors(int recipe) {
+        int index = this.recipeIndexes.get(recipe, -1);
+        return (index < 0 ? null : this.recipeNeighbors.get(index));
+    }
+
+    private boolean isNeighbor(int recipeIndex, int other) {
+        int[] neighbors = this.recipeNeighbors.get(recipeIndex);
+        if (neighbors != null) {
+            for (int i = 1; i <= neighbors[0]; i++) {
+                if (neighbors[i] == other) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds each recipe to the other's neighbor list. A full list makes room by dropping its weakest neighbor
+     * if that neighbor does not co-occur more often than the new pair, which also drops the recipe from that
+     * neighbor's list. If either list has no room, neither list is changed.
+     */
+    private void linkNeighbors(int recipe, int other, int pairCount) {
+        int recipeSlot = this.findNeighborSlot(recipe, pairCount);
+        int otherSlot = this.findNeighborSlot(other, pairCount);
+        if (recipeSlot < 0 || otherSlot < 0) {
+            return;
+        }
+        this.setNeighbor(recipe, recipeSlot, other);
+        this.setNeighbor(other, otherSlot, recipe);
+    }
+
+    /**
+     * @return - 0 if the recipe's neighbor list has room, else the index of the neighbor to replace, or -1 if none can be
+     */
+    private int findNeighborSlot(int recipe, int pairCount) {
+        int[] neighbors = this.getNeighbors(recipe);
+        if (neighbors == null || neighbors[0] < MAX_NEIGHBORS) {
+            return 0;
+        }
+        int weakest = -1;
+        int weakestCount = Integer.MAX_VALUE;
+        for (int i = 1; i <= neighbors[0]; i++) {
+            int neighborCount = this.pairCounts.get(pairKey(recipe, neighbors[i]), 0);
+            if (neighborCount < weakestCount) {
+                weakest = i;
+                weakestCount = neighborCount;
+            }
+        }
+        return (weakestCount <= pairCount ? weakest : -1);
+    }
+
+    private void setNeighbor(int recipe, int slot, int neighbor) {
+        int index = this.getRecipeIndex(recipe);
+        int[] neighbors = this.recipeNeighbors.get(index);
+        if (neighbors == null) {
+            neighbors = new int[]{0, 0, 0, 0, 0};
+        }
+        if (slot > 0) {
+            // replace the weakest neighbor so the list stays bounded
+            int replaced = neighbors[slot];
+            neighbors[slot] = neighbor;
+            this.removeNeighbor(replaced, recipe);
+            return;
+        }
+        int length = neighbors[0];
+        if (length + 1 >= neighbors.length) {
+            neighbors = Arrays.copyOf(neighbors, Math.min(neighbors.length * 2, MAX_NEIGHBORS + 1));
+        }
+        neighbors[length + 1] = neighbor;
+        neighbors[0] = length + 1;
+        this.recipeNeighbors.set(index, neighbors);
+    }
+
+    private void removeNeighbor(int recipe, int neighbor) {
+        int[] neighbors = this.getNeighbors(recipe);
+        if (neighbors == null) {
+            return;
+        }
+        int length = neighbors[0];
+        for (int i = 1; i <= length; i++) {
+            if (neighbors[i] == neighbor) {
+                neighbors[i] = neighbors[length];
+                neighbors[0] = length - 1;
+                return;
+            }
+        }
+    }
+
+    private static long pairKey(int a, int b) {
+        int low = Math.min(a, b);
+        int high = Math.max(a, b);
+        return ((long)low << 32) | (high & 0xFFFFFFFFL);
+    }
+
+    private static int parseRecipeId(String recipeId) {
+        try {
+            return Integer.parseInt(recipeId.trim());
+        }
+        catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * The recipes a user has selected: the bounded history, oldest first, and the sorted IDs of every recipe selected.
+     */
+    private static class UserSelections {
+
+        private int[] history = new int[4];
+        private int historyLength;
+        private int[] selected = new int[4];
+        private int selectedLength;
+
+        /**
+         * @return - false if the recipe was already selected, or the user has selected MAX_USER_SELECTIONS recipes
+         */
+        boolean addSelected(int recipe) {
+            int position = Arrays.binarySearch(this.selected, 0, this.selectedLength, recipe);
+            if (position >= 0 || this.selectedLength == MAX_USER_SELECTIONS) {
+                return false;
+            }
+            position = -(position + 1);
+            if (this.selectedLength == this.selected.length) {
+                this.selected = Arrays.copyOf(this.selected, Math.min(this.selected.length * 2, MAX_USER_SELECTIONS));
+            }
+            System.arraycopy(this.selected, position, this.selected, position + 1, this.selectedLength - position);
+            this.selected[position] = recipe;
+            this.selectedLength++;
+            return true;
+        }
+
+        void addHistory(int recipe) {
+            // when full drop the oldest recipe
+            if (this.historyLength == MAX_USER_HISTORY) {
+                System.arraycopy(this.history, 1, this.history, 0, this.historyLength - 1);
+                this.historyLength--;
+            }
+            else if (this.historyLength == this.history.length) {
+                this.history = Arrays.copyOf(this.history, Math.min(this.history.length * 2, MAX_USER_HISTORY));
+            }
+            this.history[this.historyLength++] = recipe;
+        }
+    }
+
+    /**
+     * A recipe returned from a similarity query.
+     */
+    public static class SimilarRecipe {
+
+        private final String id;
+        private final String title;
+        private final double similarity;
+
+        public SimilarRecipe(String id, String title, double similarity) {
+            this.id = id;
+            this.title = title;
+            this.similarity = similarity;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+}
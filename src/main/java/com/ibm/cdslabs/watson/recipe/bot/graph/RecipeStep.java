@@ -0,0 +1,38 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A step in a recipe's instructions, as returned from Spoonacular.
+ */
+public final class RecipeStep {
+
+    private final int number;
+    private final String step;
+    private final List<String> equipment;
+
+    /**
+     * Creates a new instance of RecipeStep.
+     * @param number - The number of the step
+     * @param step - The action to take
+     * @param equipment - The names of the equipment used in the step
+     */
+    public RecipeStep(int number, String step, List<String> equipment) {
+        this.number = number;
+        this.step = step;
+        this.equipment = Collections.unmodifiableList(equipment);
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public String getStep() {
+        return step;
+    }
+
+    public List<String> getEquipment() {
+        return equipment;
+    }
+}
@@ -0,0 +1,41 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+/**
+ * A recipe listed to the user: its Spoonacular ID and title, and the number of other users
+ * that selected it when it is a recommended recipe.
+ */
+public final class RecipeSummary {
+
+    private final int id;
+    private final String title;
+    private final int recommendedUserCount;
+
+    public RecipeSummary(int id, String title) {
+        this(id, title, 0);
+    }
+
+    public RecipeSummary(int id, String title, int recommendedUserCount) {
+        this.id = id;
+        this.title = title;
+        this.recommendedUserCount = recommendedUserCount;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return - The number of other users that selected the recipe, or 0 if the recipe is not recommended
+     */
+    public int getRecommendedUserCount() {
+        return recommendedUserCount;
+    }
+
+    public boolean isRecommended() {
+        return recommendedUserCount > 0;
+    }
+}
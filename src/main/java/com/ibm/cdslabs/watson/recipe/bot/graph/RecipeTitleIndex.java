@@ -0,0 +1,220 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over recipe titles, used to find recipes by (part of) their title without going
+ * through an ingredient or cuisine, and without calling Spoonacular.
+ * Titles are split into words, and each word into character trigrams padded at the start, so a query
+ * matches titles with the same words, words starting with the same letters, and words with small typos.
+ * Each trigram maps to a posting list of the titles that contain it, and titles are scored by the
+ * Dice coefficient of their trigrams and the query's, with titles containing the whole query first.
+ */
+public class RecipeTitleIndex {
+
+    public final static double MIN_SIMILARITY = 0.4;
+
+    private final LongIntHashMap gramIds = new LongIntHashMap(4096, false);
+    private final LongIntHashMap recipeDocs = new LongIntHashMap(1024, false);
+    private int[][] postings = new int[1024][];
+    private int[] docRecipeIds = new int[1024];
+    private int[] docGramCounts = new int[1024];
+    private String[] docTitles = new String[1024];
+    private String[] docNormalizedTitles = new String[1024];
+    private int docCount;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Adds a recipe to the index. Recipes already in the index are ignored.
+     * @param recipeId - The ID of the recipe (typically the ID of the recipe returned from Spoonacular)
+     * @param title - The title of the recipe
+     */
+    public void add(int recipeId, String title) {
+        if (title == null) {
+            return;
+        }
+        String normalizedTitle = normalize(title);
+        long[] grams = toGrams(normalizedTitle);
+        if (grams.length == 0) {
+            return;
+        }
+        this.lock.writeLock().lock();
+        try {
+            if (this.recipeDocs.containsKey(recipeId)) {
+                return;
+            }
+            int doc = this.docCount++;
+            if (doc >= this.docRecipeIds.length) {
+                int capacity = this.docRecipeIds.length * 2;
+                this.docRecipeIds = Arrays.copyOf(this.docRecipeIds, capacity);
+                this.docGramCounts = Arrays.copyOf(this.docGramCounts, capacity);
+                this.docTitles = Arrays.copyOf(this.docTitles, capacity);
+                this.docNormalizedTitles = Arrays.copyOf(this.docNormalizedTitles, capacity);
+            }
+            this.docRecipeIds[doc] = recipeId;
+            this.docGramCounts[doc] = grams.length;
+            this.docTitles[doc] = title.trim();
+            this.docNormalizedTitles[doc] = normalizedTitle;
+            this.recipeDocs.put(recipeId, doc);
+            for (long gram : grams) {
+                int gramId = this.gramIds.get(gram, -1);
+                if (gramId < 0) {
+                    gramId = this.gramIds.size();
+                    this.gramIds.put(gram, gramId);
+                    if (gramId >= this.postings.length) {
+                        this.postings = Arrays.copyOf(this.postings, this.postings.length * 2);
+                    }
+                }
+                int[] posting = this.postings[gramId];
+                if (posting == null) {
+                    posting = new int[]{0, 0, 0, 0};
+                }
+                else if (posting[0] + 1 >= posting.length) {
+                    posting = Arrays.copyOf(posting, posting.length * 2);
+                }
+                // posting[0] holds the length of the list
+                posting[++posting[0]] = doc;
+                this.postings[gramId] = posting;
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the specified recipes to the index.
+     * @param recipes - The recipes, such as the recipes stored on an ingredient or cuisine vertex
+     */
+    public void addAll(List<RecipeSummary> recipes) {
+        for (RecipeSummary recipe : recipes) {
+            this.add(recipe.getId(), recipe.getTitle());
+        }
+    }
+
+    /**
+     * Finds the recipes whose titles best match the specified query.
+     * @param query - The title, or part of the title, specified by the user
+     * @param count - The max number of recipes to return
+     * @return - The recipes, best match first
+     */
+    public List<RecipeSummary> search(String query, int count) {
+        String normalizedQuery = normalize(query);
+        long[] grams = toGrams(normalizedQuery);
+        List<RecipeSummary> recipes = new ArrayList<>();
+        if (grams.length == 0) {
+            return recipes;
+        }
+        this.lock.readLock().lock();
+        try {
+            int[] overlaps = new int[this.docCount];
+            int[] matchedDocs = new int[16];
+            int matchedCount = 0;
+            for (long gram : grams) {
+                int gramId = this.gramIds.get(gram, -1);
+                if (gramId < 0) {
+                    continue;
+                }
+                int[] posting = this.postings[gramId];
+                for (int i = 1; i <= posting[0]; i++) {
+                    int doc = posting[i];
+                    if (overlaps[doc]++ == 0) {
+                        if (matchedCount == matchedDocs.length) {
+                            matchedDocs = Arrays.copyOf(matchedDocs, matchedCount * 2);
+                        }
+                        matchedDocs[matchedCount++] = doc;
+                    }
+                }
+            }
+            // scores are indexed by doc, but only set for the matched docs
+            double[] scores = new double[this.docCount];
+            Integer[] ranked = new Integer[matchedCount];
+            int rankedCount = 0;
+            for (int i = 0; i < matchedCount; i++) {
+                int doc = matchedDocs[i];
+                double score = 2.0 * overlaps[doc] / (grams.length + this.docGramCounts[doc]);
+                if (this.docNormalizedTitles[doc].contains(normalizedQuery)) {
+                    score += 1;
+                }
+                if (score >= MIN_SIMILARITY) {
+                    scores[doc] = score;
+                    ranked[rankedCount++] = doc;
+                }
+            }
+            Arrays.sort(ranked, 0, rankedCount, (a, b) -> {
+                int compare = Double.compare(scores[b], scores[a]);
+                // on a tie the shorter title is the closer match
+                return (compare != 0 ? compare : Integer.compare(this.docTitles[a].length(), this.docTitles[b].length()));
+            });
+            for (int i = 0; i < Math.min(rankedCount, count); i++) {
+                recipes.add(new RecipeSummary(this.docRecipeIds[ranked[i]], this.docTitles[ranked[i]]));
+            }
+            return recipes;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return - The number of recipes in the index
+     */
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.docCount;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean space = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                normalized.append(c);
+                space = false;
+            }
+            else if (! space) {
+                normalized.append(' ');
+                space = true;
+            }
+        }
+        int length = normalized.length();
+        return (space && length > 0 ? normalized.substring(0, length - 1) : normalized.toString());
+    }
+
+    /**
+     * Gets the distinct trigrams of the words in a normalized text, each packed into a long.
+     */
+    private static long[] toGrams(String normalizedText) {
+        if (normalizedText.isEmpty()) {
+            return new long[0];
+        }
+        List<Long> grams = new ArrayList<>();
+        for (String word : normalizedText.split(" ")) {
+            // two spaces before the word weight its first letters, so prefixes match
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                grams.add(((long)padded.charAt(i) << 32) | ((long)padded.charAt(i + 1) << 16) | padded.charAt(i + 2));
+            }
+        }
+        long[] sorted = new long[grams.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = grams.get(i);
+        }
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+}
@@ -0,0 +1,193 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Timings of the work done for a single message, from the time it is received until its reply is delivered.
+ * A trace is attached to the thread working on the message (see call), and code called from there records
+ * spans against it with span, without the trace being passed around: Conversation, Graph, Spoonacular and
+ * SNS calls, and the delivery of the reply by SlackSender. Spans are kept in fixed arrays, and span does
+ * nothing but a thread-local lookup when no trace is attached, so tracing every message is cheap.
+ * A trace is finished, and handed to its TraceRecorder, when every part of the work holding it has released it.
+ */
+public class RequestTrace {
+
+    private final static int MAX_SPANS = 64;
+    private final static ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    private final TraceRecorder recorder;
+    private final String userId;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final String[] spanNames = new String[MAX_SPANS];
+    private final long[] spanStarts = new long[MAX_SPANS];
+    private final long[] spanNanos = new long[MAX_SPANS];
+    private int spanCount;
+    private int droppedSpans;
+    private int holds = 1;
+    private long totalNanos = -1;
+    private String outcome = "ok";
+
+    /**
+     * Creates a new instance of RequestTrace, held once by the caller (see hold and release).
+     * @param recorder - The recorder the trace is handed to when it is finished
+     * @param userId - The ID of the user that sent the message
+     */
+    RequestTrace(TraceRecorder recorder, String userId) {
+        this.recorder = recorder;
+        this.userId = userId;
+    }
+
+    /**
+     * @return - The trace attached to the calling thread, or null
+     */
+    public static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Times a call as a span of the trace attached to the calling thread, if any.
+     * @param name - The name of the span, such as "graph.gremlin"
+     * @param callable - The call
+     * @return - The result of the call
+     * @throws Exception
+     */
+    public static <T> T span(String name, Callable<T> callable) throws Exception {
+        RequestTrace trace = CURRENT.get();
+        if (trace == null) {
+            return callable.call();
+        }
+        long start = System.nanoTime();
+        try {
+            return callable.call();
+        }
+        finally {
+            trace.record(name, start, System.nanoTime());
+        }
+    }
+
+    /**
+     * Attaches this trace to the calling thread for the duration of a call, and times the call as a span.
+     * @param name - The name of the span
+     * @param callable - The call
+     * @return - The result of the call
+     * @throws Exception
+     */
+    public <T> T call(String name, Callable<T> callable) throws Exception {
+        RequestTrace previous = CURRENT.get();
+        CURRENT.set(this);
+        long start = System.nanoTime();
+        try {
+            return callable.call();
+        }
+        finally {
+            this.record(name, start, System.nanoTime());
+            if (previous == null) {
+                CURRENT.remove();
+            }
+            else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Records a span that started when the trace did, such as the time a message waited to be handled.
+     * @param name - The name of the span
+     */
+    public void recordSinceStart(String name) {
+        this.record(name, this.startNanos, System.nanoTime());
+    }
+
+    /**
+     * Records a span.
+     * @param name - The name of the span
+     * @param start - The System.nanoTime the span started
+     * @param end - The System.nanoTime the span ended
+     */
+    public synchronized void record(String name, long start, long end) {
+        if (this.spanCount == MAX_SPANS) {
+            this.droppedSpans++;
+            return;
+        }
+        this.spanNames[this.spanCount] = name;
+        this.spanStarts[this.spanCount] = start - this.startNanos;
+        this.spanNanos[this.spanCount] = end - start;
+        this.spanCount++;
+    }
+
+    /**
+     * Sets the outcome of the message, if no other than "ok" has been set.
+     * @param outcome - The outcome, such as "busy", "error" or "dropped"
+     */
+    public synchronized void setOutcome(String outcome) {
+        if ("ok".equals(this.outcome)) {
+            this.outcome = outcome;
+        }
+    }
+
+    /**
+     * Keeps the trace from finishing until release is called, such as while a reply is queued to be sent.
+     */
+    public synchronized void hold() {
+        this.holds++;
+    }
+
+    /**
+     * Releases a hold on the trace, finishing it when no holds are left.
+     */
+    public void release() {
+        synchronized (this) {
+            if (--this.holds > 0 || this.totalNanos >= 0) {
+                return;
+            }
+            this.totalNanos = System.nanoTime() - this.startNanos;
+        }
+        this.recorder.record(this);
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public synchronized long getTotalMillis() {
+        return (this.totalNanos < 0 ? System.nanoTime() - this.startNanos : this.totalNanos) / 1000000;
+    }
+
+    public synchronized String getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Gets the trace as a map, with its spans in the order they started.
+     * @return - The user ID, start time, total time and outcome, and the name, start offset and time of each span
+     */
+    public synchronized Map<String,Object> toMap() {
+        Integer[] order = new Integer[this.spanCount];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(this.spanStarts[a], this.spanStarts[b]));
+        List<Map<String,Object>> spans = new ArrayList<>();
+        for (int i : order) {
+            Map<String,Object> span = new LinkedHashMap<>();
+            span.put("name", this.spanNames[i]);
+            span.put("offsetMillis", this.spanStarts[i] / 1000000.0);
+            span.put("millis", this.spanNanos[i] / 1000000.0);
+            spans.add(span);
+        }
+        Map<String,Object> trace = new LinkedHashMap<>();
+        trace.put("userId", this.userId);
+        trace.put("start", new Date(this.startMillis).toInstant().toString());
+        trace.put("totalMillis", this.getTotalMillis());
+        trace.put("outcome", this.outcome);
+        trace.put("spans", spans);
+        trace.put("droppedSpans", this.droppedSpans);
+        return trace;
+    }
+}
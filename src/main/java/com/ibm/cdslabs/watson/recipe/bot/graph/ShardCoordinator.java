@@ -0,0 +1,343 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits Slack users across bot instances that share a coordination directory.
+ * Users are hashed into a fixed number of partitions and partitions are assigned to the live instances
+ * with a consistent hash ring, so adding or removing an instance only moves the partitions next to it on the ring.
+ * Each instance writes a heartbeat file to the directory; an instance is live while its heartbeat is recent.
+ * Ownership of a partition is held with an OS lock on the partition's lock file, so two instances never own
+ * the same partition: an instance only takes a partition over once the previous owner has released it
+ * (or exited, which releases its locks). The owner writes the time to the lock file on every heartbeat and when
+ * it releases the partition, so the next owner knows from when messages were no longer handled (see PartitionListener).
+ * Ownership is published as an immutable snapshot, so ownsUser never waits for a rebalance.
+ */
+public class ShardCoordinator {
+
+    public final static long HEARTBEAT_MILLIS = 2000;
+    public final static long LEASE_MILLIS = 10000;
+    private final static int VIRTUAL_NODES = 64;
+    private final static String INSTANCE_SUFFIX = ".instance";
+
+    private final File directory;
+    private final String instanceId;
+    private final int partitionCount;
+    private final FileLock[] locks;
+    private volatile boolean[] owned;
+    private volatile boolean[] assigned;
+    private final List<PartitionListener> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService heartbeat;
+
+    private static Logger logger = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    /**
+     * Creates a new instance of ShardCoordinator.
+     * @param directory - The coordination directory shared by all instances
+     * @param instanceId - The unique ID of this instance
+     * @param partitionCount - The total number of partitions (must be the same for all instances)
+     */
+    public ShardCoordinator(File directory, String instanceId, int partitionCount) {
+        this.directory = directory;
+        this.instanceId = instanceId;
+        this.partitionCount = partitionCount;
+        this.locks = new FileLock[partitionCount];
+        this.owned = new boolean[partitionCount];
+        this.assigned = new boolean[partitionCount];
+    }
+
+    /**
+     * Adds a listener that is notified when this instance acquires or releases a partition.
+     * @param listener - The listener
+     */
+    public void addPartitionListener(PartitionListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public String getInstanceId() {
+        return this.instanceId;
+    }
+
+    public int getPartitionCount() {
+        return this.partitionCount;
+    }
+
+    /**
+     * Returns true if this instance currently owns the partition of the specified user.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - true if messages from the user should be handled by this instance
+     */
+    public boolean ownsUser(String userId) {
+        return this.owned[UserStateStore.getPartition(userId, this.partitionCount)];
+    }
+
+    /**
+     * Returns true if this instance currently owns the specified partition.
+     * @param partition - The partition number
+     * @return - true if this instance owns the partition, such as the owner of partition 0 running deployment-wide jobs
+     */
+    public boolean ownsPartition(int partition) {
+        return this.owned[partition];
+    }
+
+    /**
+     * Returns true if the partition of the specified user is assigned to this instance, whether or not this
+     * instance has acquired it yet.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - true if messages from the user will be handled by this instance once it owns the partition
+     */
+    public boolean isAssignedUser(String userId) {
+        return this.assigned[UserStateStore.getPartition(userId, this.partitionCount)];
+    }
+
+    /**
+     * @return - The partitions currently owned by this instance
+     */
+    public Set<Integer> getOwnedPartitions() {
+        boolean[] owned = this.owned;
+        Set<Integer> partitions = new TreeSet<>();
+        for (int i = 0; i < this.partitionCount; i++) {
+            if (owned[i]) {
+                partitions.add(i);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Joins the deployment and starts rebalancing partitions on every heartbeat.
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        this.directory.mkdirs();
+        this.rebalance();
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeat.scheduleWithFixedDelay(() -> {
+            try {
+                this.rebalance();
+            }
+            catch (Exception ex) {
+                logger.error("Error rebalancing partitions", ex);
+            }
+        }, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Releases all partitions and leaves the deployment so the remaining instances take them over.
+     * @throws Exception
+     */
+    public void stop() throws Exception {
+        if (this.heartbeat != null) {
+            this.heartbeat.shutdownNow();
+            this.heartbeat.awaitTermination(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        Files.deleteIfExists(new File(this.directory, this.instanceId + INSTANCE_SUFFIX).toPath());
+        synchronized (this) {
+            this.assigned = new boolean[this.partitionCount];
+            for (int i = 0; i < this.partitionCount; i++) {
+                this.release(i);
+            }
+        }
+    }
+
+    /**
+     * Writes this instance's heartbeat, then releases the partitions now assigned to other instances
+     * and tries to acquire the partitions assigned to this instance.
+     * @throws IOException
+     */
+    synchronized void rebalance() throws IOException {
+        this.writeHeartbeat();
+        TreeMap<Long, String> ring = this.buildRing(this.findLiveInstances());
+        boolean[] assigned = new boolean[this.partitionCount];
+        for (int i = 0; i < this.partitionCount; i++) {
+            assigned[i] = this.instanceId.equals(findOwner(ring, i));
+        }
+        // published first, so messages for partitions about to be acquired are held rather than refused
+        this.assigned = assigned;
+        for (int i = 0; i < this.partitionCount; i++) {
+            if (! assigned[i] && this.locks[i] != null) {
+                this.release(i);
+            }
+            else if (assigned[i] && this.locks[i] == null) {
+                this.acquire(i);
+            }
+            else if (assigned[i]) {
+                writeHandledUntil(this.locks[i].channel(), System.currentTimeMillis());
+            }
+        }
+    }
+
+    private void writeHeartbeat() throws IOException {
+        File heartbeatFile = new File(this.directory, this.instanceId + INSTANCE_SUFFIX);
+        File tempFile = new File(this.directory, this.instanceId + INSTANCE_SUFFIX + ".tmp");
+        Files.write(tempFile.toPath(), String.valueOf(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile.toPath(), heartbeatFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<String> findLiveInstances() {
+        List<String> instances = new ArrayList<>();
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(INSTANCE_SUFFIX));
+        long now = System.currentTimeMillis();
+        for (File file : (files == null ? new File[0] : files)) {
+            try {
+                long lastHeartbeat = Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+                if (now - lastHeartbeat < LEASE_MILLIS) {
+                    instances.add(file.getName().substring(0, file.getName().length() - INSTANCE_SUFFIX.length()));
+                }
+            }
+            catch (Exception ex) {
+                // the file was removed or is being replaced; it will be read on the next heartbeat
+            }
+        }
+        return instances;
+    }
+
+    private TreeMap<Long, String> buildRing(List<String> instances) {
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String instance : instances) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(instance + "#" + i), instance);
+            }
+        }
+        return ring;
+    }
+
+    private static String findOwner(TreeMap<Long, String> ring, int partition) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash("partition-" + partition));
+        return (entry == null ? ring.firstEntry().getValue() : entry.getValue());
+    }
+
+    private void acquire(int partition) throws IOException {
+        File lockFile = new File(this.directory, String.format("partition-%03d.lock", partition));
+        FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        }
+        catch (OverlappingFileLockException ex) {
+            // held by another instance in this JVM
+        }
+        if (lock == null) {
+            // the previous owner has not released the partition yet; try again on the next heartbeat
+            channel.close();
+            return;
+        }
+        long handledUntil = readHandledUntil(channel);
+        this.locks[partition] = lock;
+        this.setOwned(partition, true);
+        writeHandledUntil(channel, System.currentTimeMillis());
+        logger.debug(String.format("Instance %s acquired partition %d", this.instanceId, partition));
+        for (PartitionListener listener : this.listeners) {
+            try {
+                listener.partitionAcquired(partition, handledUntil);
+            }
+            catch (Exception ex) {
+                logger.error(String.format("Error acquiring partition %d", partition), ex);
+            }
+        }
+    }
+
+    private void release(int partition) throws IOException {
+        FileLock lock = this.locks[partition];
+        if (lock == null) {
+            return;
+        }
+        // stop handling the partition's users before the lock is released to the next owner
+        this.locks[partition] = null;
+        this.setOwned(partition, false);
+        long releasedAt = System.currentTimeMillis();
+        for (PartitionListener listener : this.listeners) {
+            try {
+                listener.partitionReleased(partition);
+            }
+            catch (Exception ex) {
+                logger.error(String.format("Error releasing partition %d", partition), ex);
+            }
+        }
+        writeHandledUntil(lock.channel(), releasedAt);
+        lock.release();
+        lock.channel().close();
+        logger.debug(String.format("Instance %s released partition %d", this.instanceId, partition));
+    }
+
+    private void setOwned(int partition, boolean owned) {
+        boolean[] snapshot = this.owned.clone();
+        snapshot[partition] = owned;
+        this.owned = snapshot;
+    }
+
+    /**
+     * Reads the time until which the previous owner of a partition handled its messages, or 0 if it was never owned.
+     */
+    private static long readHandledUntil(FileChannel channel) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(32);
+            int read = channel.read(buffer, 0);
+            return (read <= 0 ? 0 : Long.parseLong(new String(buffer.array(), 0, read, StandardCharsets.UTF_8).trim()));
+        }
+        catch (Exception ex) {
+            logger.warn(String.format("Error reading partition handover time: %s", ex.getMessage()));
+            return 0;
+        }
+    }
+
+    private static void writeHandledUntil(FileChannel channel, long millis) throws IOException {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(String.valueOf(millis).getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        }
+        catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Notified when this instance acquires or releases a partition.
+     */
+    public interface PartitionListener {
+
+        /**
+         * @param partition - The partition number
+         * @param handledUntil - The time until which the previous owner handled the partition's messages: when it
+         * released the partition, or its last heartbeat if it exited without releasing it (0 if it was never owned)
+         * @throws Exception
+         */
+        void partitionAcquired(int partition, long handledUntil) throws Exception;
+
+        void partitionReleased(int partition) throws Exception;
+    }
+}
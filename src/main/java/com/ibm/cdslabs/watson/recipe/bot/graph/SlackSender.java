@@ -0,0 +1,280 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ullink.slack.simpleslackapi.SlackChannel;
+import com.ullink.slack.simpleslackapi.SlackMessageHandle;
+import com.ullink.slack.simpleslackapi.SlackSession;
+import com.ullink.slack.simpleslackapi.replies.SlackMessageReply;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers replies to Slack in the background, so handling a message never waits on Slack.
+ * Each channel has its own queue, and messages to a channel are sent in order no faster than Slack's
+ * limit of about one message per second per channel. Replies longer than Slack's message size limit are
+ * split into several messages, preferably between paragraphs (such as between the steps of a recipe).
+ * Failed and rate-limited sends are retried with backoff before the message is dropped.
+ * A message queued with a request trace attached to the calling thread holds the trace until it is delivered,
+ * so the trace covers the whole time until the user sees the reply.
+ */
+public class SlackSender {
+
+    public final static int MAX_MESSAGE_CHARS = 3500;
+    private final static long CHANNEL_INTERVAL_MILLIS = 1000;
+    private final static long RETRY_MILLIS = 1000;
+    private final static int MAX_ATTEMPTS = 4;
+    private final static int MAX_QUEUED_PER_CHANNEL = 20;
+    private final static long REPLY_WAIT_MILLIS = 10000;
+
+    private final String name;
+    private final SlackSession slackSession;
+    private final int threads;
+    private final ConcurrentHashMap<String, ChannelQueue> channelQueues = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong split = new AtomicLong();
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    private static Logger logger = LoggerFactory.getLogger(SlackSender.class);
+
+    /**
+     * Creates a new instance of SlackSender.
+     * @param name - The name of the sender threads
+     * @param slackSession - The session messages are sent through
+     * @param threads - The number of messages sent to different channels at the same time
+     */
+    public SlackSender(String name, SlackSession slackSession, int threads) {
+        this.name = name;
+        this.slackSession = slackSession;
+        this.threads = threads;
+    }
+
+    public void start() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, this.name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler = scheduler;
+    }
+
+    public void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Queues a message to be sent to the specified channel after any messages already queued for it.
+     * @param channel - The channel
+     * @param text - The message, split into several messages if it is too long
+     * @return - false if the message was dropped because too many messages are queued for the channel
+     */
+    public boolean send(SlackChannel channel, String text) {
+        List<String> chunks = splitMessage(text, MAX_MESSAGE_CHARS);
+        if (chunks.size() > 1) {
+            this.split.incrementAndGet();
+        }
+        long now = System.currentTimeMillis();
+        RequestTrace trace = RequestTrace.current();
+        while (true) {
+            ChannelQueue queue = this.channelQueues.computeIfAbsent(channel.getId(), id -> new ChannelQueue());
+            synchronized (queue) {
+                if (queue.removed) {
+                    // the queue emptied and was removed concurrently
+                    continue;
+                }
+                if (queue.messages.size() + chunks.size() > MAX_QUEUED_PER_CHANNEL) {
+                    logger.warn(String.format("Too many messages queued for channel %s; dropping message", channel.getId()));
+                    this.dropped.incrementAndGet();
+                    if (trace != null) {
+                        trace.setOutcome("dropped");
+                    }
+                    return false;
+                }
+                for (String chunk : chunks) {
+                    if (trace != null) {
+                        trace.hold();
+                    }
+                    queue.messages.add(new OutgoingMessage(channel, chunk, now, trace));
+                }
+                if (! queue.scheduled) {
+                    queue.scheduled = true;
+                    this.scheduler.schedule(() -> this.sendNext(queue), Math.max(0, queue.nextSendAt - now), TimeUnit.MILLISECONDS);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gets the sender metrics.
+     * @return - The number of messages sent, retried, failed, dropped and split, the mean and max time from
+     * queuing to delivery, and the number of messages queued
+     */
+    public Map<String,Object> getMetrics() {
+        int queued = 0;
+        for (ChannelQueue queue : this.channelQueues.values()) {
+            synchronized (queue) {
+                queued += queue.messages.size();
+            }
+        }
+        long sent = this.sent.get();
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("sent", sent);
+        metrics.put("retried", this.retried.get());
+        metrics.put("failed", this.failed.get());
+        metrics.put("dropped", this.dropped.get());
+        metrics.put("split", this.split.get());
+        metrics.put("meanLatencyMillis", (sent == 0 ? 0 : this.totalLatencyMillis.get() / sent));
+        metrics.put("maxLatencyMillis", this.maxLatencyMillis.get());
+        metrics.put("queued", queued);
+        return metrics;
+    }
+
+    private void sendNext(ChannelQueue queue) {
+        OutgoingMessage message;
+        synchronized (queue) {
+            message = queue.messages.peek();
+        }
+        long delay = CHANNEL_INTERVAL_MILLIS;
+        String error = this.deliver(message);
+        long now = System.currentTimeMillis();
+        synchronized (queue) {
+            if (error == null) {
+                queue.messages.poll();
+                long latency = now - message.queuedAt;
+                this.sent.incrementAndGet();
+                this.totalLatencyMillis.addAndGet(latency);
+                this.maxLatencyMillis.accumulateAndGet(latency, Math::max);
+            }
+            else if (++message.attempts >= MAX_ATTEMPTS) {
+                logger.error(String.format("Could not send message to channel %s: %s", message.channel.getId(), error));
+                queue.messages.poll();
+                this.failed.incrementAndGet();
+                if (message.trace != null) {
+                    message.trace.setOutcome("failed");
+                }
+            }
+            else {
+                logger.warn(String.format("Retrying message to channel %s: %s", message.channel.getId(), error));
+                this.retried.incrementAndGet();
+                delay = RETRY_MILLIS << (message.attempts - 1);
+            }
+            queue.nextSendAt = now + delay;
+            if (queue.messages.peek() != message && message.trace != null) {
+                // sent or given up on
+                message.trace.record("slack.send", message.queuedNanos, System.nanoTime());
+                message.trace.release();
+            }
+            if (queue.messages.isEmpty()) {
+                queue.scheduled = false;
+                // keep the queue until the channel's interval has passed, so the next message still waits for it
+                this.scheduler.schedule(() -> this.removeIfIdle(message.channel.getId(), queue), delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        this.scheduler.schedule(() -> this.sendNext(queue), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void removeIfIdle(String channelId, ChannelQueue queue) {
+        synchronized (queue) {
+            if (! queue.scheduled && queue.messages.isEmpty()) {
+                queue.removed = this.channelQueues.remove(channelId, queue);
+            }
+        }
+    }
+
+    /**
+     * Sends a message and waits for Slack to acknowledge it.
+     * @return - null if the message was sent, or the error
+     */
+    private String deliver(OutgoingMessage message) {
+        try {
+            SlackMessageHandle<SlackMessageReply> handle = this.slackSession.sendMessage(message.channel, message.text);
+            if (handle == null) {
+                return null;
+            }
+            if (handle.getReply() == null) {
+                handle.waitForReply(REPLY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            SlackMessageReply reply = handle.getReply();
+            if (reply != null && ! reply.isOk()) {
+                return reply.getErrorMessage();
+            }
+            return null;
+        }
+        catch (RuntimeException ex) {
+            return ex.toString();
+        }
+    }
+
+    /**
+     * Splits a message into parts no longer than maxChars, preferably between paragraphs, then lines, then words.
+     * @param text - The message
+     * @param maxChars - The max length of a part
+     * @return - The parts
+     */
+    public static List<String> splitMessage(String text, int maxChars) {
+        List<String> parts = new ArrayList<>();
+        String remaining = text;
+        while (remaining.length() > maxChars) {
+            int end = remaining.lastIndexOf("\n\n", maxChars);
+            if (end <= 0) {
+                end = remaining.lastIndexOf('\n', maxChars);
+            }
+            if (end <= 0) {
+                end = remaining.lastIndexOf(' ', maxChars);
+            }
+            if (end <= 0) {
+                end = maxChars;
+                // don't split an emoji or other character outside the BMP
+                if (Character.isHighSurrogate(remaining.charAt(end - 1)) && end > 1) {
+                    end--;
+                }
+            }
+            parts.add(remaining.substring(0, end));
+            remaining = remaining.substring(end).replaceFirst("^\\s+", "");
+        }
+        if (remaining.length() > 0 || parts.isEmpty()) {
+            parts.add(remaining);
+        }
+        return parts;
+    }
+
+    private static class ChannelQueue {
+
+        private final Deque<OutgoingMessage> messages = new ArrayDeque<>();
+        private long nextSendAt;
+        private boolean scheduled;
+        private boolean removed;
+    }
+
+    private static class OutgoingMessage {
+
+        private final SlackChannel channel;
+        private final String text;
+        private final long queuedAt;
+        private final long queuedNanos = System.nanoTime();
+        private final RequestTrace trace;
+        private int attempts;
+
+        OutgoingMessage(SlackChannel channel, String text, long queuedAt, RequestTrace trace) {
+            this.channel = channel;
+            this.text = text;
+            this.queuedAt = queuedAt;
+            this.trace = trace;
+        }
+    }
+}
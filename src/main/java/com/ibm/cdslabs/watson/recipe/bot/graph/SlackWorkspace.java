@@ -0,0 +1,183 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ullink.slack.simpleslackapi.SlackSession;
+import com.ullink.slack.simpleslackapi.impl.SlackSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Slack workspace served by the bot, with its own session, dispatcher, user state and message rate limit.
+ * Messages are handled on a MessageDispatcher rather than on the session's websocket thread, so a user's
+ * messages are handled in order while different users are handled in parallel, and a slow or busy workspace
+ * cannot hold up the others.
+ * User IDs of named workspaces are prefixed with the workspace name so users of different workspaces
+ * never share state; the unnamed (default) workspace uses the Slack user IDs as they are.
+ */
+public class SlackWorkspace {
+
+    private final static int MAX_QUEUED_MESSAGES = 100;
+    private final static long ADMISSION_WAIT_MILLIS = 2000;
+    private final static int SENDER_THREADS = 2;
+
+    private final String name;
+    private final String slackBotId;
+    private final SlackSession slackSession;
+    private final SlackSender slackSender;
+    private final int dispatcherThreads;
+    private final QuotaScheduler messageRateLimiter;
+    private final ConcurrentHashMap<String, UserState> userStateMap = new ConcurrentHashMap<>();
+    private MessageDispatcher dispatcher;
+    private volatile String teamId;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    private static Logger logger = LoggerFactory.getLogger(SlackWorkspace.class);
+
+    /**
+     * Creates a new instance of SlackWorkspace.
+     * @param name - The name of the workspace, or null for the default workspace
+     * @param slackToken - The bot token for the workspace
+     * @param slackBotId - The ID of the bot user in the workspace
+     * @param dispatcherThreads - The number of messages from different users handled at the same time
+     * @param messagesPerSecond - The sustained rate of messages handled for the workspace
+     */
+    public SlackWorkspace(String name, String slackToken, String slackBotId, int dispatcherThreads, double messagesPerSecond) {
+        this.name = name;
+        this.slackBotId = slackBotId;
+        this.slackSession = SlackSessionFactory.createWebSocketSlackSession(slackToken);
+        this.slackSender = new SlackSender(String.format("slack-sender-%s", (name == null ? "default" : name)), this.slackSession, SENDER_THREADS);
+        this.dispatcherThreads = dispatcherThreads;
+        this.messageRateLimiter = new QuotaScheduler(messagesPerSecond, (int)Math.max(1, Math.ceil(messagesPerSecond)), 0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSlackBotId() {
+        return slackBotId;
+    }
+
+    public SlackSession getSlackSession() {
+        return slackSession;
+    }
+
+    /**
+     * @return - The Slack team ID of the workspace, or null until the session is connected
+     */
+    public String getTeamId() {
+        return teamId;
+    }
+
+    /**
+     * @return - The sender that replies to users of this workspace are queued on
+     */
+    public SlackSender getSlackSender() {
+        return slackSender;
+    }
+
+    /**
+     * @return - The state of the users of this workspace that are held on the heap, keyed by user ID
+     */
+    public ConcurrentHashMap<String, UserState> getUserStateMap() {
+        return userStateMap;
+    }
+
+    /**
+     * Gets the ID used for a Slack user of this workspace in user state and Graph.
+     * @param slackUserId - The ID of the user returned from Slack
+     * @return - The user ID, prefixed with the workspace name for named workspaces
+     */
+    public String getUserId(String slackUserId) {
+        return (this.name == null ? slackUserId : this.name + ":" + slackUserId);
+    }
+
+    /**
+     * Starts the dispatcher and connects to Slack.
+     * @param executionModel - The threads messages are handled on
+     * @throws Exception
+     */
+    public void connect(ExecutionModel executionModel) throws Exception {
+        String threadName = String.format("slack-%s", (this.name == null ? "default" : this.name));
+        this.dispatcher = new MessageDispatcher(threadName, executionModel, this.dispatcherThreads, MAX_QUEUED_MESSAGES);
+        this.dispatcher.start();
+        this.slackSender.start();
+        this.slackSession.connect();
+        if (this.slackSession.getTeam() != null) {
+            this.teamId = this.slackSession.getTeam().getId();
+        }
+        else {
+            logger.warn(String.format("No Slack team for workspace %s; not routing Slack Events API callbacks to it", this.name));
+        }
+    }
+
+    /**
+     * Disconnects from Slack and stops the dispatcher.
+     * @throws Exception
+     */
+    public void disconnect() throws Exception {
+        this.slackSession.disconnect();
+        if (this.dispatcher != null) {
+            this.dispatcher.stop();
+        }
+        this.slackSender.stop();
+    }
+
+    /**
+     * Queues a message for the specified user, to be handled after the user's earlier messages.
+     * The message is handled once the workspace's message rate limit allows it.
+     * @param slackUserId - The ID of the user returned from Slack
+     * @param handler - Handles the message
+     * @param busyHandler - Called instead of the handler if the workspace is too busy to handle the message
+     */
+    public void dispatch(String slackUserId, Runnable handler, Runnable busyHandler) {
+        boolean queued = this.dispatcher.dispatch(slackUserId, () -> {
+            if (! this.messageRateLimiter.acquire(QuotaScheduler.Priority.INTERACTIVE, ADMISSION_WAIT_MILLIS)) {
+                this.throttled.incrementAndGet();
+                busyHandler.run();
+                return;
+            }
+            this.dispatched.incrementAndGet();
+            handler.run();
+        });
+        if (! queued) {
+            logger.warn(String.format("Dispatcher queue full for workspace %s", this.name));
+            this.rejected.incrementAndGet();
+            busyHandler.run();
+        }
+    }
+
+    /**
+     * Admits a message that is handled outside the dispatcher (see SousChef.setPipelinePartitions)
+     * if the workspace's message rate limit allows it now.
+     * @return - false if the message should be refused
+     */
+    public boolean tryAdmit() {
+        if (! this.messageRateLimiter.tryAcquire(QuotaScheduler.Priority.INTERACTIVE)) {
+            this.throttled.incrementAndGet();
+            return false;
+        }
+        this.dispatched.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets the dispatcher metrics for the workspace.
+     * @return - The number of users held on the heap, messages dispatched, throttled and rejected, and the sender metrics
+     */
+    public Map<String,Object> getMetrics() {
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("users", this.userStateMap.size());
+        metrics.put("dispatched", this.dispatched.get());
+        metrics.put("throttled", this.throttled.get());
+        metrics.put("rejected", this.rejected.get());
+        metrics.put("sender", this.slackSender.getMetrics());
+        return metrics;
+    }
+}
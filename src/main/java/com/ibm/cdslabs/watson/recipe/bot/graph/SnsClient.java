@@ -54,6 +54,10 @@ public class SnsClient {
         this.postMessage("ingredient", state, String.format("%s requested recipes for cuisine \"%s\".",state.getUserId(),cuisineStr), null);
     }
 
+    public void postSearchMessage(UserState state, String query) {
+        this.postMessage("search", state, String.format("%s searched for recipes called \"%s\".",state.getUserId(),query), null);
+    }
+
     public void postRecipeMessage(UserState state, String recipeId, String recipeTitle) {
         this.postMessage("ingredient", state, String.format("%s selected recipe \"%s\".",state.getUserId(),recipeTitle), recipeId);
     }
@@ -64,12 +68,12 @@ public class SnsClient {
         }
         String ingredient = "";
         String cuisine = "";
-        if (state.getIngredientCuisine() != null) {
-            if (state.getIngredientCuisine().getLabel().equalsIgnoreCase("ingredient")) {
-                ingredient = state.getIngredientCuisine().getPropertyValue("name").toString();
+        if (state.getIngredientCuisineName() != null) {
+            if (state.getIngredientCuisineLabel().equalsIgnoreCase("ingredient")) {
+                ingredient = state.getIngredientCuisineName();
             }
             else {
-                cuisine = state.getIngredientCuisine().getPropertyValue("name").toString();
+                cuisine = state.getIngredientCuisineName();
             }
         }
         try {
@@ -91,7 +95,10 @@ public class SnsClient {
                 }});
             }};
             String url = String.format("%s/%s/notification",this.apiUrl,this.apiKey);
-            this.doHttpPost(body, url);
+            RequestTrace.span("sns." + action, () -> {
+                this.doHttpPost(body, url);
+                return null;
+            });
         }
         catch(Exception ex) {
             logger.error("Error posting message", ex);
@@ -5,60 +5,317 @@ import com.ibm.watson.developer_cloud.conversation.v1.ConversationService;
 import com.ibm.watson.developer_cloud.conversation.v1.model.MessageRequest;
 import com.ibm.watson.developer_cloud.conversation.v1.model.MessageResponse;
 import com.ullink.slack.simpleslackapi.SlackChannel;
-import com.ullink.slack.simpleslackapi.SlackSession;
 import com.ullink.slack.simpleslackapi.SlackUser;
-import com.ullink.slack.simpleslackapi.impl.SlackSessionFactory;
-import org.apache.wink.json4j.JSONArray;
-import org.apache.wink.json4j.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 /**
  * Created by markwatson on 11/11/16.
+ *
+ * The bot can serve several Slack workspaces from one process (see SlackWorkspace). Each workspace has its
+ * own session, dispatcher, user state and message rate limit; Graph, the Spoonacular client, the caches and
+ * the persistent stores are shared by all workspaces.
  */
 public class SousChef {
 
     private GraphRecipeStore recipeStore;
-    private String slackBotId;
     private String conversationWorkspaceId;
-    private SlackSession slackSession;
+    private List<SlackWorkspace> slackWorkspaces = new ArrayList<>();
     private RecipeClient recipeClient;
     private ConversationService conversationService;
     private SnsClient snsClient;
-    private HashMap<String, UserState> userStateMap = new HashMap<String, UserState>();
+    private RecipePrefetcher recipePrefetcher;
+    private UserStateSpillStore userStateSpillStore;
+    private UserStateStore userStateStore;
+    private ShardCoordinator shardCoordinator;
+    private HandoverBuffer handoverBuffer;
+    private GraphWriteJournal graphWriteJournal;
+    private RecipeDetailCache recipeDetailCache;
+    private InteractionLog interactionLog;
+    private ExecutionModel executionModel = ExecutionModel.VIRTUAL;
+    private int pipelinePartitions;
+    private MessagePipeline<PipelinedMessage> messagePipeline;
+    private TraceRecorder traceRecorder = new TraceRecorder(DEFAULT_TRACE_SLOW_MILLIS, DEFAULT_TRACE_CAPACITY);
+    private ScheduledExecutorService userStateSpiller;
+    private ScheduledExecutorService scoreBackfiller;
+    private int archiveAfterDays;
+    private ScheduledExecutorService activityArchiver;
 
-    private final static int MAX_RECIPES = 5;
+    private final static int RECIPE_PAGE_SIZE = 5;
+    private final static int MIN_RECIPES_LEFT = 3;
+    private final static int MAX_LISTED_RECIPES = 50;
+    private final static int MAX_SIMILAR_RECIPES = 3;
+    private final static Pattern SEARCH_PREFIX = Pattern.compile("^(please )?(find|search( for)?|look up|show me)( me)?( (a|the|some))?( recipes?( for| called| named)?)? ", Pattern.CASE_INSENSITIVE);
+    final static Pattern MORE_MESSAGE = Pattern.compile("(show )?(me )?(some )?(more|next)( recipes)?[.!]*", Pattern.CASE_INSENSITIVE);
+    private final static int MAX_PREFETCH_CONCURRENCY = 4;
+    private final static long PREFETCH_WAIT_MILLIS = 2000;
+    private final static long USER_STATE_IDLE_MILLIS = 5 * 60 * 1000;
+    private final static long GRAPH_JOURNAL_DRAIN_MILLIS = 5000;
+    private final static int SCORE_BACKFILL_BATCH_SIZE = 100;
+    private final static int ARCHIVE_BATCH_SIZE = 200;
+    private final static int PIPELINE_BUFFER_SIZE = 64;
+    private final static int HANDOVER_BUFFER_CAPACITY = 256;
+    private final static int DEFAULT_DISPATCHER_THREADS = 4;
+    private final static double DEFAULT_MESSAGES_PER_SECOND = 10;
+    private final static long DEFAULT_TRACE_SLOW_MILLIS = 3000;
+    private final static int DEFAULT_TRACE_CAPACITY = 100;
+    final static String BUSY_REPLY = "Sorry, I'm a little busy right now. Please try again in a moment...";
 
     private static Logger logger = LoggerFactory.getLogger(SousChef.class);
 
     public SousChef(GraphRecipeStore recipeStore, String slackToken, String slackBotId, String recipeClientApiKey, String conversationUsername, String conversationPassword, String conversationWorkspaceId, SnsClient snsClient) {
+        this(recipeStore, slackToken, slackBotId, new RecipeClient(recipeClientApiKey), conversationUsername, conversationPassword, conversationWorkspaceId, snsClient);
+    }
+
+    public SousChef(GraphRecipeStore recipeStore, String slackToken, String slackBotId, RecipeClient recipeClient, String conversationUsername, String conversationPassword, String conversationWorkspaceId, SnsClient snsClient) {
         this.recipeStore = recipeStore;
-        this.slackBotId = slackBotId;
-        this.slackSession = SlackSessionFactory.createWebSocketSlackSession(slackToken);
-        this.recipeClient = new RecipeClient(recipeClientApiKey);
+        this.slackWorkspaces.add(new SlackWorkspace(null, slackToken, slackBotId, DEFAULT_DISPATCHER_THREADS, DEFAULT_MESSAGES_PER_SECOND));
+        this.recipeClient = recipeClient;
         this.conversationService = new ConversationService(ConversationService.VERSION_DATE_2016_07_11);
         this.conversationService.setUsernameAndPassword(conversationUsername, conversationPassword);
         this.conversationWorkspaceId = conversationWorkspaceId;
         this.snsClient = snsClient;
+        this.recipePrefetcher = new RecipePrefetcher(recipeStore, recipeClient, MAX_PREFETCH_CONCURRENCY);
+    }
+
+    /**
+     * Adds a Slack workspace to be served alongside the default workspace.
+     * Must be called before run.
+     * @param slackWorkspace - The workspace
+     */
+    public void addSlackWorkspace(SlackWorkspace slackWorkspace) {
+        this.slackWorkspaces.add(slackWorkspace);
+    }
+
+    /**
+     * Gets the dispatcher metrics for each Slack workspace.
+     * @return - A map of workspace name ("default" for the default workspace) to metrics
+     */
+    public Map<String,Map<String,Object>> getSlackWorkspaceMetrics() {
+        Map<String,Map<String,Object>> metrics = new LinkedHashMap<>();
+        for (SlackWorkspace slackWorkspace : this.slackWorkspaces) {
+            metrics.put(slackWorkspace.getName() == null ? "default" : slackWorkspace.getName(), slackWorkspace.getMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * Sets the spill tier that the state of idle users is moved to, off the heap.
+     * @param userStateSpillStore - The spill store, or null to keep all user state on the heap
+     */
+    public void setUserStateSpillStore(UserStateSpillStore userStateSpillStore) {
+        this.userStateSpillStore = userStateSpillStore;
+    }
+
+    /**
+     * Sets the persistent store that user state is written through to and restored from.
+     * When the store owns only some partitions, messages from users in other partitions are ignored
+     * so they can be handled by the instance that owns them.
+     * @param userStateStore - The persistent store, or null to keep user state in memory only
+     */
+    public void setUserStateStore(UserStateStore userStateStore) {
+        this.userStateStore = userStateStore;
+    }
+
+    /**
+     * Sets the coordinator that assigns users to this instance when the bot runs as multiple instances.
+     * Messages from users assigned to other instances are ignored. When a partition moves to another
+     * instance, the state of its users is dropped from memory and the persistent store so that the
+     * new owner restores it from the store. Messages received while a partition moves are held and
+     * handled by the new owner (see HandoverBuffer).
+     * @param shardCoordinator - The coordinator, or null to handle all users in this instance
+     */
+    public void setShardCoordinator(ShardCoordinator shardCoordinator) {
+        this.shardCoordinator = shardCoordinator;
+        this.handoverBuffer = (shardCoordinator == null ? null : new HandoverBuffer(shardCoordinator.getPartitionCount(),
+                ShardCoordinator.LEASE_MILLIS + 2 * ShardCoordinator.HEARTBEAT_MILLIS, HANDOVER_BUFFER_CAPACITY));
+    }
+
+    /**
+     * Gets the metrics of the messages held while partitions move between instances (see HandoverBuffer.getMetrics).
+     * @return - The metrics, or an empty map if the bot runs as a single instance
+     */
+    public Map<String,Object> getHandoverMetrics() {
+        return (this.handoverBuffer == null ? new LinkedHashMap<>() : this.handoverBuffer.getMetrics());
+    }
+
+    /**
+     * Sets the journal that Graph writes are appended to and applied from in the background,
+     * so replies do not wait for Graph writes.
+     * @param graphWriteJournal - The journal, or null to write to Graph before replying
+     */
+    public void setGraphWriteJournal(GraphWriteJournal graphWriteJournal) {
+        this.graphWriteJournal = graphWriteJournal;
+    }
+
+    /**
+     * Sets the cache that rendered recipe details are served from before Graph is queried.
+     * @param recipeDetailCache - The cache, or null to always read recipe details from Graph
+     */
+    public void setRecipeDetailCache(RecipeDetailCache recipeDetailCache) {
+        this.recipeDetailCache = recipeDetailCache;
+    }
+
+    /**
+     * Sets the log that user interactions are recorded to for offline analytics.
+     * @param interactionLog - The log, or null to not record interactions
+     */
+    public void setInteractionLog(InteractionLog interactionLog) {
+        this.interactionLog = interactionLog;
+    }
+
+    /**
+     * Sets the threads that messages, and the blocking calls made while handling them, run on.
+     * Must be called before run.
+     * @param executionModel - The execution model (VIRTUAL by default)
+     */
+    public void setExecutionModel(ExecutionModel executionModel) {
+        this.executionModel = executionModel;
+        this.recipeClient.setExecutionModel(executionModel);
+    }
+
+    public ExecutionModel getExecutionModel() {
+        return executionModel;
+    }
+
+    /**
+     * Moves user selections and recipe details older than the specified number of days from Graph to the
+     * recipe store's archive once a day (see GraphRecipeStore.archiveActivity). The recipe store must have an
+     * archive set. When the bot runs as multiple instances, only the owner of partition 0 archives, so the
+     * archive directory should be shared by the instances. Must be called before run.
+     * @param days - The age in days after which activity is archived, or 0 to keep everything in Graph
+     */
+    public void setArchiveAfterDays(int days) {
+        this.archiveAfterDays = days;
+    }
+
+    /**
+     * Sets the recorder that the trace of each message (see RequestTrace) is handed to once its reply is delivered.
+     * By default traces of messages slower than 3 seconds are kept, 100 at most.
+     * @param traceRecorder - The trace recorder
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+    }
+
+    /**
+     * Gets the trace metrics (see TraceRecorder.getMetrics).
+     * @return - The metrics
+     */
+    public Map<String,Object> getTraceMetrics() {
+        return this.traceRecorder.getMetrics();
+    }
+
+    /**
+     * Gets the traces of the most recent slow messages, with the time spent in Conversation, Graph,
+     * Spoonacular, SNS and sending the reply.
+     * @return - The traces (see RequestTrace.toMap), most recent first
+     */
+    public List<Map<String,Object>> getSlowTraces() {
+        return this.traceRecorder.getSlowTraces();
+    }
+
+    /**
+     * Handles messages on a reactive pipeline (see MessagePipeline) instead of the workspace dispatchers.
+     * Each message goes through an NLU stage (Conversation), a handling stage (Graph, Spoonacular and rendering
+     * the reply) and a send stage, each with bounded buffers, and messages are refused with a busy reply when
+     * the pipeline is full or the workspace's message rate is exceeded. Must be called before run.
+     * @param partitions - The number of messages handled by each stage at the same time, or 0 to use the dispatchers
+     */
+    public void setPipelinePartitions(int partitions) {
+        this.pipelinePartitions = partitions;
+    }
+
+    /**
+     * Gets the reactive pipeline metrics (see MessagePipeline.getMetrics).
+     * @return - The metrics, or an empty map if messages are handled on the workspace dispatchers
+     */
+    public Map<String,Object> getPipelineMetrics() {
+        return (this.messagePipeline == null ? new LinkedHashMap<>() : this.messagePipeline.getMetrics());
     }
 
     public void run() throws Exception {
         this.recipeStore.init();
-        this.slackSession.connect();
-        this.slackSession.addMessagePostedListener((event, session) -> {
+        if (this.graphWriteJournal != null) {
+            this.graphWriteJournal.start();
+        }
+        if (this.interactionLog != null) {
+            this.interactionLog.start();
+        }
+        if (this.shardCoordinator != null) {
+            this.shardCoordinator.addPartitionListener(new ShardCoordinator.PartitionListener() {
+                @Override
+                public void partitionAcquired(int partition, long handledUntil) throws Exception {
+                    if (userStateStore != null) {
+                        userStateStore.openPartition(partition);
+                    }
+                    for (Runnable replay : handoverBuffer.acquired(partition, handledUntil)) {
+                        replay.run();
+                    }
+                }
+
+                @Override
+                public void partitionReleased(int partition) throws Exception {
+                    evictUserStates(partition);
+                }
+            });
+            this.shardCoordinator.start();
+        }
+        if (this.userStateSpillStore != null) {
+            this.userStateSpiller = Executors.newSingleThreadScheduledExecutor();
+            this.userStateSpiller.scheduleWithFixedDelay(this::spillIdleUserStates, 1, 1, TimeUnit.MINUTES);
+        }
+        // score edges written before time-decayed scores, and any written since by older instances
+        this.scoreBackfiller = Executors.newSingleThreadScheduledExecutor();
+        this.scoreBackfiller.scheduleWithFixedDelay(this::backfillDecayScores, 0, 1, TimeUnit.HOURS);
+        if (this.archiveAfterDays > 0) {
+            this.activityArchiver = Executors.newSingleThreadScheduledExecutor();
+            this.activityArchiver.scheduleWithFixedDelay(this::archiveActivity, 1, 24 * 60, TimeUnit.MINUTES);
+        }
+        if (this.pipelinePartitions > 0) {
+            this.messagePipeline = new MessagePipeline<PipelinedMessage>("message-pipeline", this.executionModel, this.pipelinePartitions, PIPELINE_BUFFER_SIZE,
+                    pipelined -> pipelined.userId,
+                    (pipelined, ex) -> {
+                        pipelined.trace.setOutcome(ex == null ? "busy" : "error");
+                        this.reply(pipelined.trace, pipelined.failureHandler);
+                    })
+                    .addStage("nlu", pipelined -> {
+                        pipelined.trace.recordSinceStart("wait");
+                        pipelined.turn = pipelined.trace.call("nlu", () -> {
+                            UserState state = this.getUserState(pipelined.slackWorkspace, pipelined.userId);
+                            return this.understandMessage(state, pipelined.message, pipelined.start);
+                        });
+                    })
+                    .addStage("handle", pipelined -> pipelined.reply = pipelined.trace.call("handle", () -> this.handleTurn(pipelined.turn)))
+                    .addStage("send", pipelined -> this.reply(pipelined.trace, () -> pipelined.replyHandler.accept(pipelined.reply)));
+            this.messagePipeline.start();
+        }
+        for (SlackWorkspace slackWorkspace : this.slackWorkspaces) {
+            this.connect(slackWorkspace);
+        }
+    }
+
+    private void connect(SlackWorkspace slackWorkspace) throws Exception {
+        slackWorkspace.connect(this.executionModel);
+        slackWorkspace.getSlackSession().addMessagePostedListener((event, session) -> {
             SlackChannel channel = event.getChannel();
             String messageContent = event.getMessageContent();
             SlackUser messageSender = event.getSender();
             if (channel.getType() == SlackChannel.SlackChannelType.INSTANT_MESSAGING) {
-                if (!messageSender.getId().equals(slackBotId)) {
-                    try {
-                        processSlackMessage(messageSender.getId(), messageContent, channel);
-                    }
-                    catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
+                if (!messageSender.getId().equals(slackWorkspace.getSlackBotId())) {
+                    SlackSender sender = slackWorkspace.getSlackSender();
+                    // every instance receives every message on the websocket, so any of them may take the user over
+                    this.dispatchMessage(slackWorkspace, messageSender.getId(), messageContent,
+                            reply -> sender.send(channel, reply),
+                            () -> sender.send(channel, BUSY_REPLY), true);
                 }
                 else {
                     // ignore messages from the bot (messages we sent)
@@ -67,52 +324,381 @@ public class SousChef {
         });
     }
 
+    /**
+     * Finds the Slack workspace with the specified name.
+     * @param name - The name of the workspace, or null for the default workspace
+     * @return - The workspace, or null if there is no workspace with the name
+     */
+    public SlackWorkspace findSlackWorkspace(String name) {
+        for (SlackWorkspace slackWorkspace : this.slackWorkspaces) {
+            if (Objects.equals(name, slackWorkspace.getName())) {
+                return slackWorkspace;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the connected Slack workspace with the specified Slack team ID.
+     * @param teamId - The team ID of the workspace, as sent in Slack Events API callbacks
+     * @return - The workspace, or null if no workspace is connected to the team
+     */
+    public SlackWorkspace findSlackWorkspaceByTeamId(String teamId) {
+        if (teamId == null) {
+            return null;
+        }
+        for (SlackWorkspace slackWorkspace : this.slackWorkspaces) {
+            if (teamId.equals(slackWorkspace.getTeamId())) {
+                return slackWorkspace;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues a message from a user for processing on the workspace's dispatcher, or on the reactive pipeline if enabled.
+     * Used for messages from the Slack websocket and from HttpIngress.
+     * @param slackWorkspace - The workspace the message was received from
+     * @param slackUserId - The ID of the user returned from Slack
+     * @param message - The message from the user
+     * @param replyHandler - Called with the reply to the message
+     * @param failureHandler - Called instead of the reply handler if the workspace is too busy or the message could not be processed
+     * @return - false if the user is handled by another instance, in which case the message is ignored; messages for
+     * users in a partition being handed over to this instance are held until it is acquired
+     */
+    public boolean dispatchMessage(SlackWorkspace slackWorkspace, String slackUserId, String message, Consumer<String> replyHandler, Runnable failureHandler) {
+        return this.dispatchMessage(slackWorkspace, slackUserId, message, replyHandler, failureHandler, false);
+    }
+
+    /**
+     * @param receivedByAllInstances - true if every instance receives the message, in which case it is held in case
+     * this instance takes the user over, even while the user is handled by another instance
+     */
+    private boolean dispatchMessage(SlackWorkspace slackWorkspace, String slackUserId, String message, Consumer<String> replyHandler, Runnable failureHandler, boolean receivedByAllInstances) {
+        String userId = slackWorkspace.getUserId(slackUserId);
+        if (! this.ownsUser(userId)) {
+            if (this.handoverBuffer == null || ! (receivedByAllInstances || this.shardCoordinator.isAssignedUser(userId))) {
+                return false;
+            }
+            boolean held = this.handoverBuffer.hold(UserStateStore.getPartition(userId, this.shardCoordinator.getPartitionCount()),
+                    () -> this.shardCoordinator.ownsUser(userId),
+                    () -> this.dispatchMessage(slackWorkspace, slackUserId, message, replyHandler, failureHandler, receivedByAllInstances));
+            if (held) {
+                return true;
+            }
+            // acquired in the meantime
+        }
+        RequestTrace trace = this.traceRecorder.begin(userId);
+        if (this.messagePipeline != null) {
+            if (! slackWorkspace.tryAdmit() || ! this.messagePipeline.submit(new PipelinedMessage(slackWorkspace, userId, message, replyHandler, failureHandler, trace))) {
+                trace.setOutcome("busy");
+                this.reply(trace, failureHandler);
+            }
+            return true;
+        }
+        slackWorkspace.dispatch(slackUserId, () -> {
+            trace.recordSinceStart("wait");
+            String reply;
+            try {
+                reply = trace.call("process", () -> this.processMessage(slackWorkspace, userId, message));
+            }
+            catch (Exception ex) {
+                logger.error(String.format("Error processing message from %s", userId), ex);
+                trace.setOutcome("error");
+                this.reply(trace, failureHandler);
+                return;
+            }
+            this.reply(trace, () -> replyHandler.accept(reply));
+        }, () -> {
+            trace.setOutcome("busy");
+            this.reply(trace, failureHandler);
+        });
+        return true;
+    }
+
+    /**
+     * Runs a reply or failure handler with the message's trace attached, so a reply queued on a SlackSender
+     * holds the trace until it is delivered, then releases the trace.
+     */
+    private void reply(RequestTrace trace, Runnable handler) {
+        try {
+            trace.call("reply", () -> {
+                handler.run();
+                return null;
+            });
+        }
+        catch (Exception ex) {
+            logger.error(String.format("Error replying to %s", trace.getUserId()), ex);
+        }
+        finally {
+            trace.release();
+        }
+    }
+
     public void stop() throws Exception {
-        this.slackSession.disconnect();
+        if (this.shardCoordinator != null) {
+            this.shardCoordinator.stop();
+        }
+        if (this.userStateSpiller != null) {
+            this.userStateSpiller.shutdownNow();
+        }
+        if (this.scoreBackfiller != null) {
+            this.scoreBackfiller.shutdownNow();
+        }
+        if (this.activityArchiver != null) {
+            this.activityArchiver.shutdownNow();
+        }
+        this.recipePrefetcher.stop();
+        for (SlackWorkspace slackWorkspace : this.slackWorkspaces) {
+            slackWorkspace.disconnect();
+        }
+        if (this.messagePipeline != null) {
+            this.messagePipeline.stop();
+        }
+        if (this.graphWriteJournal != null) {
+            this.graphWriteJournal.stop(GRAPH_JOURNAL_DRAIN_MILLIS);
+        }
+        if (this.interactionLog != null) {
+            this.interactionLog.close();
+        }
+        if (this.userStateStore != null) {
+            this.userStateStore.close();
+        }
+    }
+
+    /**
+     * Returns true if messages from the specified user are handled by this instance
+     * (users in partitions owned by other instances are handled by those instances).
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - true if this instance handles the user
+     */
+    private boolean ownsUser(String userId) {
+        if (this.shardCoordinator != null) {
+            return this.shardCoordinator.ownsUser(userId);
+        }
+        return (this.userStateStore == null || this.userStateStore.ownsUser(userId));
+    }
+
+    /**
+     * Drops the state of the users in the specified partition after it has moved to another instance.
+     * @param partition - The partition number
+     * @throws Exception
+     */
+    private void evictUserStates(int partition) throws Exception {
+        int partitionCount = (this.userStateStore != null ? this.userStateStore.getPartitionCount() : this.shardCoordinator.getPartitionCount());
+        for (SlackWorkspace slackWorkspace : this.slackWorkspaces) {
+            slackWorkspace.getUserStateMap().keySet().removeIf(userId -> UserStateStore.getPartition(userId, partitionCount) == partition);
+        }
+        if (this.userStateSpillStore != null) {
+            this.userStateSpillStore.discardIf(userId -> UserStateStore.getPartition(userId, partitionCount) == partition);
+        }
+        if (this.userStateStore != null) {
+            this.userStateStore.closePartition(partition);
+        }
+    }
+
+    private String processMessage(SlackWorkspace slackWorkspace, String messageSender, String message) throws Exception {
+        long start = System.currentTimeMillis();
+        UserState state = this.getUserState(slackWorkspace, messageSender);
+        state.getLock().lock();
+        try {
+            return this.handleTurn(this.understandMessage(state, message, start));
+        }
+        finally {
+            state.getLock().unlock();
+        }
+    }
+
+    /**
+     * Works out what the user asked for: either the next page of the listed recipes, or whatever
+     * Conversation makes of the message. Updates the user's conversation context.
+     */
+    private Turn understandMessage(UserState state, String message, long start) throws Exception {
+        state.getLock().lock();
+        try {
+            if (state.hasMoreRecipes() && MORE_MESSAGE.matcher(message.trim()).matches()) {
+                // page through the recipes already found for the user, without asking Conversation or Spoonacular
+                return new Turn(state, message, null, start);
+            }
+            MessageRequest request = new MessageRequest.Builder().inputText(message).context(state.getConversationContext()).build();
+            MessageResponse response = RequestTrace.span("conversation", () -> this.conversationService.message(this.conversationWorkspaceId, request).execute());
+            state.setConversationContext(response.getContext());
+            return new Turn(state, message, response, start);
+        }
+        finally {
+            state.getLock().unlock();
+        }
     }
 
-    private void processSlackMessage(String messageSender, String message, SlackChannel channel) throws Exception {
-        UserState state = userStateMap.get(messageSender);
+    /**
+     * Looks up, fetches and renders the reply to a message understood by understandMessage,
+     * and writes the user's state through to the persistent store.
+     */
+    private String handleTurn(Turn turn) throws Exception {
+        UserState state = turn.state;
+        String reply;
+        state.getLock().lock();
+        try {
+            if (turn.response == null) {
+                reply = this.handleMoreMessage(state, turn.start);
+            }
+            else {
+                try {
+                    reply = this.handleMessage(state, turn.response.getContext(), turn.message, turn.response, turn.start);
+                }
+                catch (RecipeClientException ex) {
+                    logger.error("Recipe service unavailable", ex);
+                    this.clearUserState(state);
+                    reply = "Sorry, I'm having trouble finding recipes right now. Say anything to start over...";
+                }
+            }
+            // the partition may have moved to another instance while the message was handled
+            if (this.userStateStore != null && this.userStateStore.ownsUser(state.getUserId())) {
+                this.userStateStore.put(state);
+            }
+        }
+        finally {
+            state.getLock().unlock();
+        }
+        return reply;
+    }
+
+    private UserState getUserState(SlackWorkspace slackWorkspace, String userId) throws Exception {
+        // states are touched, restored and added atomically for the user, as spillIdleUserStates spills them atomically,
+        // so a state is never spilled once it is returned, and a state being spilled is found in the spill tier
+        ConcurrentHashMap<String, UserState> userStateMap = slackWorkspace.getUserStateMap();
+        UserState state = userStateMap.computeIfPresent(userId, (key, current) -> touch(current));
+        if (state == null && this.userStateSpillStore != null) {
+            state = userStateMap.computeIfAbsent(userId, key -> touch(this.userStateSpillStore.restore(key)));
+        }
         if (state == null) {
-            state = new UserState(messageSender);
-            userStateMap.put(messageSender, state);
+            // read outside the map, as the persistent store may block on disk
+            UserState stored = (this.userStateStore != null ? this.userStateStore.get(userId) : null);
+            state = userStateMap.compute(userId, (key, current) -> touch(current != null ? current : (stored != null ? stored : new UserState(key))));
+        }
+        return state;
+    }
+
+    private static UserState touch(UserState state) {
+        if (state != null) {
+            state.touch();
+        }
+        return state;
+    }
+
+    private void backfillDecayScores() {
+        try {
+            int updated;
+            do {
+                updated = this.recipeStore.backfillDecayScores(SCORE_BACKFILL_BATCH_SIZE);
+            } while (updated == SCORE_BACKFILL_BATCH_SIZE && ! Thread.currentThread().isInterrupted());
+        }
+        catch (Exception ex) {
+            logger.error("Error backfilling decayed scores", ex);
+        }
+    }
+
+    private void archiveActivity() {
+        // archive once per deployment, from the instance that owns partition 0
+        if (this.shardCoordinator != null && ! this.shardCoordinator.ownsPartition(0)) {
+            return;
+        }
+        long olderThan = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(this.archiveAfterDays);
+        try {
+            int archived;
+            int batches = 0;
+            do {
+                archived = this.recipeStore.archiveActivity(olderThan, ARCHIVE_BATCH_SIZE);
+                batches++;
+            } while (archived == ARCHIVE_BATCH_SIZE && ! Thread.currentThread().isInterrupted());
+            logger.info(String.format("Archived activity older than %d days in %d batches", this.archiveAfterDays, batches));
         }
-        MessageRequest request = new MessageRequest.Builder().inputText(message).context(state.getConversationContext()).build();
-        MessageResponse response = this.conversationService.message(this.conversationWorkspaceId, request).execute();
-        state.setConversationContext(response.getContext());
+        catch (Exception ex) {
+            logger.error("Error archiving activity", ex);
+        }
+    }
+
+    private void spillIdleUserStates() {
+        long idleSince = System.currentTimeMillis() - USER_STATE_IDLE_MILLIS;
+        int spilled = 0;
+        for (SlackWorkspace slackWorkspace : this.slackWorkspaces) {
+            Map<String, UserState> userStateMap = slackWorkspace.getUserStateMap();
+            for (UserState state : userStateMap.values()) {
+                // spilled atomically for the user, so getUserState either finds the state on the heap or in the spill tier;
+                // if the spill tier is full the state is kept on the heap
+                UserState kept = userStateMap.computeIfPresent(state.getUserId(), (userId, current) ->
+                        (current == state && state.getLastActive() < idleSince && this.userStateSpillStore.spill(state) ? null : current));
+                if (kept == null) {
+                    spilled++;
+                }
+            }
+        }
+        if (spilled > 0) {
+            logger.debug(String.format("Spilled %d idle user states (%d spilled, %d bytes)", spilled, this.userStateSpillStore.size(), this.userStateSpillStore.getLiveBytes()));
+        }
+    }
+
+    private String handleMessage(UserState state, Map<String, Object> context, String message, MessageResponse response, long start) throws Exception {
         String reply;
-        if (state.getConversationContext().containsKey("is_favorites") && Boolean.TRUE.equals(state.getConversationContext().get("is_favorites"))) {
+        byte interactionType;
+        String interactionSubject = null;
+        if (context.containsKey("is_favorites") && Boolean.TRUE.equals(context.get("is_favorites"))) {
             reply = this.handleFavoritesMessage(state);
+            interactionType = InteractionLog.FAVORITES;
         }
-        else if (state.getConversationContext().containsKey("is_ingredients") && Boolean.TRUE.equals(state.getConversationContext().get("is_ingredients"))) {
+        else if (context.containsKey("is_search") && Boolean.TRUE.equals(context.get("is_search"))) {
+            String query = (context.get("search_text") != null ? context.get("search_text").toString() : SEARCH_PREFIX.matcher(message.trim()).replaceFirst(""));
+            reply = this.handleSearchMessage(state, query);
+            interactionType = InteractionLog.SEARCH;
+            interactionSubject = query;
+        }
+        else if (context.containsKey("is_ingredients") && Boolean.TRUE.equals(context.get("is_ingredients"))) {
             reply = this.handleIngredientsMessage(state, message);
+            interactionType = InteractionLog.INGREDIENT;
+            interactionSubject = message;
         }
         else if (response.getEntities() != null && response.getEntities().size() > 0 && response.getEntities().get(0).getEntity().equalsIgnoreCase("cuisine")) {
             String cuisine = response.getEntities().get(0).getValue();
             reply = this.handleCuisineMessage(state, cuisine);
+            interactionType = InteractionLog.CUISINE;
+            interactionSubject = cuisine;
         }
-        else if (state.getConversationContext().containsKey("is_selection") && Boolean.TRUE.equals(state.getConversationContext().get("is_selection"))) {
+        else if (context.containsKey("is_selection") && Boolean.TRUE.equals(context.get("is_selection"))) {
             int selection = -1;
-            if (state.getConversationContext().containsKey("selection")) {
+            if (context.containsKey("selection")) {
                 try {
-                    selection = Integer.parseInt(state.getConversationContext().get("selection").toString());
+                    selection = Integer.parseInt(context.get("selection").toString());
                 }
                 catch (Exception ex) {
                 }
             }
+            if (selection >= 1 && selection <= state.getListedRecipeCount()) {
+                interactionSubject = String.valueOf(state.getRecipeIds()[selection-1]);
+            }
             reply = this.handleSelectionMessage(state, selection);
+            interactionType = InteractionLog.SELECTION;
         }
         else {
             reply = this.handleStartMessage(state, response);
+            interactionType = InteractionLog.START;
         }
-        this.slackSession.sendMessage(channel, reply);
+        if (this.interactionLog != null) {
+            this.interactionLog.log(interactionType, state.getUserId(), interactionSubject, System.currentTimeMillis() - start);
+        }
+        return reply;
     }
 
     // Messages from Bot
 
     private String handleStartMessage(UserState state, MessageResponse response) throws Exception {
-        if (state.getUser() == null) {
-            Vertex user = this.recipeStore.addUser(state.getUserId());
+        if (state.getUserVertexId() == null) {
+            Vertex user;
+            if (this.graphWriteJournal != null) {
+                user = this.graphWriteJournal.addUser(state.getUserId());
+            }
+            else {
+                user = this.recipeStore.addUser(state.getUserId());
+            }
             state.setUser(user);
         }
         this.sendStartMessageToSns(state);
@@ -131,144 +717,162 @@ public class SousChef {
     }
 
     private String handleFavoritesMessage(UserState state) throws Exception {
-        JSONArray recipes = this.recipeStore.findFavoriteRecipesForUser(state.getUser(), MAX_RECIPES);
+        List<RecipeSummary> recipes = this.recipeStore.findFavoriteRecipesForUser(state.getUserId(), MAX_LISTED_RECIPES);
         // update state
-        state.getConversationContext().put("recipes", recipes);
+        this.setListedRecipes(state, recipes);
         state.setIngredientCuisine(null);
         // post to sns and return response
         this.snsClient.postFavoritesMessage(state);
-        return this.getRecipeListResponse(recipes);
+        return this.getRecipeListResponse(state);
+    }
+
+    private String handleSearchMessage(UserState state, String query) throws Exception {
+        // search the titles of the recipes we already have, so a search never calls Spoonacular
+        List<RecipeSummary> recipes = this.recipeStore.searchRecipes(query, MAX_LISTED_RECIPES);
+        if (recipes.isEmpty()) {
+            this.clearUserState(state);
+            return String.format("Sorry, I don't know any recipes called \"%s\" yet. Say anything to start over...", query);
+        }
+        // update state
+        this.setListedRecipes(state, recipes);
+        state.setIngredientCuisine(null);
+        // post to sns and return response
+        this.snsClient.postSearchMessage(state, query);
+        return this.getRecipeListResponse(state);
     }
 
     private String handleIngredientsMessage(UserState state, String message) throws Exception {
         // we want to get a list of recipes based on the ingredients (message)
         // first we see if we already have the ingredients in our datastore
-        JSONArray matchingRecipes;
+        List<RecipeSummary> matchingRecipes;
         String ingredientsStr = message;
         Vertex ingredient = this.recipeStore.findIngredient(ingredientsStr);
+        if (ingredient == null) {
+            // no exact match, so fall back to the closest subset or superset of ingredients we already have
+            ingredient = this.recipeStore.findClosestIngredient(ingredientsStr);
+            if (ingredient == null && this.recipeClient.isQuotaExhausted(QuotaScheduler.Priority.INTERACTIVE)) {
+                // out of Spoonacular quota, so serve any cached ingredients that overlap with the request
+                ingredient = this.recipeStore.findClosestIngredient(ingredientsStr, 0);
+            }
+            if (ingredient != null) {
+                logger.debug(String.format("Closest ingredient for %s is %s.", ingredientsStr, ingredient.getPropertyValue("name")));
+            }
+        }
         if (ingredient != null) {
             logger.debug(String.format("Ingredient exists for %s. Returning recipes from datastore.", ingredientsStr));
             // get recipes from datastore
-            matchingRecipes = new JSONArray();
-            JSONObject recipe;
-            List<String> recipeIds = new ArrayList<>();
             // get recommended recipes first
-            JSONArray recommendedRecipes = this.recipeStore.findRecommendedRecipesForIngredient(ingredientsStr, state.getUser(), MAX_RECIPES);
-            for (int i=0; i<recommendedRecipes.length(); i++) {
-                recipe = recommendedRecipes.getJSONObject(i);
-                recipe.append("recommended", true);
-                recipeIds.add(recipe.getString("id"));
-                matchingRecipes.add(recipe);
-            }
-            if (matchingRecipes.length() < MAX_RECIPES) {
-                JSONArray recipes = new JSONArray(ingredient.getPropertyValue("detail").toString());
-                for (int i=0; i<recipes.length(); i++) {
-                    recipe = recipes.getJSONObject(i);
-                    if (! recipeIds.contains(recipe.getString("id"))) {
-                        recipeIds.add(recipe.getString("id"));
-                        matchingRecipes.add(recipe);
-                        if (matchingRecipes.length() >= MAX_RECIPES) {
-                            break;
-                        }
-                    }
-                }
-            }
+            List<RecipeSummary> recommendedRecipes = this.recipeStore.findRecommendedRecipesForIngredient(ingredient, state.getUserId(), MAX_LISTED_RECIPES);
+            matchingRecipes = this.mergeRecipes(recommendedRecipes, this.recipeStore.getDetail(ingredient));
             // increment the count on the user-ingredient
-            this.recipeStore.recordIngredientRequestForUser(ingredient, state.getUser());
+            if (this.graphWriteJournal != null) {
+                this.graphWriteJournal.recordIngredientRequestForUser(ingredient.getPropertyValue("name").toString(), state.getUserId());
+            }
+            else {
+                this.recipeStore.recordIngredientRequestForUser(ingredient.getId(), state.getUserVertexId());
+            }
         }
         else {
             // we don't have the ingredients in our datastore yet, so get list of recipes from Spoonacular
             logger.debug(String.format("Ingredient does not exist for %s. Querying Spoonacular for recipes.", ingredientsStr));
             matchingRecipes = this.recipeClient.findByIngredients(ingredientsStr);
             // add ingredient to datastore
-            ingredient = this.recipeStore.addIngredient(ingredientsStr, matchingRecipes, state.getUser());
+            if (this.graphWriteJournal != null) {
+                ingredient = this.graphWriteJournal.addIngredient(ingredientsStr, matchingRecipes, state.getUserId());
+            }
+            else {
+                ingredient = this.recipeStore.addIngredient(ingredientsStr, matchingRecipes, state.getUserVertexId());
+            }
         }
         // update state
-        state.getConversationContext().put("recipes", matchingRecipes);
+        this.setListedRecipes(state, matchingRecipes);
         state.setIngredientCuisine(ingredient);
         // post to sns and return response
         this.snsClient.postIngredientMessage(state, ingredientsStr);
-        return this.getRecipeListResponse(matchingRecipes);
+        return this.getRecipeListResponse(state);
     }
 
     private String handleCuisineMessage(UserState state, String message) throws Exception {
         // we want to get a list of recipes based on the cuisine (message)
         // first we see if we already have the cuisine in our datastore
-        JSONArray matchingRecipes = null;
+        List<RecipeSummary> matchingRecipes;
         String cuisineStr = message;
         Vertex cuisine = this.recipeStore.findCuisine(cuisineStr);
         if (cuisine != null) {
             logger.debug(String.format("Cuisine exists for %s. Returning recipes from datastore.", cuisineStr));
             // get recipes from datastore
-            matchingRecipes = new JSONArray();
-            JSONObject recipe;
-            List<String> recipeIds = new ArrayList<>();
             // get recommended recipes first
-            JSONArray recommendedRecipes = this.recipeStore.findRecommendedRecipesForCuisine(cuisineStr, state.getUser(), MAX_RECIPES);
-            for (int i=0; i<recommendedRecipes.length(); i++) {
-                recipe = recommendedRecipes.getJSONObject(i);
-                recipe.append("recommended", true);
-                recipeIds.add(recipe.getString("id"));
-                matchingRecipes.add(recipe);
-            }
-            if (matchingRecipes.length() < MAX_RECIPES) {
-                JSONArray recipes = new JSONArray(cuisine.getPropertyValue("detail").toString());
-                for (int i=0; i<recipes.length(); i++) {
-                    recipe = recipes.getJSONObject(i);
-                    if (! recipeIds.contains(recipe.getString("id"))) {
-                        recipeIds.add(recipe.getString("id"));
-                        matchingRecipes.add(recipe);
-                        if (matchingRecipes.length() >= MAX_RECIPES) {
-                            break;
-                        }
-                    }
-                }
-            }
+            List<RecipeSummary> recommendedRecipes = this.recipeStore.findRecommendedRecipesForCuisine(cuisineStr, state.getUserId(), MAX_LISTED_RECIPES);
+            matchingRecipes = this.mergeRecipes(recommendedRecipes, this.recipeStore.getDetail(cuisine));
             // increment the count on the user-cuisine
-            this.recipeStore.recordCuisineRequestForUser(cuisine, state.getUser());
+            if (this.graphWriteJournal != null) {
+                this.graphWriteJournal.recordCuisineRequestForUser(cuisine.getPropertyValue("name").toString(), state.getUserId());
+            }
+            else {
+                this.recipeStore.recordCuisineRequestForUser(cuisine.getId(), state.getUserVertexId());
+            }
         }
         else {
             // we don't have the cuisine in our datastore yet, so get list of recipes from Spoonacular
             logger.debug(String.format("Cuisine does not exist for %s. Querying Spoonacular for recipes.", cuisineStr));
             matchingRecipes = this.recipeClient.findByCuisine(cuisineStr);
             // add cuisine to datastore
-            cuisine = this.recipeStore.addCuisine(cuisineStr, matchingRecipes, state.getUser());
+            if (this.graphWriteJournal != null) {
+                cuisine = this.graphWriteJournal.addCuisine(cuisineStr, matchingRecipes, state.getUserId());
+            }
+            else {
+                cuisine = this.recipeStore.addCuisine(cuisineStr, matchingRecipes, state.getUserVertexId());
+            }
         }
         // update state
-        state.getConversationContext().put("recipes", matchingRecipes);
+        this.setListedRecipes(state, matchingRecipes);
         state.setIngredientCuisine(cuisine);
         // post to sns and return response
         this.snsClient.postCuisineMessage(state, cuisineStr);
-        return this.getRecipeListResponse(matchingRecipes);
+        return this.getRecipeListResponse(state);
+    }
+
+    private String handleMoreMessage(UserState state, long start) throws Exception {
+        String reply = this.getRecipeListResponse(state);
+        if (this.interactionLog != null) {
+            this.interactionLog.log(InteractionLog.MORE, state.getUserId(), null, System.currentTimeMillis() - start);
+        }
+        return reply;
     }
 
-    private String handleSelectionMessage(UserState state, int selection) throws Exception {
-        if (selection >= 1 && selection <= MAX_RECIPES) {
+    String handleSelectionMessage(UserState state, int selection) throws Exception {
+        if (selection >= 1 && selection <= state.getListedRecipeCount()) {
             // we want to get a the recipe based on the selection
-            // first we see if we already have the recipe in our datastore
-            ArrayList recipes = (ArrayList)state.getConversationContext().get("recipes");
-            String recipeId = String.valueOf((int)Double.parseDouble(((AbstractMap)recipes.get(selection-1)).get("id").toString()));
+            // first we see if we already have the recipe in our cache or datastore
+            String recipeId = String.valueOf(state.getRecipeIds()[selection-1]);
+            String recipeTitle;
             String recipeDetail;
-            Vertex recipe = this.recipeStore.findRecipe(recipeId);
-            if (recipe != null) {
-                logger.debug(String.format("Recipe exists for %s. Returning recipe steps from datastore.", recipeId));
-                recipeDetail = recipe.getPropertyValue("detail").toString();
+            RecipeDetailCache.CachedRecipe cached = (this.recipeDetailCache != null ? this.recipeDetailCache.get(recipeId) : null);
+            if (cached != null && (this.graphWriteJournal != null || cached.getVertexId() != null)) {
+                logger.debug(String.format("Recipe cached for %s. Returning cached recipe steps.", recipeId));
+                recipeTitle = cached.getTitle();
+                recipeDetail = cached.getDetail();
                 // increment the count on the ingredient/cuisine-recipe and the user-recipe
-                this.recipeStore.recordRecipeRequestForUser(recipe, state.getIngredientCuisine(), state.getUser());
+                if (this.graphWriteJournal != null) {
+                    this.graphWriteJournal.recordRecipeRequestForUser(recipeId, state.getIngredientCuisineLabel(), state.getIngredientCuisineName(), state.getUserId());
+                }
+                else {
+                    this.recipeStore.recordRecipeRequestForUser(cached.getVertexId(), recipeId, recipeTitle, state.getIngredientCuisineVertexId(), state.getUserVertexId());
+                }
             }
             else {
-                logger.debug(String.format("Recipe does not exist for %s. Querying Spoonacular for details.", recipeId));
-                JSONObject recipeInfo = this.recipeClient.getInfoById(recipeId);
-                JSONArray recipeSteps = this.recipeClient.getStepsById(recipeId);
-                recipeDetail = this.getRecipeInstructionsResponse(recipeInfo, recipeSteps);
-                // add recipe to datastore
-                recipe = this.recipeStore.addRecipe(recipeId, recipeInfo.getString("title"), recipeDetail, state.getIngredientCuisine(), state.getUser());
+                Vertex recipe = this.findOrAddRecipe(state, recipeId);
+                recipeTitle = recipe.getPropertyValue("title").toString();
+                recipeDetail = this.recipeStore.getDetail(recipe);
+                if (this.recipeDetailCache != null) {
+                    this.recipeDetailCache.put(recipeId, recipe.getId(), recipeTitle, recipeDetail);
+                }
             }
             // post to sns and clear state
-            this.snsClient.postRecipeMessage(state, recipeId, recipe.getPropertyValue("title").toString());
+            this.snsClient.postRecipeMessage(state, recipeId, recipeTitle);
             this.clearUserState(state);
             // return response
-            return recipeDetail;
+            return recipeDetail + this.getSimilarRecipesResponse(recipeId);
         }
         else {
             // clear state and return response
@@ -277,42 +881,152 @@ public class SousChef {
         }
     }
 
+    private Vertex findOrAddRecipe(UserState state, String recipeId) throws Exception {
+        // use the recipe resolved in the background when the list was shown, if available
+        RecipePrefetcher.PrefetchedRecipe prefetched = this.recipePrefetcher.get(state.getUserId(), recipeId, PREFETCH_WAIT_MILLIS);
+        Vertex recipe = (prefetched != null ? prefetched.getVertex() : null);
+        if (recipe == null && (prefetched == null || prefetched.getDetail() == null)) {
+            recipe = this.recipeStore.findRecipe(recipeId);
+        }
+        if (recipe != null) {
+            logger.debug(String.format("Recipe exists for %s. Returning recipe steps from datastore.", recipeId));
+            // increment the count on the ingredient/cuisine-recipe and the user-recipe
+            if (this.graphWriteJournal != null) {
+                this.graphWriteJournal.recordRecipeRequestForUser(recipeId, state.getIngredientCuisineLabel(), state.getIngredientCuisineName(), state.getUserId());
+            }
+            else {
+                this.recipeStore.recordRecipeRequestForUser(recipe, state.getIngredientCuisineVertexId(), state.getUserVertexId());
+            }
+        }
+        else {
+            RecipeDetail recipeInfo;
+            if (prefetched != null && prefetched.getDetail() != null) {
+                logger.debug(String.format("Recipe does not exist for %s. Using prefetched details.", recipeId));
+                recipeInfo = prefetched.getDetail();
+            }
+            else {
+                logger.debug(String.format("Recipe does not exist for %s. Querying Spoonacular for details.", recipeId));
+                recipeInfo = this.recipeClient.getInfoById(recipeId).withSteps(this.recipeClient.getStepsById(recipeId));
+            }
+            String recipeDetail = this.getRecipeInstructionsResponse(recipeInfo);
+            // add recipe to datastore
+            if (this.graphWriteJournal != null) {
+                recipe = this.graphWriteJournal.addRecipe(recipeId, recipeInfo.getTitle(), recipeDetail, state.getIngredientCuisineLabel(), state.getIngredientCuisineName(), state.getUserId());
+            }
+            else {
+                recipe = this.recipeStore.addRecipe(recipeId, recipeInfo.getTitle(), recipeDetail, state.getIngredientCuisineVertexId(), state.getUserVertexId());
+            }
+        }
+        return recipe;
+    }
+
+    /**
+     * Merges the recommended recipes with the recipes stored for an ingredient or cuisine, recommended recipes first,
+     * skipping stored recipes that are already recommended.
+     */
+    private List<RecipeSummary> mergeRecipes(List<RecipeSummary> recommendedRecipes, String storedRecipes) throws Exception {
+        LinkedHashMap<Integer, RecipeSummary> recipes = new LinkedHashMap<>();
+        for (RecipeSummary recipe : recommendedRecipes) {
+            recipes.putIfAbsent(recipe.getId(), recipe);
+        }
+        for (RecipeSummary recipe : RecipeJson.readSummaries(storedRecipes)) {
+            if (recipes.size() >= MAX_LISTED_RECIPES) {
+                break;
+            }
+            recipes.putIfAbsent(recipe.getId(), recipe);
+        }
+        return new ArrayList<>(recipes.values());
+    }
+
+    private void setListedRecipes(UserState state, List<RecipeSummary> recipes) throws Exception {
+        int count = Math.min(recipes.size(), MAX_LISTED_RECIPES);
+        int[] recipeIds = new int[count];
+        String[] recipeTitles = new String[count];
+        int[] recipeUserCounts = new int[count];
+        for (int i = 0; i < count; i++) {
+            RecipeSummary recipe = recipes.get(i);
+            recipeIds[i] = recipe.getId();
+            recipeTitles[i] = recipe.getTitle();
+            recipeUserCounts[i] = recipe.getRecommendedUserCount();
+        }
+        state.setRecipes(recipeIds, recipeTitles, recipeUserCounts);
+    }
+
+    private void prefetchRecipes(UserState state, int from, int to) {
+        List<String> recipeIds = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            int recipeId = state.getRecipeIds()[i];
+            // cached recipes are served without Graph or Spoonacular calls, so they are not prefetched
+            if (this.recipeDetailCache == null || ! this.recipeDetailCache.contains(String.valueOf(recipeId))) {
+                recipeIds.add(String.valueOf(recipeId));
+            }
+        }
+        this.recipePrefetcher.prefetch(state.getUserId(), recipeIds);
+    }
+
     private void clearUserState(UserState state) {
+        this.recipePrefetcher.cancel(state.getUserId());
         state.setIngredientCuisine(null);
+        state.setRecipes(null, null, null);
         state.setConversationContext(null);
         state.setConversationStarted(false);
     }
 
-    private String getRecipeListResponse(JSONArray recipes) throws Exception {
-        String response = "Let's see here...\nI've found these recipes: \n";
-        JSONObject recipe;
-        for (int i = 0; i < recipes.length(); i++) {
-            recipe = recipes.getJSONObject(i);
-            response += (i + 1) + ". " + recipe.getString("title");
-            if (recipe.has("recommended")) {
-                int users = recipe.getInt("recommendedUserCount");
+    /**
+     * Lists the next page of the recipes found for the user. A page is extended to the end of the results
+     * when only a few recipes would be left for another page.
+     */
+    String getRecipeListResponse(UserState state) throws Exception {
+        int from = state.getListedRecipeCount();
+        int total = state.getRecipeIds().length;
+        int to = Math.min(from + RECIPE_PAGE_SIZE, total);
+        if (total - to < MIN_RECIPES_LEFT) {
+            to = total;
+        }
+        state.setListedRecipeCount(to);
+        this.prefetchRecipes(state, from, to);
+        String response = (from == 0 ? "Let's see here...\nI've found these recipes: \n" : "Here are some more recipes: \n");
+        for (int i = from; i < to; i++) {
+            response += (i + 1) + ". " + state.getRecipeTitles()[i];
+            int users = state.getRecipeUserCounts()[i];
+            if (users > 0) {
                 String s1 = (users==1?"":"s");
                 String s2 = (users==1?"s":"");
                 response += " *(" + users + " other user" + s1 + " like" + s2 + " this)";
             }
             response += "\n";
         }
-        response += "\nPlease enter the corresponding number of your choice.";
+        if (state.hasMoreRecipes()) {
+            response += String.format("\nPlease enter the corresponding number of your choice, or say \"more\" to see %d more recipes.", total - to);
+        }
+        else {
+            response += "\nPlease enter the corresponding number of your choice.";
+        }
         return response;
     }
 
-    private String getRecipeInstructionsResponse(JSONObject recipeInfo, JSONArray recipeSteps) throws Exception {
+    private String getSimilarRecipesResponse(String recipeId) throws Exception {
+        String response = "";
+        for (RecipeSummary recipe : this.recipeStore.findSimilarRecipes(recipeId, MAX_SIMILAR_RECIPES)) {
+            if (recipe.getTitle() != null) {
+                response += (response.length() == 0 ? "\n\nUsers who made this also liked: " : ", ") + "*" + recipe.getTitle() + "*";
+            }
+        }
+        return response;
+    }
+
+    private String getRecipeInstructionsResponse(RecipeDetail recipeInfo) throws Exception {
         String response = "Ok, it takes *";
-        response += recipeInfo.get("readyInMinutes").toString() + "* minutes to make *";
-        response += recipeInfo.get("servings").toString() + "* servings of *";
-        response += recipeInfo.getString("title") + "*. Here are the steps:\n\n";
-        if (recipeSteps != null && recipeSteps.length() > 0) {
-            for (int i=0; i<recipeSteps.length(); i++) {
-                JSONObject step = recipeSteps.getJSONObject(i);
+        response += recipeInfo.getReadyInMinutes() + "* minutes to make *";
+        response += recipeInfo.getServings() + "* servings of *";
+        response += recipeInfo.getTitle() + "*. Here are the steps:\n\n";
+        List<RecipeStep> recipeSteps = recipeInfo.getSteps();
+        if (recipeSteps.size() > 0) {
+            for (int i=0; i<recipeSteps.size(); i++) {
+                RecipeStep step = recipeSteps.get(i);
                 String equipStr = "";
-                JSONArray equipArray = step.getJSONArray("equipment");
-                for (int j=0; j<equipArray.length(); j++) {
-                    equipStr += String.format("%s,",equipArray.getJSONObject(j).getString("name"));
+                for (String equipment : step.getEquipment()) {
+                    equipStr += String.format("%s,",equipment);
                 }
                 if (equipStr.length() == 0) {
                     equipStr = "None";
@@ -322,7 +1036,7 @@ public class SousChef {
                 }
                 response += String.format("*Step %d*:\n",(i+1));
                 response += String.format("_Equipment_: %s\n",equipStr);
-                response += String.format("_Action_: %s\n\n",step.getString("step"));
+                response += String.format("_Action_: %s\n\n",step.getStep());
             }
         }
         else {
@@ -331,4 +1045,46 @@ public class SousChef {
         response += "*Say anything to me to start over...*";
         return response;
     }
+    /**
+     * A message together with what understandMessage made of it.
+     */
+    private static class Turn {
+
+        private final UserState state;
+        private final String message;
+        private final MessageResponse response;
+        private final long start;
+
+        Turn(UserState state, String message, MessageResponse response, long start) {
+            this.state = state;
+            this.message = message;
+            this.response = response;
+            this.start = start;
+        }
+    }
+
+    /**
+     * A message moving through the reactive pipeline.
+     */
+    private static class PipelinedMessage {
+
+        private final SlackWorkspace slackWorkspace;
+        private final String userId;
+        private final String message;
+        private final Consumer<String> replyHandler;
+        private final Runnable failureHandler;
+        private final RequestTrace trace;
+        private final long start = System.currentTimeMillis();
+        private Turn turn;
+        private String reply;
+
+        PipelinedMessage(SlackWorkspace slackWorkspace, String userId, String message, Consumer<String> replyHandler, Runnable failureHandler, RequestTrace trace) {
+            this.slackWorkspace = slackWorkspace;
+            this.userId = userId;
+            this.message = message;
+            this.replyHandler = replyHandler;
+            this.failureHandler = failureHandler;
+            this.trace = trace;
+        }
+    }
 }
\ No newline at end of file
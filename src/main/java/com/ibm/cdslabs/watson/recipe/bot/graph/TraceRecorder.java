@@ -0,0 +1,100 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects finished request traces (see RequestTrace) for tail latency diagnosis.
+ * Every trace is counted, and traces slower than a threshold are kept in a ring buffer, so the most recent
+ * slow messages can be dumped on demand with a breakdown of where their time went.
+ */
+public class TraceRecorder {
+
+    private final long slowMillis;
+    private final RequestTrace[] slowTraces;
+    private int nextSlowTrace;
+    private final AtomicLong traced = new AtomicLong();
+    private final AtomicLong slow = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    private static Logger logger = LoggerFactory.getLogger(TraceRecorder.class);
+
+    /**
+     * Creates a new instance of TraceRecorder.
+     * @param slowMillis - The time from receiving a message to delivering its reply above which its trace is kept
+     * @param capacity - The number of slow traces kept; older ones are overwritten
+     */
+    public TraceRecorder(long slowMillis, int capacity) {
+        this.slowMillis = slowMillis;
+        this.slowTraces = new RequestTrace[capacity];
+    }
+
+    /**
+     * Starts a trace for a message, held once by the caller.
+     * @param userId - The ID of the user that sent the message
+     * @return - The trace
+     */
+    public RequestTrace begin(String userId) {
+        return new RequestTrace(this, userId);
+    }
+
+    /**
+     * Called by a trace when it is finished.
+     * @param trace - The trace
+     */
+    void record(RequestTrace trace) {
+        long millis = trace.getTotalMillis();
+        this.traced.incrementAndGet();
+        this.totalMillis.addAndGet(millis);
+        this.maxMillis.accumulateAndGet(millis, Math::max);
+        if (millis >= this.slowMillis) {
+            this.slow.incrementAndGet();
+            logger.debug(String.format("Slow message from %s took %d ms (%s)", trace.getUserId(), millis, trace.getOutcome()));
+            synchronized (this.slowTraces) {
+                this.slowTraces[this.nextSlowTrace] = trace;
+                this.nextSlowTrace = (this.nextSlowTrace + 1) % this.slowTraces.length;
+            }
+        }
+    }
+
+    /**
+     * Gets the slow traces in the ring buffer.
+     * @return - The traces (see RequestTrace.toMap), most recent first
+     */
+    public List<Map<String,Object>> getSlowTraces() {
+        List<RequestTrace> traces = new ArrayList<>();
+        synchronized (this.slowTraces) {
+            for (int i = 1; i <= this.slowTraces.length; i++) {
+                RequestTrace trace = this.slowTraces[Math.floorMod(this.nextSlowTrace - i, this.slowTraces.length)];
+                if (trace != null) {
+                    traces.add(trace);
+                }
+            }
+        }
+        List<Map<String,Object>> dump = new ArrayList<>();
+        for (RequestTrace trace : traces) {
+            dump.add(trace.toMap());
+        }
+        return dump;
+    }
+
+    /**
+     * Gets the trace metrics.
+     * @return - The number of messages traced and slow, the mean and max time from receiving a message to
+     * delivering its reply, and the slow threshold
+     */
+    public Map<String,Object> getMetrics() {
+        long traced = this.traced.get();
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("traced", traced);
+        metrics.put("slow", this.slow.get());
+        metrics.put("meanMillis", (traced == 0 ? 0 : this.totalMillis.get() / traced));
+        metrics.put("maxMillis", this.maxMillis.get());
+        metrics.put("slowMillis", this.slowMillis);
+        return metrics;
+    }
+}
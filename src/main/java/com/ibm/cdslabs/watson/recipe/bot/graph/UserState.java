@@ -2,49 +2,162 @@ package com.ibm.cdslabs.watson.recipe.bot.graph;
 
 import com.ibm.graph.client.Vertex;
 
+import java.io.*;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by markwatson on 11/14/16.
+ *
+ * Holds only what is needed to continue a conversation: Graph vertex IDs instead of Vertex objects,
+ * the recipes found for the user as parallel primitive/String arrays with a cursor marking how many
+ * have been listed so far, and the Conversation context encoded with ContextCodec. A UserState can be serialized with toBytes to be spilled out of the heap.
  */
 public class UserState {
 
+    public final static byte NONE = 0;
+    public final static byte INGREDIENT = 1;
+    public final static byte CUISINE = 2;
+
+    private final static String[] LABELS = new String[]{null, "ingredient", "cuisine"};
+    private final static int[] NO_RECIPE_IDS = new int[0];
+    private final static String[] NO_RECIPE_TITLES = new String[0];
+
     private String userId;
-    private Vertex user;
-    private Vertex ingredientCuisine;
-    private Map<String,Object> conversationContext;
+    private long userVertexId;
+    private long ingredientCuisineVertexId;
+    private byte ingredientCuisineType = NONE;
+    private String ingredientCuisineName;
+    private int[] recipeIds = NO_RECIPE_IDS;
+    private String[] recipeTitles = NO_RECIPE_TITLES;
+    private int[] recipeUserCounts = NO_RECIPE_IDS;
+    private int listedRecipeCount;
+    private byte[] conversationContext;
     private boolean conversationStarted;
+    private long lastActive = System.currentTimeMillis();
+    private final ReentrantLock lock = new ReentrantLock();
 
     public UserState(String userId) {
         this.userId = userId;
     }
 
+    /**
+     * Gets the lock held while a message from the user is handled, so messages from the same user are handled
+     * one at a time. A ReentrantLock rather than the UserState monitor, so a virtual thread blocked on
+     * Conversation or Spoonacular while holding it does not pin its carrier thread. Not serialized.
+     * @return - The lock
+     */
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
     public String getUserId() {
         return userId;
     }
 
-    public Vertex getUser() {
-        return user;
+    /**
+     * @return - The ID of the user vertex in Graph, or null if the user has not been added to Graph
+     */
+    public Object getUserVertexId() {
+        return (userVertexId == 0 ? null : userVertexId);
     }
 
     public void setUser(Vertex user) {
-        this.user = user;
+        this.userVertexId = (user == null || user.getId() == null ? 0 : Long.parseLong(user.getId().toString()));
+    }
+
+    /**
+     * @return - The ID of the selected ingredient or cuisine vertex in Graph, or null if none is selected
+     * (or the selected vertex has not been added to Graph yet)
+     */
+    public Object getIngredientCuisineVertexId() {
+        return (ingredientCuisineType == NONE || ingredientCuisineVertexId == 0 ? null : ingredientCuisineVertexId);
+    }
+
+    /**
+     * @return - "ingredient" or "cuisine", or null if none is selected
+     */
+    public String getIngredientCuisineLabel() {
+        return LABELS[ingredientCuisineType];
     }
 
-    public Vertex getIngredientCuisine() {
-        return ingredientCuisine;
+    /**
+     * @return - The unique name of the selected ingredient or cuisine, or null if none is selected
+     */
+    public String getIngredientCuisineName() {
+        return ingredientCuisineName;
     }
 
     public void setIngredientCuisine(Vertex ingredientCuisine) {
-        this.ingredientCuisine = ingredientCuisine;
+        if (ingredientCuisine == null) {
+            this.ingredientCuisineType = NONE;
+            this.ingredientCuisineVertexId = 0;
+            this.ingredientCuisineName = null;
+        }
+        else {
+            this.ingredientCuisineType = (ingredientCuisine.getLabel().equalsIgnoreCase("ingredient") ? INGREDIENT : CUISINE);
+            this.ingredientCuisineVertexId = (ingredientCuisine.getId() == null ? 0 : Long.parseLong(ingredientCuisine.getId().toString()));
+            this.ingredientCuisineName = ingredientCuisine.getPropertyValue("name").toString();
+        }
+    }
+
+    public int[] getRecipeIds() {
+        return recipeIds;
+    }
+
+    public String[] getRecipeTitles() {
+        return recipeTitles;
+    }
+
+    /**
+     * @return - The number of other users that selected each recipe (0 for recipes that are not recommended)
+     */
+    public int[] getRecipeUserCounts() {
+        return recipeUserCounts;
+    }
+
+    /**
+     * Sets the recipes found for the user, none of which have been listed yet.
+     * @param recipeIds - The IDs of the recipes in the order they are to be listed
+     * @param recipeTitles - The titles of the recipes in the order they are to be listed
+     * @param recipeUserCounts - The number of other users that selected each recipe, or null if none are recommended
+     */
+    public void setRecipes(int[] recipeIds, String[] recipeTitles, int[] recipeUserCounts) {
+        this.recipeIds = (recipeIds == null ? NO_RECIPE_IDS : recipeIds);
+        this.recipeTitles = (recipeTitles == null ? NO_RECIPE_TITLES : recipeTitles);
+        this.recipeUserCounts = (recipeUserCounts == null ? new int[this.recipeIds.length] : recipeUserCounts);
+        this.listedRecipeCount = 0;
+    }
+
+    /**
+     * @return - The number of recipes listed to the user so far; the user can select any of them
+     */
+    public int getListedRecipeCount() {
+        return listedRecipeCount;
+    }
+
+    public void setListedRecipeCount(int listedRecipeCount) {
+        this.listedRecipeCount = Math.min(listedRecipeCount, this.recipeIds.length);
+    }
+
+    /**
+     * @return - true if some of the recipes found for the user have not been listed yet
+     */
+    public boolean hasMoreRecipes() {
+        return listedRecipeCount < recipeIds.length;
     }
 
+    /**
+     * Decodes the Conversation context. Each call returns a new map, so callers should
+     * decode once per message and call setConversationContext to store changes.
+     * @return - The Conversation context, or null if there is none
+     */
     public Map<String, Object> getConversationContext() {
-        return conversationContext;
+        return ContextCodec.decode(conversationContext);
     }
 
     public void setConversationContext(Map<String, Object> conversationContext) {
-        this.conversationContext = conversationContext;
+        this.conversationContext = ContextCodec.encode(conversationContext);
     }
 
     public boolean isConversationStarted() {
@@ -54,4 +167,99 @@ public class UserState {
     public void setConversationStarted(boolean conversationStarted) {
         this.conversationStarted = conversationStarted;
     }
+
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    public void touch() {
+        this.lastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * Serializes this UserState.
+     * @return - The serialized state
+     */
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + (conversationContext == null ? 0 : conversationContext.length));
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(userId);
+            out.writeLong(userVertexId);
+            out.writeByte(ingredientCuisineType);
+            if (ingredientCuisineType != NONE) {
+                out.writeLong(ingredientCuisineVertexId);
+                out.writeUTF(ingredientCuisineName);
+            }
+            out.writeShort(recipeIds.length);
+            for (int i = 0; i < recipeIds.length; i++) {
+                out.writeInt(recipeIds[i]);
+                out.writeUTF(recipeTitles[i] == null ? "" : recipeTitles[i]);
+            }
+            out.writeInt(conversationContext == null ? -1 : conversationContext.length);
+            if (conversationContext != null) {
+                out.write(conversationContext);
+            }
+            out.writeBoolean(conversationStarted);
+            out.writeLong(lastActive);
+            out.writeShort(listedRecipeCount);
+            for (int i = 0; i < recipeIds.length; i++) {
+                out.writeInt(recipeUserCounts[i]);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Deserializes a UserState serialized with toBytes.
+     * @param bytes - The serialized state
+     * @return - The UserState
+     */
+    public static UserState fromBytes(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            UserState state = new UserState(in.readUTF());
+            state.userVertexId = in.readLong();
+            state.ingredientCuisineType = in.readByte();
+            if (state.ingredientCuisineType != NONE) {
+                state.ingredientCuisineVertexId = in.readLong();
+                state.ingredientCuisineName = in.readUTF();
+            }
+            int recipeCount = in.readShort();
+            if (recipeCount > 0) {
+                state.recipeIds = new int[recipeCount];
+                state.recipeTitles = new String[recipeCount];
+                for (int i = 0; i < recipeCount; i++) {
+                    state.recipeIds[i] = in.readInt();
+                    state.recipeTitles[i] = in.readUTF();
+                }
+            }
+            int contextLength = in.readInt();
+            if (contextLength >= 0) {
+                state.conversationContext = new byte[contextLength];
+                in.readFully(state.conversationContext);
+            }
+            state.conversationStarted = in.readBoolean();
+            state.lastActive = in.readLong();
+            state.recipeUserCounts = new int[state.recipeIds.length];
+            if (in.available() > 0) {
+                state.listedRecipeCount = in.readShort();
+                for (int i = 0; i < recipeCount; i++) {
+                    state.recipeUserCounts[i] = in.readInt();
+                }
+            }
+            else {
+                // serialized before results were paged, when every recipe was listed at once
+                state.listedRecipeCount = state.recipeIds.length;
+            }
+            return state;
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
 }
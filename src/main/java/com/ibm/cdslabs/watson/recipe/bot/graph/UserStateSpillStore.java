@@ -0,0 +1,149 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Off-heap spill tier for the state of idle users.
+ * Serialized UserStates are appended to a fixed-size memory-mapped file (or a direct buffer when no
+ * file is given) and located through a small heap index of offset and length per user.
+ * When the arena is full, live entries are compacted to the start of the arena.
+ */
+public class UserStateSpillStore {
+
+    private final ByteBuffer arena;
+    private final HashMap<String, long[]> index = new HashMap<>();
+    private int position;
+    private long liveBytes;
+
+    private static Logger logger = LoggerFactory.getLogger(UserStateSpillStore.class);
+
+    /**
+     * Creates a new instance of UserStateSpillStore.
+     * @param file - The file to map, or null to use a direct (off-heap) buffer
+     * @param capacity - The size of the arena in bytes
+     * @throws IOException
+     */
+    public UserStateSpillStore(File file, int capacity) throws IOException {
+        if (file == null) {
+            this.arena = ByteBuffer.allocateDirect(capacity);
+        }
+        else {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                this.arena = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+    }
+
+    /**
+     * Moves the specified state into the spill tier, replacing any earlier spilled state for the user.
+     * @param state - The state to spill
+     * @return - true if the state was spilled, false if the arena is full
+     */
+    public synchronized boolean spill(UserState state) {
+        byte[] bytes = state.toBytes();
+        this.discard(state.getUserId());
+        if (this.position + bytes.length > this.arena.capacity()) {
+            this.compact();
+            if (this.position + bytes.length > this.arena.capacity()) {
+                return false;
+            }
+        }
+        ByteBuffer target = this.arena.duplicate();
+        target.position(this.position);
+        target.put(bytes);
+        this.index.put(state.getUserId(), new long[]{this.position, bytes.length});
+        this.position += bytes.length;
+        this.liveBytes += bytes.length;
+        return true;
+    }
+
+    /**
+     * Removes the spilled state for the specified user from the spill tier.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - The spilled state, or null if the user's state is not spilled
+     */
+    public synchronized UserState restore(String userId) {
+        long[] entry = this.index.remove(userId);
+        if (entry == null) {
+            return null;
+        }
+        byte[] bytes = new byte[(int)entry[1]];
+        ByteBuffer source = this.arena.duplicate();
+        source.position((int)entry[0]);
+        source.get(bytes);
+        this.liveBytes -= bytes.length;
+        if (this.index.isEmpty()) {
+            this.position = 0;
+        }
+        return UserState.fromBytes(bytes);
+    }
+
+    /**
+     * Discards the spilled state of the users matching the specified predicate.
+     * @param userIds - Returns true for the IDs of the users to discard
+     * @return - The number of states discarded
+     */
+    public synchronized int discardIf(Predicate<String> userIds) {
+        List<String> discarded = new ArrayList<>();
+        for (String userId : this.index.keySet()) {
+            if (userIds.test(userId)) {
+                discarded.add(userId);
+            }
+        }
+        for (String userId : discarded) {
+            this.discard(userId);
+        }
+        if (this.index.isEmpty()) {
+            this.position = 0;
+        }
+        return discarded.size();
+    }
+
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    public synchronized long getLiveBytes() {
+        return this.liveBytes;
+    }
+
+    private void discard(String userId) {
+        long[] entry = this.index.remove(userId);
+        if (entry != null) {
+            this.liveBytes -= entry[1];
+        }
+    }
+
+    private void compact() {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(this.index.entrySet());
+        entries.sort((a, b) -> Long.compare(a.getValue()[0], b.getValue()[0]));
+        // entries only ever move towards the start of the arena, so copying in offset order is safe
+        int target = 0;
+        for (Map.Entry<String, long[]> entry : entries) {
+            int offset = (int)entry.getValue()[0];
+            int length = (int)entry.getValue()[1];
+            if (offset != target) {
+                byte[] bytes = new byte[length];
+                ByteBuffer source = this.arena.duplicate();
+                source.position(offset);
+                source.get(bytes);
+                ByteBuffer destination = this.arena.duplicate();
+                destination.position(target);
+                destination.put(bytes);
+                entry.getValue()[0] = target;
+            }
+            target += length;
+        }
+        logger.debug(String.format("Compacted user state spill arena from %d to %d bytes", this.position, target));
+        this.position = target;
+    }
+}
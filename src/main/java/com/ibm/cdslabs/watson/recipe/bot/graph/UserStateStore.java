@@ -0,0 +1,418 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Persists UserStates in an embedded key-value store so conversations survive restarts.
+ * States are partitioned by user ID into append-only log files. Each partition keeps an in-memory
+ * index of the latest record offset per user, rebuilt by scanning the log on open, so restarts only
+ * read record headers and states are loaded lazily. A partition is compacted in the background by rewriting
+ * its live records once the log holds more garbage than live data; writes continue while the records are copied.
+ * Partitions can be split across bot instances: each instance opens only the partitions it owns. Reads and writes
+ * hold their partition's read lock, so a partition can't be closed, and taken over by another instance, while
+ * a state is being read or written.
+ * Record layout: length (int), user ID length (short), user ID (UTF-8), state, CRC32 of the preceding bytes (int).
+ */
+public class UserStateStore {
+
+    private final static long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    private final File directory;
+    private final int partitionCount;
+    private final Partition[] partitions;
+    private final ReentrantReadWriteLock[] locks;
+    private final ExecutorService compactor;
+
+    private static Logger logger = LoggerFactory.getLogger(UserStateStore.class);
+
+    /**
+     * Creates a new instance of UserStateStore and opens all partitions.
+     * @param directory - The directory holding the partition logs
+     * @param partitionCount - The total number of partitions (must be the same for all instances)
+     * @throws IOException
+     */
+    public UserStateStore(File directory, int partitionCount) throws IOException {
+        this(directory, partitionCount, null);
+    }
+
+    /**
+     * Creates a new instance of UserStateStore and opens the specified partitions.
+     * @param directory - The directory holding the partition logs
+     * @param partitionCount - The total number of partitions (must be the same for all instances)
+     * @param ownedPartitions - The partitions owned by this instance, or null to own all partitions
+     * @throws IOException
+     */
+    public UserStateStore(File directory, int partitionCount, Set<Integer> ownedPartitions) throws IOException {
+        this.directory = directory;
+        this.partitionCount = partitionCount;
+        this.partitions = new Partition[partitionCount];
+        this.locks = new ReentrantReadWriteLock[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            this.locks[i] = new ReentrantReadWriteLock();
+        }
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "userstate-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        directory.mkdirs();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < partitionCount; i++) {
+            if (ownedPartitions == null || ownedPartitions.contains(i)) {
+                this.partitions[i] = this.newPartition(i);
+            }
+        }
+        logger.debug(String.format("Opened user state store in %s in %d ms", directory, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Gets the partition for the specified user.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - The partition number
+     */
+    public int getPartition(String userId) {
+        return getPartition(userId, this.partitionCount);
+    }
+
+    /**
+     * Gets the partition for the specified user.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @param partitionCount - The total number of partitions
+     * @return - The partition number
+     */
+    public static int getPartition(String userId, int partitionCount) {
+        return Math.floorMod(userId.hashCode(), partitionCount);
+    }
+
+    public int getPartitionCount() {
+        return this.partitionCount;
+    }
+
+    /**
+     * Returns true if this instance owns the partition of the specified user.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - true if the user's state is stored by this instance
+     */
+    public boolean ownsUser(String userId) {
+        int partition = this.getPartition(userId);
+        this.locks[partition].readLock().lock();
+        try {
+            return this.partitions[partition] != null;
+        }
+        finally {
+            this.locks[partition].readLock().unlock();
+        }
+    }
+
+    /**
+     * Opens the specified partition so this instance can store its users' state.
+     * @param partition - The partition number
+     * @throws IOException
+     */
+    public void openPartition(int partition) throws IOException {
+        this.locks[partition].writeLock().lock();
+        try {
+            if (this.partitions[partition] == null) {
+                this.partitions[partition] = this.newPartition(partition);
+            }
+        }
+        finally {
+            this.locks[partition].writeLock().unlock();
+        }
+    }
+
+    private Partition newPartition(int partition) throws IOException {
+        return new Partition(new File(this.directory, String.format("userstate-%03d.log", partition)));
+    }
+
+    /**
+     * Closes the specified partition so another instance can take it over.
+     * @param partition - The partition number
+     * @throws IOException
+     */
+    public void closePartition(int partition) throws IOException {
+        // waits for reads, writes and a compaction of the partition in progress
+        this.locks[partition].writeLock().lock();
+        try {
+            Partition closed = this.partitions[partition];
+            this.partitions[partition] = null;
+            if (closed != null) {
+                closed.close();
+            }
+        }
+        finally {
+            this.locks[partition].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the stored state for the specified user.
+     * @param userId - The ID of the user (typically the ID returned from Slack)
+     * @return - The stored state, or null if there is none or the user's partition is not owned
+     * @throws IOException
+     */
+    public UserState get(String userId) throws IOException {
+        int partitionNumber = this.getPartition(userId);
+        this.locks[partitionNumber].readLock().lock();
+        try {
+            Partition partition = this.partitions[partitionNumber];
+            return (partition == null ? null : partition.get(userId));
+        }
+        finally {
+            this.locks[partitionNumber].readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the specified state through to the user's partition log.
+     * @param state - The state to store
+     * @throws IOException
+     */
+    public void put(UserState state) throws IOException {
+        int partitionNumber = this.getPartition(state.getUserId());
+        this.locks[partitionNumber].readLock().lock();
+        try {
+            Partition partition = this.partitions[partitionNumber];
+            if (partition == null) {
+                throw new IOException(String.format("Partition for user %s is not owned by this instance", state.getUserId()));
+            }
+            if (partition.put(state)) {
+                this.compactor.execute(() -> this.compact(partitionNumber, partition));
+            }
+        }
+        finally {
+            this.locks[partitionNumber].readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces all partition logs to disk and closes them.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        // not interrupted, since interrupting a thread reading a FileChannel closes the channel
+        this.compactor.shutdown();
+        for (int i = 0; i < this.partitionCount; i++) {
+            this.closePartition(i);
+        }
+        try {
+            this.compactor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void compact(int partitionNumber, Partition partition) {
+        this.locks[partitionNumber].readLock().lock();
+        try {
+            // skip a partition closed (and perhaps opened again) since the compaction was scheduled
+            if (this.partitions[partitionNumber] == partition) {
+                partition.compact();
+            }
+        }
+        catch (IOException ex) {
+            logger.error(String.format("Error compacting user state partition %d", partitionNumber), ex);
+        }
+        finally {
+            partition.compactionDone();
+            this.locks[partitionNumber].readLock().unlock();
+        }
+    }
+
+    private static class Partition {
+
+        private final File file;
+        private FileChannel channel;
+        private final HashMap<String, long[]> index = new HashMap<>();
+        private long size;
+        private long liveBytes;
+        private boolean compacting;
+
+        Partition(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.load();
+        }
+
+        synchronized UserState get(String userId) throws IOException {
+            long[] entry = this.index.get(userId);
+            if (entry == null) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate((int)entry[1]);
+            this.channel.read(record, entry[0]);
+            record.flip();
+            return UserState.fromBytes(parseRecord(record));
+        }
+
+        /**
+         * Appends the state to the log.
+         * @return - true if the log should be compacted, and no compaction has been scheduled yet
+         */
+        synchronized boolean put(UserState state) throws IOException {
+            ByteBuffer record = toRecord(state.getUserId(), state.toBytes());
+            int length = record.remaining();
+            this.channel.write(record, this.size);
+            long[] previous = this.index.put(state.getUserId(), new long[]{this.size, length});
+            this.size += length;
+            this.liveBytes += length - (previous == null ? 0 : previous[1]);
+            if (! this.compacting && this.size > MIN_COMPACT_BYTES && this.size > 2 * this.liveBytes) {
+                this.compacting = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void compactionDone() {
+            this.compacting = false;
+        }
+
+        synchronized void close() throws IOException {
+            this.channel.force(true);
+            this.channel.close();
+        }
+
+        private void load() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(6);
+            long position = 0;
+            long fileSize = this.channel.size();
+            while (position + 6 <= fileSize) {
+                header.clear();
+                this.channel.read(header, position);
+                header.flip();
+                int length = header.getInt();
+                int userIdLength = header.getShort();
+                if (length < 10 + userIdLength || position + length > fileSize) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(length);
+                this.channel.read(record, position);
+                record.flip();
+                String userId = verifyRecord(record, userIdLength);
+                if (userId == null) {
+                    break;
+                }
+                long[] previous = this.index.put(userId, new long[]{position, length});
+                this.liveBytes += length - (previous == null ? 0 : previous[1]);
+                position += length;
+            }
+            if (position < fileSize) {
+                logger.warn(String.format("Truncating %d bytes of incomplete records from %s", fileSize - position, this.file));
+                this.channel.truncate(position);
+            }
+            this.size = position;
+        }
+
+        /**
+         * Rewrites the live records to a new log. The records in the log when the compaction starts are copied
+         * without holding the partition, since the log is append-only; the records written while they were
+         * copied are copied before the new log replaces the old one.
+         */
+        void compact() throws IOException {
+            File compacted = new File(this.file.getPath() + ".compact");
+            HashMap<String, long[]> snapshot;
+            long snapshotSize;
+            synchronized (this) {
+                snapshot = new HashMap<>(this.index);
+                snapshotSize = this.size;
+            }
+            HashMap<String, long[]> compactedIndex = new HashMap<>();
+            try (FileChannel target = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = this.copyRecords(snapshot, target, 0, compactedIndex);
+                synchronized (this) {
+                    HashMap<String, long[]> written = new HashMap<>();
+                    for (Map.Entry<String, long[]> entry : this.index.entrySet()) {
+                        if (entry.getValue()[0] >= snapshotSize) {
+                            written.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    position = this.copyRecords(written, target, position, compactedIndex);
+                    target.force(true);
+                    this.channel.close();
+                    Files.move(compacted.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    logger.debug(String.format("Compacted %s from %d to %d bytes", this.file, this.size, position));
+                    this.index.clear();
+                    this.index.putAll(compactedIndex);
+                    this.size = position;
+                    // a user written again while the records were copied has a stale copy in the new log too
+                    this.liveBytes = 0;
+                    for (long[] entry : compactedIndex.values()) {
+                        this.liveBytes += entry[1];
+                    }
+                }
+            }
+            finally {
+                Files.deleteIfExists(compacted.toPath());
+            }
+        }
+
+        private long copyRecords(Map<String, long[]> records, FileChannel target, long position, Map<String, long[]> compactedIndex) throws IOException {
+            for (Map.Entry<String, long[]> entry : records.entrySet()) {
+                ByteBuffer record = ByteBuffer.allocate((int)entry.getValue()[1]);
+                while (record.hasRemaining()) {
+                    if (this.channel.read(record, entry.getValue()[0] + record.position()) < 0) {
+                        throw new IOException(String.format("Unexpected end of %s at %d", this.file, entry.getValue()[0]));
+                    }
+                }
+                record.flip();
+                while (record.hasRemaining()) {
+                    position += target.write(record, position);
+                }
+                compactedIndex.put(entry.getKey(), new long[]{position - entry.getValue()[1], entry.getValue()[1]});
+            }
+            return position;
+        }
+
+        private static ByteBuffer toRecord(String userId, byte[] state) {
+            byte[] userIdBytes = userId.getBytes(StandardCharsets.UTF_8);
+            int length = 4 + 2 + userIdBytes.length + state.length + 4;
+            ByteBuffer record = ByteBuffer.allocate(length);
+            record.putInt(length);
+            record.putShort((short)userIdBytes.length);
+            record.put(userIdBytes);
+            record.put(state);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, length - 4);
+            record.putInt((int)crc.getValue());
+            record.flip();
+            return record;
+        }
+
+        /**
+         * Verifies the checksum of a record and returns its user ID, or null if the record is corrupt.
+         */
+        private static String verifyRecord(ByteBuffer record, int userIdLength) {
+            int length = record.limit();
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, length - 4);
+            if ((int)crc.getValue() != record.getInt(length - 4)) {
+                return null;
+            }
+            return new String(record.array(), 6, userIdLength, StandardCharsets.UTF_8);
+        }
+
+        private static byte[] parseRecord(ByteBuffer record) {
+            int length = record.getInt();
+            int userIdLength = record.getShort();
+            return Arrays.copyOfRange(record.array(), 6 + userIdLength, length - 4);
+        }
+    }
+}
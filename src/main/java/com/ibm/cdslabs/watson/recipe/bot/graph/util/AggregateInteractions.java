@@ -0,0 +1,123 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph.util;
+
+import com.ibm.cdslabs.watson.recipe.bot.graph.InteractionLog;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes popularity and latency reports from interaction logs written by InteractionLog.
+ * Each log file is aggregated by its own worker and the partial results are merged.
+ * Usage: AggregateInteractions &lt;log directory&gt; [threads] [top count]
+ */
+public class AggregateInteractions {
+
+    public final static int MAX_LATENCY_MILLIS = 60000;
+
+    public static void main( String[] args ) throws Exception {
+        File directory = new File(args[0]);
+        int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+        int top = (args.length > 2 ? Integer.parseInt(args[2]) : 10);
+        File[] files = InteractionLog.listFiles(directory);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.currentTimeMillis();
+        Aggregate total = new Aggregate();
+        try {
+            List<Future<Aggregate>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(executor.submit(() -> {
+                    Aggregate aggregate = new Aggregate();
+                    InteractionLog.read(file, aggregate::add);
+                    return aggregate;
+                }));
+            }
+            for (Future<Aggregate> future : futures) {
+                total.merge(future.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        System.out.println(String.format("Aggregated %d events from %d files in %d ms.", total.events, files.length, System.currentTimeMillis() - start));
+        System.out.println();
+        System.out.println("Latency (ms)       count      p50      p95      p99      max");
+        for (byte type = 1; type < InteractionLog.TYPE_NAMES.length; type++) {
+            int[] histogram = total.latencies[type];
+            long count = total.counts[type];
+            System.out.println(String.format("%-12s %11d %8d %8d %8d %8d", InteractionLog.TYPE_NAMES[type], count,
+                    percentile(histogram, count, 0.50), percentile(histogram, count, 0.95), percentile(histogram, count, 0.99), percentile(histogram, count, 1.0)));
+        }
+        for (byte type : new byte[]{InteractionLog.INGREDIENT, InteractionLog.CUISINE, InteractionLog.SEARCH, InteractionLog.SELECTION}) {
+            System.out.println();
+            System.out.println(String.format("Top %s requests (%d distinct):", InteractionLog.TYPE_NAMES[type], total.popularity.get(type).size()));
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>(total.popularity.get(type).entrySet());
+            entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+            for (Map.Entry<String, Integer> entry : entries.subList(0, Math.min(top, entries.size()))) {
+                System.out.println(String.format("%8d  %s", entry.getValue(), entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Gets a percentile from a latency histogram with one bucket per millisecond.
+     */
+    private static int percentile(int[] histogram, long count, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(count * percentile));
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return i;
+            }
+        }
+        return MAX_LATENCY_MILLIS;
+    }
+
+    /**
+     * Event counts, latency histograms and subject counts per event type.
+     */
+    private static class Aggregate {
+
+        long events;
+        final long[] counts = new long[InteractionLog.TYPE_NAMES.length];
+        final int[][] latencies = new int[InteractionLog.TYPE_NAMES.length][MAX_LATENCY_MILLIS + 1];
+        final List<Map<String, Integer>> popularity = new ArrayList<>(InteractionLog.TYPE_NAMES.length);
+
+        Aggregate() {
+            for (int i = 0; i < InteractionLog.TYPE_NAMES.length; i++) {
+                this.popularity.add(new HashMap<>());
+            }
+        }
+
+        void add(InteractionLog.Event event) {
+            if (event.type < 1 || event.type >= InteractionLog.TYPE_NAMES.length) {
+                return;
+            }
+            this.events++;
+            this.counts[event.type]++;
+            this.latencies[event.type][Math.max(0, Math.min(event.latencyMillis, MAX_LATENCY_MILLIS))]++;
+            if (event.subject.length() > 0) {
+                this.popularity.get(event.type).merge(event.subject.trim().toLowerCase(), 1, Integer::sum);
+            }
+        }
+
+        void merge(Aggregate other) {
+            this.events += other.events;
+            for (int type = 0; type < this.counts.length; type++) {
+                this.counts[type] += other.counts[type];
+                for (int i = 0; i <= MAX_LATENCY_MILLIS; i++) {
+                    this.latencies[type][i] += other.latencies[type][i];
+                }
+                for (Map.Entry<String, Integer> entry : other.popularity.get(type).entrySet()) {
+                    this.popularity.get(type).merge(entry.getKey(), entry.getValue(), Integer::sum);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph.util;
+
+import com.ibm.cdslabs.watson.recipe.bot.graph.DecayedScore;
+import com.ibm.cdslabs.watson.recipe.bot.graph.GraphRecipeStore;
+import com.ibm.graph.client.Edge;
+import com.ibm.graph.client.Element;
+import com.ibm.graph.client.IBMGraphClient;
+import com.ibm.graph.client.Vertex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds and merges the duplicates left in the recipe graph by concurrent check-then-act writes.
+ * Vertices with the same label and name are merged into the oldest of them (the lowest ID): their edges are
+ * moved to it and the duplicates are removed. Parallel edges with the same label, out vertex and in vertex are
+ * then merged into one edge. Merged edges keep the sum of the counts, the combined time-decayed score and the
+ * latest update time. The archived counts of the duplicates (see GraphRecipeStore.archiveActivity) are added to
+ * the surviving vertex. Vertices and edges are scanned in parallel pages and each merge is applied as one batch.
+ * Run it while the bot is stopped (or restart the bot afterwards), since the bot caches vertex IDs.
+ * Usage: CompactRecipeGraph [threads] [--dry-run]
+ */
+public class CompactRecipeGraph {
+
+    private final static String[] COUNTED_PROPERTIES = new String[]{"count", "score", "updated"};
+
+    public static void main( String[] args ) throws Exception {
+        int threads = (args.length > 0 ? Integer.parseInt(args[0]) : 4);
+        boolean dryRun = (args.length > 1 && args[1].equals("--dry-run"));
+        GraphRecipeStore graphRecipeStore = new GraphRecipeStore(new IBMGraphClient(), System.getenv().get("GRAPH_ID").toString());
+        graphRecipeStore.initGraph();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.currentTimeMillis();
+        Report report = new Report();
+        try {
+            // merge duplicate vertices one group at a time, since groups can share edges
+            for (String label : ExportRecipeGraph.LABELS) {
+                Map<String, List<VertexRef>> vertices = new ConcurrentHashMap<>();
+                ExportRecipeGraph.readPages(graphRecipeStore, executor, threads, label, page -> {
+                    for (Vertex vertex : page) {
+                        Object name = vertex.getPropertyValue("name");
+                        if (name != null) {
+                            vertices.computeIfAbsent(name.toString(), key -> Collections.synchronizedList(new ArrayList<>()))
+                                    .add(new VertexRef(Long.parseLong(vertex.getId().toString()), estimateBytes(vertex),
+                                            ExportRecipeGraph.toInt(vertex.getPropertyValue("archivedCount")), ExportRecipeGraph.toInt(vertex.getPropertyValue("archivedUsers"))));
+                        }
+                    }
+                });
+                for (Map.Entry<String, List<VertexRef>> entry : vertices.entrySet()) {
+                    if (entry.getValue().size() > 1) {
+                        mergeVertices(graphRecipeStore, label, entry.getKey(), entry.getValue(), dryRun, report);
+                    }
+                }
+            }
+            // then merge parallel edges; all out edges of a vertex are in the same page, so pages are independent
+            for (String label : ExportRecipeGraph.LABELS) {
+                ExportRecipeGraph.readPages(graphRecipeStore, executor, threads, label, page -> {
+                    mergeParallelEdges(graphRecipeStore, graphRecipeStore.getOutEdges(page), dryRun, report);
+                });
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        System.out.println(String.format("%s %d duplicate vertices and %d duplicate edges (%d bytes of properties) in %d ms.",
+                (dryRun ? "Found" : "Removed"), report.vertices.get(), report.edges.get(), report.bytes.get(), System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Moves the edges of the duplicate vertices to the oldest vertex, merging any edges that become parallel,
+     * and removes the duplicates.
+     */
+    private static void mergeVertices(GraphRecipeStore graphRecipeStore, String label, String name, List<VertexRef> group, boolean dryRun, Report report) throws Exception {
+        group.sort(Comparator.comparingLong(ref -> ref.id));
+        long survivorId = group.get(0).id;
+        Set<Long> duplicateIds = new HashSet<>();
+        int archivedCount = 0;
+        int archivedUsers = 0;
+        for (VertexRef ref : group.subList(1, group.size())) {
+            duplicateIds.add(ref.id);
+            archivedCount += ref.archivedCount;
+            archivedUsers += ref.archivedUsers;
+            report.vertices.incrementAndGet();
+            report.bytes.addAndGet(ref.bytes);
+        }
+        Map<Object, Map<String,Integer>> vertexIncrements = new HashMap<>();
+        if (archivedCount > 0 || archivedUsers > 0) {
+            Map<String,Integer> increments = new LinkedHashMap<>();
+            increments.put("archivedCount", archivedCount);
+            increments.put("archivedUsers", archivedUsers);
+            vertexIncrements.put(survivorId, increments);
+        }
+        List<Object> vertexIds = new ArrayList<>();
+        for (VertexRef ref : group) {
+            vertexIds.add(ref.id);
+        }
+        Map<String, List<Edge>> edgesByKey = new LinkedHashMap<>();
+        List<Object> removedEdgeIds = new ArrayList<>();
+        for (Edge edge : graphRecipeStore.getEdges(vertexIds)) {
+            long outV = rewrite(edge.getOutV(), duplicateIds, survivorId);
+            long inV = rewrite(edge.getInV(), duplicateIds, survivorId);
+            if (outV == inV) {
+                // an edge between duplicates would become a loop
+                report.edges.incrementAndGet();
+                report.bytes.addAndGet(estimateBytes(edge));
+                if (! isAttached(edge, duplicateIds)) {
+                    removedEdgeIds.add(edge.getId());
+                }
+                continue;
+            }
+            edgesByKey.computeIfAbsent(edge.getLabel() + ":" + outV + ":" + inV, key -> new ArrayList<>()).add(edge);
+        }
+        List<Edge> addedEdges = new ArrayList<>();
+        List<Edge> updatedEdges = new ArrayList<>();
+        for (List<Edge> edges : edgesByKey.values()) {
+            Edge kept = null;
+            for (Edge edge : edges) {
+                if (kept == null && ! isAttached(edge, duplicateIds)) {
+                    kept = edge;
+                }
+            }
+            Map<String, Object> properties = mergeProperties(edges);
+            if (kept == null) {
+                // every copy of the edge is attached to a duplicate and is removed with it
+                Edge first = edges.get(0);
+                addedEdges.add(new Edge(first.getLabel(), rewrite(first.getOutV(), duplicateIds, survivorId), rewrite(first.getInV(), duplicateIds, survivorId), new HashMap<>(properties)));
+            }
+            else if (edges.size() > 1) {
+                for (Map.Entry<String, Object> property : properties.entrySet()) {
+                    kept.setPropertyValue(property.getKey(), property.getValue());
+                }
+                updatedEdges.add(kept);
+            }
+            for (Edge edge : edges) {
+                if (edge != kept) {
+                    report.edges.incrementAndGet();
+                    report.bytes.addAndGet(estimateBytes(edge));
+                    if (! isAttached(edge, duplicateIds)) {
+                        removedEdgeIds.add(edge.getId());
+                    }
+                }
+            }
+            // edges moved off a duplicate are re-added, so they are not reclaimed
+            if (kept == null) {
+                report.edges.decrementAndGet();
+                report.bytes.addAndGet(-estimateBytes(edges.get(0)));
+            }
+        }
+        System.out.println(String.format("%s %d duplicates of %s %s into %d", (dryRun ? "Found" : "Merging"), duplicateIds.size(), label, name, survivorId));
+        if (! dryRun) {
+            graphRecipeStore.applyBatch(addedEdges, updatedEdges, removedEdgeIds, new ArrayList<>(duplicateIds), vertexIncrements);
+        }
+    }
+
+    /**
+     * Merges edges with the same label, out vertex and in vertex into the first of them.
+     */
+    private static void mergeParallelEdges(GraphRecipeStore graphRecipeStore, List<Edge> pageEdges, boolean dryRun, Report report) throws Exception {
+        Map<String, List<Edge>> edgesByKey = new LinkedHashMap<>();
+        for (Edge edge : pageEdges) {
+            edgesByKey.computeIfAbsent(edge.getLabel() + ":" + edge.getOutV() + ":" + edge.getInV(), key -> new ArrayList<>()).add(edge);
+        }
+        List<Edge> updatedEdges = new ArrayList<>();
+        List<Object> removedEdgeIds = new ArrayList<>();
+        for (List<Edge> edges : edgesByKey.values()) {
+            if (edges.size() < 2) {
+                continue;
+            }
+            Edge kept = edges.get(0);
+            for (Map.Entry<String, Object> property : mergeProperties(edges).entrySet()) {
+                kept.setPropertyValue(property.getKey(), property.getValue());
+            }
+            updatedEdges.add(kept);
+            for (Edge edge : edges.subList(1, edges.size())) {
+                removedEdgeIds.add(edge.getId());
+                report.edges.incrementAndGet();
+                report.bytes.addAndGet(estimateBytes(edge));
+            }
+        }
+        if (! dryRun && ! removedEdgeIds.isEmpty()) {
+            graphRecipeStore.applyBatch(Collections.<Edge>emptyList(), updatedEdges, removedEdgeIds, Collections.emptyList());
+        }
+    }
+
+    /**
+     * Merges the properties of parallel edges: counts are summed, time-decayed scores are combined
+     * and the latest update time is kept. Other properties are taken from the first edge.
+     */
+    static Map<String, Object> mergeProperties(List<Edge> edges) {
+        Map<String, Object> properties = new HashMap<>();
+        Map<String, Object> first = edges.get(0).getProperties();
+        if (first != null) {
+            properties.putAll(first);
+        }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        Double score = null;
+        Long updated = null;
+        boolean counted = false;
+        for (Edge edge : edges) {
+            Object edgeCount = edge.getPropertyValue("count");
+            Object edgeScore = edge.getPropertyValue("score");
+            Object edgeUpdated = edge.getPropertyValue("updated");
+            int selections = (edgeCount instanceof Number ? ((Number)edgeCount).intValue() : 0);
+            counted |= (edgeCount instanceof Number);
+            count += selections;
+            if (edgeScore instanceof Number || edgeCount instanceof Number) {
+                double s = (edgeScore instanceof Number ? ((Number)edgeScore).doubleValue() : DecayedScore.forCount(selections, now));
+                score = (score == null ? s : DecayedScore.merge(score, s));
+            }
+            if (edgeUpdated instanceof Number) {
+                updated = Math.max(updated == null ? 0 : updated, ((Number)edgeUpdated).longValue());
+            }
+        }
+        for (String property : COUNTED_PROPERTIES) {
+            properties.remove(property);
+        }
+        if (counted) {
+            properties.put("count", count);
+        }
+        if (score != null) {
+            properties.put("score", score);
+            properties.put("updated", (updated == null ? now : updated));
+        }
+        return properties;
+    }
+
+    private static long rewrite(Object vertexId, Set<Long> duplicateIds, long survivorId) {
+        long id = Long.parseLong(vertexId.toString());
+        return (duplicateIds.contains(id) ? survivorId : id);
+    }
+
+    private static boolean isAttached(Edge edge, Set<Long> duplicateIds) {
+        return duplicateIds.contains(Long.parseLong(edge.getOutV().toString())) || duplicateIds.contains(Long.parseLong(edge.getInV().toString()));
+    }
+
+    /**
+     * Estimates the stored size of an element from the UTF-8 length of its property names and values.
+     */
+    private static int estimateBytes(Element element) {
+        int bytes = 0;
+        if (element.getProperties() != null) {
+            for (Map.Entry<String, Object> property : element.getProperties().entrySet()) {
+                bytes += property.getKey().length();
+                if (property.getValue() != null) {
+                    bytes += property.getValue().toString().getBytes(StandardCharsets.UTF_8).length;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static class VertexRef {
+
+        final long id;
+        final int bytes;
+        final int archivedCount;
+        final int archivedUsers;
+
+        VertexRef(long id, int bytes, int archivedCount, int archivedUsers) {
+            this.id = id;
+            this.bytes = bytes;
+            this.archivedCount = archivedCount;
+            this.archivedUsers = archivedUsers;
+        }
+    }
+
+    private static class Report {
+        final AtomicLong vertices = new AtomicLong();
+        final AtomicLong edges = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+    }
+}
@@ -0,0 +1,124 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph.util;
+
+import com.ibm.cdslabs.watson.recipe.bot.graph.GraphRecipeStore;
+import com.ibm.graph.client.Edge;
+import com.ibm.graph.client.IBMGraphClient;
+import com.ibm.graph.client.Vertex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the recipe graph to a snapshot file using parallel paged reads.
+ * Usage: ExportRecipeGraph &lt;snapshot file&gt; [threads]
+ */
+public class ExportRecipeGraph {
+
+    public final static String[] LABELS = new String[]{"person", "ingredient", "cuisine", "recipe"};
+    public final static int PAGE_SIZE = 200;
+
+    interface PageHandler {
+        void handle(List<Vertex> page) throws Exception;
+    }
+
+    public static void main( String[] args ) throws Exception {
+        File file = new File(args[0]);
+        int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+        GraphRecipeStore graphRecipeStore = new GraphRecipeStore(new IBMGraphClient(), System.getenv().get("GRAPH_ID").toString());
+        graphRecipeStore.initGraph();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.currentTimeMillis();
+        try (RecipeGraphSnapshot.Writer writer = new RecipeGraphSnapshot.Writer(file)) {
+            // all vertices first, so the loader can map vertex ids before it sees any edges
+            for (String label : LABELS) {
+                readPages(graphRecipeStore, executor, threads, label, page -> {
+                    List<RecipeGraphSnapshot.VertexRecord> records = new ArrayList<>(page.size());
+                    for (Vertex vertex : page) {
+                        RecipeGraphSnapshot.VertexRecord record = new RecipeGraphSnapshot.VertexRecord();
+                        record.id = vertex.getId().toString();
+                        record.label = vertex.getLabel();
+                        record.name = toString(vertex.getPropertyValue("name"));
+                        record.title = toString(vertex.getPropertyValue("title"));
+                        record.detail = toString(vertex.getPropertyValue("detail"));
+                        record.archivedCount = toInt(vertex.getPropertyValue("archivedCount"));
+                        record.archivedUsers = toInt(vertex.getPropertyValue("archivedUsers"));
+                        records.add(record);
+                    }
+                    writer.writeVertices(records);
+                });
+            }
+            for (String label : LABELS) {
+                readPages(graphRecipeStore, executor, threads, label, page -> {
+                    List<Edge> edges = graphRecipeStore.getOutEdges(page);
+                    List<RecipeGraphSnapshot.EdgeRecord> records = new ArrayList<>(edges.size());
+                    for (Edge edge : edges) {
+                        RecipeGraphSnapshot.EdgeRecord record = new RecipeGraphSnapshot.EdgeRecord();
+                        record.label = edge.getLabel();
+                        record.outV = edge.getOutV().toString();
+                        record.inV = edge.getInV().toString();
+                        Object count = edge.getPropertyValue("count");
+                        if (count instanceof Number) {
+                            record.count = ((Number)count).intValue();
+                        }
+                        Object score = edge.getPropertyValue("score");
+                        if (score instanceof Number) {
+                            record.score = ((Number)score).doubleValue();
+                        }
+                        Object updated = edge.getPropertyValue("updated");
+                        if (updated instanceof Number) {
+                            record.updated = ((Number)updated).longValue();
+                        }
+                        records.add(record);
+                    }
+                    writer.writeEdges(records);
+                });
+            }
+            System.out.println(String.format("Exported %d vertices and %d edges to %s in %d ms.", writer.getVertexCount(), writer.getEdgeCount(), file, System.currentTimeMillis() - start));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Reads all pages of vertices with the specified label using the specified number of parallel readers.
+     * Each reader claims the next page offset until a short page marks the end of the label.
+     */
+    static void readPages(GraphRecipeStore graphRecipeStore, ExecutorService executor, int readers, String label, PageHandler handler) throws Exception {
+        AtomicInteger nextPage = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            futures.add(executor.submit(() -> {
+                while (!done.get()) {
+                    int offset = nextPage.getAndIncrement() * PAGE_SIZE;
+                    List<Vertex> page = graphRecipeStore.getVertices(label, offset, PAGE_SIZE);
+                    if (page.size() < PAGE_SIZE) {
+                        done.set(true);
+                    }
+                    if (page.size() > 0) {
+                        handler.handle(page);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private static String toString(Object value) {
+        return (value == null ? null : value.toString());
+    }
+
+    static int toInt(Object value) {
+        return (value instanceof Number ? ((Number)value).intValue() : 0);
+    }
+}
@@ -0,0 +1,117 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph.util;
+
+import com.ibm.cdslabs.watson.recipe.bot.graph.GraphRecipeStore;
+import com.ibm.graph.client.Edge;
+import com.ibm.graph.client.IBMGraphClient;
+import com.ibm.graph.client.Vertex;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rebuilds a recipe graph from a snapshot file written by ExportRecipeGraph using batched writes.
+ * The target graph should be empty; vertices are added without checking for existing vertices.
+ * Usage: ImportRecipeGraph &lt;snapshot file&gt; [threads]
+ */
+public class ImportRecipeGraph {
+
+    public final static int BATCH_SIZE = 50;
+
+    public static void main( String[] args ) throws Exception {
+        File file = new File(args[0]);
+        int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+        GraphRecipeStore graphRecipeStore = new GraphRecipeStore(new IBMGraphClient(), System.getenv().get("GRAPH_ID").toString());
+        graphRecipeStore.initGraph();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<String,Object> vertexIds = new ConcurrentHashMap<>();
+        List<Future<Integer>> vertexBatches = new ArrayList<>();
+        List<Future<Integer>> edgeBatches = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        try (RecipeGraphSnapshot.Reader reader = new RecipeGraphSnapshot.Reader(file)) {
+            byte chunkType;
+            while ((chunkType = reader.nextChunk()) != RecipeGraphSnapshot.END) {
+                if (chunkType == RecipeGraphSnapshot.VERTEX_CHUNK) {
+                    List<RecipeGraphSnapshot.VertexRecord> records = reader.readVertices();
+                    for (int i = 0; i < records.size(); i += BATCH_SIZE) {
+                        List<RecipeGraphSnapshot.VertexRecord> batch = records.subList(i, Math.min(i + BATCH_SIZE, records.size()));
+                        vertexBatches.add(executor.submit(() -> addVertices(graphRecipeStore, batch, vertexIds)));
+                    }
+                }
+                else {
+                    // edges reference vertex ids, so wait for every vertex batch before the first edge batch
+                    for (Future<Integer> vertexBatch : vertexBatches) {
+                        vertexBatch.get();
+                    }
+                    List<RecipeGraphSnapshot.EdgeRecord> records = reader.readEdges();
+                    for (int i = 0; i < records.size(); i += BATCH_SIZE) {
+                        List<RecipeGraphSnapshot.EdgeRecord> batch = records.subList(i, Math.min(i + BATCH_SIZE, records.size()));
+                        edgeBatches.add(executor.submit(() -> addEdges(graphRecipeStore, batch, vertexIds)));
+                    }
+                }
+            }
+            int vertexCount = 0;
+            for (Future<Integer> vertexBatch : vertexBatches) {
+                vertexCount += vertexBatch.get();
+            }
+            int edgeCount = 0;
+            for (Future<Integer> edgeBatch : edgeBatches) {
+                edgeCount += edgeBatch.get();
+            }
+            System.out.println(String.format("Imported %d vertices and %d edges from %s in %d ms.", vertexCount, edgeCount, file, System.currentTimeMillis() - start));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int addVertices(GraphRecipeStore graphRecipeStore, List<RecipeGraphSnapshot.VertexRecord> records, Map<String,Object> vertexIds) throws Exception {
+        List<Vertex> vertices = new ArrayList<>(records.size());
+        for (RecipeGraphSnapshot.VertexRecord record : records) {
+            HashMap<String,Object> properties = new HashMap<>();
+            properties.put("name", record.name);
+            properties.put("title", record.title);
+            properties.put("detail", record.detail);
+            if (record.archivedCount > 0 || record.archivedUsers > 0) {
+                properties.put("archivedCount", record.archivedCount);
+                properties.put("archivedUsers", record.archivedUsers);
+            }
+            vertices.add(new Vertex(record.label, properties));
+        }
+        List<Vertex> added = graphRecipeStore.addVertices(vertices);
+        for (int i = 0; i < added.size(); i++) {
+            vertexIds.put(records.get(i).id, added.get(i).getId());
+        }
+        return added.size();
+    }
+
+    private static int addEdges(GraphRecipeStore graphRecipeStore, List<RecipeGraphSnapshot.EdgeRecord> records, Map<String,Object> vertexIds) throws Exception {
+        List<Edge> edges = new ArrayList<>(records.size());
+        for (RecipeGraphSnapshot.EdgeRecord record : records) {
+            Object outV = vertexIds.get(record.outV);
+            Object inV = vertexIds.get(record.inV);
+            if (outV == null || inV == null) {
+                System.err.println(String.format("Skipping %s edge from %s to %s: vertex not in snapshot.", record.label, record.outV, record.inV));
+                continue;
+            }
+            HashMap<String,Object> properties = new HashMap<>();
+            if (record.count >= 0) {
+                properties.put("count", record.count);
+            }
+            if (! Double.isNaN(record.score)) {
+                properties.put("score", record.score);
+            }
+            if (record.updated >= 0) {
+                properties.put("updated", record.updated);
+            }
+            edges.add(new Edge(record.label, outV, inV, properties));
+        }
+        if (! edges.isEmpty()) {
+            graphRecipeStore.addEdges(edges);
+        }
+        return edges.size();
+    }
+}
@@ -0,0 +1,231 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads and writes recipe graph snapshot files.
+ * A snapshot is the magic header followed by independently compressed chunks of vertex or edge records.
+ * All vertex chunks are written before any edge chunks, so a snapshot can be loaded in a single pass.
+ * Chunk layout: type (byte), record count (int), compressed length (int), deflated records.
+ * Files with any other header, including snapshots written by earlier builds, are rejected and must be exported again.
+ */
+public class RecipeGraphSnapshot {
+
+    public final static int MAGIC = 0x52475333; // RGS3
+    public final static byte VERTEX_CHUNK = 1;
+    public final static byte EDGE_CHUNK = 2;
+    public final static byte END = 0;
+
+    /**
+     * A vertex record in a snapshot.
+     */
+    public static class VertexRecord {
+        public String id;
+        public String label;
+        public String name;
+        public String title;
+        public String detail;
+        public int archivedCount;
+        public int archivedUsers;
+    }
+
+    /**
+     * An edge record in a snapshot. A count or updated time of -1, or a score of NaN, means the edge does not
+     * have the property.
+     */
+    public static class EdgeRecord {
+        public String label;
+        public String outV;
+        public String inV;
+        public int count = -1;
+        public double score = Double.NaN;
+        public long updated = -1;
+    }
+
+    /**
+     * Writes chunks to a snapshot file. Chunks may be written from multiple threads.
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private long vertexCount;
+        private long edgeCount;
+
+        public Writer(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            this.out.writeInt(MAGIC);
+        }
+
+        public void writeVertices(List<VertexRecord> vertices) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream chunk = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+                for (VertexRecord vertex : vertices) {
+                    writeString(chunk, vertex.id);
+                    writeString(chunk, vertex.label);
+                    writeString(chunk, vertex.name);
+                    writeString(chunk, vertex.title);
+                    writeString(chunk, vertex.detail);
+                    chunk.writeInt(vertex.archivedCount);
+                    chunk.writeInt(vertex.archivedUsers);
+                }
+            }
+            synchronized (this) {
+                this.writeChunk(VERTEX_CHUNK, vertices.size(), bytes.toByteArray());
+                this.vertexCount += vertices.size();
+            }
+        }
+
+        public void writeEdges(List<EdgeRecord> edges) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream chunk = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+                for (EdgeRecord edge : edges) {
+                    writeString(chunk, edge.label);
+                    writeString(chunk, edge.outV);
+                    writeString(chunk, edge.inV);
+                    chunk.writeInt(edge.count);
+                    chunk.writeDouble(edge.score);
+                    chunk.writeLong(edge.updated);
+                }
+            }
+            synchronized (this) {
+                this.writeChunk(EDGE_CHUNK, edges.size(), bytes.toByteArray());
+                this.edgeCount += edges.size();
+            }
+        }
+
+        public synchronized long getVertexCount() {
+            return this.vertexCount;
+        }
+
+        public synchronized long getEdgeCount() {
+            return this.edgeCount;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.out.writeByte(END);
+            this.out.close();
+        }
+
+        private void writeChunk(byte type, int recordCount, byte[] data) throws IOException {
+            if (recordCount == 0) {
+                return;
+            }
+            this.out.writeByte(type);
+            this.out.writeInt(recordCount);
+            this.out.writeInt(data.length);
+            this.out.write(data);
+        }
+    }
+
+    /**
+     * Reads chunks from a snapshot file, in the order they were written.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private byte chunkType;
+        private int chunkRecordCount;
+        private byte[] chunkData;
+
+        public Reader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException(String.format("%s is not a recipe graph snapshot", file));
+            }
+        }
+
+        /**
+         * Advances to the next chunk.
+         * @return - The type of the next chunk (VERTEX_CHUNK or EDGE_CHUNK), or END
+         * @throws IOException
+         */
+        public byte nextChunk() throws IOException {
+            this.chunkType = this.in.readByte();
+            if (this.chunkType != END) {
+                this.chunkRecordCount = this.in.readInt();
+                this.chunkData = new byte[this.in.readInt()];
+                this.in.readFully(this.chunkData);
+            }
+            return this.chunkType;
+        }
+
+        public List<VertexRecord> readVertices() throws IOException {
+            List<VertexRecord> vertices = new ArrayList<>(this.chunkRecordCount);
+            try (DataInputStream chunk = this.openChunk(VERTEX_CHUNK)) {
+                for (int i = 0; i < this.chunkRecordCount; i++) {
+                    VertexRecord vertex = new VertexRecord();
+                    vertex.id = readString(chunk);
+                    vertex.label = readString(chunk);
+                    vertex.name = readString(chunk);
+                    vertex.title = readString(chunk);
+                    vertex.detail = readString(chunk);
+                    vertex.archivedCount = chunk.readInt();
+                    vertex.archivedUsers = chunk.readInt();
+                    vertices.add(vertex);
+                }
+            }
+            return vertices;
+        }
+
+        public List<EdgeRecord> readEdges() throws IOException {
+            List<EdgeRecord> edges = new ArrayList<>(this.chunkRecordCount);
+            try (DataInputStream chunk = this.openChunk(EDGE_CHUNK)) {
+                for (int i = 0; i < this.chunkRecordCount; i++) {
+                    EdgeRecord edge = new EdgeRecord();
+                    edge.label = readString(chunk);
+                    edge.outV = readString(chunk);
+                    edge.inV = readString(chunk);
+                    edge.count = chunk.readInt();
+                    edge.score = chunk.readDouble();
+                    edge.updated = chunk.readLong();
+                    edges.add(edge);
+                }
+            }
+            return edges;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+
+        private DataInputStream openChunk(byte expectedType) throws IOException {
+            if (this.chunkType != expectedType) {
+                throw new IOException(String.format("Expected chunk type %d but found %d", expectedType, this.chunkType));
+            }
+            return new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(this.chunkData)));
+        }
+    }
+
+    /**
+     * Writes a nullable string as a length-prefixed UTF-8 byte sequence (-1 for null).
+     * Unlike DataOutput.writeUTF this supports strings longer than 64KB, such as recipe details.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        }
+        else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,56 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getOpenCount());
+    }
+
+    public void testAllowsOneTrialWhenHalfOpen() {
+        CircuitBreaker breaker = openBreaker();
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    public void testFailedTrialOpensAgain() {
+        CircuitBreaker breaker = openBreaker();
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void testAbandonedTrialLetsTheNextRequestTry() {
+        CircuitBreaker breaker = openBreaker();
+        assertTrue(breaker.allowRequest());
+        breaker.abandonTrial();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    public void testAbandonTrialLeavesClosedBreakerClosed() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        breaker.abandonTrial();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private static CircuitBreaker openBreaker() {
+        // opens on the first failure and allows a trial straight away
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
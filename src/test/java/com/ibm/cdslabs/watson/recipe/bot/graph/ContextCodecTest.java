@@ -0,0 +1,61 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+
+public class ContextCodecTest extends TestCase {
+
+    public void testContextRoundTrip() throws Exception {
+        Map<String, Object> system = new LinkedHashMap<>();
+        system.put("dialog_stack", Arrays.asList("node_1", "node_2"));
+        system.put("dialog_turn_counter", 3.0);
+        Map<String, Object> context = new LinkedHashMap<>();
+        context.put("conversation_id", "c-1");
+        context.put("system", system);
+        context.put("is_favorites", Boolean.TRUE);
+        context.put("is_ingredients", Boolean.FALSE);
+        context.put("count", 42);
+        context.put("cuisine", null);
+        context.put("title", "Cr\u00e8me br\u00fbl\u00e9e");
+        Map<String, Object> decoded = ContextCodec.decode(ContextCodec.encode(context));
+        assertEquals(new ArrayList<>(context.keySet()), new ArrayList<>(decoded.keySet()));
+        assertEquals("c-1", decoded.get("conversation_id"));
+        assertEquals(system, decoded.get("system"));
+        assertEquals(Boolean.TRUE, decoded.get("is_favorites"));
+        assertEquals(Boolean.FALSE, decoded.get("is_ingredients"));
+        // integral numbers are decoded as longs
+        assertEquals(42L, decoded.get("count"));
+        assertTrue(decoded.containsKey("cuisine"));
+        assertNull(decoded.get("cuisine"));
+        assertEquals("Cr\u00e8me br\u00fbl\u00e9e", decoded.get("title"));
+        // the decoded map is mutable
+        decoded.put("is_favorites", Boolean.FALSE);
+    }
+
+    public void testNullContext() throws Exception {
+        assertNull(ContextCodec.encode(null));
+        assertNull(ContextCodec.decode(null));
+        assertTrue(ContextCodec.decode(ContextCodec.encode(new HashMap<>())).isEmpty());
+    }
+
+    public void testOtherValuesAreEncodedAsStrings() throws Exception {
+        Map<String, Object> context = new HashMap<>();
+        context.put("builder", new StringBuilder("text"));
+        context.put("set", new LinkedHashSet<>(Arrays.asList(1, 2)));
+        Map<String, Object> decoded = ContextCodec.decode(ContextCodec.encode(context));
+        assertEquals("text", decoded.get("builder"));
+        assertEquals(Arrays.asList(1L, 2L), decoded.get("set"));
+    }
+
+    public void testInvalidTagIsAnError() throws Exception {
+        try {
+            ContextCodec.decode(new byte[]{99});
+            fail("Expected an invalid tag to fail");
+        }
+        catch (UncheckedIOException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+public class DecayedScoreTest extends TestCase {
+
+    private final static long NOW = 1700000000000L;
+    private final static double DELTA = 1e-9;
+
+    public void testSelectionHalvesEachHalfLife() throws Exception {
+        double score = DecayedScore.forSelection(NOW);
+        assertEquals(1.0, DecayedScore.decayedCount(score, NOW), DELTA);
+        assertEquals(0.5, DecayedScore.decayedCount(score, NOW + DecayedScore.HALF_LIFE_MILLIS), DELTA);
+        assertEquals(0.25, DecayedScore.decayedCount(score, NOW + 2 * DecayedScore.HALF_LIFE_MILLIS), DELTA);
+    }
+
+    public void testForCountAndAddAgree() throws Exception {
+        double added = DecayedScore.forSelection(NOW);
+        for (int i = 1; i < 5; i++) {
+            added = DecayedScore.add(added, NOW);
+        }
+        assertEquals(DecayedScore.forCount(5, NOW), added, DELTA);
+        assertEquals(5.0, DecayedScore.decayedCount(added, NOW), DELTA);
+        // an edge without a count still counts once
+        assertEquals(DecayedScore.forSelection(NOW), DecayedScore.forCount(0, NOW), DELTA);
+    }
+
+    public void testMergeSumsTheDecayedCounts() throws Exception {
+        double a = DecayedScore.forCount(3, NOW - DecayedScore.HALF_LIFE_MILLIS);
+        double b = DecayedScore.forCount(2, NOW);
+        assertEquals(3.5, DecayedScore.decayedCount(DecayedScore.merge(a, b), NOW), DELTA);
+        assertEquals(DecayedScore.merge(a, b), DecayedScore.merge(b, a), DELTA);
+    }
+
+    public void testRecentSelectionsOutrankOlderOnes() throws Exception {
+        // three selections two half-lives ago are worth less than one today
+        double old = DecayedScore.forCount(3, NOW - 2 * DecayedScore.HALF_LIFE_MILLIS);
+        double recent = DecayedScore.forSelection(NOW);
+        assertTrue(recent > old);
+        // five selections two half-lives ago are worth more
+        assertTrue(DecayedScore.forCount(5, NOW - 2 * DecayedScore.HALF_LIFE_MILLIS) > recent);
+        // scores written at different times still order by their decayed counts later on
+        long later = NOW + 10 * DecayedScore.HALF_LIFE_MILLIS;
+        assertTrue(DecayedScore.decayedCount(recent, later) > DecayedScore.decayedCount(old, later));
+    }
+
+    public void testScoresFarFromTheLandmarkDoNotOverflow() throws Exception {
+        long farFuture = NOW + 100L * 365 * 24 * 60 * 60 * 1000;
+        double score = DecayedScore.add(DecayedScore.forSelection(farFuture), farFuture);
+        assertFalse(Double.isInfinite(score));
+        assertEquals(2.0, DecayedScore.decayedCount(score, farFuture), 1e-6);
+    }
+}
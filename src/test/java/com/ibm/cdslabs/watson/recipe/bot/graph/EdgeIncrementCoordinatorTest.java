@@ -0,0 +1,110 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ibm.graph.client.Edge;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EdgeIncrementCoordinatorTest extends TestCase {
+
+    private final Edge edge = new Edge("selects", 1L, 2L);
+
+    public void testSingleIncrementIsWrittenOnce() throws Exception {
+        EdgeIncrementCoordinator coordinator = new EdgeIncrementCoordinator();
+        List<Integer> written = new ArrayList<>();
+        Edge result = coordinator.increment(this.edge, (edge, increments) -> {
+            written.add(increments);
+            return edge;
+        });
+        assertSame(this.edge, result);
+        assertEquals(1, written.size());
+        assertEquals(1, (int)written.get(0));
+        assertEquals(1L, coordinator.getMetrics().get("writes"));
+    }
+
+    public void testIncrementsDuringAWriteAreCoalesced() throws Exception {
+        EdgeIncrementCoordinator coordinator = new EdgeIncrementCoordinator();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger writtenIncrements = new AtomicInteger();
+        EdgeIncrementCoordinator.IncrementWriter writer = (edge, increments) -> {
+            writtenIncrements.addAndGet(increments);
+            release.await();
+            return edge;
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Edge>> results = new ArrayList<>();
+            results.add(executor.submit(() -> coordinator.increment(this.edge, writer)));
+            // the first write is in flight; the next caller waits to write, and the others join its batch
+            waitForIncrements(coordinator, 1);
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> coordinator.increment(this.edge, writer)));
+            }
+            waitForIncrements(coordinator, 4);
+            release.countDown();
+            for (Future<Edge> result : results) {
+                assertSame(this.edge, result.get(5, TimeUnit.SECONDS));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertEquals(4, writtenIncrements.get());
+        assertEquals(4L, coordinator.getMetrics().get("increments"));
+        assertEquals(2L, coordinator.getMetrics().get("writes"));
+    }
+
+    public void testWriteFailureIsThrownToEveryCallerInTheBatch() throws Exception {
+        EdgeIncrementCoordinator coordinator = new EdgeIncrementCoordinator();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger writeCount = new AtomicInteger();
+        EdgeIncrementCoordinator.IncrementWriter writer = (edge, increments) -> {
+            if (writeCount.incrementAndGet() > 1) {
+                throw new IOException("Graph unavailable");
+            }
+            release.await();
+            return edge;
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<Edge> first = executor.submit(() -> coordinator.increment(this.edge, writer));
+            waitForIncrements(coordinator, 1);
+            Future<Edge> second = executor.submit(() -> coordinator.increment(this.edge, writer));
+            Future<Edge> third = executor.submit(() -> coordinator.increment(this.edge, writer));
+            waitForIncrements(coordinator, 3);
+            release.countDown();
+            assertSame(this.edge, first.get(5, TimeUnit.SECONDS));
+            for (Future<Edge> failed : Arrays.asList(second, third)) {
+                try {
+                    failed.get(5, TimeUnit.SECONDS);
+                    fail("Expected the failed write to be thrown");
+                }
+                catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof IOException);
+                    assertEquals("Graph unavailable", ex.getCause().getMessage());
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        // the failed batch is closed, so the next increment is written again
+        assertSame(this.edge, coordinator.increment(this.edge, (edge, increments) -> edge));
+    }
+
+    /**
+     * Waits until the callers have counted their increments, then a little longer for them to open or join a batch.
+     */
+    private static void waitForIncrements(EdgeIncrementCoordinator coordinator, long increments) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((Long)coordinator.getMetrics().get("increments") < increments && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(100);
+    }
+}
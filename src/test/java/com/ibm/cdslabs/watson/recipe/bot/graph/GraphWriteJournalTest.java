@@ -0,0 +1,107 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ibm.graph.client.Vertex;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+public class GraphWriteJournalTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    public void testUnappliedWritesAreReplayedOnRestart() throws Exception {
+        GraphWriteJournal journal = new GraphWriteJournal(new RecordingStore(true), this.directory);
+        journal.start();
+        journal.addUser("U1");
+        journal.recordIngredientRequestForUser("tomato", "U1");
+        journal.stop(0);
+        assertTrue(journal.getUnappliedBytes() > 0);
+
+        RecordingStore store = new RecordingStore(false);
+        journal = new GraphWriteJournal(store, this.directory);
+        journal.start();
+        journal.stop(5000);
+        assertEquals(0, journal.getUnappliedBytes());
+        assertEquals(Collections.singletonList("U1"), store.users);
+        assertEquals(1, store.selections);
+    }
+
+    public void testAppliedWritesAreNotReplayed() throws Exception {
+        RecordingStore store = new RecordingStore(false);
+        GraphWriteJournal journal = new GraphWriteJournal(store, this.directory);
+        journal.start();
+        journal.addUser("U1");
+        journal.recordIngredientRequestForUser("tomato", "U1");
+        journal.recordIngredientRequestForUser("tomato", "U1");
+        journal.stop(5000);
+        assertEquals(2, store.selections);
+
+        store = new RecordingStore(false);
+        journal = new GraphWriteJournal(store, this.directory);
+        journal.start();
+        journal.stop(5000);
+        assertTrue(store.users.isEmpty());
+        assertEquals(0, store.selections);
+    }
+
+    public void testUserIsJournaledOnce() throws Exception {
+        GraphWriteJournal journal = new GraphWriteJournal(new RecordingStore(true), this.directory);
+        journal.start();
+        journal.addUser("U1");
+        long unapplied = journal.getUnappliedBytes();
+        journal.addUser("U1");
+        assertEquals(unapplied, journal.getUnappliedBytes());
+        journal.addUser("U2");
+        assertTrue(journal.getUnappliedBytes() > unapplied);
+        journal.stop(0);
+    }
+
+    /**
+     * Records the writes applied by the journal instead of sending them to Graph, or fails every write.
+     */
+    private static class RecordingStore extends GraphRecipeStore {
+
+        final boolean failing;
+        final List<String> users = new ArrayList<>();
+        int selections;
+
+        RecordingStore(boolean failing) {
+            super(null, "test");
+            this.failing = failing;
+        }
+
+        @Override
+        public Vertex addUser(String userId) throws Exception {
+            if (this.failing) {
+                throw new Exception("Graph unavailable");
+            }
+            this.users.add(userId);
+            return new Vertex("person", new HashMap<String, Object>());
+        }
+
+        @Override
+        public Vertex findIngredientByName(String name) throws Exception {
+            return new Vertex("ingredient", new HashMap<String, Object>());
+        }
+
+        @Override
+        public void recordIngredientRequestForUser(Object ingredientVertexId, Object userVertexId, WriteBatch batch) throws Exception {
+            this.selections++;
+        }
+    }
+}
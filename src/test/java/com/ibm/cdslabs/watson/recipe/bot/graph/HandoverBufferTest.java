@@ -0,0 +1,59 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class HandoverBufferTest extends TestCase {
+
+    public void testMessagesForOwnedPartitionsAreNotHeld() {
+        HandoverBuffer buffer = new HandoverBuffer(4, 60000, 10);
+        assertFalse(buffer.hold(1, () -> true, () -> fail("replayed")));
+        assertTrue(buffer.acquired(1, 0).isEmpty());
+    }
+
+    public void testHeldMessagesAreReplayedInOrderWhenAcquired() {
+        HandoverBuffer buffer = new HandoverBuffer(4, 60000, 10);
+        List<String> replayed = new ArrayList<>();
+        assertTrue(buffer.hold(2, () -> false, () -> replayed.add("first")));
+        assertTrue(buffer.hold(2, () -> false, () -> replayed.add("second")));
+        assertTrue(buffer.hold(3, () -> false, () -> replayed.add("other partition")));
+        for (Runnable replay : buffer.acquired(2, 0)) {
+            replay.run();
+        }
+        assertEquals(Arrays.asList("first", "second"), replayed);
+        assertTrue(buffer.acquired(2, 0).isEmpty());
+        assertEquals(2L, buffer.getMetrics().get("replayed"));
+        assertEquals(1, buffer.getMetrics().get("holding"));
+    }
+
+    public void testMessagesHandledByThePreviousOwnerAreNotReplayed() throws Exception {
+        HandoverBuffer buffer = new HandoverBuffer(4, 60000, 10);
+        buffer.hold(0, () -> false, () -> {});
+        Thread.sleep(5);
+        long handledUntil = System.currentTimeMillis();
+        buffer.hold(0, () -> false, () -> {});
+        assertEquals(1, buffer.acquired(0, handledUntil).size());
+    }
+
+    public void testOldestMessagesAreDroppedOverCapacity() {
+        HandoverBuffer buffer = new HandoverBuffer(1, 60000, 2);
+        List<String> replayed = new ArrayList<>();
+        for (String message : new String[]{"a", "b", "c"}) {
+            buffer.hold(0, () -> false, () -> replayed.add(message));
+        }
+        for (Runnable replay : buffer.acquired(0, 0)) {
+            replay.run();
+        }
+        assertEquals(Arrays.asList("b", "c"), replayed);
+        assertEquals(1L, buffer.getMetrics().get("dropped"));
+    }
+
+    public void testExpiredMessagesAreDropped() throws Exception {
+        HandoverBuffer buffer = new HandoverBuffer(1, 1, 10);
+        buffer.hold(0, () -> false, () -> {});
+        Thread.sleep(10);
+        assertTrue(buffer.acquired(0, 0).isEmpty());
+        assertEquals(1L, buffer.getMetrics().get("dropped"));
+    }
+}
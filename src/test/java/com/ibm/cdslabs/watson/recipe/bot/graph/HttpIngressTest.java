@@ -0,0 +1,204 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+public class HttpIngressTest extends TestCase {
+
+    private final static String SIGNING_SECRET = "secret";
+    private final static String CHAT_TOKEN = "token";
+
+    private TestSousChef sousChef;
+    private HttpIngress httpIngress;
+    private int port;
+
+    @Override
+    protected void setUp() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            this.port = socket.getLocalPort();
+        }
+        this.sousChef = new TestSousChef();
+        this.httpIngress = new HttpIngress(this.sousChef, this.port, SIGNING_SECRET, 2);
+        this.httpIngress.enableChat(CHAT_TOKEN);
+        this.httpIngress.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.httpIngress.stop();
+    }
+
+    public void testUrlVerificationIsAnswered() throws Exception {
+        Response response = this.postSlackEvent("{\"type\":\"url_verification\",\"challenge\":\"abc\"}", now(), null);
+        assertEquals(200, response.status);
+        assertEquals("{\"challenge\":\"abc\"}", response.body);
+    }
+
+    public void testUnsignedEventsAreRefused() throws Exception {
+        String body = "{\"type\":\"url_verification\",\"challenge\":\"abc\"}";
+        assertEquals(401, this.post("/slack/events", body, null, null, null).status);
+        // signed more than five minutes ago
+        long timestamp = now() - 10 * 60;
+        assertEquals(401, this.postSlackEvent(body, timestamp, null).status);
+        // signed for another body
+        assertEquals(401, this.postSlackEvent(body, now(), sign(now(), "{}")).status);
+        assertEquals(401, this.postSlackEvent(body, now(), "v0=0000").status);
+    }
+
+    public void testRetriedEventIsDispatchedOnce() throws Exception {
+        String body = messageEvent("T1", "Ev1", "U1", "pasta");
+        assertEquals(200, this.postSlackEvent(body, now(), null).status);
+        assertEquals(200, this.postSlackEvent(body, now(), null).status);
+        assertEquals(1, this.sousChef.messages.size());
+        assertEquals("U1:pasta", this.sousChef.messages.get(0));
+    }
+
+    public void testEventForUnknownTeamIsRefused() throws Exception {
+        assertEquals(403, this.postSlackEvent(messageEvent("T9", "Ev1", "U1", "pasta"), now(), null).status);
+        assertTrue(this.sousChef.messages.isEmpty());
+    }
+
+    public void testEventForAnotherInstanceIsRefusedAndRetried() throws Exception {
+        String body = messageEvent("T1", "Ev1", "U1", "pasta");
+        this.sousChef.ownsUsers = false;
+        assertEquals(503, this.postSlackEvent(body, now(), null).status);
+        assertTrue(this.sousChef.messages.isEmpty());
+        // the refused event was not recorded, so the retry is dispatched
+        this.sousChef.ownsUsers = true;
+        assertEquals(200, this.postSlackEvent(body, now(), null).status);
+        assertEquals(1, this.sousChef.messages.size());
+    }
+
+    public void testChatRequiresTheToken() throws Exception {
+        this.sousChef.replying = true;
+        String body = "{\"user\":\"U1\",\"text\":\"hi\"}";
+        assertEquals(401, this.post("/chat", body, null, null, null).status);
+        assertEquals(401, this.post("/chat", body, "Bearer wrong", null, null).status);
+        Response response = this.post("/chat", body, "Bearer " + CHAT_TOKEN, null, null);
+        assertEquals(200, response.status);
+        assertEquals("{\"reply\":\"You said hi\"}", response.body);
+        assertEquals(400, this.post("/chat", "{\"user\":\"U1\"}", "Bearer " + CHAT_TOKEN, null, null).status);
+    }
+
+    public void testChatIsRefusedWhenBusyOrHandledElsewhere() throws Exception {
+        String body = "{\"user\":\"U1\",\"text\":\"hi\"}";
+        this.sousChef.busy = true;
+        assertEquals(503, this.post("/chat", body, "Bearer " + CHAT_TOKEN, null, null).status);
+        this.sousChef.busy = false;
+        this.sousChef.ownsUsers = false;
+        assertEquals(421, this.post("/chat", body, "Bearer " + CHAT_TOKEN, null, null).status);
+    }
+
+    private Response postSlackEvent(String body, long timestamp, String signature) throws Exception {
+        return this.post("/slack/events", body, null, String.valueOf(timestamp), (signature == null ? sign(timestamp, body) : signature));
+    }
+
+    private Response post(String path, String body, String authorization, String timestamp, String signature) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:" + this.port + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        if (timestamp != null) {
+            connection.setRequestProperty("X-Slack-Request-Timestamp", timestamp);
+            connection.setRequestProperty("X-Slack-Signature", signature);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+        InputStream in = (response.status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (in != null) {
+            try {
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        response.body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        connection.disconnect();
+        return response;
+    }
+
+    private static String messageEvent(String teamId, String eventId, String userId, String text) {
+        return String.format("{\"type\":\"event_callback\",\"team_id\":\"%s\",\"event_id\":\"%s\",\"event\":{\"type\":\"message\",\"channel_type\":\"im\",\"user\":\"%s\",\"channel\":\"D1\",\"text\":\"%s\"}}",
+                teamId, eventId, userId, text);
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static String sign(long timestamp, String body) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SIGNING_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte[] digest = mac.doFinal(("v0:" + timestamp + ":" + body).getBytes(StandardCharsets.UTF_8));
+        StringBuilder signature = new StringBuilder("v0=");
+        for (byte b : digest) {
+            signature.append(String.format("%02x", b));
+        }
+        return signature.toString();
+    }
+
+    private static class Response {
+        int status;
+        String body;
+    }
+
+    /**
+     * Records the dispatched messages instead of running them through Conversation, answering them with an echo
+     * when replying, and serves team T1 from the default workspace.
+     */
+    private static class TestSousChef extends SousChef {
+
+        final List<String> messages = new CopyOnWriteArrayList<>();
+        volatile boolean ownsUsers = true;
+        volatile boolean busy;
+        volatile boolean replying;
+
+        TestSousChef() {
+            super(null, "xoxb-test", "B1", new RecipeClient("key"), "username", "password", "workspace", null);
+        }
+
+        @Override
+        public SlackWorkspace findSlackWorkspaceByTeamId(String teamId) {
+            return ("T1".equals(teamId) ? this.findSlackWorkspace(null) : null);
+        }
+
+        @Override
+        public boolean dispatchMessage(SlackWorkspace slackWorkspace, String slackUserId, String message, Consumer<String> replyHandler, Runnable failureHandler) {
+            if (! this.ownsUsers) {
+                return false;
+            }
+            this.messages.add(slackUserId + ":" + message);
+            if (this.busy) {
+                failureHandler.run();
+            }
+            else if (this.replying) {
+                new Thread(() -> replyHandler.accept("You said " + message)).start();
+            }
+            return true;
+        }
+    }
+}
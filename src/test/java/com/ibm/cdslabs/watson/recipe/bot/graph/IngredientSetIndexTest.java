@@ -0,0 +1,33 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+public class IngredientSetIndexTest extends TestCase {
+
+    public void testStoredNameOfVertexAddedBeforeCanonicalization() {
+        IngredientNormalizer normalizer = new IngredientNormalizer();
+        IngredientSetIndex index = new IngredientSetIndex(normalizer);
+        index.add("beef,onions");
+        assertEquals("beef,onions", index.getStoredName(normalizer.getCanonicalName("Onion, beef")));
+        // a vertex with the canonical name wins over an equivalent older one
+        index.add("beef,onion");
+        assertEquals("beef,onion", index.getStoredName("beef,onion"));
+        assertNull(index.getStoredName("onion"));
+    }
+
+    public void testQueryDoesNotInternIngredients() {
+        IngredientNormalizer normalizer = new IngredientNormalizer();
+        IngredientSetIndex index = new IngredientSetIndex(normalizer);
+        index.add("beef,onion");
+        assertEquals("beef,onion", index.findClosest("beef, onions, kumquats"));
+        assertEquals(-1, normalizer.findTokenId("kumquat"));
+        assertTrue(normalizer.findTokenId("onion") >= 0);
+    }
+
+    public void testUnknownIngredientsCountAgainstSimilarity() {
+        IngredientSetIndex index = new IngredientSetIndex(new IngredientNormalizer());
+        index.add("beef");
+        assertNull(index.findClosest("beef,kumquat,durian"));
+        assertEquals("beef", index.findClosest("beef,kumquat,durian", 0));
+    }
+}
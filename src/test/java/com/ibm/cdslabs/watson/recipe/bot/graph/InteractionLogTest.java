@@ -0,0 +1,101 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InteractionLogTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("interactions").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    public void testEventsAreReadBack() throws Exception {
+        long start = System.currentTimeMillis();
+        InteractionLog log = new InteractionLog(this.directory, 1024 * 1024);
+        log.start();
+        log.log(InteractionLog.START, "T1:U1", null, 120);
+        log.log(InteractionLog.INGREDIENT, "T1:U1", "ch\u00e8vre,basil", 2500);
+        log.log(InteractionLog.SELECTION, "T1:U2", "12345", Long.MAX_VALUE);
+        log.close();
+        List<InteractionLog.Event> events = readAll(this.directory);
+        assertEquals(3, events.size());
+        assertEquals(InteractionLog.START, events.get(0).type);
+        assertEquals("T1:U1", events.get(0).userId);
+        assertEquals("", events.get(0).subject);
+        assertEquals(120, events.get(0).latencyMillis);
+        assertTrue(events.get(0).time >= start);
+        assertEquals("ch\u00e8vre,basil", events.get(1).subject);
+        assertEquals(InteractionLog.SELECTION, events.get(2).type);
+        assertEquals(Integer.MAX_VALUE, events.get(2).latencyMillis);
+    }
+
+    public void testFilesAreRotatedAndReadInOrder() throws Exception {
+        InteractionLog log = new InteractionLog(this.directory, 100);
+        for (int i = 0; i < 10; i++) {
+            log.log(InteractionLog.MORE, "U" + i, null, i);
+            log.flush();
+        }
+        log.close();
+        assertTrue(InteractionLog.listFiles(this.directory).length > 1);
+        List<InteractionLog.Event> events = readAll(this.directory);
+        assertEquals(10, events.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("U" + i, events.get(i).userId);
+        }
+    }
+
+    public void testFullBufferIsWrittenWithoutFlushing() throws Exception {
+        StringBuilder subject = new StringBuilder();
+        while (subject.length() < 2000) {
+            subject.append("basil,");
+        }
+        InteractionLog log = new InteractionLog(this.directory, 1024 * 1024);
+        // each event is truncated to about 1 KB, so the 64 KB buffer fills after about 60
+        for (int i = 0; i < 100; i++) {
+            log.log(InteractionLog.INGREDIENT, "U" + i, subject.toString(), i);
+        }
+        long dropped = log.getDroppedCount();
+        log.close();
+        List<InteractionLog.Event> events = readAll(this.directory);
+        assertEquals(100, events.size() + dropped);
+        assertEquals("U0", events.get(0).userId);
+        assertEquals(1024, events.get(0).subject.length());
+    }
+
+    public void testPartialEventAtTheEndIsIgnored() throws Exception {
+        InteractionLog log = new InteractionLog(this.directory, 1024 * 1024);
+        log.log(InteractionLog.SEARCH, "U1", "soup", 10);
+        log.close();
+        File file = InteractionLog.listFiles(this.directory)[0];
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 40, InteractionLog.SEARCH, 0, 0});
+        }
+        List<InteractionLog.Event> events = readAll(this.directory);
+        assertEquals(1, events.size());
+        assertEquals("soup", events.get(0).subject);
+    }
+
+    private static List<InteractionLog.Event> readAll(File directory) throws Exception {
+        List<InteractionLog.Event> events = new ArrayList<>();
+        for (File file : InteractionLog.listFiles(directory)) {
+            InteractionLog.read(file, events::add);
+        }
+        return events;
+    }
+}
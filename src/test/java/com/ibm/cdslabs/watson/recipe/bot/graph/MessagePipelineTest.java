@@ -0,0 +1,126 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+public class MessagePipelineTest extends TestCase {
+
+    private final List<String> failed = new CopyOnWriteArrayList<>();
+    private MessagePipeline<String> pipeline;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.pipeline != null) {
+            this.pipeline.stop();
+        }
+        assertTrue(this.failed.isEmpty());
+    }
+
+    public void testItemsOfAKeyAreHandledInOrder() throws Exception {
+        Map<String, List<String>> handled = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(20);
+        this.pipeline = newPipeline(2, 8, (item, ex) -> this.failed.add(item))
+                .addStage("parse", item -> Thread.sleep(ThreadLocalRandom.current().nextInt(3)))
+                .addStage("reply", item -> {
+                    handled.computeIfAbsent(key(item), key -> Collections.synchronizedList(new ArrayList<>())).add(item);
+                    done.countDown();
+                });
+        this.pipeline.start();
+        for (int i = 0; i < 5; i++) {
+            for (String key : Arrays.asList("A", "B", "C", "D")) {
+                assertTrue(this.pipeline.submit(key + ":" + i));
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (String key : Arrays.asList("A", "B", "C", "D")) {
+            assertEquals(Arrays.asList(key + ":0", key + ":1", key + ":2", key + ":3", key + ":4"), handled.get(key));
+        }
+        assertEquals(20L, this.pipeline.getMetrics().get("submitted"));
+        assertEquals(0L, this.pipeline.getMetrics().get("refused"));
+    }
+
+    public void testItemsAreRefusedWhenAKeyHasTooManyWaiting() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> handled = new CopyOnWriteArrayList<>();
+        this.pipeline = newPipeline(1, 2, (item, ex) -> this.failed.add(item))
+                .addStage("reply", item -> {
+                    release.await();
+                    handled.add(item);
+                });
+        this.pipeline.start();
+        // the first item is in the pipeline and two wait behind it
+        assertTrue(this.pipeline.submit("A:0"));
+        assertTrue(this.pipeline.submit("A:1"));
+        assertTrue(this.pipeline.submit("A:2"));
+        assertFalse(this.pipeline.submit("A:3"));
+        release.countDown();
+        waitFor(() -> handled.size() == 3);
+        assertEquals(Arrays.asList("A:0", "A:1", "A:2"), handled);
+        assertEquals(1L, this.pipeline.getMetrics().get("refused"));
+    }
+
+    public void testItemsAreRefusedWhenTheFirstStageIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> handled = new CopyOnWriteArrayList<>();
+        this.pipeline = newPipeline(1, 2, (item, ex) -> this.failed.add(item))
+                .addStage("reply", item -> {
+                    release.await();
+                    handled.add(item);
+                });
+        this.pipeline.start();
+        int accepted = 0;
+        for (int i = 0; i < 100 && this.pipeline.submit("U" + i + ":0"); i++) {
+            accepted++;
+        }
+        assertTrue(accepted < 100);
+        assertEquals(1L, this.pipeline.getMetrics().get("refused"));
+        release.countDown();
+        int expected = accepted;
+        waitFor(() -> handled.size() == expected);
+        // room is made as the stage catches up
+        assertTrue(this.pipeline.submit("U100:0"));
+    }
+
+    public void testFailedItemLeavesThePipeline() throws Exception {
+        Map<String, Exception> failures = new ConcurrentHashMap<>();
+        List<String> replied = new CopyOnWriteArrayList<>();
+        this.pipeline = newPipeline(1, 4, failures::put)
+                .addStage("process", item -> {
+                    if (item.endsWith("bad")) {
+                        throw new IOException("Conversation unavailable");
+                    }
+                })
+                .addStage("reply", replied::add);
+        this.pipeline.start();
+        assertTrue(this.pipeline.submit("A:bad"));
+        assertTrue(this.pipeline.submit("A:good"));
+        waitFor(() -> replied.size() == 1);
+        assertEquals(Arrays.asList("A:good"), replied);
+        assertEquals("Conversation unavailable", failures.get("A:bad").getMessage());
+        assertEquals(1, failures.size());
+        Map<?,?> process = (Map<?,?>)this.pipeline.getMetrics().get("process");
+        assertEquals(1L, process.get("failed"));
+        assertEquals(1L, process.get("handled"));
+    }
+
+    private static MessagePipeline<String> newPipeline(int partitions, int bufferSize, BiConsumer<String, Exception> failureHandler) {
+        return new MessagePipeline<>("pipeline-test", ExecutionModel.PLATFORM, partitions, bufferSize, MessagePipelineTest::key, failureHandler);
+    }
+
+    private static String key(String item) {
+        return item.substring(0, item.indexOf(':'));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (! condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
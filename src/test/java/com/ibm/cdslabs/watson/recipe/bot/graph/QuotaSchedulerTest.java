@@ -0,0 +1,76 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class QuotaSchedulerTest extends TestCase {
+
+    public void testInteractiveRequestsAreGrantedBeforePrefetch() throws Exception {
+        QuotaScheduler scheduler = new QuotaScheduler(5, 1, 0.1);
+        assertTrue(scheduler.tryAcquire(QuotaScheduler.Priority.INTERACTIVE));
+        assertFalse(scheduler.tryAcquire(QuotaScheduler.Priority.INTERACTIVE));
+        List<QuotaScheduler.Priority> granted = new CopyOnWriteArrayList<>();
+        Thread prefetch = acquireOnThread(scheduler, QuotaScheduler.Priority.PREFETCH, granted);
+        Thread.sleep(50);
+        // queued behind the prefetch request, but granted the next token
+        Thread interactive = acquireOnThread(scheduler, QuotaScheduler.Priority.INTERACTIVE, granted);
+        prefetch.join(5000);
+        interactive.join(5000);
+        assertEquals(Arrays.asList(QuotaScheduler.Priority.INTERACTIVE, QuotaScheduler.Priority.PREFETCH), granted);
+        assertEquals(3L, scheduler.getMetrics().get("granted"));
+    }
+
+    public void testWaitTimesOut() throws Exception {
+        QuotaScheduler scheduler = new QuotaScheduler(0.1, 1, 0.1);
+        assertTrue(scheduler.acquire(QuotaScheduler.Priority.INTERACTIVE, 10));
+        assertFalse(scheduler.acquire(QuotaScheduler.Priority.INTERACTIVE, 50));
+        assertEquals(1L, scheduler.getMetrics().get("timedOut"));
+        assertEquals(0, scheduler.getMetrics().get("waiting"));
+    }
+
+    public void testPrefetchIsRefusedWithinTheInteractiveReserve() throws Exception {
+        QuotaScheduler scheduler = new QuotaScheduler(100, 10, 0.1);
+        scheduler.recordQuota("100", "11");
+        assertFalse(scheduler.isExhausted(QuotaScheduler.Priority.PREFETCH));
+        scheduler.recordQuota(null, "10");
+        assertTrue(scheduler.isExhausted(QuotaScheduler.Priority.PREFETCH));
+        assertFalse(scheduler.acquire(QuotaScheduler.Priority.PREFETCH, 1000));
+        assertFalse(scheduler.tryAcquire(QuotaScheduler.Priority.PREFETCH));
+        assertTrue(scheduler.acquire(QuotaScheduler.Priority.INTERACTIVE, 1000));
+        assertEquals(1L, scheduler.getMetrics().get("refused"));
+    }
+
+    public void testExhaustedQuotaRefusesEveryRequest() throws Exception {
+        QuotaScheduler scheduler = new QuotaScheduler(100, 10, 0.1);
+        scheduler.recordQuota("100", " 0 ");
+        assertTrue(scheduler.isExhausted(QuotaScheduler.Priority.INTERACTIVE));
+        assertFalse(scheduler.acquire(QuotaScheduler.Priority.INTERACTIVE, 1000));
+        assertEquals(0L, scheduler.getMetrics().get("quotaRemaining"));
+        // invalid headers are ignored
+        scheduler.recordQuota("unlimited", "lots");
+        assertTrue(scheduler.isExhausted(QuotaScheduler.Priority.INTERACTIVE));
+        scheduler.recordQuota(null, "5");
+        assertFalse(scheduler.isExhausted(QuotaScheduler.Priority.INTERACTIVE));
+    }
+
+    public void testQuotaResetIsTheNextUtcMidnight() throws Exception {
+        long now = System.currentTimeMillis();
+        long midnight = QuotaScheduler.nextUtcMidnight();
+        assertTrue(midnight > now);
+        assertTrue(midnight <= now + 24 * 60 * 60 * 1000L);
+        assertEquals(0, midnight % (24 * 60 * 60 * 1000L));
+    }
+
+    private static Thread acquireOnThread(QuotaScheduler scheduler, QuotaScheduler.Priority priority, List<QuotaScheduler.Priority> granted) {
+        Thread thread = new Thread(() -> {
+            if (scheduler.acquire(priority, 5000)) {
+                granted.add(priority);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
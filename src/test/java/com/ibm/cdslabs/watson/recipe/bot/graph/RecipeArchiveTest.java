@@ -0,0 +1,80 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+public class RecipeArchiveTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("archive").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    public void testEdgesAndDetailsAreReadBack() throws Exception {
+        RecipeArchive archive = new RecipeArchive(this.directory);
+        archive.write(Arrays.asList(edge("e1", "U1", 2), edge("e2", "U2", 1)), Collections.singletonMap("recipe-1", "{\"title\":\"Soup\"}"));
+        assertEquals(2, allEdges(archive).size());
+        assertEquals(1, archive.getEdges("U1").size());
+        assertEquals("{\"title\":\"Soup\"}", archive.getDetail("recipe-1"));
+        assertNull(archive.getDetail("recipe-2"));
+        // a new process sharing the directory loads the same segments
+        assertEquals(2, allEdges(new RecipeArchive(this.directory)).size());
+    }
+
+    public void testLatestCopyOfAnEdgeArchivedTwiceIsKept() throws Exception {
+        RecipeArchive archive = new RecipeArchive(this.directory);
+        archive.write(Collections.singletonList(edge("e1", "U1", 2)), Collections.emptyMap());
+        archive.write(Collections.singletonList(edge("e1", "U1", 5)), Collections.emptyMap());
+        RecipeArchive reopened = new RecipeArchive(this.directory);
+        assertEquals(1, allEdges(reopened).size());
+        assertEquals(5, allEdges(reopened).get(0).getCount());
+        assertEquals(1, reopened.getEdges("U1").size());
+        assertEquals(5, reopened.getEdges("U1").get(0).getCount());
+    }
+
+    public void testEdgesOfManyUsersAreReadFromTheirRuns() throws Exception {
+        RecipeArchive archive = new RecipeArchive(this.directory);
+        List<RecipeArchive.ArchivedEdge> edges = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            edges.add(edge("e" + i, "U" + (i % 7), i));
+        }
+        archive.write(edges, Collections.emptyMap());
+        archive.write(Collections.singletonList(edge("e3", "U3", 100)), Collections.singletonMap("recipe-2", "\u00e9"));
+        RecipeArchive reopened = new RecipeArchive(this.directory);
+        assertEquals(30, allEdges(reopened).size());
+        for (int user = 0; user < 7; user++) {
+            for (RecipeArchive.ArchivedEdge edge : reopened.getEdges("U" + user)) {
+                assertEquals("U" + user, edge.getUserId());
+                assertEquals("v-U" + user, edge.getUserVertexId());
+                int count = Integer.parseInt(edge.getEdgeId().substring(1));
+                assertEquals(count == 3 ? 100 : count, edge.getCount());
+            }
+        }
+        assertEquals(4, reopened.getEdges("U3").size());
+        assertEquals("\u00e9", reopened.getDetail("recipe-2"));
+        assertTrue(reopened.getEdges("U9").isEmpty());
+    }
+
+    private static List<RecipeArchive.ArchivedEdge> allEdges(RecipeArchive archive) {
+        List<RecipeArchive.ArchivedEdge> edges = new ArrayList<>();
+        archive.forEachEdge(edges::add);
+        return edges;
+    }
+
+    private static RecipeArchive.ArchivedEdge edge(String edgeId, String userId, int count) {
+        return new RecipeArchive.ArchivedEdge(edgeId, "selects", "v-" + userId, userId, "recipe", "recipe-1", "Soup", count, count, 1000L);
+    }
+}
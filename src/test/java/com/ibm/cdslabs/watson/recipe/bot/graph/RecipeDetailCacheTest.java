@@ -0,0 +1,97 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+public class RecipeDetailCacheTest extends TestCase {
+
+    public void testRecipesAreReadBackFromTheRing() throws Exception {
+        // no room on the heap, so every recipe but the last one put is read from the ring
+        RecipeDetailCache cache = new RecipeDetailCache(0, null, 1024);
+        cache.put("1", 11L, "Soup", "Boil the water.");
+        cache.put("2", null, "Stew", "Simmer for an hour, stirring.");
+        RecipeDetailCache.CachedRecipe soup = cache.get("1");
+        assertEquals("Soup", soup.getTitle());
+        assertEquals("Boil the water.", soup.getDetail());
+        assertEquals(11L, soup.getVertexId());
+        assertNull(cache.get("2").getVertexId());
+        assertNull(cache.get("3"));
+        // reading recipe 1 moved it to the heap in place of recipe 2
+        assertEquals(2L, mapped(cache).get("hits"));
+        assertEquals(1L, cache.getMetrics().get("misses"));
+    }
+
+    public void testWrapAroundOverwritesTheOldestRecipes() throws Exception {
+        // each record is 50 bytes, so the ring holds four
+        RecipeDetailCache cache = new RecipeDetailCache(0, null, 200);
+        for (int id = 1; id <= 4; id++) {
+            cache.put(String.valueOf(id), null, "T", detail(29, id));
+        }
+        for (int id = 1; id <= 4; id++) {
+            assertTrue(cache.contains(String.valueOf(id)));
+        }
+        cache.put("5", null, "T", detail(29, 5));
+        assertFalse(cache.contains("1"));
+        for (int id = 2; id <= 5; id++) {
+            assertEquals(detail(29, id), cache.get(String.valueOf(id)).getDetail());
+        }
+        assertEquals(4, mapped(cache).get("entries"));
+    }
+
+    public void testWrapAroundEvictsARecordRunningIntoTheNewOne() throws Exception {
+        RecipeDetailCache cache = new RecipeDetailCache(0, null, 200);
+        cache.put("1", null, "T", detail(49, 1));  // 0-70
+        cache.put("2", null, "T", detail(49, 2));  // 70-140
+        cache.put("3", null, "T", detail(29, 3));  // 140-190
+        cache.put("4", null, "T", detail(19, 4));  // wraps to 0-40
+        assertFalse(cache.contains("1"));
+        cache.put("5", null, "T", detail(29, 5));  // 40-90, overlaps the record of recipe 2
+        assertFalse(cache.contains("2"));
+        assertEquals(detail(29, 3), cache.get("3").getDetail());
+        assertEquals(detail(19, 4), cache.get("4").getDetail());
+        assertEquals(detail(29, 5), cache.get("5").getDetail());
+    }
+
+    public void testReplacedRecipeIsReadBackWithItsNewDetail() throws Exception {
+        RecipeDetailCache cache = new RecipeDetailCache(0, null, 200);
+        cache.put("1", null, "T", detail(29, 1));
+        cache.put("1", null, "T", detail(29, 9));
+        cache.put("2", null, "T", detail(29, 2));
+        assertEquals(detail(29, 9), cache.get("1").getDetail());
+        assertEquals(2, mapped(cache).get("entries"));
+    }
+
+    public void testHeapTierEvictsLeastRecentlyUsed() throws Exception {
+        RecipeDetailCache cache = new RecipeDetailCache(60, null, 1024);
+        cache.put("1", null, "T", detail(29, 1));
+        cache.put("2", null, "T", detail(29, 2));
+        cache.get("1");
+        // recipe 2 is the least recently used, so it leaves the heap for recipe 3
+        cache.put("3", null, "T", detail(29, 3));
+        assertEquals(2, heap(cache).get("entries"));
+        assertEquals(60L, heap(cache).get("chars"));
+        cache.get("1");
+        cache.get("2");
+        assertEquals(2L, heap(cache).get("hits"));
+        assertEquals(1L, mapped(cache).get("hits"));
+    }
+
+    private static String detail(int length, int id) {
+        StringBuilder detail = new StringBuilder(String.valueOf(id));
+        while (detail.length() < length) {
+            detail.append('x');
+        }
+        return detail.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> heap(RecipeDetailCache cache) {
+        return (Map<String, Object>)cache.getMetrics().get("heap");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> mapped(RecipeDetailCache cache) {
+        return (Map<String, Object>)cache.getMetrics().get("mapped");
+    }
+}
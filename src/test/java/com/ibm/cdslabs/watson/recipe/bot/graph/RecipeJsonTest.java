@@ -0,0 +1,61 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class RecipeJsonTest extends TestCase {
+
+    public void testSummariesAreWrittenAndReadBack() throws Exception {
+        String json = RecipeJson.writeSummaries(Arrays.asList(new RecipeSummary(1, "Soup"), new RecipeSummary(2, "Stew \"hot\"")));
+        List<RecipeSummary> recipes = RecipeJson.readSummaries(json);
+        assertEquals(2, recipes.size());
+        assertEquals(1, recipes.get(0).getId());
+        assertEquals("Stew \"hot\"", recipes.get(1).getTitle());
+    }
+
+    public void testMissingListsReadAsEmpty() throws Exception {
+        for (String json : Arrays.asList(null, "", "  ", "null", "[]")) {
+            assertTrue(RecipeJson.readSummaries(json).isEmpty());
+            assertTrue(RecipeJson.readSteps(json).isEmpty());
+        }
+        for (String json : Arrays.asList(null, "", "{}", "{\"results\":null}", "{\"results\":[]}")) {
+            assertTrue(RecipeJson.readSearchResults(json).isEmpty());
+        }
+        assertEquals("[]", RecipeJson.writeSummaries(null));
+    }
+
+    public void testNullAndOldFieldValuesAreTolerated() throws Exception {
+        List<RecipeSummary> recipes = RecipeJson.readSummaries("[{\"id\":null,\"title\":null},{\"id\":\"42\",\"title\":\"Soup\",\"image\":\"soup.jpg\"},{\"id\":7.0}]");
+        assertEquals(0, recipes.get(0).getId());
+        assertEquals("", recipes.get(0).getTitle());
+        assertEquals(42, recipes.get(1).getId());
+        assertEquals(7, recipes.get(2).getId());
+        assertEquals("", recipes.get(2).getTitle());
+    }
+
+    public void testDetailAndSteps() throws Exception {
+        RecipeDetail detail = RecipeJson.readDetail("{\"id\":1,\"title\":\"Soup\",\"readyInMinutes\":30,\"servings\":null,\"extendedIngredients\":[{\"name\":\"water\"}]}");
+        assertEquals("Soup", detail.getTitle());
+        assertEquals(30, detail.getReadyInMinutes());
+        assertEquals(0, detail.getServings());
+        List<RecipeStep> steps = RecipeJson.readSteps("[{\"name\":\"\",\"steps\":[{\"number\":1,\"step\":\"Boil.\",\"equipment\":[{\"name\":\"pot\"}]}]},{\"steps\":[{\"number\":1,\"step\":\"Ignored.\"}]}]");
+        assertEquals(1, steps.size());
+        assertEquals("Boil.", steps.get(0).getStep());
+        assertEquals(Arrays.asList("pot"), steps.get(0).getEquipment());
+    }
+
+    public void testMissingDetailIsAnError() throws Exception {
+        for (String json : Arrays.asList(null, "", "null")) {
+            try {
+                RecipeJson.readDetail(json);
+                fail("Expected a missing recipe information response to fail");
+            }
+            catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ibm.graph.client.Vertex;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RecipePrefetcherTest extends TestCase {
+
+    private final CountDownLatch lookupStarted = new CountDownLatch(1);
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+    private volatile CountDownLatch release;
+    private RecipePrefetcher prefetcher;
+
+    private final GraphRecipeStore recipeStore = new GraphRecipeStore(null, "test") {
+        @Override
+        public Vertex findRecipe(String recipeId) throws Exception {
+            lookupStarted.countDown();
+            CountDownLatch release = RecipePrefetcherTest.this.release;
+            if (release != null) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ex) {
+                    interrupted.countDown();
+                    throw ex;
+                }
+            }
+            return new Vertex("recipe", new HashMap<>());
+        }
+    };
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.prefetcher != null) {
+            this.prefetcher.stop();
+        }
+    }
+
+    public void testPrefetchedRecipesAreServedToTheirUser() throws Exception {
+        this.prefetcher = new RecipePrefetcher(this.recipeStore, null, 2);
+        this.prefetcher.prefetch("U1", Arrays.asList("1", "2"));
+        assertNotNull(this.prefetcher.get("U1", "1", 1000).getVertex());
+        assertNotNull(this.prefetcher.get("U1", "2", 1000).getVertex());
+        assertNull(this.prefetcher.get("U1", "3", 1000));
+        assertNull(this.prefetcher.get("U2", "1", 1000));
+    }
+
+    public void testNewPrefetchReplacesTheUsersEarlierOne() throws Exception {
+        this.prefetcher = new RecipePrefetcher(this.recipeStore, null, 2);
+        this.prefetcher.prefetch("U1", Arrays.asList("1"));
+        this.prefetcher.prefetch("U1", Arrays.asList("2"));
+        assertNull(this.prefetcher.get("U1", "1", 1000));
+        assertNotNull(this.prefetcher.get("U1", "2", 1000));
+    }
+
+    public void testCancelInterruptsInFlightLookups() throws Exception {
+        this.release = new CountDownLatch(1);
+        this.prefetcher = new RecipePrefetcher(this.recipeStore, null, 2);
+        this.prefetcher.prefetch("U1", Arrays.asList("1"));
+        assertTrue(this.lookupStarted.await(5, TimeUnit.SECONDS));
+        // still in flight
+        assertNull(this.prefetcher.get("U1", "1", 10));
+        this.prefetcher.cancel("U1");
+        assertTrue(this.interrupted.await(5, TimeUnit.SECONDS));
+        assertNull(this.prefetcher.get("U1", "1", 1000));
+    }
+
+    public void testExpiredPrefetchesAreDiscarded() throws Exception {
+        this.prefetcher = new RecipePrefetcher(this.recipeStore, null, 2, 50);
+        this.prefetcher.prefetch("U1", Arrays.asList("1"));
+        assertNotNull(this.prefetcher.get("U1", "1", 1000));
+        Thread.sleep(100);
+        // expired prefetches are discarded when the next one starts
+        this.prefetcher.prefetch("U2", Arrays.asList("2"));
+        assertNull(this.prefetcher.get("U1", "1", 1000));
+        assertNotNull(this.prefetcher.get("U2", "2", 1000));
+    }
+}
@@ -0,0 +1,71 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+public class RecipeSimilarityIndexTest extends TestCase {
+
+    public void testReselectingARecipeOutOfHistoryIsNotCountedAgain() {
+        RecipeSimilarityIndex index = new RecipeSimilarityIndex(false);
+        index.recordSelection("U1", "1", "Soup");
+        index.recordSelection("U1", "2", "Stew");
+        for (int recipe = 3; recipe < 3 + RecipeSimilarityIndex.MAX_USER_HISTORY; recipe++) {
+            index.recordSelection("U1", String.valueOf(recipe), null);
+        }
+        // recipes 1 and 2 have dropped out of the history
+        index.recordSelection("U1", "1", "Soup");
+        RecipeSimilarityIndex.SimilarRecipe[] similar = index.findSimilarRecipes("2", 1);
+        assertEquals("1", similar[0].getId());
+        assertEquals(1.0, similar[0].getSimilarity(), 1e-9);
+    }
+
+    public void testReplacedNeighborIsRemovedFromBothLists() {
+        RecipeSimilarityIndex index = new RecipeSimilarityIndex(false);
+        for (int i = 0; i < RecipeSimilarityIndex.MAX_NEIGHBORS; i++) {
+            index.recordSelection("U" + i, "1", null);
+            index.recordSelection("U" + i, String.valueOf(i + 2), null);
+        }
+        assertEquals(1, index.findSimilarRecipes("2", 10).length);
+        // recipe 1 is full, so its weakest neighbor (recipe 2) makes room for recipe 1000
+        index.recordSelection("X", "1000", null);
+        index.recordSelection("X", "1", null);
+        assertEquals(0, index.findSimilarRecipes("2", 10).length);
+        assertEquals("1", index.findSimilarRecipes("1000", 10)[0].getId());
+        assertEquals(RecipeSimilarityIndex.MAX_NEIGHBORS, index.findSimilarRecipes("1", 1000).length);
+    }
+
+    public void testStrongerPairReplacesTheWeakestNeighbor() {
+        RecipeSimilarityIndex index = new RecipeSimilarityIndex(false);
+        // recipe 1 is full, and each of its neighbors was selected with it by three users
+        for (int i = 0; i < RecipeSimilarityIndex.MAX_NEIGHBORS; i++) {
+            for (int user = 0; user < 3; user++) {
+                index.recordSelection("U" + i + "-" + user, "1", null);
+                index.recordSelection("U" + i + "-" + user, String.valueOf(i + 2), null);
+            }
+        }
+        // recipe 1000 is not linked until it co-occurs with recipe 1 as often as the weakest neighbor
+        for (int user = 0; user < 2; user++) {
+            index.recordSelection("X" + user, "1", null);
+            index.recordSelection("X" + user, "1000", null);
+        }
+        assertEquals(0, index.findSimilarRecipes("1000", 10).length);
+        index.recordSelection("X2", "1", null);
+        index.recordSelection("X2", "1000", null);
+        assertEquals("1", index.findSimilarRecipes("1000", 10)[0].getId());
+        assertEquals(RecipeSimilarityIndex.MAX_NEIGHBORS, index.findSimilarRecipes("1", 1000).length);
+    }
+
+    public void testLeastRecentlyActiveUserIsEvicted() {
+        RecipeSimilarityIndex index = new RecipeSimilarityIndex(false, 2);
+        index.recordSelection("U1", "1", "Soup");
+        index.recordSelection("U2", "1", "Soup");
+        index.recordSelection("U1", "2", "Stew");
+        index.recordSelection("U3", "3", "Salad");
+        assertEquals(2, index.getUserCount());
+        assertEquals(0, index.findSimilarRecipesForUser("U2", 10).length);
+        // U1 is still tracked, so selecting recipe 2 again does not count again
+        index.recordSelection("U1", "2", "Stew");
+        RecipeSimilarityIndex.SimilarRecipe[] similar = index.findSimilarRecipes("1", 10);
+        assertEquals("Stew", similar[0].getTitle());
+        assertEquals(1 / Math.sqrt(2), similar[0].getSimilarity(), 1e-9);
+    }
+}
@@ -0,0 +1,56 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class RecipeTitleIndexTest extends TestCase {
+
+    private RecipeTitleIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.index = new RecipeTitleIndex();
+        this.index.addAll(Arrays.asList(
+                new RecipeSummary(1, "Chicken Tikka Masala"),
+                new RecipeSummary(2, "Chicken Noodle Soup"),
+                new RecipeSummary(3, "Beef Stew"),
+                new RecipeSummary(4, "Mom's Chicken Pot-Pie"),
+                new RecipeSummary(5, "Chicken Soup")));
+    }
+
+    public void testTitlesContainingTheQueryComeFirst() {
+        List<RecipeSummary> recipes = this.index.search("chicken soup", 10);
+        assertEquals(5, recipes.get(0).getId());
+        assertEquals(2, recipes.get(1).getId());
+    }
+
+    public void testCaseAndPunctuationAreIgnored() {
+        assertEquals(4, this.index.search("MOMS chicken pot pie!", 1).get(0).getId());
+        assertEquals("Mom's Chicken Pot-Pie", this.index.search("pot pie", 1).get(0).getTitle());
+    }
+
+    public void testPrefixesAndTyposMatch() {
+        assertEquals(3, this.index.search("beef ste", 1).get(0).getId());
+        assertEquals(1, this.index.search("tikka masla", 1).get(0).getId());
+    }
+
+    public void testUnrelatedQueryMatchesNothing() {
+        assertTrue(this.index.search("lemon tart", 10).isEmpty());
+        assertTrue(this.index.search("", 10).isEmpty());
+        assertTrue(this.index.search("?!", 10).isEmpty());
+    }
+
+    public void testCountLimitsTheResults() {
+        assertEquals(2, this.index.search("chicken", 2).size());
+    }
+
+    public void testRecipesAreAddedOnce() {
+        this.index.add(3, "Beef Stew with Dumplings");
+        this.index.add(6, null);
+        this.index.add(7, "...");
+        assertEquals(5, this.index.size());
+        assertEquals("Beef Stew", this.index.search("beef stew", 1).get(0).getTitle());
+    }
+}
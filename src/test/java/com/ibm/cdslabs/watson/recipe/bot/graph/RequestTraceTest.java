@@ -0,0 +1,108 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import com.ullink.slack.simpleslackapi.SlackChannel;
+import com.ullink.slack.simpleslackapi.SlackSession;
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class RequestTraceTest extends TestCase {
+
+    public void testTraceFinishesWhenEveryHoldIsReleased() throws Exception {
+        TraceRecorder recorder = new TraceRecorder(0, 10);
+        RequestTrace trace = recorder.begin("U1");
+        trace.hold();
+        trace.release();
+        assertEquals(0L, recorder.getMetrics().get("traced"));
+        trace.release();
+        assertEquals(1L, recorder.getMetrics().get("traced"));
+        // a finished trace is not recorded again
+        trace.release();
+        assertEquals(1L, recorder.getMetrics().get("traced"));
+    }
+
+    public void testSpansAreRecordedAgainstTheAttachedTrace() throws Exception {
+        TraceRecorder recorder = new TraceRecorder(0, 10);
+        RequestTrace trace = recorder.begin("U1");
+        assertEquals("reply", RequestTrace.span("graph.gremlin", () -> "reply"));
+        String result = trace.call("process", () -> {
+            assertSame(trace, RequestTrace.current());
+            return RequestTrace.span("graph.gremlin", () -> "reply");
+        });
+        assertEquals("reply", result);
+        assertNull(RequestTrace.current());
+        List<Map<String,Object>> spans = spans(trace);
+        assertEquals(2, spans.size());
+        assertEquals("process", spans.get(0).get("name"));
+        assertEquals("graph.gremlin", spans.get(1).get("name"));
+    }
+
+    public void testSpansBeyondTheLimitAreDropped() throws Exception {
+        RequestTrace trace = new TraceRecorder(0, 10).begin("U1");
+        for (int i = 0; i < 70; i++) {
+            trace.record("span" + i, System.nanoTime(), System.nanoTime());
+        }
+        assertEquals(64, spans(trace).size());
+        assertEquals(6, trace.toMap().get("droppedSpans"));
+    }
+
+    public void testFirstOutcomeIsKept() throws Exception {
+        RequestTrace trace = new TraceRecorder(0, 10).begin("U1");
+        assertEquals("ok", trace.getOutcome());
+        trace.setOutcome("busy");
+        trace.setOutcome("error");
+        assertEquals("busy", trace.getOutcome());
+    }
+
+    public void testSplitReplyHoldsTheTraceUntilEveryPartIsSent() throws Exception {
+        List<String> sent = new CopyOnWriteArrayList<>();
+        SlackSession session = (SlackSession)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{SlackSession.class}, (proxy, method, args) -> {
+            if ("sendMessage".equals(method.getName())) {
+                sent.add((String)args[1]);
+            }
+            return null;
+        });
+        SlackChannel channel = (SlackChannel)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{SlackChannel.class},
+                (proxy, method, args) -> ("getId".equals(method.getName()) ? "D1" : null));
+        SlackSender sender = new SlackSender("sender-test", session, 1);
+        sender.start();
+        try {
+            TraceRecorder recorder = new TraceRecorder(0, 10);
+            RequestTrace trace = recorder.begin("U1");
+            StringBuilder reply = new StringBuilder();
+            while (reply.length() <= SlackSender.MAX_MESSAGE_CHARS) {
+                reply.append("Stir the pot. ");
+            }
+            assertTrue(trace.call("reply", () -> sender.send(channel, reply.toString())));
+            trace.release();
+            // the second part waits a second for the channel's rate limit
+            assertEquals(0L, recorder.getMetrics().get("traced"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((Long)recorder.getMetrics().get("traced") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1L, recorder.getMetrics().get("traced"));
+            assertEquals(2, sent.size());
+            int sends = 0;
+            for (Map<String,Object> span : spans(trace)) {
+                if ("slack.send".equals(span.get("name"))) {
+                    sends++;
+                }
+            }
+            assertEquals(2, sends);
+            assertTrue(trace.getTotalMillis() >= 900);
+            assertEquals("ok", trace.getOutcome());
+        }
+        finally {
+            sender.stop();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String,Object>> spans(RequestTrace trace) {
+        return (List<Map<String,Object>>)trace.toMap().get("spans");
+    }
+}
@@ -0,0 +1,108 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+public class ShardCoordinatorTest extends TestCase {
+
+    private final static int PARTITIONS = 16;
+
+    private File directory;
+    private ShardCoordinator first;
+    private ShardCoordinator second;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("shards").toFile();
+        this.first = new ShardCoordinator(this.directory, "first", PARTITIONS);
+        this.second = new ShardCoordinator(this.directory, "second", PARTITIONS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.first.stop();
+        this.second.stop();
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    public void testSingleInstanceOwnsEveryPartition() throws Exception {
+        this.first.rebalance();
+        assertEquals(PARTITIONS, this.first.getOwnedPartitions().size());
+        assertTrue(this.first.ownsUser("U123"));
+        assertTrue(this.first.isAssignedUser("U123"));
+    }
+
+    public void testPartitionsAreHandedOverWithTheReleaseTime() throws Exception {
+        this.first.rebalance();
+        Set<Integer> released = new TreeSet<>();
+        Map<Integer,Long> acquired = new HashMap<>();
+        this.first.addPartitionListener(new RecordingListener(null, released));
+        this.second.addPartitionListener(new RecordingListener(acquired, null));
+
+        // the second instance is assigned partitions that the first one still owns
+        this.second.rebalance();
+        assertTrue(this.second.getOwnedPartitions().isEmpty());
+        Set<Integer> moving = new TreeSet<>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            String userId = findUser(i);
+            if (this.second.isAssignedUser(userId)) {
+                moving.add(i);
+                assertFalse(this.second.ownsUser(userId));
+                assertTrue(this.first.ownsUser(userId));
+            }
+        }
+        assertFalse(moving.isEmpty());
+
+        long beforeRelease = System.currentTimeMillis();
+        this.first.rebalance();
+        long afterRelease = System.currentTimeMillis();
+        assertEquals(moving, released);
+        this.second.rebalance();
+        assertEquals(moving, this.second.getOwnedPartitions());
+        assertEquals(moving, acquired.keySet());
+        for (int partition : moving) {
+            // the time the first instance stopped handling the partition
+            assertTrue(acquired.get(partition) >= beforeRelease && acquired.get(partition) <= afterRelease);
+            assertFalse(this.first.ownsUser(findUser(partition)));
+        }
+    }
+
+    private static String findUser(int partition) {
+        for (int i = 0; ; i++) {
+            if (UserStateStore.getPartition("U" + i, PARTITIONS) == partition) {
+                return "U" + i;
+            }
+        }
+    }
+
+    private static class RecordingListener implements ShardCoordinator.PartitionListener {
+
+        private final Map<Integer,Long> acquired;
+        private final Set<Integer> released;
+
+        RecordingListener(Map<Integer,Long> acquired, Set<Integer> released) {
+            this.acquired = acquired;
+            this.released = released;
+        }
+
+        @Override
+        public void partitionAcquired(int partition, long handledUntil) {
+            if (this.acquired != null) {
+                this.acquired.put(partition, handledUntil);
+            }
+        }
+
+        @Override
+        public void partitionReleased(int partition) {
+            if (this.released != null) {
+                this.released.add(partition);
+            }
+        }
+    }
+}
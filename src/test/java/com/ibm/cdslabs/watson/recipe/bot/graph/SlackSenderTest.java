@@ -0,0 +1,47 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class SlackSenderTest extends TestCase {
+
+    public void testShortMessageIsOnePart() {
+        assertEquals(Arrays.asList("Hello"), SlackSender.splitMessage("Hello", 10));
+        assertEquals(Arrays.asList(""), SlackSender.splitMessage("", 10));
+        assertEquals(Arrays.asList("0123456789"), SlackSender.splitMessage("0123456789", 10));
+    }
+
+    public void testSplitsBetweenParagraphsThenLinesThenWords() {
+        assertEquals(Arrays.asList("one\ntwo", "three"), SlackSender.splitMessage("one\ntwo\n\nthree", 10));
+        assertEquals(Arrays.asList("one two", "three"), SlackSender.splitMessage("one two\nthree", 10));
+        assertEquals(Arrays.asList("one two", "three"), SlackSender.splitMessage("one two three", 10));
+    }
+
+    public void testLongWordIsCut() {
+        assertEquals(Arrays.asList("abcde", "fghij", "k"), SlackSender.splitMessage("abcdefghijk", 5));
+    }
+
+    public void testCutDoesNotSplitSurrogatePairs() {
+        String text = "abcd\uD83C\uDF72efgh";
+        List<String> parts = SlackSender.splitMessage(text, 5);
+        assertEquals("abcd", parts.get(0));
+        assertEquals("\uD83C\uDF72efg", parts.get(1));
+        assertEquals(text, String.join("", parts));
+    }
+
+    public void testPartsFitAndKeepTheText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("Step ").append(i).append(i % 7 == 0 ? "\n\n" : (i % 3 == 0 ? "\n" : " "));
+        }
+        List<String> parts = SlackSender.splitMessage(text.toString(), 50);
+        StringBuilder words = new StringBuilder();
+        for (String part : parts) {
+            assertTrue(part.length() <= 50);
+            words.append(part.replaceAll("\\s+", "")).append(' ');
+        }
+        assertEquals(text.toString().replaceAll("\\s+", ""), words.toString().replaceAll("\\s+", ""));
+    }
+}
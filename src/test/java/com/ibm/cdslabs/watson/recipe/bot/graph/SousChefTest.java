@@ -0,0 +1,88 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class SousChefTest extends TestCase {
+
+    private SousChef sousChef;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.sousChef = new SousChef(null, "xoxb-test", "B1", new RecipeClient("key"), "username", "password", "workspace", null);
+    }
+
+    public void testRecipesAreListedAPageAtATime() throws Exception {
+        UserState state = state(12);
+        String reply = this.sousChef.getRecipeListResponse(state);
+        assertTrue(reply.startsWith("Let's see here..."));
+        assertTrue(reply.contains("1. Recipe 1\n"));
+        assertTrue(reply.contains("5. Recipe 5\n"));
+        assertFalse(reply.contains("Recipe 6"));
+        assertTrue(reply.endsWith("say \"more\" to see 7 more recipes."));
+        assertEquals(5, state.getListedRecipeCount());
+        assertTrue(state.hasMoreRecipes());
+        // only two recipes would be left after the next page, so it runs to the end
+        reply = this.sousChef.getRecipeListResponse(state);
+        assertTrue(reply.startsWith("Here are some more recipes:"));
+        assertFalse(reply.contains("5. Recipe 5"));
+        assertTrue(reply.contains("6. Recipe 6\n"));
+        assertTrue(reply.contains("12. Recipe 12\n"));
+        assertTrue(reply.endsWith("Please enter the corresponding number of your choice."));
+        assertEquals(12, state.getListedRecipeCount());
+        assertFalse(state.hasMoreRecipes());
+    }
+
+    public void testFewRemainingRecipesAreListedOnTheFirstPage() throws Exception {
+        UserState state = state(7);
+        String reply = this.sousChef.getRecipeListResponse(state);
+        assertTrue(reply.contains("7. Recipe 7\n"));
+        assertFalse(state.hasMoreRecipes());
+        // three recipes left are enough for another page
+        state = state(8);
+        this.sousChef.getRecipeListResponse(state);
+        assertEquals(5, state.getListedRecipeCount());
+        reply = this.sousChef.getRecipeListResponse(state);
+        assertTrue(reply.contains("8. Recipe 8\n"));
+        assertFalse(state.hasMoreRecipes());
+    }
+
+    public void testUserCountsAreShown() throws Exception {
+        UserState state = new UserState("U1");
+        state.setRecipes(new int[]{1, 2, 3}, new String[]{"Soup", "Stew", "Salad"}, new int[]{0, 1, 2});
+        String reply = this.sousChef.getRecipeListResponse(state);
+        assertTrue(reply.contains("1. Soup\n"));
+        assertTrue(reply.contains("2. Stew *(1 other user likes this)\n"));
+        assertTrue(reply.contains("3. Salad *(2 other users like this)\n"));
+    }
+
+    public void testRecipeNotYetListedCannotBeSelected() throws Exception {
+        UserState state = state(12);
+        this.sousChef.getRecipeListResponse(state);
+        assertEquals("Invalid selection! Say anything to start over...", this.sousChef.handleSelectionMessage(state, 6));
+        assertEquals(0, state.getRecipeIds().length);
+        assertEquals(0, state.getListedRecipeCount());
+    }
+
+    public void testMoreMessages() throws Exception {
+        for (String message : Arrays.asList("more", "More!", "next", "show me more", "some more recipes", "show me some more recipes.", "next recipes")) {
+            assertTrue(message, SousChef.MORE_MESSAGE.matcher(message).matches());
+        }
+        for (String message : Arrays.asList("6", "more chicken", "chicken", "tell me more about soup", "")) {
+            assertFalse(message, SousChef.MORE_MESSAGE.matcher(message).matches());
+        }
+    }
+
+    private static UserState state(int recipeCount) {
+        int[] recipeIds = new int[recipeCount];
+        String[] recipeTitles = new String[recipeCount];
+        for (int i = 0; i < recipeCount; i++) {
+            recipeIds[i] = 100 + i;
+            recipeTitles[i] = "Recipe " + (i + 1);
+        }
+        UserState state = new UserState("U1");
+        state.setRecipes(recipeIds, recipeTitles, null);
+        return state;
+    }
+}
@@ -0,0 +1,44 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class TraceRecorderTest extends TestCase {
+
+    public void testMostRecentSlowTracesAreKept() throws Exception {
+        TraceRecorder recorder = new TraceRecorder(0, 3);
+        for (int i = 0; i < 5; i++) {
+            recorder.begin("U" + i).release();
+        }
+        List<String> userIds = new ArrayList<>();
+        for (Map<String,Object> trace : recorder.getSlowTraces()) {
+            userIds.add((String)trace.get("userId"));
+        }
+        assertEquals(Arrays.asList("U4", "U3", "U2"), userIds);
+        assertEquals(5L, recorder.getMetrics().get("traced"));
+        assertEquals(5L, recorder.getMetrics().get("slow"));
+    }
+
+    public void testFastTracesAreOnlyCounted() throws Exception {
+        TraceRecorder recorder = new TraceRecorder(10000, 3);
+        recorder.begin("U1").release();
+        assertTrue(recorder.getSlowTraces().isEmpty());
+        assertEquals(1L, recorder.getMetrics().get("traced"));
+        assertEquals(0L, recorder.getMetrics().get("slow"));
+    }
+
+    public void testPartlyFilledRingIsDumped() throws Exception {
+        TraceRecorder recorder = new TraceRecorder(0, 3);
+        assertTrue(recorder.getSlowTraces().isEmpty());
+        RequestTrace trace = recorder.begin("U1");
+        trace.setOutcome("busy");
+        trace.release();
+        List<Map<String,Object>> traces = recorder.getSlowTraces();
+        assertEquals(1, traces.size());
+        assertEquals("busy", traces.get(0).get("outcome"));
+    }
+}
@@ -0,0 +1,77 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class UserStateSpillStoreTest extends TestCase {
+
+    public void testSpilledStateIsRestoredOnce() throws Exception {
+        UserStateSpillStore store = new UserStateSpillStore(null, 4096);
+        assertTrue(store.spill(state("U1", 1)));
+        assertTrue(store.spill(state("U2", 2)));
+        assertEquals(2, store.size());
+        assertEquals(1, store.restore("U1").getRecipeIds()[0]);
+        assertNull(store.restore("U1"));
+        assertEquals(1, store.size());
+        assertEquals(state("U2", 2).toBytes().length, store.getLiveBytes());
+    }
+
+    public void testSpillReplacesTheEarlierState() throws Exception {
+        UserStateSpillStore store = new UserStateSpillStore(null, 4096);
+        store.spill(state("U1", 1));
+        store.spill(state("U1", 2));
+        assertEquals(1, store.size());
+        assertEquals(state("U1", 2).toBytes().length, store.getLiveBytes());
+        assertEquals(2, store.restore("U1").getRecipeIds()[0]);
+    }
+
+    public void testFullArenaIsCompacted() throws Exception {
+        int length = state("U1", 1).toBytes().length;
+        UserStateSpillStore store = new UserStateSpillStore(null, length * 3);
+        assertTrue(store.spill(state("U1", 1)));
+        assertTrue(store.spill(state("U2", 2)));
+        assertTrue(store.spill(state("U3", 3)));
+        store.restore("U2");
+        // the arena is full to the end, so U4 only fits once U1 and U3 are moved over the space of U2
+        assertTrue(store.spill(state("U4", 4)));
+        assertEquals(1, store.restore("U1").getRecipeIds()[0]);
+        assertEquals(3, store.restore("U3").getRecipeIds()[0]);
+        assertEquals(4, store.restore("U4").getRecipeIds()[0]);
+        assertEquals(0, store.getLiveBytes());
+    }
+
+    public void testSpillIsRefusedWhenTheLiveStatesFillTheArena() throws Exception {
+        int length = state("U1", 1).toBytes().length;
+        UserStateSpillStore store = new UserStateSpillStore(null, length * 2);
+        assertTrue(store.spill(state("U1", 1)));
+        assertTrue(store.spill(state("U2", 2)));
+        assertFalse(store.spill(state("U3", 3)));
+        assertEquals(2, store.size());
+        assertEquals(1, store.restore("U1").getRecipeIds()[0]);
+        assertEquals(2, store.restore("U2").getRecipeIds()[0]);
+        assertNull(store.restore("U3"));
+    }
+
+    public void testDiscardIf() throws Exception {
+        File file = Files.createTempFile("spill", ".bin").toFile();
+        try {
+            UserStateSpillStore store = new UserStateSpillStore(file, 4096);
+            store.spill(state("A:U1", 1));
+            store.spill(state("B:U2", 2));
+            assertEquals(1, store.discardIf(userId -> userId.startsWith("A:")));
+            assertNull(store.restore("A:U1"));
+            assertEquals(2, store.restore("B:U2").getRecipeIds()[0]);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private static UserState state(String userId, int recipeId) {
+        UserState state = new UserState(userId);
+        state.setRecipes(new int[]{recipeId}, new String[]{"Recipe " + recipeId}, null);
+        return state;
+    }
+}
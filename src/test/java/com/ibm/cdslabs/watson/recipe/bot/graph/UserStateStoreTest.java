@@ -0,0 +1,98 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+
+public class UserStateStoreTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("userstate").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    public void testStatesAreReadBackAfterReopen() throws Exception {
+        UserStateStore store = new UserStateStore(this.directory, 4);
+        store.put(state("U1", 1));
+        store.put(state("U2", 2));
+        store.put(state("U1", 3));
+        store.close();
+
+        store = new UserStateStore(this.directory, 4);
+        assertEquals(3, store.get("U1").getRecipeIds()[0]);
+        assertEquals(2, store.get("U2").getRecipeIds()[0]);
+        assertNull(store.get("U3"));
+        store.close();
+    }
+
+    public void testIncompleteRecordIsTruncatedOnOpen() throws Exception {
+        UserStateStore store = new UserStateStore(this.directory, 1);
+        store.put(state("U1", 1));
+        store.put(state("U1", 2));
+        store.close();
+        File log = new File(this.directory, "userstate-000.log");
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            // a crash while the last record was written
+            file.setLength(file.length() - 3);
+        }
+
+        store = new UserStateStore(this.directory, 1);
+        assertEquals(1, store.get("U1").getRecipeIds()[0]);
+        store.put(state("U1", 4));
+        store.close();
+        assertEquals(4, new UserStateStore(this.directory, 1).get("U1").getRecipeIds()[0]);
+    }
+
+    public void testUnownedPartitionIsNotWritten() throws Exception {
+        UserStateStore store = new UserStateStore(this.directory, 2, Collections.<Integer>emptySet());
+        assertFalse(store.ownsUser("U1"));
+        assertNull(store.get("U1"));
+        try {
+            store.put(state("U1", 1));
+            fail("Expected the write to an unowned partition to fail");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+        store.openPartition(store.getPartition("U1"));
+        store.put(state("U1", 1));
+        store.closePartition(store.getPartition("U1"));
+        assertNull(store.get("U1"));
+        store.close();
+    }
+
+    public void testCompactionKeepsStatesWrittenDuringIt() throws Exception {
+        UserStateStore store = new UserStateStore(this.directory, 1);
+        // enough rewrites of a few users to pass the compaction threshold several times
+        for (int i = 0; i < 20000; i++) {
+            store.put(state("U" + (i % 10), i));
+        }
+        store.close();
+
+        store = new UserStateStore(this.directory, 1);
+        for (int user = 0; user < 10; user++) {
+            assertEquals(19990 + user, store.get("U" + user).getRecipeIds()[0]);
+        }
+        store.close();
+    }
+
+    private static UserState state(String userId, int recipeId) {
+        UserState state = new UserState(userId);
+        state.setRecipes(new int[]{recipeId}, new String[]{String.format("%-100s", "Recipe " + recipeId)}, null);
+        return state;
+    }
+}
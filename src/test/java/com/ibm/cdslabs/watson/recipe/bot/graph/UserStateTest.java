@@ -0,0 +1,54 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class UserStateTest extends TestCase {
+
+    public void testStateRoundTrip() throws Exception {
+        UserState state = new UserState("T1:U1");
+        state.setRecipes(new int[]{11, 22, 33}, new String[]{"Soup", null, "Stew \u00e9"}, new int[]{0, 4, 1});
+        state.setListedRecipeCount(2);
+        state.setConversationContext(Collections.<String, Object>singletonMap("conversation_id", "c-1"));
+        state.setConversationStarted(true);
+        UserState read = UserState.fromBytes(state.toBytes());
+        assertEquals("T1:U1", read.getUserId());
+        assertNull(read.getUserVertexId());
+        assertNull(read.getIngredientCuisineLabel());
+        assertNull(read.getIngredientCuisineVertexId());
+        assertTrue(Arrays.equals(new int[]{11, 22, 33}, read.getRecipeIds()));
+        // a missing title is read back as empty
+        assertEquals(Arrays.asList("Soup", "", "Stew \u00e9"), Arrays.asList(read.getRecipeTitles()));
+        assertTrue(Arrays.equals(new int[]{0, 4, 1}, read.getRecipeUserCounts()));
+        assertEquals(2, read.getListedRecipeCount());
+        assertTrue(read.hasMoreRecipes());
+        Map<String, Object> context = read.getConversationContext();
+        assertEquals("c-1", context.get("conversation_id"));
+        assertTrue(read.isConversationStarted());
+        assertEquals(state.getLastActive(), read.getLastActive());
+    }
+
+    public void testEmptyStateRoundTrip() throws Exception {
+        UserState read = UserState.fromBytes(new UserState("U1").toBytes());
+        assertEquals(0, read.getRecipeIds().length);
+        assertEquals(0, read.getRecipeUserCounts().length);
+        assertEquals(0, read.getListedRecipeCount());
+        assertFalse(read.hasMoreRecipes());
+        assertNull(read.getConversationContext());
+        assertFalse(read.isConversationStarted());
+    }
+
+    public void testStateSerializedBeforePagingListsEveryRecipe() throws Exception {
+        UserState state = new UserState("U1");
+        state.setRecipes(new int[]{11, 22}, new String[]{"Soup", "Stew"}, null);
+        byte[] bytes = state.toBytes();
+        // without the listed count and user counts appended since
+        UserState read = UserState.fromBytes(Arrays.copyOf(bytes, bytes.length - 2 - 4 * 2));
+        assertEquals(2, read.getListedRecipeCount());
+        assertFalse(read.hasMoreRecipes());
+        assertTrue(Arrays.equals(new int[]{0, 0}, read.getRecipeUserCounts()));
+    }
+}
@@ -0,0 +1,53 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph.util;
+
+import com.ibm.cdslabs.watson.recipe.bot.graph.DecayedScore;
+import com.ibm.graph.client.Edge;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CompactRecipeGraphTest extends TestCase {
+
+    private final static long NOW = 1700000000000L;
+
+    public void testCountsAreSummedAndScoresCombined() throws Exception {
+        Map<String, Object> merged = CompactRecipeGraph.mergeProperties(Arrays.asList(
+                edge("count", 3, "score", DecayedScore.forCount(3, NOW), "updated", NOW, "source", "first"),
+                edge("count", 2, "score", DecayedScore.forCount(2, NOW - 1000), "updated", NOW - 1000, "source", "second")));
+        assertEquals(5, merged.get("count"));
+        assertEquals(DecayedScore.merge(DecayedScore.forCount(3, NOW), DecayedScore.forCount(2, NOW - 1000)), (Double)merged.get("score"), 1e-9);
+        assertEquals(NOW, merged.get("updated"));
+        // other properties are taken from the first edge
+        assertEquals("first", merged.get("source"));
+    }
+
+    public void testEdgeWithoutAScoreIsScoredByItsCount() throws Exception {
+        long start = System.currentTimeMillis();
+        Map<String, Object> merged = CompactRecipeGraph.mergeProperties(Arrays.asList(
+                edge("count", 4),
+                edge("score", DecayedScore.forSelection(NOW), "updated", NOW)));
+        assertEquals(4, merged.get("count"));
+        // the unscored selections are treated as made now
+        double score = (Double)merged.get("score");
+        assertTrue(score > DecayedScore.merge(DecayedScore.forCount(4, start - 1000), DecayedScore.forSelection(NOW)));
+        assertEquals(NOW, merged.get("updated"));
+    }
+
+    public void testUncountedEdgesAreNotGivenACount() throws Exception {
+        Map<String, Object> merged = CompactRecipeGraph.mergeProperties(Arrays.asList(edge("name", "a"), edge(), edge("name", "b")));
+        assertEquals("a", merged.get("name"));
+        assertFalse(merged.containsKey("count"));
+        assertFalse(merged.containsKey("score"));
+        assertFalse(merged.containsKey("updated"));
+    }
+
+    private static Edge edge(Object... properties) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put((String)properties[i], properties[i + 1]);
+        }
+        return new Edge("selects", 1L, 2L, map);
+    }
+}
@@ -0,0 +1,80 @@
+package com.ibm.cdslabs.watson.recipe.bot.graph.util;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+
+public class RecipeGraphSnapshotTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.file = File.createTempFile("snapshot", ".rgs");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.file.delete();
+    }
+
+    public void testVerticesAndEdgesRoundTrip() throws Exception {
+        RecipeGraphSnapshot.VertexRecord vertex = new RecipeGraphSnapshot.VertexRecord();
+        vertex.id = "4096";
+        vertex.label = "recipe";
+        vertex.name = "recipe-123";
+        vertex.title = "Tomato Soup";
+        vertex.archivedCount = 7;
+        vertex.archivedUsers = 2;
+        RecipeGraphSnapshot.EdgeRecord edge = new RecipeGraphSnapshot.EdgeRecord();
+        edge.label = "selects";
+        edge.outV = "8192";
+        edge.inV = "4096";
+        edge.count = 3;
+        edge.score = 2.5;
+        edge.updated = 1500000000000L;
+        RecipeGraphSnapshot.EdgeRecord uncounted = new RecipeGraphSnapshot.EdgeRecord();
+        uncounted.label = "has";
+        uncounted.outV = "1024";
+        uncounted.inV = "4096";
+        try (RecipeGraphSnapshot.Writer writer = new RecipeGraphSnapshot.Writer(this.file)) {
+            writer.writeVertices(Collections.singletonList(vertex));
+            writer.writeEdges(Arrays.asList(edge, uncounted));
+        }
+        try (RecipeGraphSnapshot.Reader reader = new RecipeGraphSnapshot.Reader(this.file)) {
+            assertEquals(RecipeGraphSnapshot.VERTEX_CHUNK, reader.nextChunk());
+            RecipeGraphSnapshot.VertexRecord read = reader.readVertices().get(0);
+            assertEquals("recipe-123", read.name);
+            assertEquals("Tomato Soup", read.title);
+            assertNull(read.detail);
+            assertEquals(7, read.archivedCount);
+            assertEquals(2, read.archivedUsers);
+            assertEquals(RecipeGraphSnapshot.EDGE_CHUNK, reader.nextChunk());
+            List<RecipeGraphSnapshot.EdgeRecord> edges = reader.readEdges();
+            assertEquals("selects", edges.get(0).label);
+            assertEquals(3, edges.get(0).count);
+            assertEquals(2.5, edges.get(0).score);
+            assertEquals(1500000000000L, edges.get(0).updated);
+            assertEquals(-1, edges.get(1).count);
+            assertTrue(Double.isNaN(edges.get(1).score));
+            assertEquals(-1, edges.get(1).updated);
+            assertEquals(RecipeGraphSnapshot.END, reader.nextChunk());
+        }
+    }
+
+    public void testRejectsOtherFiles() throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(this.file))) {
+            out.writeInt(0x52475331);
+        }
+        try {
+            new RecipeGraphSnapshot.Reader(this.file).close();
+            fail("Expected an IOException");
+        }
+        catch (java.io.IOException ex) {
+            // expected
+        }
+    }
+}